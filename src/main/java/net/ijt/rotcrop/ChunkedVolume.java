@@ -0,0 +1,670 @@
+/**
+ * 
+ */
+package net.ijt.rotcrop;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import ij.ImageStack;
+import net.ijt.geom3d.AffineTransform3D;
+import net.ijt.geom3d.Point3D;
+
+/**
+ * A 3D image stored on disk as a set of cubic chunks, in a directory layout
+ * similar to the N5 format. Oblique crops read scattered regions of the
+ * source, that correspond to many slices but to a few chunks only.
+ *
+ * The directory contains an <code>attributes.json</code> file with the size of
+ * the image, the size of the chunks, the bit depth and the compression, and a
+ * file for each chunk, stored within the <code>cx/cy/cz</code> sub-directory
+ * (where <code>cx</code>, <code>cy</code> and <code>cz</code> are the chunk
+ * indices). Each chunk file contains the values of a full chunk with big-endian
+ * byte order, optionally compressed with the deflate algorithm. Chunks at the
+ * image border are padded with zeros, and missing chunk files are read as
+ * zeros.
+ *
+ * Decoded chunks are kept within a bounded LRU cache, so that repeated crops
+ * within the same region do not read the disk again. Before resampling a box,
+ * <code>RotCrop</code> calls the <code>prefetch()</code> method, that decodes
+ * the chunks touched by the box in parallel.
+ *
+ * <pre><code>
+ * ChunkedVolume.write(image, dir, 64, true);
+ * ChunkedVolume volume = ChunkedVolume.open(dir);
+ * ImageStack res = RotCrop.rotatedCrop(volume, dims, refPoint, angles, Interpolation.LINEAR);
+ * </code></pre>
+ *
+ * @author dlegland
+ *
+ */
+public class ChunkedVolume implements VoxelSource
+{
+    // ====================================================
+    // Constants
+
+    /** The default size of the chunks along each dimension. */
+    public static final int DEFAULT_CHUNK_SIZE = 64;
+
+    /** The default maximum number of decoded chunks kept in memory. */
+    public static final int DEFAULT_CACHE_SIZE = 256;
+
+    /** The name of the file containing the attributes of the volume. */
+    private static final String ATTRIBUTES_FILE = "attributes.json";
+
+
+    // ====================================================
+    // Static methods
+
+    /**
+     * Converts an image stack into a chunked volume. The chunks are encoded
+     * in parallel.
+     *
+     * @param image
+     *            the image to convert (8-bit, 16-bit or 32-bit)
+     * @param dir
+     *            the directory to write the volume into, created if necessary
+     * @param chunkSize
+     *            the size of the chunks along each dimension, as a power of two
+     * @param compress
+     *            true for compressing the chunks
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    public static final void write(ImageStack image, File dir, int chunkSize, boolean compress) throws IOException
+    {
+        int bitDepth = image.getBitDepth();
+        if (bitDepth != 8 && bitDepth != 16 && bitDepth != 32)
+        {
+            throw new IllegalArgumentException("Bit depth must be 8, 16 or 32, not " + bitDepth);
+        }
+        if (chunkSize < 1 || Integer.bitCount(chunkSize) != 1)
+        {
+            throw new IllegalArgumentException("Chunk size must be a power of two, not " + chunkSize);
+        }
+        if (!dir.isDirectory() && !dir.mkdirs())
+        {
+            throw new IOException("Could not create directory " + dir);
+        }
+
+        int[] dims = new int[] {image.getWidth(), image.getHeight(), image.getSize()};
+        int[] counts = new int[3];
+        for (int d = 0; d < 3; d++)
+        {
+            counts[d] = (dims[d] + chunkSize - 1) / chunkSize;
+        }
+
+        String json = String.format("{\"dimensions\":[%d,%d,%d],\"blockSize\":[%d,%d,%d],\"bitDepth\":%d,\"compression\":\"%s\"}",
+                dims[0], dims[1], dims[2], chunkSize, chunkSize, chunkSize, bitDepth, compress ? "deflate" : "raw");
+        Files.write(new File(dir, ATTRIBUTES_FILE).toPath(), json.getBytes(StandardCharsets.UTF_8));
+
+        int nChunks = counts[0] * counts[1] * counts[2];
+        try
+        {
+            ParallelLoops.forRange(nChunks, 1, (c0, c1) -> {
+                for (int c = c0; c < c1; c++)
+                {
+                    int cx = c % counts[0];
+                    int cy = (c / counts[0]) % counts[1];
+                    int cz = c / (counts[0] * counts[1]);
+                    try
+                    {
+                        writeChunk(image, dir, chunkSize, compress, cx, cy, cz);
+                    }
+                    catch (IOException ex)
+                    {
+                        throw new UncheckedIOException(ex);
+                    }
+                }
+            });
+        }
+        catch (UncheckedIOException ex)
+        {
+            throw ex.getCause();
+        }
+    }
+
+    private static final void writeChunk(ImageStack image, File dir, int chunkSize, boolean compress, int cx, int cy, int cz) throws IOException
+    {
+        int sizeX = image.getWidth();
+        int sizeY = image.getHeight();
+        int sizeZ = image.getSize();
+        int bytesPerVoxel = image.getBitDepth() / 8;
+
+        // copy the values of the chunk, using big-endian byte order
+        ByteBuffer buffer = ByteBuffer.allocate(chunkSize * chunkSize * chunkSize * bytesPerVoxel).order(ByteOrder.BIG_ENDIAN);
+        int x0 = cx * chunkSize, y0 = cy * chunkSize, z0 = cz * chunkSize;
+        int nx = Math.min(chunkSize, sizeX - x0);
+        int ny = Math.min(chunkSize, sizeY - y0);
+        int nz = Math.min(chunkSize, sizeZ - z0);
+        for (int z = 0; z < nz; z++)
+        {
+            Object pixels = image.getPixels(z0 + z + 1);
+            for (int y = 0; y < ny; y++)
+            {
+                int srcOffset = (y0 + y) * sizeX + x0;
+                int pos = ((z * chunkSize + y) * chunkSize) * bytesPerVoxel;
+                for (int x = 0; x < nx; x++)
+                {
+                    if (pixels instanceof byte[])
+                    {
+                        buffer.put(pos + x, ((byte[]) pixels)[srcOffset + x]);
+                    }
+                    else if (pixels instanceof short[])
+                    {
+                        buffer.putShort(pos + 2 * x, ((short[]) pixels)[srcOffset + x]);
+                    }
+                    else
+                    {
+                        buffer.putFloat(pos + 4 * x, ((float[]) pixels)[srcOffset + x]);
+                    }
+                }
+            }
+        }
+
+        File file = chunkFile(dir, cx, cy, cz);
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory())
+        {
+            throw new IOException("Could not create directory " + parent);
+        }
+        try (OutputStream out = Files.newOutputStream(file.toPath()))
+        {
+            if (compress)
+            {
+                // closing the stream also releases the native deflater
+                try (DeflaterOutputStream deflater = new DeflaterOutputStream(out))
+                {
+                    deflater.write(buffer.array());
+                }
+            }
+            else
+            {
+                out.write(buffer.array());
+            }
+        }
+    }
+
+    /**
+     * Opens a chunked volume, using the default cache size.
+     *
+     * @param dir
+     *            the directory containing the volume
+     * @return the chunked volume
+     * @throws IOException
+     *             if the attributes of the volume can not be read
+     */
+    public static final ChunkedVolume open(File dir) throws IOException
+    {
+        return open(dir, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Opens a chunked volume.
+     *
+     * @param dir
+     *            the directory containing the volume
+     * @param cacheSize
+     *            the maximum number of decoded chunks kept in memory
+     * @return the chunked volume
+     * @throws IOException
+     *             if the attributes of the volume can not be read
+     */
+    public static final ChunkedVolume open(File dir, int cacheSize) throws IOException
+    {
+        String json = new String(Files.readAllBytes(new File(dir, ATTRIBUTES_FILE).toPath()), StandardCharsets.UTF_8);
+        int[] dims = parseArray(json, "dimensions");
+        int[] blockSize = parseArray(json, "blockSize");
+        int bitDepth = Integer.parseInt(parseValue(json, "bitDepth"));
+        String compression = parseValue(json, "compression");
+        if (blockSize[0] != blockSize[1] || blockSize[0] != blockSize[2])
+        {
+            throw new IOException("Only cubic chunks are supported");
+        }
+        if (!compression.equals("raw") && !compression.equals("deflate"))
+        {
+            throw new IOException("Unsupported compression: " + compression);
+        }
+        return new ChunkedVolume(dir, dims, blockSize[0], bitDepth, compression.equals("deflate"), cacheSize);
+    }
+
+    private static final int[] parseArray(String json, String key) throws IOException
+    {
+        Matcher matcher = Pattern.compile("\"" + key + "\"\\s*:\\s*\\[([^\\]]*)\\]").matcher(json);
+        if (!matcher.find())
+        {
+            throw new IOException("Missing attribute: " + key);
+        }
+        String[] tokens = matcher.group(1).split(",");
+        int[] res = new int[tokens.length];
+        for (int i = 0; i < tokens.length; i++)
+        {
+            res[i] = Integer.parseInt(tokens[i].trim());
+        }
+        return res;
+    }
+
+    private static final String parseValue(String json, String key) throws IOException
+    {
+        Matcher matcher = Pattern.compile("\"" + key + "\"\\s*:\\s*\"?([\\w.]+)\"?").matcher(json);
+        if (!matcher.find())
+        {
+            throw new IOException("Missing attribute: " + key);
+        }
+        return matcher.group(1);
+    }
+
+    private static final File chunkFile(File dir, int cx, int cy, int cz)
+    {
+        return new File(new File(new File(dir, Integer.toString(cx)), Integer.toString(cy)), Integer.toString(cz));
+    }
+
+
+    // ====================================================
+    // Class properties
+
+    /** The directory containing the volume. */
+    private final File dir;
+
+    // the size of the image
+    private final int sizeX;
+    private final int sizeY;
+    private final int sizeZ;
+
+    /** The bit depth of the image (8, 16 or 32). */
+    private final int bitDepth;
+
+    /** The size of the chunks along each dimension. */
+    private final int chunkSize;
+
+    /** The binary logarithm of the chunk size. */
+    private final int chunkShift;
+
+    /** Whether chunk files are compressed. */
+    private final boolean compressed;
+
+    // the number of chunks along each dimension
+    private final int chunkCountX;
+    private final int chunkCountY;
+    private final int chunkCountZ;
+
+    /** The maximum number of chunks within the cache. */
+    private final int cacheSize;
+
+    /**
+     * The decoded chunks, as primitive arrays indexed by chunk index, in access
+     * order.
+     */
+    private final LinkedHashMap<Long, Object> cache;
+
+    /**
+     * The last chunk accessed by each thread, that avoids a cache lookup for
+     * consecutive reads within the same chunk.
+     */
+    private final ThreadLocal<Cursor> cursors = ThreadLocal.withInitial(Cursor::new);
+
+    /** The number of chunks read from disk so far. */
+    private final AtomicLong readCount = new AtomicLong();
+
+    private static final class Cursor
+    {
+        long index = -1;
+        Object data;
+    }
+
+
+    // ====================================================
+    // Constructor
+
+    private ChunkedVolume(File dir, int[] dims, int chunkSize, int bitDepth, boolean compressed, int cacheSize)
+    {
+        if (bitDepth != 8 && bitDepth != 16 && bitDepth != 32)
+        {
+            throw new IllegalArgumentException("Bit depth must be 8, 16 or 32, not " + bitDepth);
+        }
+        if (chunkSize < 1 || Integer.bitCount(chunkSize) != 1)
+        {
+            throw new IllegalArgumentException("Chunk size must be a power of two, not " + chunkSize);
+        }
+        if (cacheSize < 1)
+        {
+            throw new IllegalArgumentException("Cache size must be at least 1");
+        }
+        this.dir = dir;
+        this.sizeX = dims[0];
+        this.sizeY = dims[1];
+        this.sizeZ = dims[2];
+        this.bitDepth = bitDepth;
+        this.chunkSize = chunkSize;
+        this.chunkShift = Integer.numberOfTrailingZeros(chunkSize);
+        this.compressed = compressed;
+        this.chunkCountX = (sizeX + chunkSize - 1) / chunkSize;
+        this.chunkCountY = (sizeY + chunkSize - 1) / chunkSize;
+        this.chunkCountZ = (sizeZ + chunkSize - 1) / chunkSize;
+        this.cacheSize = cacheSize;
+        this.cache = new LinkedHashMap<Long, Object>(cacheSize * 2, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Object> eldest)
+            {
+                return size() > ChunkedVolume.this.cacheSize;
+            }
+        };
+    }
+
+
+    // ====================================================
+    // Accessors
+
+    /**
+     * @return the size of the chunks along each dimension
+     */
+    public int getChunkSize()
+    {
+        return chunkSize;
+    }
+
+    /**
+     * @return the number of chunks currently held in the cache
+     */
+    public int getCachedChunkCount()
+    {
+        synchronized (cache)
+        {
+            return cache.size();
+        }
+    }
+
+    /**
+     * @return the number of chunk files read from disk since the volume was
+     *         opened
+     */
+    public long getReadCount()
+    {
+        return readCount.get();
+    }
+
+
+    // ====================================================
+    // Management of chunks
+
+    /**
+     * Returns the decoded values of a chunk, reading it from disk if it is not
+     * within the cache.
+     */
+    private Object chunk(int cx, int cy, int cz)
+    {
+        long index = chunkIndex(cx, cy, cz);
+        Object data;
+        synchronized (cache)
+        {
+            data = cache.get(index);
+        }
+        if (data == null)
+        {
+            // decode outside of the lock, so that several chunks can be decoded
+            // concurrently
+            data = readChunk(cx, cy, cz);
+            synchronized (cache)
+            {
+                cache.put(index, data);
+            }
+        }
+        return data;
+    }
+
+    private long chunkIndex(int cx, int cy, int cz)
+    {
+        return ((long) cz * chunkCountY + cy) * chunkCountX + cx;
+    }
+
+    private Object readChunk(int cx, int cy, int cz)
+    {
+        int nVoxels = chunkSize * chunkSize * chunkSize;
+        byte[] bytes = new byte[nVoxels * (bitDepth / 8)];
+        File file = chunkFile(dir, cx, cy, cz);
+        if (file.exists())
+        {
+            try (InputStream in = Files.newInputStream(file.toPath());
+                    InputStream stream = compressed ? new InflaterInputStream(in) : in)
+            {
+                new DataInputStream(stream).readFully(bytes);
+            }
+            catch (IOException ex)
+            {
+                throw new UncheckedIOException("Could not read chunk " + file, ex);
+            }
+            readCount.incrementAndGet();
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.BIG_ENDIAN);
+        switch (bitDepth)
+        {
+        case 8:
+            return bytes;
+        case 16:
+        {
+            short[] data = new short[nVoxels];
+            buffer.asShortBuffer().get(data);
+            return data;
+        }
+        default:
+        {
+            float[] data = new float[nVoxels];
+            buffer.asFloatBuffer().get(data);
+            return data;
+        }
+        }
+    }
+
+    /**
+     * Decodes in parallel the chunks touched by a resampled box that are not
+     * yet within the cache, up to the capacity of the cache. A chunk is
+     * considered as touched when the bounding box of its image within the box
+     * basis intersects the box.
+     *
+     * @param transfo
+     *            the transform that maps coordinates in the box into
+     *            coordinates in the volume
+     * @param dims
+     *            the size of the box
+     */
+    @Override
+    public void prefetch(AffineTransform3D transfo, int[] dims)
+    {
+        // coefficients of the transform
+        Point3D p0 = transfo.transform(new Point3D(0, 0, 0));
+        Point3D px = transfo.transform(new Point3D(1, 0, 0));
+        Point3D py = transfo.transform(new Point3D(0, 1, 0));
+        Point3D pz = transfo.transform(new Point3D(0, 0, 1));
+        double[][] mat = new double[][] {
+            {px.x() - p0.x(), py.x() - p0.x(), pz.x() - p0.x()},
+            {px.y() - p0.y(), py.y() - p0.y(), pz.y() - p0.y()},
+            {px.z() - p0.z(), py.z() - p0.z(), pz.z() - p0.z()}};
+        double[][] inv = invert(mat);
+        if (inv == null)
+        {
+            return;
+        }
+        double[] origin = new double[] {p0.x(), p0.y(), p0.z()};
+
+        // bounding box of the box within the volume, with a margin for the
+        // neighbors used by interpolation
+        double margin = 2.0;
+        double[] min = new double[] {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY};
+        double[] max = new double[] {Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        for (int c = 0; c < 8; c++)
+        {
+            double[] corner = new double[] {(c & 1) * (dims[0] - 1), ((c >> 1) & 1) * (dims[1] - 1), ((c >> 2) & 1) * (dims[2] - 1)};
+            for (int d = 0; d < 3; d++)
+            {
+                double v = origin[d] + mat[d][0] * corner[0] + mat[d][1] * corner[1] + mat[d][2] * corner[2];
+                min[d] = Math.min(min[d], v);
+                max[d] = Math.max(max[d], v);
+            }
+        }
+        int[] counts = new int[] {chunkCountX, chunkCountY, chunkCountZ};
+        int[] c0 = new int[3];
+        int[] c1 = new int[3];
+        for (int d = 0; d < 3; d++)
+        {
+            c0[d] = Math.max((int) Math.floor((min[d] - margin) / chunkSize), 0);
+            c1[d] = Math.min((int) Math.floor((max[d] + margin) / chunkSize) + 1, counts[d]);
+        }
+
+        // select the chunks that intersect the box and are not in the cache
+        ArrayList<int[]> chunks = new ArrayList<int[]>();
+        for (int cz = c0[2]; cz < c1[2]; cz++)
+        {
+            for (int cy = c0[1]; cy < c1[1]; cy++)
+            {
+                for (int cx = c0[0]; cx < c1[0] && chunks.size() < cacheSize; cx++)
+                {
+                    if (intersects(cx, cy, cz, margin, origin, inv, dims))
+                    {
+                        synchronized (cache)
+                        {
+                            if (cache.containsKey(chunkIndex(cx, cy, cz)))
+                            {
+                                continue;
+                            }
+                        }
+                        chunks.add(new int[] {cx, cy, cz});
+                    }
+                }
+            }
+        }
+
+        ParallelLoops.forRange(chunks.size(), 1, (i0, i1) -> {
+            for (int i = i0; i < i1; i++)
+            {
+                int[] c = chunks.get(i);
+                chunk(c[0], c[1], c[2]);
+            }
+        });
+    }
+
+    /**
+     * Checks if a chunk, enlarged by a margin, may intersect the box.
+     */
+    private boolean intersects(int cx, int cy, int cz, double margin, double[] origin, double[][] inv, int[] dims)
+    {
+        int[] c = new int[] {cx, cy, cz};
+        double[] min = new double[] {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY};
+        double[] max = new double[] {Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        double[] p = new double[3];
+        for (int k = 0; k < 8; k++)
+        {
+            // corner of the enlarged chunk, relative to the box origin
+            for (int d = 0; d < 3; d++)
+            {
+                double v = ((k >> d) & 1) == 0 ? c[d] * chunkSize - margin : (c[d] + 1) * chunkSize - 1 + margin;
+                p[d] = v - origin[d];
+            }
+            for (int d = 0; d < 3; d++)
+            {
+                double v = inv[d][0] * p[0] + inv[d][1] * p[1] + inv[d][2] * p[2];
+                min[d] = Math.min(min[d], v);
+                max[d] = Math.max(max[d], v);
+            }
+        }
+        for (int d = 0; d < 3; d++)
+        {
+            if (max[d] < 0 || min[d] > dims[d] - 1)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Inverts a 3x3 matrix, or returns null if the matrix is singular.
+     */
+    private static final double[][] invert(double[][] m)
+    {
+        double c00 = m[1][1] * m[2][2] - m[1][2] * m[2][1];
+        double c01 = m[1][2] * m[2][0] - m[1][0] * m[2][2];
+        double c02 = m[1][0] * m[2][1] - m[1][1] * m[2][0];
+        double det = m[0][0] * c00 + m[0][1] * c01 + m[0][2] * c02;
+        if (Math.abs(det) < 1e-12)
+        {
+            return null;
+        }
+        return new double[][] {
+            {c00 / det, (m[0][2] * m[2][1] - m[0][1] * m[2][2]) / det, (m[0][1] * m[1][2] - m[0][2] * m[1][1]) / det},
+            {c01 / det, (m[0][0] * m[2][2] - m[0][2] * m[2][0]) / det, (m[0][2] * m[1][0] - m[0][0] * m[1][2]) / det},
+            {c02 / det, (m[0][1] * m[2][0] - m[0][0] * m[2][1]) / det, (m[0][0] * m[1][1] - m[0][1] * m[1][0]) / det}};
+    }
+
+
+    // ====================================================
+    // Implementation of the VoxelSource interface
+
+    @Override
+    public int getWidth()
+    {
+        return sizeX;
+    }
+
+    @Override
+    public int getHeight()
+    {
+        return sizeY;
+    }
+
+    @Override
+    public int getSize()
+    {
+        return sizeZ;
+    }
+
+    @Override
+    public int getBitDepth()
+    {
+        return bitDepth;
+    }
+
+    @Override
+    public double getVoxel(int x, int y, int z)
+    {
+        int cx = x >> chunkShift, cy = y >> chunkShift, cz = z >> chunkShift;
+        long index = chunkIndex(cx, cy, cz);
+        Cursor cursor = cursors.get();
+        if (cursor.index != index)
+        {
+            cursor.data = chunk(cx, cy, cz);
+            cursor.index = index;
+        }
+
+        int mask = chunkSize - 1;
+        int i = (((z & mask) << chunkShift | (y & mask)) << chunkShift) | (x & mask);
+        switch (bitDepth)
+        {
+        case 8:
+            return ((byte[]) cursor.data)[i] & 0x00FF;
+        case 16:
+            return ((short[]) cursor.data)[i] & 0x00FFFF;
+        default:
+            return ((float[]) cursor.data)[i];
+        }
+    }
+}
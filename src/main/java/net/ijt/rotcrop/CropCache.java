@@ -0,0 +1,421 @@
+/**
+ * 
+ */
+package net.ijt.rotcrop;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.function.Supplier;
+
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+/**
+ * A memory-bounded cache of computed crops and previews, that avoids
+ * recomputing the same crop when the user switches between a few settings.
+ * Results are identified by a key built from the source image, the name of the
+ * operation, and the parameters of the operation. When the total size of the
+ * cached results exceeds the capacity, the least recently used results are
+ * discarded.
+ *
+ * Each source image is identified by an ID and a modification count. Calling
+ * the <code>invalidate()</code> method when the content of a source changes
+ * increments its modification count, making the results computed from the
+ * previous content unreachable, and discards them.
+ *
+ * The cache stores copies of the results, and returns copies of the cached
+ * results, so that modifying a result does not modify the cache.
+ *
+ * As the content of an ImageStack can be modified without notification, the
+ * cache is only used by the plugins, whose frames listen to the changes of
+ * the image and invalidate the results. The crop functions of the
+ * <code>RotCrop</code> class always compute their results.
+ *
+ * <pre><code>
+ * CropCache cache = CropCache.shared();
+ * CropCache.Key key = cache.key("rotatedCrop", image, dims, params, interp, bitDepth);
+ * ImageStack res = cache.get(key, () -&gt; computeCrop(image, dims, params, interp, bitDepth));
+ * </code></pre>
+ *
+ * @author dlegland
+ *
+ */
+public class CropCache
+{
+    // ====================================================
+    // Constants
+
+    /**
+     * The default capacity of the shared cache, in bytes, corresponding to
+     * one eighth of the maximum heap size.
+     */
+    public static final long DEFAULT_CAPACITY = Runtime.getRuntime().maxMemory() / 8;
+
+    /** The cache shared by the plugins. */
+    private static final CropCache SHARED = new CropCache(DEFAULT_CAPACITY);
+
+
+    // ====================================================
+    // Static methods
+
+    /**
+     * @return the cache shared by the plugins
+     */
+    public static final CropCache shared()
+    {
+        return SHARED;
+    }
+
+    /**
+     * Returns the size of the memory used by a result, in bytes.
+     *
+     * @param result
+     *            a crop result, as an ImageStack or an ImageProcessor
+     * @return the memory size of the result
+     */
+    public static final long sizeOf(Object result)
+    {
+        if (result instanceof ImageStack)
+        {
+            ImageStack stack = (ImageStack) result;
+            return (long) stack.getWidth() * stack.getHeight() * stack.getSize() * bytesPerElement(stack.getBitDepth());
+        }
+        if (result instanceof ImageProcessor)
+        {
+            ImageProcessor image = (ImageProcessor) result;
+            return (long) image.getWidth() * image.getHeight() * bytesPerElement(image.getBitDepth());
+        }
+        throw new IllegalArgumentException("Unsupported type of result: " + result.getClass().getName());
+    }
+
+    private static final int bytesPerElement(int bitDepth)
+    {
+        return bitDepth == 24 ? 4 : bitDepth / 8;
+    }
+
+    /**
+     * Creates a copy of a result, that does not share pixel arrays with the
+     * original result.
+     */
+    @SuppressWarnings("unchecked")
+    private static final <T> T copy(T result)
+    {
+        if (result instanceof ImageStack)
+        {
+            ImageStack stack = (ImageStack) result;
+            int sizeX = stack.getWidth();
+            int sizeY = stack.getHeight();
+            int sizeZ = stack.getSize();
+            ImageStack res = ImageStack.create(sizeX, sizeY, sizeZ, stack.getBitDepth());
+            for (int z = 1; z <= sizeZ; z++)
+            {
+                System.arraycopy(stack.getPixels(z), 0, res.getPixels(z), 0, sizeX * sizeY);
+            }
+            return (T) res;
+        }
+        if (result instanceof ImageProcessor)
+        {
+            return (T) ((ImageProcessor) result).duplicate();
+        }
+        throw new IllegalArgumentException("Unsupported type of result: " + result.getClass().getName());
+    }
+
+
+    // ====================================================
+    // Inner classes
+
+    /**
+     * Identifies a cached result. Keys are created by the <code>key()</code>
+     * method of the cache, that retrieves the ID and the modification count of
+     * the source.
+     */
+    public static final class Key
+    {
+        final SourceState source;
+        final int sourceId;
+        final long modCount;
+        final String operation;
+        final int[] dims;
+        final double[] params;
+        final Interpolation interp;
+        final int bitDepth;
+
+        Key(SourceState source, String operation, int[] dims, double[] params, Interpolation interp, int bitDepth)
+        {
+            this.source = source;
+            this.sourceId = source.id;
+            this.modCount = source.modCount;
+            this.operation = operation;
+            this.dims = dims.clone();
+            this.params = params.clone();
+            this.interp = interp;
+            this.bitDepth = bitDepth;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Key))
+            {
+                return false;
+            }
+            Key that = (Key) obj;
+            return this.sourceId == that.sourceId && this.modCount == that.modCount
+                    && this.operation.equals(that.operation) && Arrays.equals(this.dims, that.dims)
+                    && Arrays.equals(this.params, that.params) && this.interp == that.interp
+                    && this.bitDepth == that.bitDepth;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            int hash = sourceId;
+            hash = hash * 31 + Long.hashCode(modCount);
+            hash = hash * 31 + operation.hashCode();
+            hash = hash * 31 + Arrays.hashCode(dims);
+            hash = hash * 31 + Arrays.hashCode(params);
+            hash = hash * 31 + (interp == null ? 0 : interp.hashCode());
+            hash = hash * 31 + bitDepth;
+            return hash;
+        }
+    }
+
+    /**
+     * The ID and the modification count of a source image.
+     */
+    private static final class SourceState
+    {
+        final int id;
+        long modCount = 0;
+
+        SourceState(int id)
+        {
+            this.id = id;
+        }
+    }
+
+
+    // ====================================================
+    // Class properties
+
+    /** The maximum size of the cached results, in bytes. */
+    private long capacity;
+
+    /** The cached results, in access order. */
+    private final LinkedHashMap<Key, Object> entries = new LinkedHashMap<Key, Object>(16, 0.75f, true);
+
+    /** The total size of the cached results, in bytes. */
+    private long usedBytes = 0;
+
+    /**
+     * The state of each source, using weak references to the sources so that
+     * they can be garbage collected.
+     */
+    private final Map<Object, SourceState> sources = new WeakHashMap<Object, SourceState>();
+
+    /** The ID of the next registered source. */
+    private int nextSourceId = 1;
+
+    /** The number of requests answered from the cache. */
+    private long hitCount = 0;
+
+
+    // ====================================================
+    // Constructor
+
+    /**
+     * Creates a new cache.
+     *
+     * @param capacity
+     *            the maximum size of the cached results, in bytes. A capacity
+     *            of zero disables the cache.
+     */
+    public CropCache(long capacity)
+    {
+        this.capacity = capacity;
+    }
+
+
+    // ====================================================
+    // Methods
+
+    /**
+     * Creates the key that identifies the result of an operation applied to
+     * the current content of a source.
+     *
+     * @param operation
+     *            the name of the operation
+     * @param source
+     *            the source image, usually the ImageStack to crop
+     * @param dims
+     *            the size of the result
+     * @param params
+     *            the other parameters of the operation, such as the position
+     *            and the orientation of the crop
+     * @param interp
+     *            the interpolation method
+     * @param bitDepth
+     *            the bit depth of the result
+     * @return the key of the result
+     */
+    public synchronized Key key(String operation, Object source, int[] dims, double[] params, Interpolation interp, int bitDepth)
+    {
+        return new Key(sourceState(source), operation, dims, params, interp, bitDepth);
+    }
+
+    private SourceState sourceState(Object source)
+    {
+        SourceState state = sources.get(source);
+        if (state == null)
+        {
+            state = new SourceState(nextSourceId++);
+            sources.put(source, state);
+        }
+        return state;
+    }
+
+    /**
+     * Returns a copy of the cached result associated to the key, or computes,
+     * caches and returns the result if it is not in the cache. The computation
+     * is performed outside of the lock of the cache, so that computations of
+     * different keys may run concurrently. Exceptions thrown by the
+     * computation are propagated, and nothing is cached, as for null results.
+     *
+     * @param <T>
+     *            the type of the result, either ImageStack or ImageProcessor
+     * @param key
+     *            the key of the result
+     * @param computation
+     *            the computation of the result
+     * @return the result associated to the key
+     */
+    public <T> T get(Key key, Supplier<T> computation)
+    {
+        synchronized (this)
+        {
+            @SuppressWarnings("unchecked")
+            T cached = (T) entries.get(key);
+            if (cached != null)
+            {
+                hitCount++;
+                return copy(cached);
+            }
+        }
+
+        T res = computation.get();
+        if (res == null)
+        {
+            return null;
+        }
+        long size = sizeOf(res);
+        synchronized (this)
+        {
+            // do not cache results of sources invalidated during the computation
+            if (size <= capacity && key.source.modCount == key.modCount && !entries.containsKey(key))
+            {
+                entries.put(key, copy(res));
+                usedBytes += size;
+                evict();
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Removes the least recently used results until the used memory fits
+     * within the capacity.
+     */
+    private void evict()
+    {
+        Iterator<Object> iter = entries.values().iterator();
+        while (usedBytes > capacity && iter.hasNext())
+        {
+            usedBytes -= sizeOf(iter.next());
+            iter.remove();
+        }
+    }
+
+    /**
+     * Notifies the cache that the content of a source has changed. The results
+     * computed from the previous content are discarded.
+     *
+     * @param source
+     *            the source image
+     */
+    public synchronized void invalidate(Object source)
+    {
+        SourceState state = sources.get(source);
+        if (state == null)
+        {
+            return;
+        }
+        state.modCount++;
+        Iterator<Map.Entry<Key, Object>> iter = entries.entrySet().iterator();
+        while (iter.hasNext())
+        {
+            Map.Entry<Key, Object> entry = iter.next();
+            if (entry.getKey().sourceId == state.id)
+            {
+                usedBytes -= sizeOf(entry.getValue());
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes all the cached results.
+     */
+    public synchronized void clear()
+    {
+        entries.clear();
+        usedBytes = 0;
+    }
+
+    /**
+     * Changes the capacity of the cache, discarding results if necessary.
+     *
+     * @param capacity
+     *            the maximum size of the cached results, in bytes. A capacity
+     *            of zero disables the cache.
+     */
+    public synchronized void setCapacity(long capacity)
+    {
+        this.capacity = capacity;
+        evict();
+    }
+
+    /**
+     * @return the maximum size of the cached results, in bytes
+     */
+    public synchronized long getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * @return the total size of the cached results, in bytes
+     */
+    public synchronized long getUsedBytes()
+    {
+        return usedBytes;
+    }
+
+    /**
+     * @return the number of cached results
+     */
+    public synchronized int getEntryCount()
+    {
+        return entries.size();
+    }
+
+    /**
+     * @return the number of requests answered from the cache
+     */
+    public synchronized long getHitCount()
+    {
+        return hitCount;
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * 
+ */
+package net.ijt.rotcrop;
+
+import net.ijt.geom3d.AffineTransform3D;
+import net.ijt.geom3d.Point3D;
+
+/**
+ * The description of a single crop within a batch of 3D crops: the size of
+ * the result image, and the transform that maps coordinates in the result
+ * image into coordinates in the source image.
+ *
+ * Requests are immutable. They can be created either from an explicit
+ * transform, or from the center and the orientation of the box:
+ * <pre><code>
+ * List&lt;CropRequest&gt; requests = new ArrayList&lt;&gt;();
+ * for (Point3D center : centers)
+ * {
+ *     requests.add(CropRequest.rotated(center, angles, dims));
+ * }
+ * RotCrop.rotatedCrops(image, requests, (index, request, crop) -&gt; save(crop, index));
+ * </code></pre>
+ *
+ * @see RotCrop#rotatedCrops(ij.ImageStack, java.util.List, RotCrop.CropConsumer)
+ *
+ * @author dlegland
+ *
+ */
+public class CropRequest
+{
+    // ====================================================
+    // Static factories
+
+    /**
+     * Creates a request for a crop with the specified center and orientation.
+     *
+     * @param center
+     *            the position of the center of the crop within the image
+     * @param anglesInDegrees
+     *            the three Euler angles (in degrees) that define the box
+     *            orientation
+     * @param dims
+     *            the size of the result image
+     * @return a new crop request
+     */
+    public static final CropRequest rotated(Point3D center, double[] anglesInDegrees, int[] dims)
+    {
+        return new CropRequest(RotCrop.computeTransform(center, dims, anglesInDegrees), dims);
+    }
+
+
+    // ====================================================
+    // Class properties
+
+    /** The transform from result coordinates to source coordinates. */
+    private final AffineTransform3D transform;
+
+    /** The size of the result image. */
+    private final int[] dims;
+
+
+    // ====================================================
+    // Constructor
+
+    /**
+     * Creates a new crop request from a transform and the size of the result.
+     *
+     * @param transform
+     *            the transform that maps coordinates in the result image into
+     *            coordinates in the source image
+     * @param dims
+     *            the size of the result image
+     */
+    public CropRequest(AffineTransform3D transform, int[] dims)
+    {
+        if (dims.length != 3)
+        {
+            throw new IllegalArgumentException("Requires an array of three dimensions");
+        }
+        this.transform = transform;
+        this.dims = dims.clone();
+    }
+
+
+    // ====================================================
+    // Accessors
+
+    /**
+     * @return the transform that maps coordinates in the result image into
+     *         coordinates in the source image
+     */
+    public AffineTransform3D getTransform()
+    {
+        return transform;
+    }
+
+    /**
+     * @return a copy of the size of the result image
+     */
+    public int[] getDims()
+    {
+        return dims.clone();
+    }
+}
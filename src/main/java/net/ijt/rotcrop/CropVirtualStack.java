@@ -0,0 +1,203 @@
+/**
+ * 
+ */
+package net.ijt.rotcrop;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ij.VirtualStack;
+import ij.process.ImageProcessor;
+import net.ijt.interp.Function3D;
+
+/**
+ * A virtual stack whose slices are computed from a 3D function only when they
+ * are requested, typically by the window that displays the stack. The most
+ * recently used slices are kept within a small cache, so that the memory
+ * footprint does not depend on the number of slices.
+ *
+ * When the function is a <code>ResamplingKernel3D</code>, slices are computed
+ * using the same row-based loops as <code>RotCrop.resample()</code>. Otherwise
+ * values are obtained voxel by voxel. The function may be evaluated from
+ * several threads, and must support concurrent evaluations.
+ *
+ * <pre><code>
+ * ImageStack res = RotCrop.rotatedCropVirtual(image, dims, refPoint, angles, Interpolation.LINEAR);
+ * new ImagePlus("Crop", res).show();
+ * </code></pre>
+ *
+ * @see RotCrop#rotatedCropVirtual(ij.ImageStack, int[], net.ijt.geom3d.Point3D, double[], Interpolation)
+ *
+ * @author dlegland
+ *
+ */
+public class CropVirtualStack extends VirtualStack
+{
+    // ====================================================
+    // Constants
+
+    /** The default number of slices kept in the cache. */
+    public static final int DEFAULT_CACHE_SIZE = 16;
+
+
+    // ====================================================
+    // Class properties
+
+    /** The function used to compute slice values. */
+    private final Function3D function;
+
+    // the size of the stack
+    private final int sizeX;
+    private final int sizeY;
+    private final int sizeZ;
+
+    /** The bit depth of the slices (8, 16 or 32). */
+    private final int bitDepth;
+
+    /**
+     * The cache of computed slices, indexed by slice index starting from 0, in
+     * access order.
+     */
+    private final LinkedHashMap<Integer, ImageProcessor> cache;
+
+
+    // ====================================================
+    // Constructors
+
+    /**
+     * Creates a new virtual stack, using the default cache size.
+     *
+     * @param function
+     *            the function used to compute voxel values
+     * @param dims
+     *            the size of the stack
+     * @param bitDepth
+     *            the bit depth of the stack (8, 16 or 32)
+     */
+    public CropVirtualStack(Function3D function, int[] dims, int bitDepth)
+    {
+        this(function, dims, bitDepth, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Creates a new virtual stack.
+     *
+     * @param function
+     *            the function used to compute voxel values
+     * @param dims
+     *            the size of the stack
+     * @param bitDepth
+     *            the bit depth of the stack (8, 16 or 32)
+     * @param cacheSize
+     *            the maximum number of slices kept in memory
+     */
+    public CropVirtualStack(Function3D function, int[] dims, int bitDepth, int cacheSize)
+    {
+        super(dims[0], dims[1], null, null);
+        if (bitDepth != 8 && bitDepth != 16 && bitDepth != 32)
+        {
+            throw new IllegalArgumentException("Bit depth must be 8, 16 or 32, not " + bitDepth);
+        }
+        if (cacheSize < 1)
+        {
+            throw new IllegalArgumentException("Cache size must be at least 1");
+        }
+        this.function = function;
+        this.sizeX = dims[0];
+        this.sizeY = dims[1];
+        this.sizeZ = dims[2];
+        this.bitDepth = bitDepth;
+        this.cache = new LinkedHashMap<Integer, ImageProcessor>(cacheSize * 2, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, ImageProcessor> eldest)
+            {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+
+    // ====================================================
+    // Accessors
+
+    /**
+     * @return the function used to compute voxel values
+     */
+    public Function3D getFunction()
+    {
+        return function;
+    }
+
+    /**
+     * @return the number of slices currently held in the cache
+     */
+    public synchronized int getCachedSliceCount()
+    {
+        return cache.size();
+    }
+
+
+    // ====================================================
+    // Override VirtualStack methods
+
+    /**
+     * Returns the processor of the specified slice, computing it if it is not
+     * within the cache.
+     *
+     * @param n
+     *            the index of the slice, starting from 1
+     * @return the processor of the slice
+     */
+    @Override
+    public synchronized ImageProcessor getProcessor(int n)
+    {
+        if (n < 1 || n > sizeZ)
+        {
+            throw new IllegalArgumentException("Slice index " + n + " out of range 1-" + sizeZ);
+        }
+        ImageProcessor slice = cache.get(n - 1);
+        if (slice == null)
+        {
+            slice = RotCrop.createProcessor(sizeX, sizeY, bitDepth);
+            RotCrop.fillSlice(slice, function, n - 1);
+            cache.put(n - 1, slice);
+        }
+        return slice;
+    }
+
+    @Override
+    public Object getPixels(int n)
+    {
+        return getProcessor(n).getPixels();
+    }
+
+    @Override
+    public int getSize()
+    {
+        return sizeZ;
+    }
+
+    @Override
+    public int getBitDepth()
+    {
+        return bitDepth;
+    }
+
+    @Override
+    public String getSliceLabel(int n)
+    {
+        return null;
+    }
+
+    /**
+     * Slices are computed from the function, and can not be removed.
+     */
+    @Override
+    public void deleteSlice(int n)
+    {
+        throw new UnsupportedOperationException("Can not remove slices from a crop virtual stack");
+    }
+}
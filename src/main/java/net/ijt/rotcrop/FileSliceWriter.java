@@ -0,0 +1,142 @@
+/**
+ * 
+ */
+package net.ijt.rotcrop;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import ij.process.ImageProcessor;
+
+/**
+ * Base class for the sinks that write the slices of an image into a file, as
+ * uncompressed pixel data with big-endian byte order (the default byte order
+ * of ImageJ).
+ *
+ * @author dlegland
+ *
+ */
+abstract class FileSliceWriter implements SliceSink
+{
+    /** The stream to the file. */
+    final DataOutputStream out;
+
+    /** The number of bytes written so far. */
+    long position = 0;
+
+    // the dimensions of the image, initialized by the begin() method
+    int sizeX;
+    int sizeY;
+    int sizeZ;
+    int bitDepth;
+
+    /** The index of the next slice to write. */
+    int nextSlice = 0;
+
+    /** A buffer for converting 16-bit and 32-bit slices into bytes. */
+    private ByteBuffer buffer = null;
+
+    /**
+     * Opens the file to write. An existing file is overwritten.
+     *
+     * @param file
+     *            the file to write
+     * @throws IOException
+     *             if the file can not be opened
+     */
+    FileSliceWriter(File file) throws IOException
+    {
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+    }
+
+    @Override
+    public void begin(int sizeX, int sizeY, int sizeZ, int bitDepth) throws IOException
+    {
+        if (bitDepth != 8 && bitDepth != 16 && bitDepth != 32)
+        {
+            throw new IllegalArgumentException("Bit depth must be 8, 16 or 32, not " + bitDepth);
+        }
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.sizeZ = sizeZ;
+        this.bitDepth = bitDepth;
+        this.nextSlice = 0;
+    }
+
+    @Override
+    public void accept(int z, ImageProcessor slice) throws IOException
+    {
+        if (z != nextSlice)
+        {
+            throw new IllegalArgumentException("Expected slice " + nextSlice + ", not " + z);
+        }
+        if (slice.getWidth() != sizeX || slice.getHeight() != sizeY || slice.getBitDepth() != bitDepth)
+        {
+            throw new IllegalArgumentException("Slice dimensions or type do not match the image");
+        }
+        writePixels(slice.getPixels());
+        nextSlice++;
+    }
+
+    /**
+     * Writes the pixels of a slice at the current position.
+     *
+     * @param pixels
+     *            the pixel array of the slice
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    void writePixels(Object pixels) throws IOException
+    {
+        if (pixels instanceof byte[])
+        {
+            byte[] array = (byte[]) pixels;
+            out.write(array);
+            position += array.length;
+            return;
+        }
+
+        ByteBuffer bytes;
+        if (pixels instanceof short[])
+        {
+            short[] array = (short[]) pixels;
+            bytes = buffer(array.length * 2);
+            bytes.asShortBuffer().put(array);
+        }
+        else if (pixels instanceof float[])
+        {
+            float[] array = (float[]) pixels;
+            bytes = buffer(array.length * 4);
+            bytes.asFloatBuffer().put(array);
+        }
+        else
+        {
+            throw new IllegalArgumentException("Unsupported pixel type: " + pixels.getClass().getName());
+        }
+        out.write(bytes.array(), 0, bytes.capacity());
+        position += bytes.capacity();
+    }
+
+    private ByteBuffer buffer(int size)
+    {
+        if (buffer == null || buffer.capacity() != size)
+        {
+            buffer = ByteBuffer.allocate(size).order(ByteOrder.BIG_ENDIAN);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns the number of bytes of a slice.
+     */
+    long sliceSize()
+    {
+        return (long) sizeX * sizeY * (bitDepth / 8);
+    }
+}
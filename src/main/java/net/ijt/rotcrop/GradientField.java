@@ -0,0 +1,503 @@
+/**
+ * 
+ */
+package net.ijt.rotcrop;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import net.ijt.geom3d.Point3D;
+import net.ijt.geom3d.Vector3D;
+
+/**
+ * The gradient of a 3D image computed for every voxel, with the same kernels
+ * as the <code>LocalGradientEstimator</code> class. The three components are
+ * stored as 32-bit stacks, and the gradient at arbitrary positions is obtained
+ * by trilinear interpolation.
+ *
+ * The computation convolves each slice of the image along the x and y
+ * directions, and keeps the filtered slices within a rolling buffer of 2r+1
+ * slices used for the convolution along z. The memory used in addition to the
+ * result therefore does not depend on the number of slices. For large values
+ * of sigma, the field is computed with recursive filters instead, whose cost
+ * per voxel does not depend on sigma.
+ *
+ * The <code>GradientFieldSession</code> class chooses automatically between
+ * local evaluations and the dense field, depending on the number of
+ * evaluations requested for an image.
+ *
+ * @see LocalGradientEstimator
+ * @see GradientFieldSession
+ *
+ * @author dlegland
+ *
+ */
+public class GradientField
+{
+    // ====================================================
+    // Constants
+
+    /**
+     * The largest fraction of the maximum heap size that can be used by a
+     * field. Larger images always use local evaluations.
+     */
+    public static final double MAX_MEMORY_FRACTION = 0.25;
+
+    /**
+     * The smallest value of sigma for which the field is computed with
+     * recursive filters. For smaller values, the finite kernels are not more
+     * expensive, and give exactly the same values as local evaluations.
+     */
+    public static final double RECURSIVE_MIN_SIGMA = 4.0;
+
+    /**
+     * The number of 1D recursive filters applied to each voxel for computing
+     * the three components of the gradient.
+     */
+    private static final int RECURSIVE_PASS_COUNT = 7;
+
+    // ====================================================
+    // Static methods
+
+    /**
+     * Computes the gradient field of an image, using recursive filters when
+     * sigma is greater than or equal to <code>RECURSIVE_MIN_SIGMA</code>, and
+     * finite kernels otherwise.
+     *
+     * @see #computeSeparable(ImageStack, double)
+     * @see #computeRecursive(ImageStack, double)
+     *
+     * @param image
+     *            the image (8-bit, 16-bit or 32-bit)
+     * @param sigma
+     *            the range of the gradient
+     * @return the gradient field of the image
+     */
+    public static final GradientField compute(ImageStack image, double sigma)
+    {
+        if (sigma >= RECURSIVE_MIN_SIGMA)
+        {
+            return computeRecursive(image, sigma);
+        }
+        return computeSeparable(image, sigma);
+    }
+
+    /**
+     * Computes the gradient field of an image with the finite separable
+     * kernels of the <code>LocalGradientEstimator</code> class. The result at
+     * each voxel is the same as the local evaluation.
+     *
+     * @param image
+     *            the image (8-bit, 16-bit or 32-bit)
+     * @param sigma
+     *            the range of the gradient
+     * @return the gradient field of the image
+     */
+    public static final GradientField computeSeparable(ImageStack image, double sigma)
+    {
+        int sizeX = image.getWidth();
+        int sizeY = image.getHeight();
+        int sizeZ = image.getSize();
+
+        // smoothing kernel followed by derivative kernel
+        double[] kernels = LocalGradientEstimator.cachedKernel(sigma, 3);
+        int n = kernels.length / 2;
+        int r = (n - 1) / 2;
+
+        ImageStack gx = ImageStack.create(sizeX, sizeY, sizeZ, 32);
+        ImageStack gy = ImageStack.create(sizeX, sizeY, sizeZ, 32);
+        ImageStack gz = ImageStack.create(sizeX, sizeY, sizeZ, 32);
+
+        // rolling buffer of slices filtered along x and y. Slice z is stored
+        // in slot (z % n), each slot containing the planes filtered by the
+        // (smooth, smooth), (smooth, deriv) and (deriv, smooth) kernels.
+        float[][][] ring = new float[n][3][sizeX * sizeY];
+        int[] ringZ = new int[n];
+        Arrays.fill(ringZ, -1);
+        float[] tmpS = new float[sizeX * sizeY];
+        float[] tmpD = new float[sizeX * sizeY];
+
+        int[] slots = new int[n];
+        for (int z = 0; z < sizeZ; z++)
+        {
+            // ensure the neighbor slices have been filtered
+            for (int k = 0; k < n; k++)
+            {
+                int zk = Math.max(Math.min(z + k - r, sizeZ - 1), 0);
+                int slot = zk % n;
+                if (ringZ[slot] != zk)
+                {
+                    filterSlice(image.getProcessor(zk + 1), kernels, tmpS, tmpD, ring[slot]);
+                    ringZ[slot] = zk;
+                }
+                slots[k] = slot;
+            }
+
+            // convolution along z
+            float[] resX = (float[]) gx.getPixels(z + 1);
+            float[] resY = (float[]) gy.getPixels(z + 1);
+            float[] resZ = (float[]) gz.getPixels(z + 1);
+            ParallelLoops.forRange(sizeY, (y0, y1) -> {
+                for (int i = y0 * sizeX; i < y1 * sizeX; i++)
+                {
+                    double sx = 0.0;
+                    double sy = 0.0;
+                    double sz = 0.0;
+                    for (int k = 0; k < n; k++)
+                    {
+                        float[][] planes = ring[slots[k]];
+                        sx += planes[2][i] * kernels[k];
+                        sy += planes[1][i] * kernels[k];
+                        sz += planes[0][i] * kernels[n + k];
+                    }
+                    resX[i] = (float) sx;
+                    resY[i] = (float) sy;
+                    resZ[i] = (float) sz;
+                }
+            });
+        }
+
+        return new GradientField(gx, gy, gz, sigma);
+    }
+
+    /**
+     * Convolves a slice along the x and y directions, replicating the border
+     * pixels.
+     *
+     * @param slice
+     *            the slice to filter
+     * @param kernels
+     *            the smoothing kernel followed by the derivative kernel
+     * @param tmpS
+     *            a buffer for the slice smoothed along x
+     * @param tmpD
+     *            a buffer for the slice derived along x
+     * @param planes
+     *            the result planes, filtered by the (smooth, smooth), (smooth,
+     *            deriv) and (deriv, smooth) kernels along (x, y)
+     */
+    private static final void filterSlice(ImageProcessor slice, double[] kernels, float[] tmpS, float[] tmpD, float[][] planes)
+    {
+        int sizeX = slice.getWidth();
+        int sizeY = slice.getHeight();
+        int n = kernels.length / 2;
+        int r = (n - 1) / 2;
+
+        // convolution along x
+        ParallelLoops.forRange(sizeY, (y0, y1) -> {
+            for (int y = y0; y < y1; y++)
+            {
+                int offset = y * sizeX;
+                for (int x = 0; x < sizeX; x++)
+                {
+                    double s = 0.0;
+                    double d = 0.0;
+                    for (int i = 0; i < n; i++)
+                    {
+                        int xi = Math.max(Math.min(x + i - r, sizeX - 1), 0);
+                        double value = slice.getf(offset + xi);
+                        s += value * kernels[i];
+                        d += value * kernels[n + i];
+                    }
+                    tmpS[offset + x] = (float) s;
+                    tmpD[offset + x] = (float) d;
+                }
+            }
+        });
+
+        // convolution along y
+        float[] sxsy = planes[0];
+        float[] sxdy = planes[1];
+        float[] dxsy = planes[2];
+        ParallelLoops.forRange(sizeY, (y0, y1) -> {
+            for (int y = y0; y < y1; y++)
+            {
+                int offset = y * sizeX;
+                for (int x = 0; x < sizeX; x++)
+                {
+                    sxsy[offset + x] = 0;
+                    sxdy[offset + x] = 0;
+                    dxsy[offset + x] = 0;
+                }
+                for (int j = 0; j < n; j++)
+                {
+                    int offsetJ = Math.max(Math.min(y + j - r, sizeY - 1), 0) * sizeX;
+                    float ks = (float) kernels[j];
+                    float kd = (float) kernels[n + j];
+                    for (int x = 0; x < sizeX; x++)
+                    {
+                        sxsy[offset + x] += tmpS[offsetJ + x] * ks;
+                        sxdy[offset + x] += tmpS[offsetJ + x] * kd;
+                        dxsy[offset + x] += tmpD[offsetJ + x] * ks;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Computes the gradient field of an image with recursive Gaussian filters,
+     * whose cost per voxel does not depend on sigma.
+     *
+     * The image is first smoothed along z, and the smoothed image and its
+     * derivative along z are then filtered along the y and x directions. The
+     * result is scaled such that the gradient of a linear ramp is the same as
+     * with the finite kernels. As the recursive filters are not truncated, the
+     * values differ slightly from the ones of local evaluations.
+     *
+     * @see RecursiveGaussian
+     *
+     * @param image
+     *            the image (8-bit, 16-bit or 32-bit)
+     * @param sigma
+     *            the range of the gradient, greater than or equal to 0.5
+     * @return the gradient field of the image
+     */
+    public static final GradientField computeRecursive(ImageStack image, double sigma)
+    {
+        int sizeX = image.getWidth();
+        int sizeY = image.getHeight();
+        int sizeZ = image.getSize();
+        RecursiveGaussian filter = new RecursiveGaussian(sigma);
+        float scale = (float) LocalGradientEstimator.rampResponse(sigma);
+
+        ImageStack gx = ImageStack.create(sizeX, sizeY, sizeZ, 32);
+        ImageStack gy = ImageStack.create(sizeX, sizeY, sizeZ, 32);
+        ImageStack gz = ImageStack.create(sizeX, sizeY, sizeZ, 32);
+
+        // filter along z: the smoothed image is stored within gx, and its
+        // derivative within gz
+        ImageProcessor[] slices = new ImageProcessor[sizeZ];
+        for (int z = 0; z < sizeZ; z++)
+        {
+            slices[z] = image.getProcessor(z + 1);
+        }
+        ParallelLoops.forRange(sizeY, (y0, y1) -> {
+            double[] column = new double[sizeZ];
+            for (int i = y0 * sizeX; i < y1 * sizeX; i++)
+            {
+                for (int z = 0; z < sizeZ; z++)
+                {
+                    column[z] = slices[z].getf(i);
+                }
+                filter.smooth(column);
+                for (int z = 0; z < sizeZ; z++)
+                {
+                    ((float[]) gx.getPixels(z + 1))[i] = (float) column[z];
+                }
+                RecursiveGaussian.centralDifference(column);
+                for (int z = 0; z < sizeZ; z++)
+                {
+                    ((float[]) gz.getPixels(z + 1))[i] = (float) column[z];
+                }
+            }
+        });
+
+        // filter each slice along y and x
+        ParallelLoops.forRange(sizeZ, 1, (z0, z1) -> {
+            for (int z = z0; z < z1; z++)
+            {
+                float[] resX = (float[]) gx.getPixels(z + 1);
+                float[] resY = (float[]) gy.getPixels(z + 1);
+                float[] resZ = (float[]) gz.getPixels(z + 1);
+
+                System.arraycopy(resX, 0, resY, 0, resX.length);
+                filterLines(resY, sizeX, sizeY, 1, sizeX, filter::derive, 1.0f);
+                filterLines(resY, sizeY, sizeX, sizeX, 1, filter::smooth, scale);
+                filterLines(resX, sizeX, sizeY, 1, sizeX, filter::smooth, 1.0f);
+                filterLines(resX, sizeY, sizeX, sizeX, 1, filter::derive, scale);
+                filterLines(resZ, sizeX, sizeY, 1, sizeX, filter::smooth, 1.0f);
+                filterLines(resZ, sizeY, sizeX, sizeX, 1, filter::smooth, scale);
+            }
+        });
+
+        return new GradientField(gx, gy, gz, sigma);
+    }
+
+    /**
+     * Applies a 1D filter on each line of a slice, and multiplies the result
+     * by a scaling factor.
+     *
+     * @param pixels
+     *            the pixels of the slice
+     * @param lineCount
+     *            the number of lines
+     * @param length
+     *            the number of pixels within each line
+     * @param lineStep
+     *            the difference of index between the first pixels of two
+     *            consecutive lines
+     * @param step
+     *            the difference of index between two consecutive pixels of a
+     *            line
+     * @param op
+     *            the 1D filter
+     * @param scale
+     *            the scaling factor
+     */
+    private static final void filterLines(float[] pixels, int lineCount, int length, int lineStep, int step, Consumer<double[]> op, float scale)
+    {
+        double[] line = new double[length];
+        for (int j = 0; j < lineCount; j++)
+        {
+            int offset = j * lineStep;
+            for (int i = 0; i < length; i++)
+            {
+                line[i] = pixels[offset + i * step];
+            }
+            op.accept(line);
+            for (int i = 0; i < length; i++)
+            {
+                pixels[offset + i * step] = (float) line[i] * scale;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of local gradient evaluations above which computing
+     * the dense field is cheaper. With finite kernels, the field requires
+     * about 8n multiply-adds per voxel (2n along x, 3n along y and 3n along
+     * z), whereas a local evaluation requires about 2n^3 multiply-adds, n
+     * being the size of the kernel. With recursive filters, the cost per voxel
+     * of the field does not depend on n.
+     *
+     * @param image
+     *            the image
+     * @param sigma
+     *            the range of the gradient
+     * @return the number of evaluations that costs as much as the field
+     */
+    public static final long queryThreshold(ImageStack image, double sigma)
+    {
+        long n = 2 * (int) Math.ceil(2 * sigma) + 1;
+        long voxelCount = (long) image.getWidth() * image.getHeight() * image.getSize();
+        long fieldCost = sigma >= RECURSIVE_MIN_SIGMA ? RECURSIVE_PASS_COUNT * RecursiveGaussian.COST_PER_ELEMENT : 8 * n;
+        return Math.max(fieldCost * voxelCount / (2 * n * n * n), 1);
+    }
+
+    /**
+     * Checks if the field of an image fits within the memory budget.
+     *
+     * @param image
+     *            the image
+     * @return true if the field can be computed
+     */
+    public static final boolean fitsInMemory(ImageStack image)
+    {
+        long voxelCount = (long) image.getWidth() * image.getHeight() * image.getSize();
+        return 12 * voxelCount <= Runtime.getRuntime().maxMemory() * MAX_MEMORY_FRACTION;
+    }
+
+
+    // ====================================================
+    // Class properties
+
+    /** The three components of the gradient, as 32-bit stacks. */
+    private final ImageStack gx;
+    private final ImageStack gy;
+    private final ImageStack gz;
+
+    /** The range of the gradient. */
+    private final double sigma;
+
+
+    // ====================================================
+    // Constructor
+
+    private GradientField(ImageStack gx, ImageStack gy, ImageStack gz, double sigma)
+    {
+        this.gx = gx;
+        this.gy = gy;
+        this.gz = gz;
+        this.sigma = sigma;
+    }
+
+
+    // ====================================================
+    // Methods
+
+    /**
+     * Evaluates the gradient at a position by trilinear interpolation of the
+     * field. Positions outside of the image are clamped to the image bounds.
+     *
+     * @param position
+     *            the position of the gradient evaluation
+     * @return the interpolated gradient
+     */
+    public Vector3D evaluate(Point3D position)
+    {
+        int sizeX = gx.getWidth();
+        int sizeY = gx.getHeight();
+        int sizeZ = gx.getSize();
+
+        double x = Math.max(Math.min(position.x(), sizeX - 1), 0);
+        double y = Math.max(Math.min(position.y(), sizeY - 1), 0);
+        double z = Math.max(Math.min(position.z(), sizeZ - 1), 0);
+        int x0 = Math.min((int) x, Math.max(sizeX - 2, 0));
+        int y0 = Math.min((int) y, Math.max(sizeY - 2, 0));
+        int z0 = Math.min((int) z, Math.max(sizeZ - 2, 0));
+        int x1 = Math.min(x0 + 1, sizeX - 1);
+        int y1 = Math.min(y0 + 1, sizeY - 1);
+        int z1 = Math.min(z0 + 1, sizeZ - 1);
+        double dx = x - x0;
+        double dy = y - y0;
+        double dz = z - z0;
+
+        // weights of the eight neighbors, and their indices within slices
+        double[] weights = new double[] {
+                (1 - dx) * (1 - dy), dx * (1 - dy), (1 - dx) * dy, dx * dy };
+        int[] inds = new int[] {
+                y0 * sizeX + x0, y0 * sizeX + x1, y1 * sizeX + x0, y1 * sizeX + x1 };
+
+        double[] res = new double[3];
+        ImageStack[] components = new ImageStack[] {gx, gy, gz};
+        for (int c = 0; c < 3; c++)
+        {
+            float[] slice0 = (float[]) components[c].getPixels(z0 + 1);
+            float[] slice1 = (float[]) components[c].getPixels(z1 + 1);
+            double v0 = 0.0;
+            double v1 = 0.0;
+            for (int i = 0; i < 4; i++)
+            {
+                v0 += slice0[inds[i]] * weights[i];
+                v1 += slice1[inds[i]] * weights[i];
+            }
+            res[c] = v0 * (1 - dz) + v1 * dz;
+        }
+        return new Vector3D(res[0], res[1], res[2]);
+    }
+
+    /**
+     * @return the x-component of the gradient, as a 32-bit stack
+     */
+    public ImageStack getGradientX()
+    {
+        return gx;
+    }
+
+    /**
+     * @return the y-component of the gradient, as a 32-bit stack
+     */
+    public ImageStack getGradientY()
+    {
+        return gy;
+    }
+
+    /**
+     * @return the z-component of the gradient, as a 32-bit stack
+     */
+    public ImageStack getGradientZ()
+    {
+        return gz;
+    }
+
+    /**
+     * @return the range of the gradient
+     */
+    public double getSigma()
+    {
+        return sigma;
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ * 
+ */
+package net.ijt.rotcrop;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ij.ImageStack;
+import net.ijt.geom3d.Point3D;
+import net.ijt.geom3d.Vector3D;
+
+/**
+ * Evaluates the gradient of an image at many positions, choosing automatically
+ * between local evaluations and the dense gradient field. The number of
+ * evaluations is counted for each value of sigma, and the field is computed
+ * once the cost of the local evaluations exceeds the cost of computing the
+ * field, such that the total cost stays within twice the cost of the best
+ * strategy. The most recently used fields are kept by the session.
+ *
+ * The session is owned by the caller, that must call the
+ * <code>invalidate()</code> method when the content of the image changes.
+ * Results of local evaluations use the voxel closest to the position, whereas
+ * the field is interpolated (and approximated with recursive filters for large
+ * values of sigma); the two estimates may therefore differ slightly.
+ *
+ * <pre><code>
+ * GradientFieldSession session = new GradientFieldSession(image);
+ * for (Point3D pos : positions)
+ * {
+ *     AffineTransform3D transfo = RotCrop.computeTangentCropTransform(session, pos, dims, sigma);
+ *     ...
+ * }
+ * </code></pre>
+ *
+ * @see GradientField
+ * @see LocalGradientEstimator
+ *
+ * @author dlegland
+ *
+ */
+public class GradientFieldSession
+{
+    // ====================================================
+    // Constants
+
+    /** The maximum number of fields kept by a session. */
+    public static final int MAX_CACHED_FIELDS = 2;
+
+    /** The maximum number of sigma values whose queries are counted. */
+    private static final int MAX_TRACKED_ENTRIES = 16;
+
+
+    // ====================================================
+    // Inner class
+
+    /**
+     * The number of queries and the field computed for a value of sigma.
+     */
+    private static final class FieldEntry
+    {
+        long queryCount = 0;
+        GradientField field = null;
+    }
+
+
+    // ====================================================
+    // Class properties
+
+    /** The image whose gradient is evaluated. */
+    private final ImageStack image;
+
+    /** The query counts and the fields of each sigma value, in access order. */
+    private final LinkedHashMap<Double, FieldEntry> entries = new LinkedHashMap<Double, FieldEntry>(16, 0.75f, true)
+    {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Double, FieldEntry> eldest)
+        {
+            return size() > MAX_TRACKED_ENTRIES;
+        }
+    };
+
+
+    // ====================================================
+    // Constructor
+
+    /**
+     * Creates a new session for evaluating the gradient of an image.
+     *
+     * @param image
+     *            the image
+     */
+    public GradientFieldSession(ImageStack image)
+    {
+        this.image = image;
+    }
+
+
+    // ====================================================
+    // Methods
+
+    /**
+     * Evaluates the gradient of the image at a position, using either a local
+     * evaluation or the gradient field of the specified sigma. The field is
+     * computed within the calling thread, once the number of evaluations
+     * exceeds the threshold given by the
+     * <code>GradientField.queryThreshold()</code> method.
+     *
+     * @param position
+     *            the position of the gradient evaluation
+     * @param sigma
+     *            the range of the gradient
+     * @return the gradient at the specified position
+     */
+    public synchronized Vector3D evaluate(Point3D position, double sigma)
+    {
+        FieldEntry entry = entries.get(sigma);
+        if (entry == null)
+        {
+            entry = new FieldEntry();
+            entries.put(sigma, entry);
+        }
+        if (entry.field == null)
+        {
+            entry.queryCount++;
+            if (entry.queryCount <= GradientField.queryThreshold(image, sigma) || !GradientField.fitsInMemory(image))
+            {
+                return new LocalGradientEstimator(sigma).evaluate(image, position);
+            }
+            entry.field = GradientField.compute(image, sigma);
+            discardOldFields();
+        }
+        return entry.field.evaluate(position);
+    }
+
+    /**
+     * Keeps only the most recently used fields.
+     */
+    private void discardOldFields()
+    {
+        int count = cachedFieldCount();
+        Iterator<FieldEntry> iter = entries.values().iterator();
+        while (count > MAX_CACHED_FIELDS && iter.hasNext())
+        {
+            FieldEntry entry = iter.next();
+            if (entry.field != null)
+            {
+                entry.field = null;
+                count--;
+            }
+        }
+    }
+
+    /**
+     * Discards the fields and the query counts, after the content of the
+     * image has been modified.
+     */
+    public synchronized void invalidate()
+    {
+        entries.clear();
+    }
+
+    /**
+     * @return the number of fields kept by the session
+     */
+    public synchronized int cachedFieldCount()
+    {
+        int count = 0;
+        for (FieldEntry entry : entries.values())
+        {
+            if (entry.field != null)
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the image whose gradient is evaluated
+     */
+    public ImageStack getImage()
+    {
+        return image;
+    }
+}
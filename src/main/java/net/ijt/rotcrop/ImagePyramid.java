@@ -0,0 +1,311 @@
+/**
+ * 
+ */
+package net.ijt.rotcrop;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import ij.ImageStack;
+import net.ijt.geom3d.AffineTransform3D;
+import net.ijt.geom3d.MatrixAffineTransform3D;
+
+/**
+ * A multi-resolution representation of a 3D image, used for computing fast
+ * previews of crops. Level 0 is the source image, and each level is obtained
+ * by averaging blocks of 2x2x2 voxels of the previous level. Levels are
+ * computed only when requested, either synchronously with the
+ * <code>build()</code> method, or in the background with the
+ * <code>buildInBackground()</code> method. In the latter case, the levels not
+ * yet computed are replaced by the finest available level.
+ *
+ * The voxel with index <code>i</code> within level <code>l</code> is centered
+ * on the position <code>2^l * i + (2^l - 1) / 2</code> of the source image.
+ *
+ * <pre><code>
+ * ImagePyramid pyramid = new ImagePyramid(image);
+ * pyramid.buildInBackground();
+ * ...
+ * int level = pyramid.levelFor(magnification);
+ * ResamplingKernel3D kernel = ResamplingKernel3D.create(pyramid.getLevel(level),
+ *         ImagePyramid.levelTransform(transfo, level), Interpolation.NEAREST);
+ * ImageProcessor preview = RotCrop.orthoSlices(kernel, ImagePyramid.levelDims(dims, level));
+ * </code></pre>
+ *
+ * @author dlegland
+ *
+ */
+public class ImagePyramid
+{
+    // ====================================================
+    // Constants
+
+    /** The smallest size of the coarsest level, along each dimension. */
+    public static final int MIN_LEVEL_SIZE = 16;
+
+
+    // ====================================================
+    // Static methods
+
+    /**
+     * Downsamples an image by a factor of two along each dimension, by
+     * averaging blocks of 2x2x2 voxels. For odd sizes, the last voxel is
+     * replicated. The result has the same bit depth as the image.
+     *
+     * @param image
+     *            the image to downsample (8-bit, 16-bit or 32-bit)
+     * @return the downsampled image
+     */
+    public static final ImageStack downsample(ImageStack image)
+    {
+        int sizeX = image.getWidth();
+        int sizeY = image.getHeight();
+        int sizeZ = image.getSize();
+        int sizeX2 = (sizeX + 1) / 2;
+        int sizeY2 = (sizeY + 1) / 2;
+        int sizeZ2 = (sizeZ + 1) / 2;
+        ImageStack res = ImageStack.create(sizeX2, sizeY2, sizeZ2, image.getBitDepth());
+
+        ParallelLoops.forRange(sizeZ2, (z0, z1) -> {
+            double[] values = new double[sizeX2];
+            for (int z = z0; z < z1; z++)
+            {
+                Object slice0 = image.getPixels(2 * z + 1);
+                Object slice1 = image.getPixels(Math.min(2 * z + 1, sizeZ - 1) + 1);
+                Object target = res.getPixels(z + 1);
+                for (int y = 0; y < sizeY2; y++)
+                {
+                    int row0 = 2 * y * sizeX;
+                    int row1 = Math.min(2 * y + 1, sizeY - 1) * sizeX;
+                    for (int x = 0; x < sizeX2; x++)
+                    {
+                        int i0 = 2 * x;
+                        int i1 = Math.min(2 * x + 1, sizeX - 1);
+                        values[x] = (value(slice0, row0 + i0) + value(slice0, row0 + i1)
+                                + value(slice0, row1 + i0) + value(slice0, row1 + i1)
+                                + value(slice1, row0 + i0) + value(slice1, row0 + i1)
+                                + value(slice1, row1 + i0) + value(slice1, row1 + i1)) * 0.125;
+                    }
+                    setRow(target, y * sizeX2, values);
+                }
+            }
+        });
+        return res;
+    }
+
+    private static final double value(Object pixels, int index)
+    {
+        if (pixels instanceof byte[])
+        {
+            return ((byte[]) pixels)[index] & 0x00FF;
+        }
+        if (pixels instanceof short[])
+        {
+            return ((short[]) pixels)[index] & 0x00FFFF;
+        }
+        return ((float[]) pixels)[index];
+    }
+
+    private static final void setRow(Object pixels, int offset, double[] values)
+    {
+        if (pixels instanceof byte[])
+        {
+            byte[] array = (byte[]) pixels;
+            for (int i = 0; i < values.length; i++)
+            {
+                array[offset + i] = (byte) (values[i] + 0.5);
+            }
+        }
+        else if (pixels instanceof short[])
+        {
+            short[] array = (short[]) pixels;
+            for (int i = 0; i < values.length; i++)
+            {
+                array[offset + i] = (short) (values[i] + 0.5);
+            }
+        }
+        else
+        {
+            float[] array = (float[]) pixels;
+            for (int i = 0; i < values.length; i++)
+            {
+                array[offset + i] = (float) values[i];
+            }
+        }
+    }
+
+    /**
+     * Converts a transform that maps the coordinates of a box into the
+     * coordinates of the source image, into the transform that maps the
+     * coordinates of the box downsampled to the specified level into the
+     * coordinates of the same level.
+     *
+     * @param transfo
+     *            the transform at full resolution
+     * @param level
+     *            the level of the pyramid
+     * @return the transform at the specified level
+     */
+    public static final AffineTransform3D levelTransform(AffineTransform3D transfo, int level)
+    {
+        if (level == 0)
+        {
+            return transfo;
+        }
+        // maps level coordinates into full resolution coordinates
+        double s = 1 << level;
+        double t = (s - 1) * 0.5;
+        AffineTransform3D up = new MatrixAffineTransform3D(s, 0, 0, t,  0, s, 0, t,  0, 0, s, t);
+        AffineTransform3D down = new MatrixAffineTransform3D(1 / s, 0, 0, -t / s,  0, 1 / s, 0, -t / s,  0, 0, 1 / s, -t / s);
+        return down.concatenate(transfo).concatenate(up);
+    }
+
+    /**
+     * Computes the size of a box downsampled to the specified level.
+     *
+     * @param dims
+     *            the size of the box at full resolution
+     * @param level
+     *            the level of the pyramid
+     * @return the size of the box at the specified level
+     */
+    public static final int[] levelDims(int[] dims, int level)
+    {
+        int[] res = new int[dims.length];
+        for (int d = 0; d < dims.length; d++)
+        {
+            res[d] = Math.max((dims[d] + (1 << level) - 1) >> level, 1);
+        }
+        return res;
+    }
+
+
+    // ====================================================
+    // Class properties
+
+    /** The levels of the pyramid, or null for the levels not yet computed. */
+    private final AtomicReferenceArray<ImageStack> levels;
+
+    /** Whether the computation of the levels has been started. */
+    private boolean started = false;
+
+
+    // ====================================================
+    // Constructor
+
+    /**
+     * Creates a new pyramid for the specified image. Only the first level is
+     * available until the pyramid is built. Images that are not 8-bit, 16-bit
+     * or 32-bit have a single level.
+     *
+     * @param image
+     *            the image at full resolution
+     */
+    public ImagePyramid(ImageStack image)
+    {
+        int nLevels = 1;
+        int bitDepth = image.getBitDepth();
+        if (bitDepth == 8 || bitDepth == 16 || bitDepth == 32)
+        {
+            int minSize = Math.min(Math.min(image.getWidth(), image.getHeight()), image.getSize());
+            while ((minSize >> nLevels) >= MIN_LEVEL_SIZE)
+            {
+                nLevels++;
+            }
+        }
+        this.levels = new AtomicReferenceArray<ImageStack>(nLevels);
+        this.levels.set(0, image);
+    }
+
+
+    // ====================================================
+    // Methods
+
+    /**
+     * Computes all the levels of the pyramid, within the current thread.
+     */
+    public void build()
+    {
+        for (int l = 1; l < levels.length(); l++)
+        {
+            if (levels.get(l) == null)
+            {
+                levels.set(l, downsample(levels.get(l - 1)));
+            }
+        }
+    }
+
+    /**
+     * Starts computing the levels of the pyramid within the shared thread
+     * pool, and returns immediately. Subsequent calls have no effect.
+     */
+    public synchronized void buildInBackground()
+    {
+        if (started)
+        {
+            return;
+        }
+        started = true;
+        ParallelLoops.getPool().execute(this::build);
+    }
+
+    /**
+     * @return the number of levels of the pyramid, including the levels not
+     *         yet computed
+     */
+    public int getLevelCount()
+    {
+        return levels.length();
+    }
+
+    /**
+     * Returns the image of a level, or the image of the finest computed level
+     * if the requested level is not yet available. Use the
+     * <code>availableLevel()</code> method to know the level of the returned
+     * image.
+     *
+     * @param level
+     *            the requested level
+     * @return the image of the requested level, or of a finer level
+     */
+    public ImageStack getLevel(int level)
+    {
+        return levels.get(availableLevel(level));
+    }
+
+    /**
+     * Returns the coarsest computed level that is not coarser than the
+     * requested level.
+     *
+     * @param level
+     *            the requested level
+     * @return the index of the computed level
+     */
+    public int availableLevel(int level)
+    {
+        level = Math.min(Math.max(level, 0), levels.length() - 1);
+        while (levels.get(level) == null)
+        {
+            level--;
+        }
+        return level;
+    }
+
+    /**
+     * Returns the level adapted to a display magnification, relative to the
+     * full resolution: level <code>l</code> is chosen when a display pixel
+     * covers at least <code>2^l</code> voxels of the source image.
+     *
+     * @param magnification
+     *            the display magnification of the full resolution image
+     * @return the level adapted to the magnification
+     */
+    public int levelFor(double magnification)
+    {
+        int level = 0;
+        while (level + 1 < levels.length() && magnification * (1 << (level + 1)) <= 1.0 + 1e-6)
+        {
+            level++;
+        }
+        return level;
+    }
+}
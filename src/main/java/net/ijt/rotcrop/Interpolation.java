@@ -0,0 +1,76 @@
+/**
+ * 
+ */
+package net.ijt.rotcrop;
+
+/**
+ * The methods for interpolating image values at non integer positions when
+ * resampling.
+ *
+ * Each method is associated with the bounds of the positions that can be
+ * interpolated using only values within image. For an image with size N along
+ * a dimension, a position s can be interpolated without padding if
+ * <code>innerMin &le; s &lt; N - 1 + innerMax</code>. The domain of the image,
+ * outside of which constant padding is applied, is given by
+ * <code>domainMin &le; s &le; N - 1 + domainMax</code>.
+ *
+ * @author dlegland
+ *
+ */
+public enum Interpolation
+{
+    /**
+     * Uses the value of the closest pixel or voxel. Fastest method, suited for
+     * previews.
+     */
+    NEAREST(-0.5, 0.5, -0.5, 0.5),
+
+    /**
+     * Linear interpolation along each dimension (bilinear or trilinear).
+     */
+    LINEAR(0.0, 0.0, 0.0, 0.0),
+
+    /**
+     * Cubic convolution with the Catmull-Rom kernel (Keys, a = -0.5) along
+     * each dimension. Uses a neighborhood of 4 values in each dimension.
+     */
+    CUBIC(1.0, -1.0, 0.0, 0.0);
+
+    /** The lower bound of positions interpolated without padding. */
+    final double innerMin;
+    /** The shift of the upper bound of positions interpolated without padding. */
+    final double innerMax;
+    /** The lower bound of the image domain. */
+    final double domainMin;
+    /** The shift of the upper bound of the image domain. */
+    final double domainMax;
+
+    private Interpolation(double innerMin, double innerMax, double domainMin, double domainMax)
+    {
+        this.innerMin = innerMin;
+        this.innerMax = innerMax;
+        this.domainMin = domainMin;
+        this.domainMax = domainMax;
+    }
+
+    /**
+     * Interpolates four regularly spaced values using the Catmull-Rom cubic
+     * convolution kernel.
+     *
+     * @param v0
+     *            the value at position -1
+     * @param v1
+     *            the value at position 0
+     * @param v2
+     *            the value at position 1
+     * @param v3
+     *            the value at position 2
+     * @param t
+     *            the position to interpolate, between 0 and 1
+     * @return the interpolated value
+     */
+    static final double cubic(double v0, double v1, double v2, double v3, double t)
+    {
+        return v1 + 0.5 * t * (v2 - v0 + t * (2 * v0 - 5 * v1 + 4 * v2 - v3 + t * (3 * (v1 - v2) + v3 - v0)));
+    }
+}
@@ -3,6 +3,11 @@
  */
 package net.ijt.rotcrop;
 
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
 import ij.ImageStack;
 import ij.process.ImageProcessor;
 import net.ijt.geom2d.Point2D;
@@ -22,6 +27,137 @@ import net.ijt.geom3d.Vector3D;
  */
 public class LocalGradientEstimator
 {
+    // ====================================================
+    // Constants
+    
+    /**
+     * The number of consecutive positions, in Morton order, that share a
+     * window of voxel values when evaluating a batch of positions.
+     */
+    public static final int BATCH_SIZE = 64;
+    
+    /**
+     * The largest size, in bytes, of the window of voxel values shared by a
+     * group of positions. Groups whose window would be larger are split.
+     */
+    public static final int MAX_WINDOW_BYTES = 4 << 20;
+    
+    
+    // ====================================================
+    // Static kernel cache
+    
+    /**
+     * The maximum number of kernels kept within the cache shared by all the
+     * estimators.
+     */
+    public static final int MAX_CACHED_KERNELS = 32;
+    
+    /**
+     * The kernels shared by all the estimators, identified by sigma and the
+     * dimensionality, and stored as flat arrays.
+     */
+    private static final ConcurrentHashMap<KernelKey, double[]> KERNELS = new ConcurrentHashMap<KernelKey, double[]>();
+    
+    /**
+     * Identifies a kernel within the cache.
+     */
+    private static final class KernelKey
+    {
+        final double sigma;
+        final int nDims;
+        
+        KernelKey(double sigma, int nDims)
+        {
+            this.sigma = sigma;
+            this.nDims = nDims;
+        }
+        
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof KernelKey))
+            {
+                return false;
+            }
+            KernelKey that = (KernelKey) obj;
+            return Double.compare(this.sigma, that.sigma) == 0 && this.nDims == that.nDims;
+        }
+        
+        @Override
+        public int hashCode()
+        {
+            return Double.hashCode(sigma) * 31 + nDims;
+        }
+    }
+    
+    /**
+     * Returns the kernel for the specified sigma and dimensionality, computing
+     * it if it is not in the cache. When the cache is full, an arbitrary
+     * kernel is discarded.
+     * 
+     * @param sigma
+     *            the range of the gradient
+     * @param nDims
+     *            the dimensionality of the kernel, 2 or 3
+     * @return the flat kernel
+     */
+    static final double[] cachedKernel(double sigma, int nDims)
+    {
+        KernelKey key = new KernelKey(sigma, nDims);
+        double[] kernel = KERNELS.get(key);
+        if (kernel != null)
+        {
+            return kernel;
+        }
+        
+        while (KERNELS.size() >= MAX_CACHED_KERNELS)
+        {
+            Iterator<KernelKey> iter = KERNELS.keySet().iterator();
+            if (!iter.hasNext())
+            {
+                break;
+            }
+            KERNELS.remove(iter.next());
+        }
+        return KERNELS.computeIfAbsent(key, k -> nDims == 2 ? createFlatKernel2D(sigma) : createSeparableKernels(sigma));
+    }
+    
+    /**
+     * Returns the gradient computed with the 3D kernels for a linear ramp
+     * with unit slope, used for scaling gradients computed by other methods
+     * to the values of the local evaluations.
+     * 
+     * @param sigma
+     *            the range of the gradient
+     * @return the gradient magnitude of a ramp with unit slope
+     */
+    static final double rampResponse(double sigma)
+    {
+        double[] kernels = cachedKernel(sigma, 3);
+        int n = kernels.length / 2;
+        int r = (n - 1) / 2;
+        double sumS = 0.0;
+        double sumD = 0.0;
+        for (int i = 0; i < n; i++)
+        {
+            sumS += kernels[i];
+            sumD += (i - r) * kernels[n + i];
+        }
+        return sumS * sumS * sumD;
+    }
+    
+    /**
+     * @return the number of kernels within the shared cache
+     */
+    static final int cachedKernelCount()
+    {
+        return KERNELS.size();
+    }
+    
+    
+    // ====================================================
+    // Class properties
+    
     /**
      * The parameter that describes the range of the gradient. Default value is
      * 2.0.
@@ -29,18 +165,26 @@ public class LocalGradientEstimator
     double sigma = 2.0;
     
     /**
-     * The kernel for computing 2D gradient in the x direction.
-     * First index is y, second one is x.
+     * The kernel for computing 2D gradient in the x direction, stored as a
+     * flat array with n*n elements. Index of element (x,y) is y*n+x. Computed
+     * at first use.
      */
-    double[][] kernel2d;
+    private volatile double[] kernel2d = null;
     
     /**
-     * The kernel for computing 3D gradient in the x direction.
-     * First index is z, second one is y, third one is x.
+     * The 1D kernels for computing the 3D gradient, stored within a single
+     * array: the n elements of the smoothing kernel are followed by the n
+     * elements of the derivative kernel. The 3D kernel returned by
+     * <code>createKernel3D</code> is the product of the 1D derivative kernel
+     * along one direction and of the smoothing kernel along the two other
+     * directions. Computed at first use.
      */
-    double[][][] kernel3d;
+    private volatile double[] kernels1d = null;
     
     
+    // ====================================================
+    // Constructors
+    
     /**
      * Default empty constructor.
      */
@@ -52,10 +196,32 @@ public class LocalGradientEstimator
     public LocalGradientEstimator(double sigma)
     {
         this.sigma = sigma;
-        this.kernel2d = createKernel2D(sigma);
-        this.kernel3d = createKernel3D(sigma);
-        
-//        printKernel(kernel3d, 100);
+    }
+    
+    
+    // ====================================================
+    // Methods
+    
+    private double[] kernel2d()
+    {
+        double[] kernel = this.kernel2d;
+        if (kernel == null)
+        {
+            kernel = cachedKernel(sigma, 2);
+            this.kernel2d = kernel;
+        }
+        return kernel;
+    }
+    
+    private double[] kernels1d()
+    {
+        double[] kernels = this.kernels1d;
+        if (kernels == null)
+        {
+            kernels = cachedKernel(sigma, 3);
+            this.kernels1d = kernels;
+        }
+        return kernels;
     }
     
     public Vector2D evaluate(ImageProcessor image, Point2D position)
@@ -65,7 +231,8 @@ public class LocalGradientEstimator
         int sizeY = image.getHeight();
         
         // size of the kernels along each dimension
-        int n = this.kernel2d.length;
+        double[] kernel = kernel2d();
+        int n = (int) Math.round(Math.sqrt(kernel.length));
         int r = (n - 1) / 2;
         
         // rounded coordinates of position
@@ -79,20 +246,36 @@ public class LocalGradientEstimator
         // iterate over kernel elements
         for (int i = 0; i < n; i++)
         {
-            int y = Math.max(Math.min(i + y0 - r, sizeY), 0);
+            int y = Math.max(Math.min(i + y0 - r, sizeY - 1), 0);
             for (int j = 0; j < n; j++)
             {
-                int x = Math.max(Math.min(j + x0 - r, sizeX), 0);
+                int x = Math.max(Math.min(j + x0 - r, sizeX - 1), 0);
                 double value = image.getf(x, y);
                 
-                gx += (value * kernel2d[i][j]);
-                gy += (value * kernel2d[j][i]);
+                gx += (value * kernel[i * n + j]);
+                gy += (value * kernel[j * n + i]);
             }
         }
         
         return new Vector2D(gx, gy);
     }
 
+    /**
+     * Evaluates the gradient of a 3D image at a specific position. Voxels
+     * outside of image are replaced by the closest voxel within image.
+     * 
+     * The gradient is computed with separable convolutions: each row of the
+     * neighborhood is reduced by a smoothing and a derivative 1D kernel, then
+     * the results are combined along the y and z directions. This requires
+     * two multiply-adds per voxel of the neighborhood, and the 1D kernels fit
+     * within the processor cache whatever the value of sigma.
+     * 
+     * @param image
+     *            the image containing voxel values
+     * @param position
+     *            the position of the gradient evaluation
+     * @return the gradient at the specified position
+     */
     public Vector3D evaluate(ImageStack image, Point3D position)
     {
         // retrive image size
@@ -100,41 +283,442 @@ public class LocalGradientEstimator
         int sizeY = image.getHeight();
         int sizeZ = image.getSize();
         
-        // size of the kernels along each dimension
-        int n = this.kernel3d.length;
+        // indices of the neighbor voxels along each direction
+        int[] xInds = neighborIndices(position.x(), sizeX);
+        int[] yInds = neighborIndices(position.y(), sizeY);
+        int[] zInds = neighborIndices(position.z(), sizeZ);
+        
+        return convolve(yInds, zInds, (y, z, values) -> readValues(image.getPixels(z + 1), y * sizeX, xInds, values));
+    }
+    
+    /**
+     * Evaluates the gradient of a voxel source at a specific position. Only
+     * the voxels within the neighborhood of the position are read, making it
+     * possible to use sources larger than the available memory. The result is
+     * the same as for an image stack with the same content.
+     * 
+     * @param source
+     *            the source of the voxel values
+     * @param position
+     *            the position of the gradient evaluation
+     * @return the gradient at the specified position
+     */
+    public Vector3D evaluate(VoxelSource source, Point3D position)
+    {
+        // indices of the neighbor voxels along each direction
+        int[] xInds = neighborIndices(position.x(), source.getWidth());
+        int[] yInds = neighborIndices(position.y(), source.getHeight());
+        int[] zInds = neighborIndices(position.z(), source.getSize());
+        
+        return convolve(yInds, zInds, (y, z, values) -> {
+            for (int i = 0; i < xInds.length; i++)
+            {
+                values[i] = source.getVoxel(xInds[i], y, z);
+            }
+        });
+    }
+    
+    /**
+     * Evaluates the gradient of a 3D image at a list of positions, and returns
+     * the result as a flat array. The result is the same as calling the
+     * <code>evaluate(ImageStack, Point3D)</code> method for each position.
+     * 
+     * The positions are sorted in Morton (Z-order) of their closest voxel, and
+     * processed by groups of consecutive positions. The voxels within the
+     * neighborhoods of a group are read once into a window shared by the
+     * positions of the group, avoiding to read several times the voxels of
+     * overlapping neighborhoods. The groups are distributed over the threads
+     * of the shared pool.
+     * 
+     * @param image
+     *            the image containing voxel values
+     * @param positions
+     *            the positions of the gradient evaluations
+     * @return an array with 3*N elements, containing the x-, y- and
+     *         z-components of the gradient at each position, in the order of
+     *         the positions
+     */
+    public double[] evaluate(ImageStack image, List<Point3D> positions)
+    {
+        // retrive image size
+        int sizeX = image.getWidth();
+        int sizeY = image.getHeight();
+        int sizeZ = image.getSize();
+        
+        // rounded coordinates of positions, and Morton code of the closest
+        // voxel within image
+        int count = positions.size();
+        int[] centers = new int[3 * count];
+        long[] codes = new long[count];
+        for (int i = 0; i < count; i++)
+        {
+            Point3D pos = positions.get(i);
+            int x = (int) Math.round(pos.x());
+            int y = (int) Math.round(pos.y());
+            int z = (int) Math.round(pos.z());
+            centers[3 * i] = x;
+            centers[3 * i + 1] = y;
+            centers[3 * i + 2] = z;
+            codes[i] = mortonCode(Math.max(Math.min(x, sizeX - 1), 0), Math.max(Math.min(y, sizeY - 1), 0), Math.max(Math.min(z, sizeZ - 1), 0));
+        }
+        
+        // sort position indices in Morton order
+        Integer[] sorted = new Integer[count];
+        for (int i = 0; i < count; i++)
+        {
+            sorted[i] = i;
+        }
+        Arrays.sort(sorted, (i1, i2) -> Long.compare(codes[i1], codes[i2]));
+        
+        double[] res = new double[3 * count];
+        int nGroups = (count + BATCH_SIZE - 1) / BATCH_SIZE;
+        ParallelLoops.forRange(nGroups, (g0, g1) -> {
+            for (int g = g0; g < g1; g++)
+            {
+                int i0 = g * BATCH_SIZE;
+                int i1 = Math.min(i0 + BATCH_SIZE, count);
+                evaluateGroup(image, sorted, i0, i1, centers, res);
+            }
+        });
+        return res;
+    }
+    
+    /**
+     * Evaluates the gradient for a group of positions, reading the voxels of
+     * the bounding box of their neighborhoods into a shared window. When the
+     * window would contain more voxels than the neighborhoods themselves, the
+     * positions are evaluated independently. When the window would exceed
+     * <code>MAX_WINDOW_BYTES</code>, the group is split into two halves.
+     */
+    private void evaluateGroup(ImageStack image, Integer[] sorted, int i0, int i1, int[] centers, double[] res)
+    {
+        int sizeX = image.getWidth();
+        int sizeY = image.getHeight();
+        int sizeZ = image.getSize();
+        
+        // size of the neighborhood
+        int n = kernels1d().length / 2;
         int r = (n - 1) / 2;
         
-        // rounded coordinates of position
-        int x0 = (int) Math.round(position.x());
-        int y0 = (int) Math.round(position.y());
-        int z0 = (int) Math.round(position.z());
+        // bounding box of the neighborhood centers
+        int xmin = centers[3 * sorted[i0]];
+        int ymin = centers[3 * sorted[i0] + 1];
+        int zmin = centers[3 * sorted[i0] + 2];
+        int xmax = xmin;
+        int ymax = ymin;
+        int zmax = zmin;
+        for (int i = i0 + 1; i < i1; i++)
+        {
+            int ind = sorted[i];
+            xmin = Math.min(xmin, centers[3 * ind]);
+            xmax = Math.max(xmax, centers[3 * ind]);
+            ymin = Math.min(ymin, centers[3 * ind + 1]);
+            ymax = Math.max(ymax, centers[3 * ind + 1]);
+            zmin = Math.min(zmin, centers[3 * ind + 2]);
+            zmax = Math.max(zmax, centers[3 * ind + 2]);
+        }
+        int wx0 = xmin - r;
+        int wy0 = ymin - r;
+        int wz0 = zmin - r;
+        int wx = xmax - xmin + n;
+        int wy = ymax - ymin + n;
+        int wz = zmax - zmin + n;
+        
+        long windowSize = (long) wx * wy * wz;
+        boolean tooLarge = windowSize * Float.BYTES > MAX_WINDOW_BYTES;
+        if (windowSize > (long) (i1 - i0) * n * n * n || (tooLarge && i1 - i0 == 1))
+        {
+            // scattered positions: the window would not reduce the number of reads
+            evaluateEach(image, sorted, i0, i1, centers, res);
+            return;
+        }
+        if (tooLarge)
+        {
+            // consecutive positions in Morton order are close to each other
+            int im = (i0 + i1) >>> 1;
+            evaluateGroup(image, sorted, i0, im, centers, res);
+            evaluateGroup(image, sorted, im, i1, centers, res);
+            return;
+        }
+        
+        // read the window, replicating the border voxels. Voxel values of
+        // 8-bit, 16-bit and 32-bit images are represented exactly as floats.
+        float[] window = new float[(int) windowSize];
+        int[] xInds = new int[wx];
+        for (int i = 0; i < wx; i++)
+        {
+            xInds[i] = Math.max(Math.min(wx0 + i, sizeX - 1), 0);
+        }
+        double[] row = new double[wx];
+        for (int k = 0; k < wz; k++)
+        {
+            Object slice = image.getPixels(Math.max(Math.min(wz0 + k, sizeZ - 1), 0) + 1);
+            for (int j = 0; j < wy; j++)
+            {
+                int y = Math.max(Math.min(wy0 + j, sizeY - 1), 0);
+                readValues(slice, y * sizeX, xInds, row);
+                int offset = (k * wy + j) * wx;
+                for (int i = 0; i < wx; i++)
+                {
+                    window[offset + i] = (float) row[i];
+                }
+            }
+        }
+        
+        // evaluate each position from the window
+        int[] inds = new int[n];
+        for (int i = 0; i < n; i++)
+        {
+            inds[i] = i;
+        }
+        for (int i = i0; i < i1; i++)
+        {
+            int ind = sorted[i];
+            int x0 = centers[3 * ind] - r - wx0;
+            int y0 = centers[3 * ind + 1] - r - wy0;
+            int z0 = centers[3 * ind + 2] - r - wz0;
+            Vector3D grad = convolve(inds, inds, (y, z, values) -> {
+                int offset = ((z0 + z) * wy + y0 + y) * wx + x0;
+                for (int k = 0; k < n; k++)
+                {
+                    values[k] = window[offset + k];
+                }
+            });
+            storeGradient(grad, ind, res);
+        }
+    }
+    
+    /**
+     * Evaluates the gradient for each position of a group independently.
+     */
+    private void evaluateEach(ImageStack image, Integer[] sorted, int i0, int i1, int[] centers, double[] res)
+    {
+        int sizeX = image.getWidth();
+        int sizeY = image.getHeight();
+        int sizeZ = image.getSize();
+        for (int i = i0; i < i1; i++)
+        {
+            int ind = sorted[i];
+            int[] xInds = neighborIndices(centers[3 * ind], sizeX);
+            int[] yInds = neighborIndices(centers[3 * ind + 1], sizeY);
+            int[] zInds = neighborIndices(centers[3 * ind + 2], sizeZ);
+            Vector3D grad = convolve(yInds, zInds, (y, z, values) -> readValues(image.getPixels(z + 1), y * sizeX, xInds, values));
+            storeGradient(grad, ind, res);
+        }
+    }
+    
+    private static final void storeGradient(Vector3D grad, int index, double[] res)
+    {
+        res[3 * index] = grad.x();
+        res[3 * index + 1] = grad.y();
+        res[3 * index + 2] = grad.z();
+    }
+    
+    /**
+     * Computes the Morton code of a voxel, by interleaving the 21 lowest bits
+     * of each coordinate.
+     * 
+     * @param x
+     *            the x-coordinate of the voxel
+     * @param y
+     *            the y-coordinate of the voxel
+     * @param z
+     *            the z-coordinate of the voxel
+     * @return the Morton code of the voxel
+     */
+    static final long mortonCode(int x, int y, int z)
+    {
+        return spreadBits(x) | (spreadBits(y) << 1) | (spreadBits(z) << 2);
+    }
+    
+    /**
+     * Inserts two zero bits between each of the 21 lowest bits of a value.
+     */
+    private static final long spreadBits(int value)
+    {
+        long v = value & 0x1FFFFFL;
+        v = (v | (v << 32)) & 0x1F00000000FFFFL;
+        v = (v | (v << 16)) & 0x1F0000FF0000FFL;
+        v = (v | (v << 8)) & 0x100F00F00F00F00FL;
+        v = (v | (v << 4)) & 0x10C30C30C30C30C3L;
+        v = (v | (v << 2)) & 0x1249249249249249L;
+        return v;
+    }
+    
+    /**
+     * Reads the values of a row of voxels within the neighborhood.
+     */
+    private interface RowReader
+    {
+        public void read(int y, int z, double[] values);
+    }
+    
+    /**
+     * Computes the indices of the voxels within the neighborhood of a
+     * coordinate, clamped to the image bounds.
+     */
+    private int[] neighborIndices(double coord, int size)
+    {
+        int n = kernels1d().length / 2;
+        int r = (n - 1) / 2;
+        int i0 = (int) Math.round(coord) - r;
+        int[] inds = new int[n];
+        for (int i = 0; i < n; i++)
+        {
+            inds[i] = Math.max(Math.min(i0 + i, size - 1), 0);
+        }
+        return inds;
+    }
+    
+    /**
+     * Convolves the neighborhood with the separable kernels, using 1D
+     * convolutions along the x direction, then along y, then along z.
+     */
+    private Vector3D convolve(int[] yInds, int[] zInds, RowReader reader)
+    {
+        double[] kernels = kernels1d();
+        int n = kernels.length / 2;
         
         // gradient components
         double gx = 0.0;
         double gy = 0.0;
         double gz = 0.0;
         
-        // iterate over kernel elements
+        double[] values = new double[n];
         for (int k = 0; k < n; k++)
         {
-            int z = Math.max(Math.min(k + z0 - r, sizeZ), 0);
+            // the slice convolved by (smooth, smooth), (smooth, deriv), and
+            // (deriv, smooth) kernels along (x, y)
+            double sxsy = 0.0;
+            double sxdy = 0.0;
+            double dxsy = 0.0;
             for (int j = 0; j < n; j++)
             {
-                int y = Math.max(Math.min(j + y0 - r, sizeY), 0);
+                reader.read(yInds[j], zInds[k], values);
+                
+                // the row convolved by the smoothing and the derivative kernels
+                double sx = 0.0;
+                double dx = 0.0;
                 for (int i = 0; i < n; i++)
                 {
-                    int x = Math.max(Math.min(i + x0 - r, sizeX), 0);
-                    double value = image.getVoxel(x, y, z);
-
-                    gx += (value * kernel3d[k][j][i]);
-                    gy += (value * kernel3d[i][k][j]);
-                    gz += (value * kernel3d[i][j][k]);
+                    sx += values[i] * kernels[i];
+                    dx += values[i] * kernels[n + i];
                 }
+                
+                sxsy += sx * kernels[j];
+                sxdy += sx * kernels[n + j];
+                dxsy += dx * kernels[j];
             }
+            
+            gx += dxsy * kernels[k];
+            gy += sxdy * kernels[k];
+            gz += sxsy * kernels[n + k];
         }
         
         return new Vector3D(gx, gy, gz);
     }
+    
+    /**
+     * Reads the values of a row of voxels within the pixel array of a slice.
+     * 
+     * @param slice
+     *            the pixel array of the slice
+     * @param offset
+     *            the index of the first pixel of the row within the slice
+     * @param xInds
+     *            the indices of the pixels within the row
+     * @param values
+     *            the array used to store the row values
+     */
+    private static final void readValues(Object slice, int offset, int[] xInds, double[] values)
+    {
+        int n = xInds.length;
+        if (slice instanceof byte[])
+        {
+            byte[] array = (byte[]) slice;
+            for (int i = 0; i < n; i++)
+            {
+                values[i] = array[offset + xInds[i]] & 0x00FF;
+            }
+        }
+        else if (slice instanceof short[])
+        {
+            short[] array = (short[]) slice;
+            for (int i = 0; i < n; i++)
+            {
+                values[i] = array[offset + xInds[i]] & 0x00FFFF;
+            }
+        }
+        else if (slice instanceof float[])
+        {
+            float[] array = (float[]) slice;
+            for (int i = 0; i < n; i++)
+            {
+                values[i] = array[offset + xInds[i]];
+            }
+        }
+        else
+        {
+            throw new IllegalArgumentException("Unsupported type of pixel array: " + slice.getClass().getName());
+        }
+    }
+
+    /**
+     * Computes the 1D kernels whose products give the kernels of the
+     * <code>createKernel3D</code> method, as a single array containing the
+     * smoothing kernel followed by the derivative kernel.
+     */
+    private static final double[] createSeparableKernels(double sigma)
+    {
+        // compute size according to sigma
+        int r = (int) Math.ceil(2 * sigma);
+        int n = 2 * r + 1;
+        
+        // pre-compute linear smoothing and derivative kernels
+        double[] ks = new double[n];
+        double[] kd = new double[n];
+        double sumS = 0.0;
+        double sumD = 0.0;
+        for (int i = 0; i < n; i++)
+        {
+            double x = i - r;
+            ks[i] = Math.exp(-((x / sigma) * (x / sigma)) * 0.5);
+            kd[i] = (x / sigma) * ks[i];
+            sumS += ks[i];
+            if (kd[i] > 0)
+            {
+                sumD += kd[i];
+            }
+        }
+        
+        // the sum of the positive values of the 3D kernel
+        double norm = sumS * sumS * sumD;
+        for (int i = 0; i < n; i++)
+        {
+            kd[i] /= norm;
+        }
+        
+        double[] res = new double[2 * n];
+        System.arraycopy(ks, 0, res, 0, n);
+        System.arraycopy(kd, 0, res, n, n);
+        return res;
+    }
+    
+    /**
+     * Computes the kernel of the <code>createKernel2D</code> method, as a flat
+     * array.
+     */
+    private static final double[] createFlatKernel2D(double sigma)
+    {
+        double[][] kernel = createKernel2D(sigma);
+        int n = kernel.length;
+        double[] res = new double[n * n];
+        for (int i = 0; i < n; i++)
+        {
+            System.arraycopy(kernel[i], 0, res, i * n, n);
+        }
+        return res;
+    }
 
     public static final double[][] createKernel2D(double sigma)
     {
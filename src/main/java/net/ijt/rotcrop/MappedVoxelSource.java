@@ -0,0 +1,544 @@
+/**
+ * 
+ */
+package net.ijt.rotcrop;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A voxel source backed by an uncompressed raw or TIFF file, accessed through
+ * memory-mapped regions of the file. Each slice is mapped the first time one
+ * of its voxels is read, so that only the slices touched by a crop are mapped,
+ * and only the pages actually read are loaded by the operating system. The
+ * heap memory does not depend on the size of the file.
+ *
+ * <pre><code>
+ * try (MappedVoxelSource source = MappedVoxelSource.openTiff(file))
+ * {
+ *     ImageStack res = RotCrop.rotatedCrop(source, dims, refPoint, angles, Interpolation.LINEAR);
+ * }
+ * </code></pre>
+ *
+ * Supported files are raw files with known dimensions, ImageJ TIFF files whose
+ * slices are stored contiguously, and multi-page TIFF files whose pages are
+ * stored as uncompressed contiguous strips. Each slice must be smaller than
+ * 2GB.
+ *
+ * @author dlegland
+ *
+ */
+public class MappedVoxelSource implements VoxelSource, Closeable
+{
+    // ====================================================
+    // Static factories
+
+    /**
+     * Opens a raw file, containing the voxel values stored slice by slice,
+     * without compression.
+     *
+     * @param file
+     *            the file to open
+     * @param sizeX
+     *            the size of the image in the X direction
+     * @param sizeY
+     *            the size of the image in the Y direction
+     * @param sizeZ
+     *            the size of the image in the Z direction
+     * @param bitDepth
+     *            the bit depth of the image (8, 16 or 32)
+     * @param headerSize
+     *            the number of bytes before the first voxel
+     * @param order
+     *            the byte order of 16-bit and 32-bit values
+     * @return a new voxel source
+     * @throws IOException
+     *             if the file can not be opened, or is too small for the
+     *             specified dimensions
+     */
+    public static final MappedVoxelSource openRaw(File file, int sizeX, int sizeY, int sizeZ, int bitDepth, long headerSize, ByteOrder order) throws IOException
+    {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try
+        {
+            long sliceSize = (long) sizeX * sizeY * (bitDepth / 8);
+            if (headerSize + sliceSize * sizeZ > channel.size())
+            {
+                throw new IOException("File " + file.getName() + " is too small for the specified dimensions");
+            }
+            long[] offsets = new long[sizeZ];
+            for (int z = 0; z < sizeZ; z++)
+            {
+                offsets[z] = headerSize + z * sliceSize;
+            }
+            return new MappedVoxelSource(channel, sizeX, sizeY, bitDepth, order, offsets);
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Opens an uncompressed TIFF file.
+     *
+     * @param file
+     *            the file to open
+     * @return a new voxel source
+     * @throws IOException
+     *             if the file can not be opened, or if the file is compressed
+     *             or uses an unsupported data layout
+     */
+    public static final MappedVoxelSource openTiff(File file) throws IOException
+    {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try
+        {
+            return readTiff(channel);
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            channel.close();
+            throw ex;
+        }
+    }
+
+
+    // ====================================================
+    // Class properties
+
+    /** The channel of the file. */
+    private final FileChannel channel;
+
+    // the size of the image
+    private final int sizeX;
+    private final int sizeY;
+    private final int sizeZ;
+
+    /** The bit depth of the image (8, 16 or 32). */
+    private final int bitDepth;
+
+    /** The byte order of the voxel values. */
+    private final ByteOrder order;
+
+    /** The position of each slice within the file. */
+    private final long[] sliceOffsets;
+
+    /** The mapped slices, or null for slices not yet mapped. */
+    private final AtomicReferenceArray<ByteBuffer> slices;
+
+
+    // ====================================================
+    // Constructor
+
+    private MappedVoxelSource(FileChannel channel, int sizeX, int sizeY, int bitDepth, ByteOrder order, long[] sliceOffsets)
+    {
+        if (bitDepth != 8 && bitDepth != 16 && bitDepth != 32)
+        {
+            throw new IllegalArgumentException("Bit depth must be 8, 16 or 32, not " + bitDepth);
+        }
+        if ((long) sizeX * sizeY * (bitDepth / 8) > Integer.MAX_VALUE)
+        {
+            throw new IllegalArgumentException("Slices larger than 2GB are not supported");
+        }
+        this.channel = channel;
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.sizeZ = sliceOffsets.length;
+        this.bitDepth = bitDepth;
+        this.order = order;
+        this.sliceOffsets = sliceOffsets;
+        this.slices = new AtomicReferenceArray<ByteBuffer>(sizeZ);
+    }
+
+
+    // ====================================================
+    // Methods
+
+    /**
+     * @return the number of slices mapped so far
+     */
+    public int getMappedSliceCount()
+    {
+        int count = 0;
+        for (int z = 0; z < sizeZ; z++)
+        {
+            if (slices.get(z) != null)
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the mapped buffer of a slice, mapping it if necessary.
+     */
+    private ByteBuffer slice(int z)
+    {
+        ByteBuffer buffer = slices.get(z);
+        if (buffer == null)
+        {
+            buffer = map(z);
+        }
+        return buffer;
+    }
+
+    private synchronized ByteBuffer map(int z)
+    {
+        ByteBuffer buffer = slices.get(z);
+        if (buffer != null)
+        {
+            return buffer;
+        }
+        try
+        {
+            long size = (long) sizeX * sizeY * (bitDepth / 8);
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, sliceOffsets[z], size).order(order);
+        }
+        catch (IOException ex)
+        {
+            throw new RuntimeException("Could not map slice " + z, ex);
+        }
+        slices.set(z, buffer);
+        return buffer;
+    }
+
+
+    // ====================================================
+    // Implementation of the VoxelSource interface
+
+    @Override
+    public int getWidth()
+    {
+        return sizeX;
+    }
+
+    @Override
+    public int getHeight()
+    {
+        return sizeY;
+    }
+
+    @Override
+    public int getSize()
+    {
+        return sizeZ;
+    }
+
+    @Override
+    public int getBitDepth()
+    {
+        return bitDepth;
+    }
+
+    @Override
+    public double getVoxel(int x, int y, int z)
+    {
+        ByteBuffer buffer = slice(z);
+        int index = y * sizeX + x;
+        switch (bitDepth)
+        {
+        case 8:
+            return buffer.get(index) & 0x00FF;
+        case 16:
+            return buffer.getShort(index << 1) & 0x00FFFF;
+        default:
+            return buffer.getFloat(index << 2);
+        }
+    }
+
+
+    // ====================================================
+    // Implementation of the Closeable interface
+
+    /**
+     * Closes the file channel. The slices already mapped remain readable until
+     * they are reclaimed by the garbage collector.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+
+
+    // ====================================================
+    // Parsing of TIFF files
+
+    // TIFF tags used to locate the voxel data
+    private static final int IMAGE_WIDTH = 256;
+    private static final int IMAGE_LENGTH = 257;
+    private static final int BITS_PER_SAMPLE = 258;
+    private static final int COMPRESSION = 259;
+    private static final int IMAGE_DESCRIPTION = 270;
+    private static final int STRIP_OFFSETS = 273;
+    private static final int SAMPLES_PER_PIXEL = 277;
+    private static final int STRIP_BYTE_COUNTS = 279;
+    private static final int SAMPLE_FORMAT = 339;
+
+    /**
+     * The fields of a TIFF image file directory (IFD) needed to locate the
+     * pixel data of a slice.
+     */
+    private static final class Ifd
+    {
+        int width;
+        int height;
+        int bitsPerSample = 1;
+        int compression = 1;
+        int samplesPerPixel = 1;
+        int sampleFormat = 1;
+        String description = null;
+        long[] stripOffsets;
+        long[] stripByteCounts;
+        long next;
+    }
+
+    private static final MappedVoxelSource readTiff(FileChannel channel) throws IOException
+    {
+        ByteBuffer header = read(channel, 0, 8, ByteOrder.BIG_ENDIAN);
+        ByteOrder order;
+        if (header.get(0) == 'I' && header.get(1) == 'I')
+        {
+            order = ByteOrder.LITTLE_ENDIAN;
+        }
+        else if (header.get(0) == 'M' && header.get(1) == 'M')
+        {
+            order = ByteOrder.BIG_ENDIAN;
+        }
+        else
+        {
+            throw new IOException("Not a TIFF file");
+        }
+        header.order(order);
+        if (header.getShort(2) != 42)
+        {
+            throw new IOException("Only classic TIFF files are supported");
+        }
+
+        Ifd first = readIfd(channel, header.getInt(4) & 0xFFFFFFFFL, order);
+        if (first.compression != 1 || first.samplesPerPixel != 1)
+        {
+            throw new IOException("Only uncompressed single-channel TIFF files are supported");
+        }
+        int bitDepth = first.bitsPerSample;
+        if ((bitDepth == 32) != (first.sampleFormat == 3) || (bitDepth != 8 && bitDepth != 16 && bitDepth != 32))
+        {
+            throw new IOException("Only 8-bit, 16-bit and 32-bit floating point images are supported");
+        }
+        long sliceSize = (long) first.width * first.height * (bitDepth / 8);
+
+        // ImageJ files store the number of slices within the description, and
+        // may contain a single IFD when larger than 4GB
+        int nImages = imageCount(first.description);
+        if (nImages > 1)
+        {
+            long offset0 = stripStart(first, sliceSize);
+            if (offset0 + sliceSize * nImages <= channel.size())
+            {
+                long[] offsets = new long[nImages];
+                for (int z = 0; z < nImages; z++)
+                {
+                    offsets[z] = offset0 + z * sliceSize;
+                }
+                return new MappedVoxelSource(channel, first.width, first.height, bitDepth, order, offsets);
+            }
+        }
+
+        // otherwise, follow the chain of IFDs
+        ArrayList<Long> offsets = new ArrayList<Long>();
+        Ifd ifd = first;
+        while (true)
+        {
+            if (ifd.width != first.width || ifd.height != first.height || ifd.bitsPerSample != bitDepth || ifd.compression != 1)
+            {
+                throw new IOException("All the pages of the TIFF file must have the same size and type");
+            }
+            offsets.add(stripStart(ifd, sliceSize));
+            if (ifd.next == 0)
+            {
+                break;
+            }
+            ifd = readIfd(channel, ifd.next, order);
+        }
+
+        long[] array = new long[offsets.size()];
+        for (int z = 0; z < array.length; z++)
+        {
+            array[z] = offsets.get(z);
+        }
+        return new MappedVoxelSource(channel, first.width, first.height, bitDepth, order, array);
+    }
+
+    /**
+     * Returns the offset of the pixel data of an IFD, after checking that the
+     * strips are stored contiguously.
+     */
+    private static final long stripStart(Ifd ifd, long sliceSize) throws IOException
+    {
+        long offset = ifd.stripOffsets[0];
+        long expected = offset;
+        long total = 0;
+        for (int i = 0; i < ifd.stripOffsets.length; i++)
+        {
+            if (ifd.stripOffsets[i] != expected)
+            {
+                throw new IOException("The strips of a TIFF page must be stored contiguously");
+            }
+            expected += ifd.stripByteCounts[i];
+            total += ifd.stripByteCounts[i];
+        }
+        if (total < sliceSize)
+        {
+            throw new IOException("Strip byte counts do not match the image size");
+        }
+        return offset;
+    }
+
+    /**
+     * Parses the number of images from an ImageJ description, or returns 0.
+     */
+    private static final int imageCount(String description)
+    {
+        if (description == null || !description.startsWith("ImageJ"))
+        {
+            return 0;
+        }
+        for (String line : description.split("\n"))
+        {
+            if (line.startsWith("images="))
+            {
+                try
+                {
+                    return Integer.parseInt(line.substring(7).trim());
+                }
+                catch (NumberFormatException ex)
+                {
+                    return 0;
+                }
+            }
+        }
+        return 0;
+    }
+
+    private static final Ifd readIfd(FileChannel channel, long offset, ByteOrder order) throws IOException
+    {
+        int nEntries = read(channel, offset, 2, order).getShort(0) & 0xFFFF;
+        ByteBuffer entries = read(channel, offset + 2, nEntries * 12 + 4, order);
+
+        Ifd ifd = new Ifd();
+        for (int e = 0; e < nEntries; e++)
+        {
+            int pos = e * 12;
+            int tag = entries.getShort(pos) & 0xFFFF;
+            int type = entries.getShort(pos + 2) & 0xFFFF;
+            int count = entries.getInt(pos + 4);
+            switch (tag)
+            {
+            case IMAGE_WIDTH:
+                ifd.width = (int) readValues(channel, entries, pos, type, 1, order)[0];
+                break;
+            case IMAGE_LENGTH:
+                ifd.height = (int) readValues(channel, entries, pos, type, 1, order)[0];
+                break;
+            case BITS_PER_SAMPLE:
+                ifd.bitsPerSample = (int) readValues(channel, entries, pos, type, 1, order)[0];
+                break;
+            case COMPRESSION:
+                ifd.compression = (int) readValues(channel, entries, pos, type, 1, order)[0];
+                break;
+            case SAMPLES_PER_PIXEL:
+                ifd.samplesPerPixel = (int) readValues(channel, entries, pos, type, 1, order)[0];
+                break;
+            case SAMPLE_FORMAT:
+                ifd.sampleFormat = (int) readValues(channel, entries, pos, type, 1, order)[0];
+                break;
+            case STRIP_OFFSETS:
+                ifd.stripOffsets = readValues(channel, entries, pos, type, count, order);
+                break;
+            case STRIP_BYTE_COUNTS:
+                ifd.stripByteCounts = readValues(channel, entries, pos, type, count, order);
+                break;
+            case IMAGE_DESCRIPTION:
+                ByteBuffer chars = count <= 4 ? slice(entries, pos + 8, count)
+                        : read(channel, entries.getInt(pos + 8) & 0xFFFFFFFFL, count, order);
+                byte[] bytes = new byte[count];
+                chars.get(bytes);
+                ifd.description = new String(bytes, StandardCharsets.ISO_8859_1);
+                break;
+            default:
+            }
+        }
+        ifd.next = entries.getInt(nEntries * 12) & 0xFFFFFFFFL;
+
+        if (ifd.stripOffsets == null || ifd.stripByteCounts == null || ifd.stripOffsets.length != ifd.stripByteCounts.length)
+        {
+            throw new IOException("Missing strip information within TIFF file");
+        }
+        return ifd;
+    }
+
+    /**
+     * Reads the values of an IFD entry with SHORT or LONG type, either from
+     * the entry itself or from the position it refers to.
+     */
+    private static final long[] readValues(FileChannel channel, ByteBuffer entries, int pos, int type, int count, ByteOrder order) throws IOException
+    {
+        int size;
+        switch (type)
+        {
+        case 3:
+            size = 2;
+            break;
+        case 4:
+            size = 4;
+            break;
+        default:
+            throw new IOException("Unsupported type for TIFF tag: " + type);
+        }
+
+        ByteBuffer data = count * size <= 4 ? slice(entries, pos + 8, 4)
+                : read(channel, entries.getInt(pos + 8) & 0xFFFFFFFFL, count * size, order);
+        long[] values = new long[count];
+        for (int i = 0; i < count; i++)
+        {
+            values[i] = size == 2 ? data.getShort(i * 2) & 0xFFFF : data.getInt(i * 4) & 0xFFFFFFFFL;
+        }
+        return values;
+    }
+
+    private static final ByteBuffer slice(ByteBuffer buffer, int pos, int length)
+    {
+        ByteBuffer dup = buffer.duplicate();
+        dup.position(pos);
+        dup.limit(pos + length);
+        return dup.slice().order(buffer.order());
+    }
+
+    /**
+     * Reads a block of bytes from the channel, at an absolute position.
+     */
+    private static final ByteBuffer read(FileChannel channel, long position, int size, ByteOrder order) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(order);
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+            {
+                throw new IOException("Unexpected end of TIFF file");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ * 
+ */
+package net.ijt.rotcrop;
+
+/**
+ * The strategies for computing values at positions outside of the source image
+ * when resampling.
+ *
+ * @author dlegland
+ *
+ */
+public enum Padding
+{
+    /**
+     * Positions outside of image get a constant (background) value.
+     */
+    CONSTANT,
+
+    /**
+     * Positions outside of image get the value of the closest position on the
+     * image border: <code>a a a | a b c d | d d d</code>.
+     */
+    REPLICATE,
+
+    /**
+     * Image values are mirrored with respect to the image border, without
+     * repeating the border value: <code>d c b | a b c d | c b a</code>.
+     */
+    MIRROR;
+
+    /**
+     * Converts an index that may be outside of the range [0, size-1] into an
+     * index within this range, according to the padding strategy. The
+     * CONSTANT strategy is processed as the REPLICATE one, as positions outside
+     * of image are not expected to be indexed.
+     *
+     * @param index
+     *            the index to convert
+     * @param size
+     *            the size of the image along the considered dimension
+     * @return an index between 0 and size-1
+     */
+    public int fold(int index, int size)
+    {
+        if (index >= 0 && index < size)
+        {
+            return index;
+        }
+
+        if (this == MIRROR)
+        {
+            if (size == 1)
+            {
+                return 0;
+            }
+            int period = 2 * (size - 1);
+            index = index % period;
+            if (index < 0)
+            {
+                index += period;
+            }
+            return index < size ? index : period - index;
+        }
+
+        return Math.max(Math.min(index, size - 1), 0);
+    }
+}
@@ -0,0 +1,156 @@
+/**
+ * 
+ */
+package net.ijt.rotcrop;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+
+import ij.Prefs;
+
+/**
+ * Utility methods for distributing loops over a range of indices (slices, rows
+ * or bands of rows) across the threads of a shared fork/join pool.
+ *
+ * The size of the pool follows the number of threads specified in ImageJ
+ * preferences (see <code>Prefs.getThreads()</code>). The pool is re-created
+ * when this number changes.
+ *
+ * @author dlegland
+ *
+ */
+public class ParallelLoops
+{
+    /**
+     * An operation applied on a contiguous range of indices.
+     */
+    public interface RangeOperation
+    {
+        /**
+         * Processes the indices between start (inclusive) and end (exclusive).
+         *
+         * @param start
+         *            the first index to process
+         * @param end
+         *            the index after the last index to process
+         */
+        public void process(int start, int end);
+    }
+
+    /**
+     * The shared pool, created at first call to the getPool() method.
+     */
+    private static ForkJoinPool pool = null;
+
+    /**
+     * Returns the fork/join pool shared by the parallel operations of the
+     * plugin. The parallelism of the pool is given by the number of threads in
+     * ImageJ preferences.
+     *
+     * @return the shared fork/join pool
+     */
+    public static final synchronized ForkJoinPool getPool()
+    {
+        int nThreads = Math.max(Prefs.getThreads(), 1);
+        if (pool == null || pool.getParallelism() != nThreads)
+        {
+            if (pool != null)
+            {
+                pool.shutdown();
+            }
+            pool = new ForkJoinPool(nThreads);
+        }
+        return pool;
+    }
+
+    /**
+     * Applies the operation on the range of indices between 0 (inclusive) and
+     * <code>count</code> (exclusive), by splitting the range into chunks
+     * processed concurrently. The method returns once all the indices have been
+     * processed.
+     *
+     * @param count
+     *            the number of indices to process
+     * @param op
+     *            the operation to apply on each chunk of indices
+     */
+    public static final void forRange(int count, RangeOperation op)
+    {
+        if (count <= 0)
+        {
+            return;
+        }
+
+        // choose grain size to obtain a few chunks per thread, for load balancing
+        ForkJoinPool pool = getPool();
+        int grain = Math.max(count / (4 * pool.getParallelism()), 1);
+        forRange(count, grain, op);
+    }
+
+    /**
+     * Applies the operation on the range of indices between 0 (inclusive) and
+     * <code>count</code> (exclusive), by splitting the range into chunks of at
+     * most <code>grain</code> indices processed concurrently.
+     *
+     * @param count
+     *            the number of indices to process
+     * @param grain
+     *            the maximum number of indices processed within a single task
+     * @param op
+     *            the operation to apply on each chunk of indices
+     */
+    public static final void forRange(int count, int grain, RangeOperation op)
+    {
+        if (count <= 0)
+        {
+            return;
+        }
+
+        RangeTask task = new RangeTask(0, count, Math.max(grain, 1), op);
+        if (Thread.currentThread() instanceof ForkJoinWorkerThread)
+        {
+            // already within a fork/join worker: fork within the current pool
+            task.invoke();
+        }
+        else
+        {
+            getPool().invoke(task);
+        }
+    }
+
+    /**
+     * Recursively splits a range of indices until its size is below the grain
+     * size.
+     */
+    private static final class RangeTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        final int start;
+        final int end;
+        final int grain;
+        final RangeOperation op;
+
+        RangeTask(int start, int end, int grain, RangeOperation op)
+        {
+            this.start = start;
+            this.end = end;
+            this.grain = grain;
+            this.op = op;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (end - start <= grain)
+            {
+                op.process(start, end);
+                return;
+            }
+
+            int mid = (start + end) >>> 1;
+            invokeAll(new RangeTask(start, mid, grain, op), new RangeTask(mid, end, grain, op));
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/**
+ * 
+ */
+package net.ijt.rotcrop;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Writes the slices of an image into a raw file, without header. Pixels are
+ * written row by row and slice by slice, using big-endian byte order for
+ * 16-bit and 32-bit images. The file can be opened in ImageJ using
+ * "File &gt; Import &gt; Raw...".
+ *
+ * @see RotCrop#resample(ResamplingKernel3D, int[], int, SliceSink)
+ *
+ * @author dlegland
+ *
+ */
+public class RawSliceWriter extends FileSliceWriter
+{
+    /**
+     * Creates a new writer into the specified file. An existing file is
+     * overwritten.
+     *
+     * @param file
+     *            the file to write
+     * @throws IOException
+     *             if the file can not be opened
+     */
+    public RawSliceWriter(File file) throws IOException
+    {
+        super(file);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        out.close();
+    }
+}
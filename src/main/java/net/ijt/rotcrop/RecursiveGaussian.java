@@ -0,0 +1,265 @@
+/**
+ * 
+ */
+package net.ijt.rotcrop;
+
+/**
+ * Recursive approximation of the Gaussian smoothing and of the Gaussian
+ * derivative of 1D signals, based on the third-order filters of Young and van
+ * Vliet. The filter is applied in a causal pass followed by an anti-causal
+ * pass, resulting in a constant number of operations per element whatever the
+ * value of sigma.
+ *
+ * The derivative is obtained as the central difference of the smoothed
+ * signal. Values outside of the signal are replaced by the closest value
+ * within the signal.
+ *
+ * The coefficients are computed with the formulas of Young and van Vliet,
+ * from a parameter adjusted such that the variance of the impulse response
+ * equals sigma^2.
+ *
+ * References: Young, I. T. and van Vliet, L. J. (1995). "Recursive
+ * implementation of the Gaussian filter". Signal Processing, 44(2), 139-151.
+ *
+ * @author dlegland
+ *
+ */
+public class RecursiveGaussian
+{
+    // ====================================================
+    // Constants
+
+    /**
+     * The smallest value of sigma for which the coefficients of the filter
+     * are defined.
+     */
+    public static final double MIN_SIGMA = 0.5;
+
+    /**
+     * The approximate number of multiply-adds per element for computing a
+     * smoothed or derived signal, used for comparing the cost with the one of
+     * finite kernels.
+     */
+    public static final int COST_PER_ELEMENT = 8;
+
+
+    // ====================================================
+    // Class properties
+
+    /** The range of the filter. */
+    private final double sigma;
+
+    /** The normalization factor of the input. */
+    private final double B;
+
+    /** The normalized feedback coefficients. */
+    private final double a1;
+    private final double a2;
+    private final double a3;
+
+    /**
+     * The number of replicated values added after the end of the signal, so
+     * that the anti-causal pass starts from values close to the steady state.
+     */
+    private final int padding;
+
+
+    // ====================================================
+    // Constructor
+
+    /**
+     * Creates a new recursive Gaussian filter.
+     *
+     * @param sigma
+     *            the standard deviation of the Gaussian, greater than or equal
+     *            to 0.5
+     */
+    public RecursiveGaussian(double sigma)
+    {
+        if (sigma < MIN_SIGMA)
+        {
+            throw new IllegalArgumentException("Sigma must be greater than or equal to " + MIN_SIGMA + ", got " + sigma);
+        }
+        this.sigma = sigma;
+
+        double[] coeffs = coefficients(calibrate(sigma));
+        this.a1 = coeffs[0];
+        this.a2 = coeffs[1];
+        this.a3 = coeffs[2];
+        this.B = 1 - (a1 + a2 + a3);
+        this.padding = (int) Math.ceil(3 * sigma);
+    }
+
+
+    // ====================================================
+    // Computation of coefficients
+
+    /**
+     * Computes the normalized feedback coefficients from the value of the
+     * parameter q, using the formulas of Young and van Vliet.
+     */
+    private static final double[] coefficients(double q)
+    {
+        double q2 = q * q;
+        double q3 = q2 * q;
+
+        double b0 = 1.57825 + 2.44413 * q + 1.4281 * q2 + 0.422205 * q3;
+        double b1 = 2.44413 * q + 2.85619 * q2 + 1.26661 * q3;
+        double b2 = -(1.4281 * q2 + 1.26661 * q3);
+        double b3 = 0.422205 * q3;
+        return new double[] {b1 / b0, b2 / b0, b3 / b0};
+    }
+
+    /**
+     * Computes the variance of the impulse response of the causal and
+     * anti-causal passes, from the moments of the causal filter.
+     */
+    private static final double variance(double q)
+    {
+        double[] a = coefficients(q);
+        double b = 1 - (a[0] + a[1] + a[2]);
+        double mean = (a[0] + 2 * a[1] + 3 * a[2]) / b;
+        return 2 * (mean * mean + mean + (2 * a[1] + 6 * a[2]) / b);
+    }
+
+    /**
+     * Computes the parameter q such that the variance of the impulse response
+     * equals sigma^2. The heuristic formula of Young and van Vliet is used as
+     * initial guess, and refined by bisection.
+     */
+    private static final double calibrate(double sigma)
+    {
+        double q0;
+        if (sigma >= 2.5)
+        {
+            q0 = 0.98711 * sigma - 0.96330;
+        }
+        else
+        {
+            q0 = 3.97156 - 4.14554 * Math.sqrt(1 - 0.26891 * sigma);
+        }
+
+        double target = sigma * sigma;
+        double lo = q0 * 0.5;
+        double hi = q0 * 1.5;
+        while (variance(lo) > target)
+        {
+            lo *= 0.5;
+        }
+        while (variance(hi) < target)
+        {
+            hi *= 2.0;
+        }
+        for (int i = 0; i < 50; i++)
+        {
+            double mid = (lo + hi) * 0.5;
+            if (variance(mid) < target)
+            {
+                lo = mid;
+            }
+            else
+            {
+                hi = mid;
+            }
+        }
+        return (lo + hi) * 0.5;
+    }
+
+
+    // ====================================================
+    // Methods
+
+    /**
+     * Smoothes a signal in place.
+     *
+     * @param values
+     *            the signal to smooth
+     */
+    public void smooth(double[] values)
+    {
+        int n = values.length;
+        if (n == 0)
+        {
+            return;
+        }
+
+        // causal pass, over the signal followed by the padding. The initial
+        // state corresponds to a constant signal before the first element.
+        double[] w = new double[n + padding];
+        double w1 = values[0];
+        double w2 = w1;
+        double w3 = w1;
+        for (int i = 0; i < n + padding; i++)
+        {
+            double v = values[Math.min(i, n - 1)];
+            double wi = B * v + a1 * w1 + a2 * w2 + a3 * w3;
+            w[i] = wi;
+            w3 = w2;
+            w2 = w1;
+            w1 = wi;
+        }
+
+        // anti-causal pass, starting from the end of the padding
+        double o1 = w[n + padding - 1];
+        double o2 = o1;
+        double o3 = o1;
+        for (int i = n + padding - 1; i >= 0; i--)
+        {
+            double oi = B * w[i] + a1 * o1 + a2 * o2 + a3 * o3;
+            if (i < n)
+            {
+                values[i] = oi;
+            }
+            o3 = o2;
+            o2 = o1;
+            o1 = oi;
+        }
+    }
+
+    /**
+     * Replaces a signal by its smoothed derivative, computed as the central
+     * difference of the smoothed signal.
+     *
+     * @param values
+     *            the signal to derive
+     */
+    public void derive(double[] values)
+    {
+        smooth(values);
+        centralDifference(values);
+    }
+
+    /**
+     * Replaces a signal by its central difference, replicating the values at
+     * the ends of the signal.
+     *
+     * @param values
+     *            the signal to derive
+     */
+    public static final void centralDifference(double[] values)
+    {
+        int n = values.length;
+        if (n == 0)
+        {
+            return;
+        }
+
+        double prev = values[0];
+        double curr = values[0];
+        for (int i = 0; i < n; i++)
+        {
+            double next = values[Math.min(i + 1, n - 1)];
+            values[i] = (next - prev) * 0.5;
+            prev = curr;
+            curr = next;
+        }
+    }
+
+    /**
+     * @return the standard deviation of the Gaussian
+     */
+    public double getSigma()
+    {
+        return sigma;
+    }
+}
@@ -0,0 +1,915 @@
+/**
+ * 
+ */
+package net.ijt.rotcrop;
+
+import java.util.Arrays;
+
+import ij.process.ImageProcessor;
+import net.ijt.geom2d.AffineTransform2D;
+import net.ijt.geom2d.Point2D;
+import net.ijt.interp.Function2D;
+
+/**
+ * Resamples a 2D image through an affine transform, using nearest-neighbor,
+ * bilinear or bicubic interpolation.
+ *
+ * When resampling a row of the result, the source coordinates are updated by
+ * adding a constant increment, avoiding matrix products and object allocations
+ * for each pixel. The range of the row that maps within the source image is
+ * computed analytically, so that only the pixels close to the image border
+ * need bounds checking.
+ *
+ * Instances are created with the <code>create()</code> factory methods, that
+ * return an implementation specific to the type of the source image (8-bit,
+ * 16-bit or 32-bit). By default, values outside of the source image are set to
+ * zero.
+ *
+ * @see ResamplingKernel3D
+ * @see Padding
+ * @see Interpolation
+ *
+ * @author dlegland
+ *
+ */
+public abstract class ResamplingKernel2D implements Function2D
+{
+    // ====================================================
+    // Static factories
+
+    /**
+     * Creates a new resampling kernel adapted to the type of the image, using
+     * linear interpolation.
+     *
+     * @param image
+     *            the image to resample
+     * @param transfo
+     *            the transform that maps coordinates in the result image into
+     *            coordinates in the source image
+     * @return a new resampling kernel
+     */
+    public static final ResamplingKernel2D create(ImageProcessor image, AffineTransform2D transfo)
+    {
+        return create(image, transfo, Interpolation.LINEAR);
+    }
+
+    /**
+     * Creates a new resampling kernel adapted to the type of the image.
+     *
+     * @param image
+     *            the image to resample
+     * @param transfo
+     *            the transform that maps coordinates in the result image into
+     *            coordinates in the source image
+     * @param interpolation
+     *            the interpolation method
+     * @return a new resampling kernel
+     */
+    public static final ResamplingKernel2D create(ImageProcessor image, AffineTransform2D transfo, Interpolation interpolation)
+    {
+        Object pixels = image.getPixels();
+        if (pixels instanceof byte[])
+        {
+            return new ByteKernel(image, transfo, interpolation);
+        }
+        else if (pixels instanceof short[])
+        {
+            return new ShortKernel(image, transfo, interpolation);
+        }
+        else if (pixels instanceof float[])
+        {
+            return new FloatKernel(image, transfo, interpolation);
+        }
+        return new GenericKernel(image, transfo, interpolation);
+    }
+
+
+    // ====================================================
+    // Class properties
+
+    /** The size of the source image in the X direction. */
+    final int sizeX;
+    /** The size of the source image in the Y direction. */
+    final int sizeY;
+
+    // the coefficients of the 2x3 matrix of the transform, that maps result
+    // coordinates to source coordinates
+    final double m00, m01, m02;
+    final double m10, m11, m12;
+
+    /** The method used to interpolate values between pixels. */
+    final Interpolation interpolation;
+
+    /** The strategy for computing values outside of the source image. */
+    Padding padding = Padding.CONSTANT;
+
+    /** The value of the pixels outside of image, for constant padding. */
+    double backgroundValue = 0.0;
+
+
+    // ====================================================
+    // Constructor
+
+    /**
+     * Initializes the image size and the coefficients of the transform.
+     *
+     * @param image
+     *            the image to resample
+     * @param transfo
+     *            the transform that maps coordinates in the result image into
+     *            coordinates in the source image
+     * @param interpolation
+     *            the interpolation method
+     */
+    protected ResamplingKernel2D(ImageProcessor image, AffineTransform2D transfo, Interpolation interpolation)
+    {
+        if (interpolation == null)
+        {
+            throw new NullPointerException("Interpolation method must not be null");
+        }
+
+        this.sizeX = image.getWidth();
+        this.sizeY = image.getHeight();
+        this.interpolation = interpolation;
+
+        // retrieve matrix coefficients from the images of the origin and of
+        // the two basis vectors
+        Point2D p0 = transfo.transform(new Point2D(0, 0));
+        Point2D px = transfo.transform(new Point2D(1, 0));
+        Point2D py = transfo.transform(new Point2D(0, 1));
+
+        this.m00 = px.x() - p0.x();
+        this.m01 = py.x() - p0.x();
+        this.m02 = p0.x();
+        this.m10 = px.y() - p0.y();
+        this.m11 = py.y() - p0.y();
+        this.m12 = p0.y();
+    }
+
+
+    // ====================================================
+    // Accessors
+
+    /**
+     * @return the method used to interpolate values between pixels
+     */
+    public Interpolation getInterpolation()
+    {
+        return interpolation;
+    }
+
+    /**
+     * @return the strategy for computing values outside of the source image
+     */
+    public Padding getPadding()
+    {
+        return padding;
+    }
+
+    /**
+     * Changes the strategy for computing values outside of the source image.
+     * This method should be called before resampling, and not concurrently.
+     *
+     * @param padding
+     *            the new padding strategy
+     */
+    public void setPadding(Padding padding)
+    {
+        if (padding == null)
+        {
+            throw new NullPointerException("Padding strategy must not be null");
+        }
+        this.padding = padding;
+    }
+
+    /**
+     * @return the value of the pixels outside of image, for constant padding
+     */
+    public double getBackgroundValue()
+    {
+        return backgroundValue;
+    }
+
+    /**
+     * Changes the value of the pixels outside of image, used for constant
+     * padding.
+     *
+     * @param value
+     *            the new background value
+     */
+    public void setBackgroundValue(double value)
+    {
+        this.backgroundValue = value;
+    }
+
+
+    // ====================================================
+    // Resampling methods
+
+    /**
+     * Returns the bit depth of the pixel arrays that can be filled with the
+     * <code>fillRow()</code> method. This corresponds to the bit depth of the
+     * source image, or to 8 if the type of the source image is not supported.
+     *
+     * @return the bit depth of the result rows (8, 16 or 32)
+     */
+    public abstract int getBitDepth();
+
+    /**
+     * Computes the values of a row of the result image, and stores them into
+     * a pixel array. The type of the array must correspond to the bit depth of
+     * the kernel.
+     *
+     * @param y
+     *            the y-coordinate of the row within the result image
+     * @param pixels
+     *            the pixel array of the result image
+     * @param offset
+     *            the index of the first element of the row within the array
+     * @param count
+     *            the number of elements of the row
+     */
+    public void fillRow(int y, Object pixels, int offset, int count)
+    {
+        // source coordinates of the first pixel of the row
+        double xs = m01 * y + m02;
+        double ys = m11 * y + m12;
+
+        // range of pixels that map within the image bounds
+        int start = 0;
+        int end = count;
+        if (padding == Padding.CONSTANT)
+        {
+            long range = clipRow(xs, ys, count,
+                    interpolation.domainMin - ResamplingKernel3D.CLIP_TOLERANCE,
+                    interpolation.domainMax + ResamplingKernel3D.CLIP_TOLERANCE);
+            start = (int) (range >>> 32);
+            end = (int) range;
+            if (start >= end)
+            {
+                fillConstant(pixels, offset, offset + count, backgroundValue);
+                return;
+            }
+        }
+
+        // range of pixels whose neighbors are all within image
+        long range = clipRow(xs, ys, count,
+                interpolation.innerMin + ResamplingKernel3D.CLIP_TOLERANCE,
+                interpolation.innerMax - ResamplingKernel3D.CLIP_TOLERANCE);
+        int innerStart = Math.max((int) (range >>> 32), start);
+        int innerEnd = Math.min((int) range, end);
+        if (innerStart >= innerEnd)
+        {
+            innerStart = start;
+            innerEnd = start;
+        }
+
+        fillConstant(pixels, offset, offset + start, backgroundValue);
+        fillBorder(pixels, offset, start, innerStart, xs, ys);
+        fillInside(pixels, offset + innerStart, innerEnd - innerStart, xs + innerStart * m00, ys + innerStart * m10);
+        fillBorder(pixels, offset, innerEnd, end, xs, ys);
+        fillConstant(pixels, offset + end, offset + count, backgroundValue);
+    }
+
+    /**
+     * Computes the values of a row of the result image.
+     *
+     * @param y
+     *            the y-coordinate of the row within the result image
+     * @param values
+     *            the array used to store the values of the row. The length of
+     *            the array determines the number of computed values.
+     */
+    public void evaluateRow(int y, double[] values)
+    {
+        // source coordinates of the first pixel of the row
+        double xs = m01 * y + m02;
+        double ys = m11 * y + m12;
+
+        for (int x = 0; x < values.length; x++)
+        {
+            values[x] = interpolate(xs, ys);
+            xs += m00;
+            ys += m10;
+        }
+    }
+
+    /**
+     * Computes the interpolated value of the source image at the specified
+     * position.
+     *
+     * @param x
+     *            the x-coordinate within the source image
+     * @param y
+     *            the y-coordinate within the source image
+     * @return the interpolated value
+     */
+    protected double interpolate(double x, double y)
+    {
+        double lower = interpolation.innerMin;
+        double upper = interpolation.innerMax - 1;
+        if (x >= lower && y >= lower && x < sizeX + upper && y < sizeY + upper)
+        {
+            return interpolateInside(x, y);
+        }
+        return interpolateWithPadding(x, y);
+    }
+
+    /**
+     * Computes the interpolated value at any position, using the padding
+     * strategy for the neighbor pixels outside of image.
+     *
+     * @param x
+     *            the x-coordinate within the source image
+     * @param y
+     *            the y-coordinate within the source image
+     * @return the interpolated value
+     */
+    protected final double interpolateWithPadding(double x, double y)
+    {
+        if (padding == Padding.CONSTANT)
+        {
+            double lower = interpolation.domainMin;
+            double upper = interpolation.domainMax - 1;
+            if (x < lower || y < lower || x > sizeX + upper || y > sizeY + upper)
+            {
+                return backgroundValue;
+            }
+        }
+
+        if (interpolation == Interpolation.NEAREST)
+        {
+            int i = padding.fold((int) Math.floor(x + 0.5), sizeX);
+            int j = padding.fold((int) Math.floor(y + 0.5), sizeY);
+            return getValue(i, j);
+        }
+
+        // indices of the reference pixel
+        int i0 = (int) Math.floor(x);
+        int j0 = (int) Math.floor(y);
+        double dx = x - i0;
+        double dy = y - j0;
+
+        if (interpolation == Interpolation.CUBIC)
+        {
+            return Interpolation.cubic(
+                    cubicRowWithPadding(i0, j0 - 1, dx), cubicRowWithPadding(i0, j0, dx),
+                    cubicRowWithPadding(i0, j0 + 1, dx), cubicRowWithPadding(i0, j0 + 2, dx), dy);
+        }
+
+        // indices of neighbor pixels within image
+        int i1 = padding.fold(i0 + 1, sizeX);
+        int j1 = padding.fold(j0 + 1, sizeY);
+        i0 = padding.fold(i0, sizeX);
+        j0 = padding.fold(j0, sizeY);
+
+        return blend(getValue(i0, j0), getValue(i1, j0), getValue(i0, j1), getValue(i1, j1), dx, dy);
+    }
+
+    /**
+     * Cubic interpolation along the row with index j, using padding.
+     */
+    private double cubicRowWithPadding(int i0, int j, double dx)
+    {
+        j = padding.fold(j, sizeY);
+        return Interpolation.cubic(
+                getValue(padding.fold(i0 - 1, sizeX), j),
+                getValue(padding.fold(i0, sizeX), j),
+                getValue(padding.fold(i0 + 1, sizeX), j),
+                getValue(padding.fold(i0 + 2, sizeX), j), dx);
+    }
+
+    /**
+     * Fills the pixels of a row close to the image border, one at a time.
+     */
+    private void fillBorder(Object pixels, int offset, int start, int end, double xs, double ys)
+    {
+        for (int x = start; x < end; x++)
+        {
+            store(pixels, offset + x, interpolateWithPadding(xs + x * m00, ys + x * m10));
+        }
+    }
+
+    /**
+     * Computes the range of row indices such that the source coordinates
+     * <code>s0 + x * ds</code> are within <code>[lower, size - 1 + upper]</code>
+     * along each dimension.
+     *
+     * @return the start and end indices of the range, packed into a long
+     */
+    private long clipRow(double xs, double ys, int count, double lower, double upper)
+    {
+        double tMin = 0;
+        double tMax = count - 1;
+        tMin = Math.max(tMin, ResamplingKernel3D.rangeMin(xs, m00, lower, sizeX - 1 + upper));
+        tMax = Math.min(tMax, ResamplingKernel3D.rangeMax(xs, m00, lower, sizeX - 1 + upper));
+        tMin = Math.max(tMin, ResamplingKernel3D.rangeMin(ys, m10, lower, sizeY - 1 + upper));
+        tMax = Math.min(tMax, ResamplingKernel3D.rangeMax(ys, m10, lower, sizeY - 1 + upper));
+
+        if (tMin > tMax)
+        {
+            return 0;
+        }
+        long start = (long) Math.ceil(tMin);
+        long end = (long) Math.floor(tMax) + 1;
+        return (start << 32) | end;
+    }
+
+    /**
+     * Combines the values of the four corners of a pixel cell using bilinear
+     * weights.
+     */
+    static final double blend(double v00, double v10, double v01, double v11, double dx, double dy)
+    {
+        double v0 = v00 * (1 - dx) + v10 * dx;
+        double v1 = v01 * (1 - dx) + v11 * dx;
+        return v0 * (1 - dy) + v1 * dy;
+    }
+
+
+    // ====================================================
+    // Methods specific to the image type
+
+    /**
+     * Returns the value of a pixel of the source image. Indices are assumed to
+     * be within image bounds.
+     */
+    protected abstract double getValue(int i, int j);
+
+    /**
+     * Computes the interpolated value at a position such that all the neighbor
+     * pixels used by the interpolation method are within image. Bounds are not
+     * checked.
+     */
+    protected abstract double interpolateInside(double x, double y);
+
+    /**
+     * Fills a part of a row whose pixels all map to positions whose neighbors
+     * are within image. Bounds are not checked.
+     *
+     * @param pixels
+     *            the pixel array of the result image
+     * @param offset
+     *            the index of the first element to fill within the array
+     * @param count
+     *            the number of elements to fill
+     * @param xs
+     *            the x-coordinate of the source position of the first element
+     * @param ys
+     *            the y-coordinate of the source position of the first element
+     */
+    protected abstract void fillInside(Object pixels, int offset, int count, double xs, double ys);
+
+    /**
+     * Converts a value to the type of the result, and stores it into the pixel
+     * array.
+     */
+    protected abstract void store(Object pixels, int index, double value);
+
+    /**
+     * Fills a range of the pixel array with a value converted to the type of
+     * the result.
+     */
+    protected abstract void fillConstant(Object pixels, int fromIndex, int toIndex, double value);
+
+
+    // ====================================================
+    // Implementation of the Function2D interface
+
+    @Override
+    public double evaluate(double x, double y)
+    {
+        double xs = m00 * x + m01 * y + m02;
+        double ys = m10 * x + m11 * y + m12;
+        return interpolate(xs, ys);
+    }
+
+
+    // ====================================================
+    // Implementations for the different image types
+
+    /**
+     * Resampling kernel for 8-bit images.
+     */
+    private static final class ByteKernel extends ResamplingKernel2D
+    {
+        /** The pixel array of the source image. */
+        final byte[] pixels;
+
+        ByteKernel(ImageProcessor image, AffineTransform2D transfo, Interpolation interpolation)
+        {
+            super(image, transfo, interpolation);
+            this.pixels = (byte[]) image.getPixels();
+        }
+
+        @Override
+        public int getBitDepth()
+        {
+            return 8;
+        }
+
+        @Override
+        protected double getValue(int i, int j)
+        {
+            return pixels[j * sizeX + i] & 0x00FF;
+        }
+
+        @Override
+        protected void fillInside(Object pixels, int offset, int count, double xs, double ys)
+        {
+            byte[] target = (byte[]) pixels;
+            switch (interpolation)
+            {
+            case NEAREST:
+            {
+                // fixed-point coordinates, shifted by one half to round indices
+                long fx = ResamplingKernel3D.toFixed(xs + 0.5), fy = ResamplingKernel3D.toFixed(ys + 0.5);
+                long dfx = ResamplingKernel3D.toFixed(m00), dfy = ResamplingKernel3D.toFixed(m10);
+                for (int x = 0; x < count; x++)
+                {
+                    int i = (int) (fx >> ResamplingKernel3D.FIXED_SHIFT);
+                    int j = (int) (fy >> ResamplingKernel3D.FIXED_SHIFT);
+                    target[offset + x] = this.pixels[j * sizeX + i];
+                    fx += dfx;
+                    fy += dfy;
+                }
+                break;
+            }
+            case CUBIC:
+                for (int x = 0; x < count; x++)
+                {
+                    store(target, offset + x, cubic(xs, ys));
+                    xs += m00;
+                    ys += m10;
+                }
+                break;
+            default:
+                for (int x = 0; x < count; x++)
+                {
+                    // interpolated values are within [0, 255]: round without clamping
+                    target[offset + x] = (byte) (linear(xs, ys) + 0.5);
+                    xs += m00;
+                    ys += m10;
+                }
+            }
+        }
+
+        @Override
+        protected double interpolateInside(double x, double y)
+        {
+            switch (interpolation)
+            {
+            case NEAREST:
+                return pixels[((int) (y + 0.5)) * sizeX + (int) (x + 0.5)] & 0x00FF;
+            case CUBIC:
+                return cubic(x, y);
+            default:
+                return linear(x, y);
+            }
+        }
+
+        private double linear(double x, double y)
+        {
+            // indices of the reference pixel (coordinates are positive)
+            int i0 = (int) x;
+            int j0 = (int) y;
+            int offset0 = j0 * sizeX + i0;
+            int offset1 = offset0 + sizeX;
+
+            return blend(pixels[offset0] & 0x00FF, pixels[offset0 + 1] & 0x00FF,
+                    pixels[offset1] & 0x00FF, pixels[offset1 + 1] & 0x00FF, x - i0, y - j0);
+        }
+
+        private double cubic(double x, double y)
+        {
+            // indices of the reference pixel (coordinates are positive)
+            int i0 = (int) x;
+            int j0 = (int) y;
+            int offset = j0 * sizeX + i0;
+            double dx = x - i0;
+            return Interpolation.cubic(
+                    cubicRow(offset - sizeX, dx), cubicRow(offset, dx),
+                    cubicRow(offset + sizeX, dx), cubicRow(offset + 2 * sizeX, dx), y - j0);
+        }
+
+        private double cubicRow(int offset, double dx)
+        {
+            return Interpolation.cubic(pixels[offset - 1] & 0x00FF, pixels[offset] & 0x00FF,
+                    pixels[offset + 1] & 0x00FF, pixels[offset + 2] & 0x00FF, dx);
+        }
+
+        @Override
+        protected void store(Object pixels, int index, double value)
+        {
+            ((byte[]) pixels)[index] = (byte) (Math.max(Math.min(value, 255.0), 0.0) + 0.5);
+        }
+
+        @Override
+        protected void fillConstant(Object pixels, int fromIndex, int toIndex, double value)
+        {
+            Arrays.fill((byte[]) pixels, fromIndex, toIndex, (byte) (Math.max(Math.min(value, 255.0), 0.0) + 0.5));
+        }
+    }
+
+    /**
+     * Resampling kernel for 16-bit images.
+     */
+    private static final class ShortKernel extends ResamplingKernel2D
+    {
+        /** The pixel array of the source image. */
+        final short[] pixels;
+
+        ShortKernel(ImageProcessor image, AffineTransform2D transfo, Interpolation interpolation)
+        {
+            super(image, transfo, interpolation);
+            this.pixels = (short[]) image.getPixels();
+        }
+
+        @Override
+        public int getBitDepth()
+        {
+            return 16;
+        }
+
+        @Override
+        protected double getValue(int i, int j)
+        {
+            return pixels[j * sizeX + i] & 0x00FFFF;
+        }
+
+        @Override
+        protected void fillInside(Object pixels, int offset, int count, double xs, double ys)
+        {
+            short[] target = (short[]) pixels;
+            switch (interpolation)
+            {
+            case NEAREST:
+            {
+                // fixed-point coordinates, shifted by one half to round indices
+                long fx = ResamplingKernel3D.toFixed(xs + 0.5), fy = ResamplingKernel3D.toFixed(ys + 0.5);
+                long dfx = ResamplingKernel3D.toFixed(m00), dfy = ResamplingKernel3D.toFixed(m10);
+                for (int x = 0; x < count; x++)
+                {
+                    int i = (int) (fx >> ResamplingKernel3D.FIXED_SHIFT);
+                    int j = (int) (fy >> ResamplingKernel3D.FIXED_SHIFT);
+                    target[offset + x] = this.pixels[j * sizeX + i];
+                    fx += dfx;
+                    fy += dfy;
+                }
+                break;
+            }
+            case CUBIC:
+                for (int x = 0; x < count; x++)
+                {
+                    store(target, offset + x, cubic(xs, ys));
+                    xs += m00;
+                    ys += m10;
+                }
+                break;
+            default:
+                for (int x = 0; x < count; x++)
+                {
+                    // interpolated values are within [0, 65535]: round without clamping
+                    target[offset + x] = (short) (linear(xs, ys) + 0.5);
+                    xs += m00;
+                    ys += m10;
+                }
+            }
+        }
+
+        @Override
+        protected double interpolateInside(double x, double y)
+        {
+            switch (interpolation)
+            {
+            case NEAREST:
+                return pixels[((int) (y + 0.5)) * sizeX + (int) (x + 0.5)] & 0x00FFFF;
+            case CUBIC:
+                return cubic(x, y);
+            default:
+                return linear(x, y);
+            }
+        }
+
+        private double linear(double x, double y)
+        {
+            // indices of the reference pixel (coordinates are positive)
+            int i0 = (int) x;
+            int j0 = (int) y;
+            int offset0 = j0 * sizeX + i0;
+            int offset1 = offset0 + sizeX;
+
+            return blend(pixels[offset0] & 0x00FFFF, pixels[offset0 + 1] & 0x00FFFF,
+                    pixels[offset1] & 0x00FFFF, pixels[offset1 + 1] & 0x00FFFF, x - i0, y - j0);
+        }
+
+        private double cubic(double x, double y)
+        {
+            // indices of the reference pixel (coordinates are positive)
+            int i0 = (int) x;
+            int j0 = (int) y;
+            int offset = j0 * sizeX + i0;
+            double dx = x - i0;
+            return Interpolation.cubic(
+                    cubicRow(offset - sizeX, dx), cubicRow(offset, dx),
+                    cubicRow(offset + sizeX, dx), cubicRow(offset + 2 * sizeX, dx), y - j0);
+        }
+
+        private double cubicRow(int offset, double dx)
+        {
+            return Interpolation.cubic(pixels[offset - 1] & 0x00FFFF, pixels[offset] & 0x00FFFF,
+                    pixels[offset + 1] & 0x00FFFF, pixels[offset + 2] & 0x00FFFF, dx);
+        }
+
+        @Override
+        protected void store(Object pixels, int index, double value)
+        {
+            ((short[]) pixels)[index] = (short) (Math.max(Math.min(value, 65535.0), 0.0) + 0.5);
+        }
+
+        @Override
+        protected void fillConstant(Object pixels, int fromIndex, int toIndex, double value)
+        {
+            Arrays.fill((short[]) pixels, fromIndex, toIndex, (short) (Math.max(Math.min(value, 65535.0), 0.0) + 0.5));
+        }
+    }
+
+    /**
+     * Resampling kernel for 32-bit images.
+     */
+    private static final class FloatKernel extends ResamplingKernel2D
+    {
+        /** The pixel array of the source image. */
+        final float[] pixels;
+
+        FloatKernel(ImageProcessor image, AffineTransform2D transfo, Interpolation interpolation)
+        {
+            super(image, transfo, interpolation);
+            this.pixels = (float[]) image.getPixels();
+        }
+
+        @Override
+        public int getBitDepth()
+        {
+            return 32;
+        }
+
+        @Override
+        protected double getValue(int i, int j)
+        {
+            return pixels[j * sizeX + i];
+        }
+
+        @Override
+        protected void fillInside(Object pixels, int offset, int count, double xs, double ys)
+        {
+            float[] target = (float[]) pixels;
+            switch (interpolation)
+            {
+            case NEAREST:
+            {
+                // fixed-point coordinates, shifted by one half to round indices
+                long fx = ResamplingKernel3D.toFixed(xs + 0.5), fy = ResamplingKernel3D.toFixed(ys + 0.5);
+                long dfx = ResamplingKernel3D.toFixed(m00), dfy = ResamplingKernel3D.toFixed(m10);
+                for (int x = 0; x < count; x++)
+                {
+                    int i = (int) (fx >> ResamplingKernel3D.FIXED_SHIFT);
+                    int j = (int) (fy >> ResamplingKernel3D.FIXED_SHIFT);
+                    target[offset + x] = this.pixels[j * sizeX + i];
+                    fx += dfx;
+                    fy += dfy;
+                }
+                break;
+            }
+            case CUBIC:
+                for (int x = 0; x < count; x++)
+                {
+                    target[offset + x] = (float) cubic(xs, ys);
+                    xs += m00;
+                    ys += m10;
+                }
+                break;
+            default:
+                for (int x = 0; x < count; x++)
+                {
+                    target[offset + x] = (float) linear(xs, ys);
+                    xs += m00;
+                    ys += m10;
+                }
+            }
+        }
+
+        @Override
+        protected double interpolateInside(double x, double y)
+        {
+            switch (interpolation)
+            {
+            case NEAREST:
+                return pixels[((int) (y + 0.5)) * sizeX + (int) (x + 0.5)];
+            case CUBIC:
+                return cubic(x, y);
+            default:
+                return linear(x, y);
+            }
+        }
+
+        private double linear(double x, double y)
+        {
+            // indices of the reference pixel (coordinates are positive)
+            int i0 = (int) x;
+            int j0 = (int) y;
+            int offset0 = j0 * sizeX + i0;
+            int offset1 = offset0 + sizeX;
+
+            return blend(pixels[offset0], pixels[offset0 + 1], pixels[offset1], pixels[offset1 + 1], x - i0, y - j0);
+        }
+
+        private double cubic(double x, double y)
+        {
+            // indices of the reference pixel (coordinates are positive)
+            int i0 = (int) x;
+            int j0 = (int) y;
+            int offset = j0 * sizeX + i0;
+            double dx = x - i0;
+            return Interpolation.cubic(
+                    cubicRow(offset - sizeX, dx), cubicRow(offset, dx),
+                    cubicRow(offset + sizeX, dx), cubicRow(offset + 2 * sizeX, dx), y - j0);
+        }
+
+        private double cubicRow(int offset, double dx)
+        {
+            return Interpolation.cubic(pixels[offset - 1], pixels[offset], pixels[offset + 1], pixels[offset + 2], dx);
+        }
+
+        @Override
+        protected void store(Object pixels, int index, double value)
+        {
+            ((float[]) pixels)[index] = (float) value;
+        }
+
+        @Override
+        protected void fillConstant(Object pixels, int fromIndex, int toIndex, double value)
+        {
+            Arrays.fill((float[]) pixels, fromIndex, toIndex, (float) value);
+        }
+    }
+
+    /**
+     * Resampling kernel for image types without specialized implementation,
+     * based on the generic access to pixel values. Result rows are stored as
+     * 8-bit values.
+     */
+    private static final class GenericKernel extends ResamplingKernel2D
+    {
+        /** The image to resample. */
+        final ImageProcessor image;
+
+        GenericKernel(ImageProcessor image, AffineTransform2D transfo, Interpolation interpolation)
+        {
+            super(image, transfo, interpolation);
+            this.image = image;
+        }
+
+        @Override
+        public int getBitDepth()
+        {
+            return 8;
+        }
+
+        @Override
+        protected double getValue(int i, int j)
+        {
+            return image.getf(i, j);
+        }
+
+        @Override
+        protected void fillInside(Object pixels, int offset, int count, double xs, double ys)
+        {
+            for (int x = 0; x < count; x++)
+            {
+                store(pixels, offset + x, interpolateWithPadding(xs, ys));
+                xs += m00;
+                ys += m10;
+            }
+        }
+
+        @Override
+        protected double interpolateInside(double x, double y)
+        {
+            // padding has no effect on positions within image
+            return interpolateWithPadding(x, y);
+        }
+
+        @Override
+        protected void store(Object pixels, int index, double value)
+        {
+            ((byte[]) pixels)[index] = (byte) (Math.max(Math.min(value, 255.0), 0.0) + 0.5);
+        }
+
+        @Override
+        protected void fillConstant(Object pixels, int fromIndex, int toIndex, double value)
+        {
+            Arrays.fill((byte[]) pixels, fromIndex, toIndex, (byte) (Math.max(Math.min(value, 255.0), 0.0) + 0.5));
+        }
+    }
+}
@@ -0,0 +1,1338 @@
+/**
+ * 
+ */
+package net.ijt.rotcrop;
+
+import java.util.Arrays;
+
+import ij.ImageStack;
+import net.ijt.geom3d.AffineTransform3D;
+import net.ijt.geom3d.Point3D;
+import net.ijt.interp.Function3D;
+
+/**
+ * Resamples a 3D image through an affine transform, using nearest-neighbor,
+ * trilinear or tricubic interpolation.
+ *
+ * The coefficients of the transform are stored as primitive values. When
+ * resampling a row of the result, the source coordinates are updated by adding
+ * a constant increment, so that no matrix product and no object allocation is
+ * necessary for each voxel.
+ *
+ * As the source coordinates vary linearly along a row, the range of the row
+ * that maps within the source image can be computed analytically. Voxels
+ * outside of this range are filled in bulk (constant padding), and voxels
+ * within the range are interpolated without checking bounds. Only the few
+ * voxels close to the image border are processed voxel-by-voxel, according to
+ * the padding strategy.
+ *
+ * Instances are created with the <code>create()</code> factory methods, that
+ * return an implementation specific to the type of the source image (8-bit,
+ * 16-bit or 32-bit). Each implementation reads the values directly from the
+ * arrays of the slices, and has its own loops for filling result rows of the
+ * same type. By default, values outside of the source image are set to zero.
+ *
+ * @see Padding
+ * @see Interpolation
+ *
+ * @author dlegland
+ *
+ */
+public abstract class ResamplingKernel3D implements Function3D
+{
+    // ====================================================
+    // Static factories
+
+    /**
+     * Creates a new resampling kernel adapted to the type of the image, using
+     * linear interpolation.
+     *
+     * @param image
+     *            the image to resample
+     * @param transfo
+     *            the transform that maps coordinates in the result image into
+     *            coordinates in the source image
+     * @return a new resampling kernel
+     */
+    public static final ResamplingKernel3D create(ImageStack image, AffineTransform3D transfo)
+    {
+        return create(image, transfo, Interpolation.LINEAR);
+    }
+
+    /**
+     * Creates a new resampling kernel adapted to the type of the image.
+     *
+     * @param image
+     *            the image to resample
+     * @param transfo
+     *            the transform that maps coordinates in the result image into
+     *            coordinates in the source image
+     * @param interpolation
+     *            the interpolation method
+     * @return a new resampling kernel
+     */
+    public static final ResamplingKernel3D create(ImageStack image, AffineTransform3D transfo, Interpolation interpolation)
+    {
+        switch (image.getBitDepth())
+        {
+        case 8:
+            return new ByteKernel(image, transfo, interpolation);
+        case 16:
+            return new ShortKernel(image, transfo, interpolation);
+        case 32:
+            return new FloatKernel(image, transfo, interpolation);
+        default:
+            return new GenericKernel(image, transfo, interpolation);
+        }
+    }
+
+    /**
+     * Creates a new resampling kernel that reads the values from a voxel
+     * source, for example a file mapped in memory. Result rows have the bit
+     * depth of the source.
+     *
+     * @param source
+     *            the source of the voxel values
+     * @param transfo
+     *            the transform that maps coordinates in the result image into
+     *            coordinates in the source image
+     * @param interpolation
+     *            the interpolation method
+     * @return a new resampling kernel
+     */
+    public static final ResamplingKernel3D create(VoxelSource source, AffineTransform3D transfo, Interpolation interpolation)
+    {
+        return new SourceKernel(source, transfo, interpolation);
+    }
+
+
+    // ====================================================
+    // Static constants
+
+    /**
+     * The tolerance used when clipping rows, that accounts for the rounding
+     * errors accumulated while stepping the source coordinates along a row.
+     */
+    static final double CLIP_TOLERANCE = 1e-6;
+
+    /**
+     * The number of fractional bits of the fixed-point coordinates used for
+     * nearest-neighbor resampling. The rounding error on the increments is
+     * below 1e-12, keeping the accumulated error within the clipping tolerance
+     * for rows up to one million elements, while allowing image sizes up to
+     * 2^23.
+     */
+    static final int FIXED_SHIFT = 40;
+
+    /** The fixed-point representation of one. */
+    static final double FIXED_ONE = 1L << FIXED_SHIFT;
+
+
+    // ====================================================
+    // Class properties
+
+    /** The size of the source image in the X direction. */
+    final int sizeX;
+    /** The size of the source image in the Y direction. */
+    final int sizeY;
+    /** The size of the source image in the Z direction. */
+    final int sizeZ;
+
+    // the coefficients of the 3x4 matrix of the transform, that maps result
+    // coordinates to source coordinates
+    final double m00, m01, m02, m03;
+    final double m10, m11, m12, m13;
+    final double m20, m21, m22, m23;
+
+    /** The method used to interpolate values between voxels. */
+    final Interpolation interpolation;
+
+    /** The strategy for computing values outside of the source image. */
+    Padding padding = Padding.CONSTANT;
+
+    /** The value of the voxels outside of image, for constant padding. */
+    double backgroundValue = 0.0;
+
+
+    // ====================================================
+    // Constructor
+
+    /**
+     * Initializes the image size and the coefficients of the transform.
+     *
+     * @param image
+     *            the image to resample
+     * @param transfo
+     *            the transform that maps coordinates in the result image into
+     *            coordinates in the source image
+     * @param interpolation
+     *            the interpolation method
+     */
+    protected ResamplingKernel3D(ImageStack image, AffineTransform3D transfo, Interpolation interpolation)
+    {
+        this(image.getWidth(), image.getHeight(), image.getSize(), transfo, interpolation);
+    }
+
+    /**
+     * Initializes the image size and the coefficients of the transform.
+     *
+     * @param sizeX
+     *            the size of the source image in the X direction
+     * @param sizeY
+     *            the size of the source image in the Y direction
+     * @param sizeZ
+     *            the size of the source image in the Z direction
+     * @param transfo
+     *            the transform that maps coordinates in the result image into
+     *            coordinates in the source image
+     * @param interpolation
+     *            the interpolation method
+     */
+    protected ResamplingKernel3D(int sizeX, int sizeY, int sizeZ, AffineTransform3D transfo, Interpolation interpolation)
+    {
+        if (interpolation == null)
+        {
+            throw new NullPointerException("Interpolation method must not be null");
+        }
+
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.sizeZ = sizeZ;
+        this.interpolation = interpolation;
+
+        // retrieve matrix coefficients from the images of the origin and of
+        // the three basis vectors
+        Point3D p0 = transfo.transform(new Point3D(0, 0, 0));
+        Point3D px = transfo.transform(new Point3D(1, 0, 0));
+        Point3D py = transfo.transform(new Point3D(0, 1, 0));
+        Point3D pz = transfo.transform(new Point3D(0, 0, 1));
+
+        this.m00 = px.x() - p0.x();
+        this.m01 = py.x() - p0.x();
+        this.m02 = pz.x() - p0.x();
+        this.m03 = p0.x();
+        this.m10 = px.y() - p0.y();
+        this.m11 = py.y() - p0.y();
+        this.m12 = pz.y() - p0.y();
+        this.m13 = p0.y();
+        this.m20 = px.z() - p0.z();
+        this.m21 = py.z() - p0.z();
+        this.m22 = pz.z() - p0.z();
+        this.m23 = p0.z();
+    }
+
+
+    // ====================================================
+    // Accessors
+
+    /**
+     * @return the method used to interpolate values between voxels
+     */
+    public Interpolation getInterpolation()
+    {
+        return interpolation;
+    }
+
+    /**
+     * @return the strategy for computing values outside of the source image
+     */
+    public Padding getPadding()
+    {
+        return padding;
+    }
+
+    /**
+     * Changes the strategy for computing values outside of the source image.
+     * This method should be called before resampling, and not concurrently.
+     *
+     * @param padding
+     *            the new padding strategy
+     */
+    public void setPadding(Padding padding)
+    {
+        if (padding == null)
+        {
+            throw new NullPointerException("Padding strategy must not be null");
+        }
+        this.padding = padding;
+    }
+
+    /**
+     * @return the value of the voxels outside of image, for constant padding
+     */
+    public double getBackgroundValue()
+    {
+        return backgroundValue;
+    }
+
+    /**
+     * Changes the value of the voxels outside of image, used for constant
+     * padding. The value is clamped to the range of the result type when rows
+     * are filled.
+     *
+     * @param value
+     *            the new background value
+     */
+    public void setBackgroundValue(double value)
+    {
+        this.backgroundValue = value;
+    }
+
+
+    // ====================================================
+    // Resampling methods
+
+    /**
+     * Returns the bit depth of the pixel arrays that can be filled with the
+     * <code>fillRow()</code> method. This corresponds to the bit depth of the
+     * source image, or to 8 if the type of the source image is not supported.
+     *
+     * @return the bit depth of the result rows (8, 16 or 32)
+     */
+    public abstract int getBitDepth();
+
+    /**
+     * Computes the values of a row of the result image, and stores them into
+     * the pixel array of a slice. The type of the array must correspond to the
+     * bit depth of the kernel.
+     *
+     * @param y
+     *            the y-coordinate of the row within the result image
+     * @param z
+     *            the z-coordinate of the row within the result image
+     * @param pixels
+     *            the pixel array of the result slice
+     * @param offset
+     *            the index of the first element of the row within the array
+     * @param count
+     *            the number of elements of the row
+     */
+    public void fillRow(int y, int z, Object pixels, int offset, int count)
+    {
+        fillRow(0, y, z, pixels, offset, count);
+    }
+
+    /**
+     * Computes the values of a part of a row of the result image, and stores
+     * them into the pixel array of a slice. The type of the array must
+     * correspond to the bit depth of the kernel.
+     *
+     * @param x0
+     *            the x-coordinate of the first element within the result image
+     * @param y
+     *            the y-coordinate of the row within the result image
+     * @param z
+     *            the z-coordinate of the row within the result image
+     * @param pixels
+     *            the pixel array of the result slice
+     * @param offset
+     *            the index of the first element within the array
+     * @param count
+     *            the number of elements to compute
+     */
+    public void fillRow(int x0, int y, int z, Object pixels, int offset, int count)
+    {
+        // source coordinates of the first voxel
+        double xs = m00 * x0 + m01 * y + m02 * z + m03;
+        double ys = m10 * x0 + m11 * y + m12 * z + m13;
+        double zs = m20 * x0 + m21 * y + m22 * z + m23;
+
+        // range of voxels that map within the image bounds
+        int start = 0;
+        int end = count;
+        if (padding == Padding.CONSTANT)
+        {
+            long range = clipRow(xs, ys, zs, count,
+                    interpolation.domainMin - CLIP_TOLERANCE, interpolation.domainMax + CLIP_TOLERANCE);
+            start = rangeStart(range);
+            end = rangeEnd(range);
+            if (start >= end)
+            {
+                fillConstant(pixels, offset, offset + count, backgroundValue);
+                return;
+            }
+        }
+
+        // range of voxels whose neighbors are all within image
+        long range = clipRow(xs, ys, zs, count,
+                interpolation.innerMin + CLIP_TOLERANCE, interpolation.innerMax - CLIP_TOLERANCE);
+        int innerStart = Math.max(rangeStart(range), start);
+        int innerEnd = Math.min(rangeEnd(range), end);
+        if (innerStart >= innerEnd)
+        {
+            innerStart = start;
+            innerEnd = start;
+        }
+
+        fillConstant(pixels, offset, offset + start, backgroundValue);
+        fillBorder(pixels, offset, start, innerStart, xs, ys, zs);
+        fillInside(pixels, offset + innerStart, innerEnd - innerStart,
+                xs + innerStart * m00, ys + innerStart * m10, zs + innerStart * m20);
+        fillBorder(pixels, offset, innerEnd, end, xs, ys, zs);
+        fillConstant(pixels, offset + end, offset + count, backgroundValue);
+    }
+
+    /**
+     * Computes the values of a row of the result image.
+     *
+     * @param y
+     *            the y-coordinate of the row within the result image
+     * @param z
+     *            the z-coordinate of the row within the result image
+     * @param values
+     *            the array used to store the values of the row. The length of
+     *            the array determines the number of computed values.
+     */
+    public void evaluateRow(int y, int z, double[] values)
+    {
+        // source coordinates of the first voxel of the row
+        double xs = m01 * y + m02 * z + m03;
+        double ys = m11 * y + m12 * z + m13;
+        double zs = m21 * y + m22 * z + m23;
+
+        for (int x = 0; x < values.length; x++)
+        {
+            values[x] = interpolate(xs, ys, zs);
+            xs += m00;
+            ys += m10;
+            zs += m20;
+        }
+    }
+
+    /**
+     * Computes the interpolated value of the source image at the specified
+     * position.
+     *
+     * @param x
+     *            the x-coordinate within the source image
+     * @param y
+     *            the y-coordinate within the source image
+     * @param z
+     *            the z-coordinate within the source image
+     * @return the interpolated value
+     */
+    protected double interpolate(double x, double y, double z)
+    {
+        double lower = interpolation.innerMin;
+        double upper = interpolation.innerMax - 1;
+        if (x >= lower && y >= lower && z >= lower && x < sizeX + upper && y < sizeY + upper && z < sizeZ + upper)
+        {
+            return interpolateInside(x, y, z);
+        }
+        return interpolateWithPadding(x, y, z);
+    }
+
+    /**
+     * Computes the interpolated value at any position, using the padding
+     * strategy for the neighbor voxels outside of image. This method is used
+     * for the positions close to, or outside of, the image border.
+     *
+     * @param x
+     *            the x-coordinate within the source image
+     * @param y
+     *            the y-coordinate within the source image
+     * @param z
+     *            the z-coordinate within the source image
+     * @return the interpolated value
+     */
+    protected final double interpolateWithPadding(double x, double y, double z)
+    {
+        if (padding == Padding.CONSTANT)
+        {
+            double lower = interpolation.domainMin;
+            double upper = interpolation.domainMax - 1;
+            if (x < lower || y < lower || z < lower || x > sizeX + upper || y > sizeY + upper || z > sizeZ + upper)
+            {
+                return backgroundValue;
+            }
+        }
+
+        if (interpolation == Interpolation.NEAREST)
+        {
+            int i = padding.fold((int) Math.floor(x + 0.5), sizeX);
+            int j = padding.fold((int) Math.floor(y + 0.5), sizeY);
+            int k = padding.fold((int) Math.floor(z + 0.5), sizeZ);
+            return getValue(i, j, k);
+        }
+
+        // indices of the reference voxel
+        int i0 = (int) Math.floor(x);
+        int j0 = (int) Math.floor(y);
+        int k0 = (int) Math.floor(z);
+        double dx = x - i0;
+        double dy = y - j0;
+        double dz = z - k0;
+
+        if (interpolation == Interpolation.CUBIC)
+        {
+            return Interpolation.cubic(
+                    cubicPlaneWithPadding(i0, j0, k0 - 1, dx, dy),
+                    cubicPlaneWithPadding(i0, j0, k0, dx, dy),
+                    cubicPlaneWithPadding(i0, j0, k0 + 1, dx, dy),
+                    cubicPlaneWithPadding(i0, j0, k0 + 2, dx, dy), dz);
+        }
+
+        // indices of neighbor voxels within image
+        int i1 = padding.fold(i0 + 1, sizeX);
+        int j1 = padding.fold(j0 + 1, sizeY);
+        int k1 = padding.fold(k0 + 1, sizeZ);
+        i0 = padding.fold(i0, sizeX);
+        j0 = padding.fold(j0, sizeY);
+        k0 = padding.fold(k0, sizeZ);
+
+        return blend(
+                getValue(i0, j0, k0), getValue(i1, j0, k0), getValue(i0, j1, k0), getValue(i1, j1, k0),
+                getValue(i0, j0, k1), getValue(i1, j0, k1), getValue(i0, j1, k1), getValue(i1, j1, k1),
+                dx, dy, dz);
+    }
+
+    /**
+     * Cubic interpolation within the XY plane with index k, using padding.
+     */
+    private double cubicPlaneWithPadding(int i0, int j0, int k, double dx, double dy)
+    {
+        k = padding.fold(k, sizeZ);
+        return Interpolation.cubic(
+                cubicRowWithPadding(i0, j0 - 1, k, dx),
+                cubicRowWithPadding(i0, j0, k, dx),
+                cubicRowWithPadding(i0, j0 + 1, k, dx),
+                cubicRowWithPadding(i0, j0 + 2, k, dx), dy);
+    }
+
+    /**
+     * Cubic interpolation along the row with indices j and k, using padding.
+     */
+    private double cubicRowWithPadding(int i0, int j, int k, double dx)
+    {
+        j = padding.fold(j, sizeY);
+        return Interpolation.cubic(
+                getValue(padding.fold(i0 - 1, sizeX), j, k),
+                getValue(padding.fold(i0, sizeX), j, k),
+                getValue(padding.fold(i0 + 1, sizeX), j, k),
+                getValue(padding.fold(i0 + 2, sizeX), j, k), dx);
+    }
+
+    /**
+     * Fills the voxels of a row close to the image border, one at a time.
+     */
+    private void fillBorder(Object pixels, int offset, int start, int end, double xs, double ys, double zs)
+    {
+        for (int x = start; x < end; x++)
+        {
+            store(pixels, offset + x, interpolateWithPadding(xs + x * m00, ys + x * m10, zs + x * m20));
+        }
+    }
+
+    /**
+     * Computes the range of row indices such that the source coordinates
+     * <code>s0 + x * ds</code> are within <code>[lower, size - 1 + upper]</code>
+     * along each dimension.
+     *
+     * @return the start and end indices of the range, packed into a long
+     */
+    private long clipRow(double xs, double ys, double zs, int count, double lower, double upper)
+    {
+        double tMin = 0;
+        double tMax = count - 1;
+        tMin = Math.max(tMin, rangeMin(xs, m00, lower, sizeX - 1 + upper));
+        tMax = Math.min(tMax, rangeMax(xs, m00, lower, sizeX - 1 + upper));
+        tMin = Math.max(tMin, rangeMin(ys, m10, lower, sizeY - 1 + upper));
+        tMax = Math.min(tMax, rangeMax(ys, m10, lower, sizeY - 1 + upper));
+        tMin = Math.max(tMin, rangeMin(zs, m20, lower, sizeZ - 1 + upper));
+        tMax = Math.min(tMax, rangeMax(zs, m20, lower, sizeZ - 1 + upper));
+
+        if (tMin > tMax)
+        {
+            return 0;
+        }
+        long start = (long) Math.ceil(tMin);
+        long end = (long) Math.floor(tMax) + 1;
+        return (start << 32) | end;
+    }
+
+    private static final int rangeStart(long range)
+    {
+        return (int) (range >>> 32);
+    }
+
+    private static final int rangeEnd(long range)
+    {
+        return (int) range;
+    }
+
+    /**
+     * Checks if the rows of the result image cross the slices of the source
+     * image. In that case, consecutive result voxels are read from different
+     * source slices, and a tiled traversal of the result image makes a better
+     * use of the memory cache. Rows that remain within a source slice are
+     * already read with good locality by a plain traversal.
+     *
+     * @return true if the rows of the result are oblique with respect to the
+     *         slices of the source image
+     */
+    boolean isObliqueToSlices()
+    {
+        return Math.abs(m20) > 1e-3;
+    }
+
+    /**
+     * Returns the average length within the source image of a unit length
+     * within the result image, computed from the determinant of the linear
+     * part of the transform.
+     *
+     * @return the scaling factor of the transform
+     */
+    double scaleFactor()
+    {
+        double det = m00 * (m11 * m22 - m12 * m21)
+                - m01 * (m10 * m22 - m12 * m20)
+                + m02 * (m10 * m21 - m11 * m20);
+        return Math.cbrt(Math.abs(det));
+    }
+
+    /**
+     * Returns the smallest value of t such that <code>s0 + t * ds</code> is
+     * within <code>[lower, upper]</code>.
+     */
+    static final double rangeMin(double s0, double ds, double lower, double upper)
+    {
+        if (ds > 0)
+        {
+            return (lower - s0) / ds;
+        }
+        if (ds < 0)
+        {
+            return (upper - s0) / ds;
+        }
+        return s0 >= lower && s0 <= upper ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Returns the largest value of t such that <code>s0 + t * ds</code> is
+     * within <code>[lower, upper]</code>.
+     */
+    static final double rangeMax(double s0, double ds, double lower, double upper)
+    {
+        if (ds > 0)
+        {
+            return (upper - s0) / ds;
+        }
+        if (ds < 0)
+        {
+            return (lower - s0) / ds;
+        }
+        return s0 >= lower && s0 <= upper ? Double.POSITIVE_INFINITY : Double.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * Converts a (positive) coordinate into a fixed-point value.
+     */
+    static final long toFixed(double value)
+    {
+        return Math.round(value * FIXED_ONE);
+    }
+
+    /**
+     * Combines the values of the eight corners of a voxel cell using trilinear
+     * weights.
+     */
+    static final double blend(double v000, double v100, double v010, double v110,
+            double v001, double v101, double v011, double v111, double dx, double dy, double dz)
+    {
+        // interpolate along x on the four edges
+        double v00 = v000 * (1 - dx) + v100 * dx;
+        double v10 = v010 * (1 - dx) + v110 * dx;
+        double v01 = v001 * (1 - dx) + v101 * dx;
+        double v11 = v011 * (1 - dx) + v111 * dx;
+
+        // interpolate along y, then along z
+        double v0 = v00 * (1 - dy) + v10 * dy;
+        double v1 = v01 * (1 - dy) + v11 * dy;
+        return v0 * (1 - dz) + v1 * dz;
+    }
+
+
+    // ====================================================
+    // Methods specific to the image type
+
+    /**
+     * Returns the value of a voxel of the source image. Indices are assumed
+     * to be within image bounds.
+     */
+    protected abstract double getValue(int i, int j, int k);
+
+    /**
+     * Computes the interpolated value at a position such that all the neighbor
+     * voxels used by the interpolation method are within image. Bounds are not
+     * checked.
+     */
+    protected abstract double interpolateInside(double x, double y, double z);
+
+    /**
+     * Fills a part of a row whose voxels all map to positions whose neighbors
+     * are within image. Bounds are not checked.
+     *
+     * @param pixels
+     *            the pixel array of the result slice
+     * @param offset
+     *            the index of the first element to fill within the array
+     * @param count
+     *            the number of elements to fill
+     * @param xs
+     *            the x-coordinate of the source position of the first element
+     * @param ys
+     *            the y-coordinate of the source position of the first element
+     * @param zs
+     *            the z-coordinate of the source position of the first element
+     */
+    protected abstract void fillInside(Object pixels, int offset, int count, double xs, double ys, double zs);
+
+    /**
+     * Converts a value to the type of the result, and stores it into the pixel
+     * array.
+     */
+    protected abstract void store(Object pixels, int index, double value);
+
+    /**
+     * Fills a range of the pixel array with a value converted to the type of
+     * the result.
+     */
+    protected abstract void fillConstant(Object pixels, int fromIndex, int toIndex, double value);
+
+
+    // ====================================================
+    // Implementation of the Function3D interface
+
+    @Override
+    public double evaluate(double x, double y, double z)
+    {
+        double xs = m00 * x + m01 * y + m02 * z + m03;
+        double ys = m10 * x + m11 * y + m12 * z + m13;
+        double zs = m20 * x + m21 * y + m22 * z + m23;
+        return interpolate(xs, ys, zs);
+    }
+
+
+    // ====================================================
+    // Implementations for the different image types
+
+    /**
+     * Resampling kernel for 8-bit images.
+     */
+    static class ByteKernel extends ResamplingKernel3D
+    {
+        /** The pixel arrays of the slices of the source image. */
+        final byte[][] slices;
+
+        ByteKernel(ImageStack image, AffineTransform3D transfo, Interpolation interpolation)
+        {
+            super(image, transfo, interpolation);
+            this.slices = new byte[sizeZ][];
+            for (int z = 0; z < sizeZ; z++)
+            {
+                this.slices[z] = (byte[]) image.getPixels(z + 1);
+            }
+        }
+
+        @Override
+        public int getBitDepth()
+        {
+            return 8;
+        }
+
+        @Override
+        protected double getValue(int i, int j, int k)
+        {
+            return slices[k][j * sizeX + i] & 0x00FF;
+        }
+
+        @Override
+        protected void fillInside(Object pixels, int offset, int count, double xs, double ys, double zs)
+        {
+            byte[] target = (byte[]) pixels;
+            switch (interpolation)
+            {
+            case NEAREST:
+            {
+                // fixed-point coordinates, shifted by one half to round indices
+                long fx = toFixed(xs + 0.5), fy = toFixed(ys + 0.5), fz = toFixed(zs + 0.5);
+                long dfx = toFixed(m00), dfy = toFixed(m10), dfz = toFixed(m20);
+                for (int x = 0; x < count; x++)
+                {
+                    int i = (int) (fx >> FIXED_SHIFT);
+                    int j = (int) (fy >> FIXED_SHIFT);
+                    int k = (int) (fz >> FIXED_SHIFT);
+                    target[offset + x] = slices[k][j * sizeX + i];
+                    fx += dfx;
+                    fy += dfy;
+                    fz += dfz;
+                }
+                break;
+            }
+            case CUBIC:
+                for (int x = 0; x < count; x++)
+                {
+                    store(target, offset + x, cubic(xs, ys, zs));
+                    xs += m00;
+                    ys += m10;
+                    zs += m20;
+                }
+                break;
+            default:
+                fillLinear(target, offset, count, xs, ys, zs);
+            }
+        }
+
+        /**
+         * Fills a part of a row of the result, that maps within the source
+         * image, using linear interpolation.
+         */
+        void fillLinear(byte[] target, int offset, int count, double xs, double ys, double zs)
+        {
+            for (int x = 0; x < count; x++)
+            {
+                // interpolated values are within [0, 255]: round without clamping
+                target[offset + x] = (byte) (linear(xs, ys, zs) + 0.5);
+                xs += m00;
+                ys += m10;
+                zs += m20;
+            }
+        }
+
+        @Override
+        protected double interpolateInside(double x, double y, double z)
+        {
+            switch (interpolation)
+            {
+            case NEAREST:
+                return slices[(int) (z + 0.5)][((int) (y + 0.5)) * sizeX + (int) (x + 0.5)] & 0x00FF;
+            case CUBIC:
+                return cubic(x, y, z);
+            default:
+                return linear(x, y, z);
+            }
+        }
+
+        private double linear(double x, double y, double z)
+        {
+            // indices of the reference voxel (coordinates are positive)
+            int i0 = (int) x;
+            int j0 = (int) y;
+            int k0 = (int) z;
+            int offset0 = j0 * sizeX + i0;
+            int offset1 = offset0 + sizeX;
+
+            // retrieve the values of the eight neighbor voxels
+            byte[] slice0 = slices[k0];
+            byte[] slice1 = slices[k0 + 1];
+            return blend(
+                    slice0[offset0] & 0x00FF, slice0[offset0 + 1] & 0x00FF,
+                    slice0[offset1] & 0x00FF, slice0[offset1 + 1] & 0x00FF,
+                    slice1[offset0] & 0x00FF, slice1[offset0 + 1] & 0x00FF,
+                    slice1[offset1] & 0x00FF, slice1[offset1 + 1] & 0x00FF,
+                    x - i0, y - j0, z - k0);
+        }
+
+        private double cubic(double x, double y, double z)
+        {
+            // indices of the reference voxel (coordinates are positive)
+            int i0 = (int) x;
+            int j0 = (int) y;
+            int k0 = (int) z;
+            int offset = j0 * sizeX + i0;
+            double dx = x - i0;
+            double dy = y - j0;
+            return Interpolation.cubic(
+                    cubicPlane(slices[k0 - 1], offset, dx, dy), cubicPlane(slices[k0], offset, dx, dy),
+                    cubicPlane(slices[k0 + 1], offset, dx, dy), cubicPlane(slices[k0 + 2], offset, dx, dy),
+                    z - k0);
+        }
+
+        private double cubicPlane(byte[] slice, int offset, double dx, double dy)
+        {
+            return Interpolation.cubic(
+                    cubicRow(slice, offset - sizeX, dx), cubicRow(slice, offset, dx),
+                    cubicRow(slice, offset + sizeX, dx), cubicRow(slice, offset + 2 * sizeX, dx), dy);
+        }
+
+        private static final double cubicRow(byte[] slice, int offset, double dx)
+        {
+            return Interpolation.cubic(slice[offset - 1] & 0x00FF, slice[offset] & 0x00FF,
+                    slice[offset + 1] & 0x00FF, slice[offset + 2] & 0x00FF, dx);
+        }
+
+        @Override
+        protected void store(Object pixels, int index, double value)
+        {
+            ((byte[]) pixels)[index] = (byte) (Math.max(Math.min(value, 255.0), 0.0) + 0.5);
+        }
+
+        @Override
+        protected void fillConstant(Object pixels, int fromIndex, int toIndex, double value)
+        {
+            Arrays.fill((byte[]) pixels, fromIndex, toIndex, (byte) (Math.max(Math.min(value, 255.0), 0.0) + 0.5));
+        }
+    }
+
+    /**
+     * Resampling kernel for 16-bit images.
+     */
+    static class ShortKernel extends ResamplingKernel3D
+    {
+        /** The pixel arrays of the slices of the source image. */
+        final short[][] slices;
+
+        ShortKernel(ImageStack image, AffineTransform3D transfo, Interpolation interpolation)
+        {
+            super(image, transfo, interpolation);
+            this.slices = new short[sizeZ][];
+            for (int z = 0; z < sizeZ; z++)
+            {
+                this.slices[z] = (short[]) image.getPixels(z + 1);
+            }
+        }
+
+        @Override
+        public int getBitDepth()
+        {
+            return 16;
+        }
+
+        @Override
+        protected double getValue(int i, int j, int k)
+        {
+            return slices[k][j * sizeX + i] & 0x00FFFF;
+        }
+
+        @Override
+        protected void fillInside(Object pixels, int offset, int count, double xs, double ys, double zs)
+        {
+            short[] target = (short[]) pixels;
+            switch (interpolation)
+            {
+            case NEAREST:
+            {
+                // fixed-point coordinates, shifted by one half to round indices
+                long fx = toFixed(xs + 0.5), fy = toFixed(ys + 0.5), fz = toFixed(zs + 0.5);
+                long dfx = toFixed(m00), dfy = toFixed(m10), dfz = toFixed(m20);
+                for (int x = 0; x < count; x++)
+                {
+                    int i = (int) (fx >> FIXED_SHIFT);
+                    int j = (int) (fy >> FIXED_SHIFT);
+                    int k = (int) (fz >> FIXED_SHIFT);
+                    target[offset + x] = slices[k][j * sizeX + i];
+                    fx += dfx;
+                    fy += dfy;
+                    fz += dfz;
+                }
+                break;
+            }
+            case CUBIC:
+                for (int x = 0; x < count; x++)
+                {
+                    store(target, offset + x, cubic(xs, ys, zs));
+                    xs += m00;
+                    ys += m10;
+                    zs += m20;
+                }
+                break;
+            default:
+                fillLinear(target, offset, count, xs, ys, zs);
+            }
+        }
+
+        /**
+         * Fills a part of a row of the result, that maps within the source
+         * image, using linear interpolation.
+         */
+        void fillLinear(short[] target, int offset, int count, double xs, double ys, double zs)
+        {
+            for (int x = 0; x < count; x++)
+            {
+                // interpolated values are within [0, 65535]: round without clamping
+                target[offset + x] = (short) (linear(xs, ys, zs) + 0.5);
+                xs += m00;
+                ys += m10;
+                zs += m20;
+            }
+        }
+
+        @Override
+        protected double interpolateInside(double x, double y, double z)
+        {
+            switch (interpolation)
+            {
+            case NEAREST:
+                return slices[(int) (z + 0.5)][((int) (y + 0.5)) * sizeX + (int) (x + 0.5)] & 0x00FFFF;
+            case CUBIC:
+                return cubic(x, y, z);
+            default:
+                return linear(x, y, z);
+            }
+        }
+
+        private double linear(double x, double y, double z)
+        {
+            // indices of the reference voxel (coordinates are positive)
+            int i0 = (int) x;
+            int j0 = (int) y;
+            int k0 = (int) z;
+            int offset0 = j0 * sizeX + i0;
+            int offset1 = offset0 + sizeX;
+
+            // retrieve the values of the eight neighbor voxels
+            short[] slice0 = slices[k0];
+            short[] slice1 = slices[k0 + 1];
+            return blend(
+                    slice0[offset0] & 0x00FFFF, slice0[offset0 + 1] & 0x00FFFF,
+                    slice0[offset1] & 0x00FFFF, slice0[offset1 + 1] & 0x00FFFF,
+                    slice1[offset0] & 0x00FFFF, slice1[offset0 + 1] & 0x00FFFF,
+                    slice1[offset1] & 0x00FFFF, slice1[offset1 + 1] & 0x00FFFF,
+                    x - i0, y - j0, z - k0);
+        }
+
+        private double cubic(double x, double y, double z)
+        {
+            // indices of the reference voxel (coordinates are positive)
+            int i0 = (int) x;
+            int j0 = (int) y;
+            int k0 = (int) z;
+            int offset = j0 * sizeX + i0;
+            double dx = x - i0;
+            double dy = y - j0;
+            return Interpolation.cubic(
+                    cubicPlane(slices[k0 - 1], offset, dx, dy), cubicPlane(slices[k0], offset, dx, dy),
+                    cubicPlane(slices[k0 + 1], offset, dx, dy), cubicPlane(slices[k0 + 2], offset, dx, dy),
+                    z - k0);
+        }
+
+        private double cubicPlane(short[] slice, int offset, double dx, double dy)
+        {
+            return Interpolation.cubic(
+                    cubicRow(slice, offset - sizeX, dx), cubicRow(slice, offset, dx),
+                    cubicRow(slice, offset + sizeX, dx), cubicRow(slice, offset + 2 * sizeX, dx), dy);
+        }
+
+        private static final double cubicRow(short[] slice, int offset, double dx)
+        {
+            return Interpolation.cubic(slice[offset - 1] & 0x00FFFF, slice[offset] & 0x00FFFF,
+                    slice[offset + 1] & 0x00FFFF, slice[offset + 2] & 0x00FFFF, dx);
+        }
+
+        @Override
+        protected void store(Object pixels, int index, double value)
+        {
+            ((short[]) pixels)[index] = (short) (Math.max(Math.min(value, 65535.0), 0.0) + 0.5);
+        }
+
+        @Override
+        protected void fillConstant(Object pixels, int fromIndex, int toIndex, double value)
+        {
+            Arrays.fill((short[]) pixels, fromIndex, toIndex, (short) (Math.max(Math.min(value, 65535.0), 0.0) + 0.5));
+        }
+    }
+
+    /**
+     * Resampling kernel for 32-bit images.
+     */
+    static class FloatKernel extends ResamplingKernel3D
+    {
+        /** The pixel arrays of the slices of the source image. */
+        final float[][] slices;
+
+        FloatKernel(ImageStack image, AffineTransform3D transfo, Interpolation interpolation)
+        {
+            super(image, transfo, interpolation);
+            this.slices = new float[sizeZ][];
+            for (int z = 0; z < sizeZ; z++)
+            {
+                this.slices[z] = (float[]) image.getPixels(z + 1);
+            }
+        }
+
+        @Override
+        public int getBitDepth()
+        {
+            return 32;
+        }
+
+        @Override
+        protected double getValue(int i, int j, int k)
+        {
+            return slices[k][j * sizeX + i];
+        }
+
+        @Override
+        protected void fillInside(Object pixels, int offset, int count, double xs, double ys, double zs)
+        {
+            float[] target = (float[]) pixels;
+            switch (interpolation)
+            {
+            case NEAREST:
+            {
+                // fixed-point coordinates, shifted by one half to round indices
+                long fx = toFixed(xs + 0.5), fy = toFixed(ys + 0.5), fz = toFixed(zs + 0.5);
+                long dfx = toFixed(m00), dfy = toFixed(m10), dfz = toFixed(m20);
+                for (int x = 0; x < count; x++)
+                {
+                    int i = (int) (fx >> FIXED_SHIFT);
+                    int j = (int) (fy >> FIXED_SHIFT);
+                    int k = (int) (fz >> FIXED_SHIFT);
+                    target[offset + x] = slices[k][j * sizeX + i];
+                    fx += dfx;
+                    fy += dfy;
+                    fz += dfz;
+                }
+                break;
+            }
+            case CUBIC:
+                for (int x = 0; x < count; x++)
+                {
+                    target[offset + x] = (float) cubic(xs, ys, zs);
+                    xs += m00;
+                    ys += m10;
+                    zs += m20;
+                }
+                break;
+            default:
+                fillLinear(target, offset, count, xs, ys, zs);
+            }
+        }
+
+        /**
+         * Fills a part of a row of the result, that maps within the source
+         * image, using linear interpolation.
+         */
+        void fillLinear(float[] target, int offset, int count, double xs, double ys, double zs)
+        {
+            for (int x = 0; x < count; x++)
+            {
+                target[offset + x] = (float) linear(xs, ys, zs);
+                xs += m00;
+                ys += m10;
+                zs += m20;
+            }
+        }
+
+        @Override
+        protected double interpolateInside(double x, double y, double z)
+        {
+            switch (interpolation)
+            {
+            case NEAREST:
+                return slices[(int) (z + 0.5)][((int) (y + 0.5)) * sizeX + (int) (x + 0.5)];
+            case CUBIC:
+                return cubic(x, y, z);
+            default:
+                return linear(x, y, z);
+            }
+        }
+
+        private double linear(double x, double y, double z)
+        {
+            // indices of the reference voxel (coordinates are positive)
+            int i0 = (int) x;
+            int j0 = (int) y;
+            int k0 = (int) z;
+            int offset0 = j0 * sizeX + i0;
+            int offset1 = offset0 + sizeX;
+
+            // retrieve the values of the eight neighbor voxels
+            float[] slice0 = slices[k0];
+            float[] slice1 = slices[k0 + 1];
+            return blend(
+                    slice0[offset0], slice0[offset0 + 1], slice0[offset1], slice0[offset1 + 1],
+                    slice1[offset0], slice1[offset0 + 1], slice1[offset1], slice1[offset1 + 1],
+                    x - i0, y - j0, z - k0);
+        }
+
+        private double cubic(double x, double y, double z)
+        {
+            // indices of the reference voxel (coordinates are positive)
+            int i0 = (int) x;
+            int j0 = (int) y;
+            int k0 = (int) z;
+            int offset = j0 * sizeX + i0;
+            double dx = x - i0;
+            double dy = y - j0;
+            return Interpolation.cubic(
+                    cubicPlane(slices[k0 - 1], offset, dx, dy), cubicPlane(slices[k0], offset, dx, dy),
+                    cubicPlane(slices[k0 + 1], offset, dx, dy), cubicPlane(slices[k0 + 2], offset, dx, dy),
+                    z - k0);
+        }
+
+        private double cubicPlane(float[] slice, int offset, double dx, double dy)
+        {
+            return Interpolation.cubic(
+                    cubicRow(slice, offset - sizeX, dx), cubicRow(slice, offset, dx),
+                    cubicRow(slice, offset + sizeX, dx), cubicRow(slice, offset + 2 * sizeX, dx), dy);
+        }
+
+        private static final double cubicRow(float[] slice, int offset, double dx)
+        {
+            return Interpolation.cubic(slice[offset - 1], slice[offset], slice[offset + 1], slice[offset + 2], dx);
+        }
+
+        @Override
+        protected void store(Object pixels, int index, double value)
+        {
+            ((float[]) pixels)[index] = (float) value;
+        }
+
+        @Override
+        protected void fillConstant(Object pixels, int fromIndex, int toIndex, double value)
+        {
+            Arrays.fill((float[]) pixels, fromIndex, toIndex, (float) value);
+        }
+    }
+
+    /**
+     * Resampling kernel that reads the values from a voxel source. Result rows
+     * have the bit depth of the source.
+     */
+    private static final class SourceKernel extends ResamplingKernel3D
+    {
+        /** The source of the voxel values. */
+        final VoxelSource source;
+
+        SourceKernel(VoxelSource source, AffineTransform3D transfo, Interpolation interpolation)
+        {
+            super(source.getWidth(), source.getHeight(), source.getSize(), transfo, interpolation);
+            this.source = source;
+        }
+
+        @Override
+        public int getBitDepth()
+        {
+            return source.getBitDepth();
+        }
+
+        @Override
+        protected double getValue(int i, int j, int k)
+        {
+            return source.getVoxel(i, j, k);
+        }
+
+        @Override
+        protected void fillInside(Object pixels, int offset, int count, double xs, double ys, double zs)
+        {
+            for (int x = 0; x < count; x++)
+            {
+                store(pixels, offset + x, interpolateInside(xs, ys, zs));
+                xs += m00;
+                ys += m10;
+                zs += m20;
+            }
+        }
+
+        @Override
+        protected double interpolateInside(double x, double y, double z)
+        {
+            switch (interpolation)
+            {
+            case NEAREST:
+                return source.getVoxel((int) (x + 0.5), (int) (y + 0.5), (int) (z + 0.5));
+            case CUBIC:
+                // padding has no effect on positions within image
+                return interpolateWithPadding(x, y, z);
+            default:
+                // indices of the reference voxel (coordinates are positive)
+                int i0 = (int) x;
+                int j0 = (int) y;
+                int k0 = (int) z;
+                return blend(
+                        source.getVoxel(i0, j0, k0), source.getVoxel(i0 + 1, j0, k0),
+                        source.getVoxel(i0, j0 + 1, k0), source.getVoxel(i0 + 1, j0 + 1, k0),
+                        source.getVoxel(i0, j0, k0 + 1), source.getVoxel(i0 + 1, j0, k0 + 1),
+                        source.getVoxel(i0, j0 + 1, k0 + 1), source.getVoxel(i0 + 1, j0 + 1, k0 + 1),
+                        x - i0, y - j0, z - k0);
+            }
+        }
+
+        @Override
+        protected void store(Object pixels, int index, double value)
+        {
+            if (pixels instanceof byte[])
+            {
+                ((byte[]) pixels)[index] = (byte) (Math.max(Math.min(value, 255.0), 0.0) + 0.5);
+            }
+            else if (pixels instanceof short[])
+            {
+                ((short[]) pixels)[index] = (short) (Math.max(Math.min(value, 65535.0), 0.0) + 0.5);
+            }
+            else
+            {
+                ((float[]) pixels)[index] = (float) value;
+            }
+        }
+
+        @Override
+        protected void fillConstant(Object pixels, int fromIndex, int toIndex, double value)
+        {
+            for (int i = fromIndex; i < toIndex; i++)
+            {
+                store(pixels, i, value);
+            }
+        }
+    }
+
+    /**
+     * Resampling kernel for image types without specialized implementation,
+     * based on the generic access to voxel values. Result rows are stored as
+     * 8-bit values.
+     */
+    private static final class GenericKernel extends ResamplingKernel3D
+    {
+        /** The image to resample. */
+        final ImageStack image;
+
+        GenericKernel(ImageStack image, AffineTransform3D transfo, Interpolation interpolation)
+        {
+            super(image, transfo, interpolation);
+            this.image = image;
+        }
+
+        @Override
+        public int getBitDepth()
+        {
+            return 8;
+        }
+
+        @Override
+        protected double getValue(int i, int j, int k)
+        {
+            return image.getVoxel(i, j, k);
+        }
+
+        @Override
+        protected void fillInside(Object pixels, int offset, int count, double xs, double ys, double zs)
+        {
+            for (int x = 0; x < count; x++)
+            {
+                store(pixels, offset + x, interpolateWithPadding(xs, ys, zs));
+                xs += m00;
+                ys += m10;
+                zs += m20;
+            }
+        }
+
+        @Override
+        protected double interpolateInside(double x, double y, double z)
+        {
+            // padding has no effect on positions within image
+            return interpolateWithPadding(x, y, z);
+        }
+
+        @Override
+        protected void store(Object pixels, int index, double value)
+        {
+            ((byte[]) pixels)[index] = (byte) (Math.max(Math.min(value, 255.0), 0.0) + 0.5);
+        }
+
+        @Override
+        protected void fillConstant(Object pixels, int fromIndex, int toIndex, double value)
+        {
+            Arrays.fill((byte[]) pixels, fromIndex, toIndex, (byte) (Math.max(Math.min(value, 255.0), 0.0) + 0.5));
+        }
+    }
+}
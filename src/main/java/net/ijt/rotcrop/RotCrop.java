@@ -3,9 +3,16 @@
  */
 package net.ijt.rotcrop;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
 import ij.ImageStack;
 import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
 import net.ijt.geom2d.AffineTransform2D;
 import net.ijt.geom2d.Point2D;
 import net.ijt.geom2d.Vector2D;
@@ -15,8 +22,6 @@ import net.ijt.geom3d.Point3D;
 import net.ijt.geom3d.Vector3D;
 import net.ijt.interp.Function2D;
 import net.ijt.interp.Function3D;
-import net.ijt.interp.TransformedImage2D;
-import net.ijt.interp.TransformedImage3D;
 
 /**
  * @author dlegland
@@ -24,7 +29,89 @@ import net.ijt.interp.TransformedImage3D;
  */
 public class RotCrop
 {
+    /**
+     * The number of voxels (or pixels) of the result image above which the
+     * crop functions switch to the multi-threaded fill of the result.
+     */
+    public static final long PARALLEL_THRESHOLD = 1 << 20;
+
+    /**
+     * The amount of cache memory (in bytes) used to choose the size of the
+     * tiles of the tiled traversal. Corresponds to a typical per-core L2 cache.
+     */
+    public static final int TILE_CACHE_SIZE = 256 * 1024;
+
+    /**
+     * The sampling step of the first pass of the progressive computation of
+     * ortho-slices. Each subsequent pass halves the step.
+     */
+    public static final int PROGRESSIVE_FIRST_STEP = 8;
+
+    /**
+     * The name of the system property that enables the vectorized resampling
+     * kernels, for example with the <code>-Drotcrop.vectorKernels=true</code>
+     * option of the JVM.
+     */
+    public static final String VECTOR_KERNELS_PROPERTY = "rotcrop.vectorKernels";
+
+    /**
+     * Whether the kernels created by the <code>createKernel</code> method can
+     * be vectorized. Disabled by default, as the vectorized kernels are not
+     * faster than the scalar ones on all processors.
+     */
+    private static volatile boolean vectorKernelsEnabled = Boolean.getBoolean(VECTOR_KERNELS_PROPERTY);
+    
     public static final ImageProcessor rotatedCrop(ImageProcessor image, int[] dims, Point2D refPoint, double angleInDegrees)
+    {
+        return rotatedCrop(image, dims, refPoint, angleInDegrees, defaultBitDepth(image.getBitDepth()));
+    }
+    
+    /**
+     * Computes a rotated crop of a 2D image, with a specified bit depth for the
+     * result image. Values that do not fit into the type of the result are
+     * clamped.
+     * 
+     * @param image
+     *            the image to crop
+     * @param dims
+     *            the size of the result image
+     * @param refPoint
+     *            the position of the center of the crop within the image
+     * @param angleInDegrees
+     *            the rotation angle of the crop, in degrees
+     * @param bitDepth
+     *            the bit depth of the result image (8, 16 or 32)
+     * @return the result of the crop
+     */
+    public static final ImageProcessor rotatedCrop(ImageProcessor image, int[] dims, Point2D refPoint, double angleInDegrees, int bitDepth)
+    {
+        return rotatedCrop(image, dims, refPoint, angleInDegrees, Interpolation.LINEAR, bitDepth);
+    }
+
+    public static final ImageProcessor rotatedCrop(ImageProcessor image, int[] dims, Point2D refPoint, double angleInDegrees, Interpolation interp)
+    {
+        return rotatedCrop(image, dims, refPoint, angleInDegrees, interp, defaultBitDepth(image.getBitDepth()));
+    }
+
+    /**
+     * Computes a rotated crop of a 2D image, with a specified interpolation
+     * method and bit depth for the result image.
+     *
+     * @param image
+     *            the image to crop
+     * @param dims
+     *            the size of the result image
+     * @param refPoint
+     *            the position of the center of the crop within the image
+     * @param angleInDegrees
+     *            the rotation angle of the crop, in degrees
+     * @param interp
+     *            the method used to interpolate image values
+     * @param bitDepth
+     *            the bit depth of the result image (8, 16 or 32)
+     * @return the result of the crop
+     */
+    public static final ImageProcessor rotatedCrop(ImageProcessor image, int[] dims, Point2D refPoint, double angleInDegrees, Interpolation interp, int bitDepth)
     {
         // retrieve image dimensions
         int sizeX = dims[0];
@@ -38,35 +125,450 @@ public class RotCrop
         // concatenate into global display-image-to-source-image transform
         AffineTransform2D transfo = trRefPoint.concatenate(rot).concatenate(trBoxCenter);
 
-        // Create interpolation class, that encapsulates both the image and the
+        // Create resampling kernel, that encapsulates both the image and the
         // transform
-        Function2D interp = new TransformedImage2D(image, transfo);
+        ResamplingKernel2D kernel = ResamplingKernel2D.create(image, transfo, interp);
 
         // allocate result image
-        ImageProcessor res = new ByteProcessor(sizeX, sizeY);
-        fillImage(res, interp);
+        ImageProcessor res = createProcessor(sizeX, sizeY, bitDepth);
+        fill(res, kernel);
 
         return res;
     }
     
     public static final ImageStack rotatedCrop(ImageStack image, int[] dims, Point3D refPoint, double[] anglesInDegrees)
+    {
+        return rotatedCrop(image, dims, refPoint, anglesInDegrees, defaultBitDepth(image.getBitDepth()));
+    }
+    
+    /**
+     * Computes a rotated crop of a 3D image, with a specified bit depth for the
+     * result image. Values that do not fit into the type of the result are
+     * clamped.
+     * 
+     * @param image
+     *            the image to crop
+     * @param dims
+     *            the size of the result image
+     * @param refPoint
+     *            the position of the center of the crop within the image
+     * @param anglesInDegrees
+     *            the three Euler angles (in degrees) that define the box
+     *            orientation
+     * @param bitDepth
+     *            the bit depth of the result image (8, 16 or 32)
+     * @return the result of the crop
+     */
+    public static final ImageStack rotatedCrop(ImageStack image, int[] dims, Point3D refPoint, double[] anglesInDegrees, int bitDepth)
+    {
+        return rotatedCrop(image, dims, refPoint, anglesInDegrees, Interpolation.LINEAR, bitDepth);
+    }
+
+    public static final ImageStack rotatedCrop(ImageStack image, int[] dims, Point3D refPoint, double[] anglesInDegrees, Interpolation interp)
+    {
+        return rotatedCrop(image, dims, refPoint, anglesInDegrees, interp, defaultBitDepth(image.getBitDepth()));
+    }
+
+    /**
+     * Computes a rotated crop of a 3D image, with a specified interpolation
+     * method and bit depth for the result image.
+     *
+     * @param image
+     *            the image to crop
+     * @param dims
+     *            the size of the result image
+     * @param refPoint
+     *            the position of the center of the crop within the image
+     * @param anglesInDegrees
+     *            the three Euler angles (in degrees) that define the box
+     *            orientation
+     * @param interp
+     *            the method used to interpolate image values
+     * @param bitDepth
+     *            the bit depth of the result image (8, 16 or 32)
+     * @return the result of the crop
+     */
+    public static final ImageStack rotatedCrop(ImageStack image, int[] dims, Point3D refPoint, double[] anglesInDegrees, Interpolation interp, int bitDepth)
     {
         // Computes the transform that will map indices from within result image
         // into coordinates within source image
         AffineTransform3D transfo = computeTransform(refPoint, dims, anglesInDegrees);
-        
-        // Create interpolation class, that encapsulates both the image and the
+
+        // Create resampling kernel, that encapsulates both the image and the
         // transform
-        Function3D interp = new TransformedImage3D(image, transfo);
+        ResamplingKernel3D kernel = createKernel(image, transfo, interp);
 
         // allocate result image
-        ImageStack res = ImageStack.create(dims[0], dims[1], dims[2], 8);
-        fillStack(res, interp);
+        ImageStack res = ImageStack.create(dims[0], dims[1], dims[2], bitDepth);
+        fill(res, kernel);
         
         return res;
     }
-    
+
+    /**
+     * Computes a rotated crop of a 3D image, and passes the slices of the
+     * result to a sink instead of storing them within a stack. Only a few
+     * slices are held in memory at a time, making it possible to compute crops
+     * larger than the available memory. The sink is not closed by this
+     * method.
+     *
+     * @see #resample(ResamplingKernel3D, int[], int, SliceSink)
+     *
+     * @param image
+     *            the image to crop
+     * @param dims
+     *            the size of the result image
+     * @param refPoint
+     *            the position of the center of the crop within the image
+     * @param anglesInDegrees
+     *            the three Euler angles (in degrees) that define the box
+     *            orientation
+     * @param interp
+     *            the method used to interpolate image values
+     * @param bitDepth
+     *            the bit depth of the result image (8, 16 or 32)
+     * @param sink
+     *            the sink that receives the slices of the result
+     * @throws IOException
+     *             if the sink could not process a slice
+     */
+    public static final void rotatedCrop(ImageStack image, int[] dims, Point3D refPoint, double[] anglesInDegrees, Interpolation interp, int bitDepth, SliceSink sink) throws IOException
+    {
+        AffineTransform3D transfo = computeTransform(refPoint, dims, anglesInDegrees);
+        ResamplingKernel3D kernel = createKernel(image, transfo, interp);
+        resample(kernel, dims, bitDepth, sink);
+    }
+
+    /**
+     * Computes a rotated crop from a voxel source, that may be larger than the
+     * available memory. Only the slices of the source touched by the crop are
+     * read, e.g.:
+     * <pre><code>
+     * try (MappedVoxelSource source = MappedVoxelSource.openTiff(file))
+     * {
+     *     ImageStack res = RotCrop.rotatedCrop(source, dims, refPoint, angles, Interpolation.LINEAR);
+     * }
+     * </code></pre>
+     *
+     * @param source
+     *            the image to crop
+     * @param dims
+     *            the size of the result image
+     * @param refPoint
+     *            the position of the center of the crop within the image
+     * @param anglesInDegrees
+     *            the three Euler angles (in degrees) that define the box
+     *            orientation
+     * @param interp
+     *            the method used to interpolate image values
+     * @return the result of the crop, with the bit depth of the source
+     */
+    public static final ImageStack rotatedCrop(VoxelSource source, int[] dims, Point3D refPoint, double[] anglesInDegrees, Interpolation interp)
+    {
+        AffineTransform3D transfo = computeTransform(refPoint, dims, anglesInDegrees);
+        source.prefetch(transfo, dims);
+        return resample(ResamplingKernel3D.create(source, transfo, interp), dims);
+    }
+
+    /**
+     * Computes a rotated crop of a 3D image as a virtual stack: slices are
+     * computed only when they are displayed, and only the most recently used
+     * slices are kept in memory. This makes it possible to explore crops larger
+     * than the available memory.
+     *
+     * @see CropVirtualStack
+     *
+     * @param image
+     *            the image to crop
+     * @param dims
+     *            the size of the result image
+     * @param refPoint
+     *            the position of the center of the crop within the image
+     * @param anglesInDegrees
+     *            the three Euler angles (in degrees) that define the box
+     *            orientation
+     * @param interp
+     *            the method used to interpolate image values
+     * @return a virtual stack containing the result of the crop
+     */
+    public static final CropVirtualStack rotatedCropVirtual(ImageStack image, int[] dims, Point3D refPoint, double[] anglesInDegrees, Interpolation interp)
+    {
+        AffineTransform3D transfo = computeTransform(refPoint, dims, anglesInDegrees);
+        ResamplingKernel3D kernel = createKernel(image, transfo, interp);
+        return new CropVirtualStack(kernel, dims, defaultBitDepth(image.getBitDepth()));
+    }
+
+    /**
+     * Receives the results of a batch of crops.
+     */
+    public interface CropConsumer
+    {
+        /**
+         * Processes the result of a crop. This method is called from the
+         * threads computing the crops, and must support concurrent calls.
+         *
+         * @param index
+         *            the index of the request within the list of requests
+         * @param request
+         *            the request used to compute the crop
+         * @param crop
+         *            the result of the crop
+         */
+        public void accept(int index, CropRequest request, ImageStack crop);
+    }
+
+    /**
+     * Computes a batch of crops of a 3D image, using linear interpolation, and
+     * keeping the bit depth of 8-bit, 16-bit and 32-bit images.
+     *
+     * @see #rotatedCrops(ImageStack, List, Interpolation, int, CropConsumer)
+     *
+     * @param image
+     *            the image to crop
+     * @param requests
+     *            the list of crops to compute
+     * @param consumer
+     *            the consumer that receives each crop once computed
+     */
+    public static final void rotatedCrops(ImageStack image, List<CropRequest> requests, CropConsumer consumer)
+    {
+        rotatedCrops(image, requests, Interpolation.LINEAR, defaultBitDepth(image.getBitDepth()), consumer);
+    }
+
+    /**
+     * Computes a batch of crops of a 3D image. The crops are distributed over
+     * the threads of the shared pool, each crop being computed by a single
+     * thread. Each result is passed to the consumer as soon as it is computed,
+     * and is not referenced anymore afterwards: the number of results held in
+     * memory is bounded by the number of threads, whatever the number of
+     * requests. Results may be passed in any order, and from several threads.
+     * The method returns once all the crops have been computed and consumed.
+     *
+     * @param image
+     *            the image to crop
+     * @param requests
+     *            the list of crops to compute
+     * @param interp
+     *            the method used to interpolate image values
+     * @param bitDepth
+     *            the bit depth of the result images (8, 16 or 32)
+     * @param consumer
+     *            the consumer that receives each crop once computed
+     */
+    public static final void rotatedCrops(ImageStack image, List<CropRequest> requests, Interpolation interp, int bitDepth, CropConsumer consumer)
+    {
+        // keep a random access view of the requests
+        final CropRequest[] array = requests.toArray(new CropRequest[0]);
+        ParallelLoops.forRange(array.length, 1, (i0, i1) -> {
+            for (int i = i0; i < i1; i++)
+            {
+                CropRequest request = array[i];
+                int[] dims = request.getDims();
+                ResamplingKernel3D kernel = createKernel(image, request.getTransform(), interp);
+                ImageStack res = ImageStack.create(dims[0], dims[1], dims[2], bitDepth);
+                fillSerial(res, kernel);
+                consumer.accept(i, request, res);
+            }
+        });
+    }
+
+    /**
+     * Resamples an image using a kernel, into a new image with the bit depth
+     * of the kernel. This makes it possible to choose the padding strategy of
+     * the crop, e.g.:
+     * <pre><code>
+     * ResamplingKernel2D kernel = ResamplingKernel2D.create(image, transfo);
+     * kernel.setPadding(Padding.MIRROR);
+     * ImageProcessor res = RotCrop.resample(kernel, dims);
+     * </code></pre>
+     *
+     * @param kernel
+     *            the kernel that encapsulates the source image and the
+     *            transform
+     * @param dims
+     *            the size of the result image
+     * @return the resampled image
+     */
+    public static final ImageProcessor resample(ResamplingKernel2D kernel, int[] dims)
+    {
+        ImageProcessor res = createProcessor(dims[0], dims[1], kernel.getBitDepth());
+        fill(res, kernel);
+        return res;
+    }
+
+    /**
+     * Resamples a 3D image using a kernel, into a new stack with the bit depth
+     * of the kernel. This makes it possible to choose the padding strategy of
+     * the crop, e.g.:
+     * <pre><code>
+     * AffineTransform3D transfo = RotCrop.computeTransform(refPoint, dims, angles);
+     * ResamplingKernel3D kernel = ResamplingKernel3D.create(image, transfo);
+     * kernel.setPadding(Padding.REPLICATE);
+     * ImageStack res = RotCrop.resample(kernel, dims);
+     * </code></pre>
+     *
+     * @param kernel
+     *            the kernel that encapsulates the source image and the
+     *            transform
+     * @param dims
+     *            the size of the result image
+     * @return the resampled image
+     */
+    public static final ImageStack resample(ResamplingKernel3D kernel, int[] dims)
+    {
+        ImageStack res = ImageStack.create(dims[0], dims[1], dims[2], kernel.getBitDepth());
+        fill(res, kernel);
+        return res;
+    }
+
+    /**
+     * Resamples a 3D image using a kernel, and passes the slices of the result
+     * to a sink in increasing order. Slices are computed by slabs of as many
+     * slices as the threads of the shared pool, the slices of a slab being
+     * computed in parallel before being passed to the sink from the calling
+     * thread. The processors of the slab are reused from one slab to the next,
+     * so that the memory footprint does not depend on the number of slices.
+     * The sink is not closed by this method.
+     *
+     * @param kernel
+     *            the kernel that encapsulates the source image and the
+     *            transform
+     * @param dims
+     *            the size of the result image
+     * @param bitDepth
+     *            the bit depth of the result image (8, 16 or 32)
+     * @param sink
+     *            the sink that receives the slices of the result
+     * @throws IOException
+     *             if the sink could not process a slice
+     */
+    public static final void resample(ResamplingKernel3D kernel, int[] dims, int bitDepth, SliceSink sink) throws IOException
+    {
+        int sizeZ = dims[2];
+        int slabSize = Math.max(Math.min(ParallelLoops.getPool().getParallelism(), sizeZ), 1);
+        final ImageProcessor[] slab = new ImageProcessor[slabSize];
+        for (int i = 0; i < slabSize; i++)
+        {
+            slab[i] = createProcessor(dims[0], dims[1], bitDepth);
+        }
+
+        sink.begin(dims[0], dims[1], sizeZ, bitDepth);
+        for (int z0 = 0; z0 < sizeZ; z0 += slabSize)
+        {
+            final int zStart = z0;
+            int n = Math.min(slabSize, sizeZ - z0);
+            ParallelLoops.forRange(n, 1, (i0, i1) -> {
+                for (int i = i0; i < i1; i++)
+                {
+                    fillSlice(slab[i], kernel, zStart + i);
+                }
+            });
+            for (int i = 0; i < n; i++)
+            {
+                sink.accept(z0 + i, slab[i]);
+            }
+        }
+    }
+
+    /**
+     * Enables or disables the vectorized resampling kernels. The initial value
+     * is given by the <code>rotcrop.vectorKernels</code> system property.
+     *
+     * @param enabled
+     *            true if the kernels created by the <code>createKernel</code>
+     *            method can be vectorized
+     */
+    public static final void setVectorKernelsEnabled(boolean enabled)
+    {
+        vectorKernelsEnabled = enabled;
+    }
+
+    /**
+     * @return true if the kernels created by the <code>createKernel</code>
+     *         method can be vectorized
+     */
+    public static final boolean isVectorKernelsEnabled()
+    {
+        return vectorKernelsEnabled;
+    }
+
+    /**
+     * Creates the resampling kernel used for cropping a 3D image. When the
+     * vectorized kernels are enabled, and when running on Java 16 or later
+     * with the <code>jdk.incubator.vector</code> module enabled, linear
+     * interpolation of 8-bit, 16-bit and 32-bit images uses a kernel that
+     * processes several voxels per iteration using SIMD instructions.
+     * Otherwise, the kernel is the same as the one returned by
+     * <code>ResamplingKernel3D.create()</code>.
+     *
+     * @see #setVectorKernelsEnabled(boolean)
+     *
+     * @param image
+     *            the image to resample
+     * @param transfo
+     *            the transform that maps coordinates in the result image into
+     *            coordinates in the source image
+     * @param interp
+     *            the method used to interpolate image values
+     * @return a new resampling kernel
+     */
+    public static final ResamplingKernel3D createKernel(ImageStack image, AffineTransform3D transfo, Interpolation interp)
+    {
+        ResamplingKernel3D kernel = vectorKernelsEnabled ? VectorKernels.create(image, transfo, interp) : null;
+        return kernel != null ? kernel : ResamplingKernel3D.create(image, transfo, interp);
+    }
+
     public static final ImageProcessor tangentCrop(ImageProcessor image, Point2D refPoint, int[] dims, double gradientSigma)
+    {
+        return tangentCrop(image, refPoint, dims, gradientSigma, defaultBitDepth(image.getBitDepth()));
+    }
+    
+    /**
+     * Computes a crop of a 2D image oriented along the local gradient, with a
+     * specified bit depth for the result image. Values that do not fit into the
+     * type of the result are clamped.
+     * 
+     * @param image
+     *            the image to crop
+     * @param refPoint
+     *            the position of the center of the crop within the image
+     * @param dims
+     *            the size of the result image
+     * @param gradientSigma
+     *            the range of the gradient used to compute crop orientation
+     * @param bitDepth
+     *            the bit depth of the result image (8, 16 or 32)
+     * @return the result of the crop
+     */
+    public static final ImageProcessor tangentCrop(ImageProcessor image, Point2D refPoint, int[] dims, double gradientSigma, int bitDepth)
+    {
+        return tangentCrop(image, refPoint, dims, gradientSigma, Interpolation.LINEAR, bitDepth);
+    }
+
+    public static final ImageProcessor tangentCrop(ImageProcessor image, Point2D refPoint, int[] dims, double gradientSigma, Interpolation interp)
+    {
+        return tangentCrop(image, refPoint, dims, gradientSigma, interp, defaultBitDepth(image.getBitDepth()));
+    }
+
+    /**
+     * Computes a crop of a 2D image oriented along the local gradient, with a
+     * specified interpolation method and bit depth for the result image.
+     *
+     * @param image
+     *            the image to crop
+     * @param refPoint
+     *            the position of the center of the crop within the image
+     * @param dims
+     *            the size of the result image
+     * @param gradientSigma
+     *            the range of the gradient used to compute crop orientation
+     * @param interp
+     *            the method used to interpolate image values
+     * @param bitDepth
+     *            the bit depth of the result image (8, 16 or 32)
+     * @return the result of the crop
+     */
+    public static final ImageProcessor tangentCrop(ImageProcessor image, Point2D refPoint, int[] dims, double gradientSigma, Interpolation interp, int bitDepth)
     {
         // evaluate gradient angle around reference point
         LocalGradientEstimator gradEst = new LocalGradientEstimator(gradientSigma);
@@ -75,13 +577,13 @@ public class RotCrop
         
         AffineTransform2D transfo = computeTransform(refPoint, dims, angle);
         
-        // Create interpolation class, that encapsulates both the image and the
+        // Create resampling kernel, that encapsulates both the image and the
         // transform
-        Function2D interp = new TransformedImage2D(image, transfo);
+        ResamplingKernel2D kernel = ResamplingKernel2D.create(image, transfo, interp);
 
         // allocate result image
-        ImageProcessor res = new ByteProcessor(dims[0], dims[1]);
-        fillImage(res, interp);
+        ImageProcessor res = createProcessor(dims[0], dims[1], bitDepth);
+        fill(res, kernel);
 
         return res;
     }
@@ -114,33 +616,267 @@ public class RotCrop
     
 
     public static final ImageStack tangentCrop(ImageStack image, Point3D refPoint, int[] dims, double gradientSigma)
+    {
+        return tangentCrop(image, refPoint, dims, gradientSigma, defaultBitDepth(image.getBitDepth()));
+    }
+    
+    /**
+     * Computes a crop of a 3D image oriented along the local gradient, with a
+     * specified bit depth for the result image. Values that do not fit into the
+     * type of the result are clamped.
+     * 
+     * @param image
+     *            the image to crop
+     * @param refPoint
+     *            the position of the center of the crop within the image
+     * @param dims
+     *            the size of the result image
+     * @param gradientSigma
+     *            the range of the gradient used to compute crop orientation
+     * @param bitDepth
+     *            the bit depth of the result image (8, 16 or 32)
+     * @return the result of the crop
+     */
+    public static final ImageStack tangentCrop(ImageStack image, Point3D refPoint, int[] dims, double gradientSigma, int bitDepth)
+    {
+        return tangentCrop(image, refPoint, dims, gradientSigma, Interpolation.LINEAR, bitDepth);
+    }
+
+    public static final ImageStack tangentCrop(ImageStack image, Point3D refPoint, int[] dims, double gradientSigma, Interpolation interp)
+    {
+        return tangentCrop(image, refPoint, dims, gradientSigma, interp, defaultBitDepth(image.getBitDepth()));
+    }
+
+    /**
+     * Computes a crop of a 3D image oriented along the local gradient, with a
+     * specified interpolation method and bit depth for the result image.
+     *
+     * @param image
+     *            the image to crop
+     * @param refPoint
+     *            the position of the center of the crop within the image
+     * @param dims
+     *            the size of the result image
+     * @param gradientSigma
+     *            the range of the gradient used to compute crop orientation
+     * @param interp
+     *            the method used to interpolate image values
+     * @param bitDepth
+     *            the bit depth of the result image (8, 16 or 32)
+     * @return the result of the crop
+     */
+    public static final ImageStack tangentCrop(ImageStack image, Point3D refPoint, int[] dims, double gradientSigma, Interpolation interp, int bitDepth)
     {
         // Compute box to image transform, based on local gradient
         AffineTransform3D transfo = computeTangentCropTransform(image, refPoint, dims, gradientSigma);
-        
-        // Create interpolation class, that encapsulates both the image and the
+
+        // Create resampling kernel, that encapsulates both the image and the
         // transform
-        Function3D interp = new TransformedImage3D(image, transfo);
+        ResamplingKernel3D kernel = createKernel(image, transfo, interp);
 
         // allocate result image
-        ImageStack res = ImageStack.create(dims[0], dims[1], dims[2], 8);
+        ImageStack res = ImageStack.create(dims[0], dims[1], dims[2], bitDepth);
         
-        fillStack(res, interp);
+        fill(res, kernel);
         
         return res;
     }
     
+    /**
+     * Computes a crop oriented along the local gradient, from a voxel source
+     * that may be larger than the available memory. Only the slices of the
+     * source touched by the crop and by the gradient evaluation are read.
+     *
+     * @param source
+     *            the image to crop
+     * @param refPoint
+     *            the position of the center of the crop within the image
+     * @param dims
+     *            the size of the result image
+     * @param gradientSigma
+     *            the range of the gradient used to compute crop orientation
+     * @param interp
+     *            the method used to interpolate image values
+     * @return the result of the crop, with the bit depth of the source
+     */
+    public static final ImageStack tangentCrop(VoxelSource source, Point3D refPoint, int[] dims, double gradientSigma, Interpolation interp)
+    {
+        AffineTransform3D transfo = computeTangentCropTransform(source, refPoint, dims, gradientSigma);
+        source.prefetch(transfo, dims);
+        return resample(ResamplingKernel3D.create(source, transfo, interp), dims);
+    }
+    
+    /**
+     * Computes a crop of a 3D image oriented along the local gradient, as a
+     * virtual stack whose slices are computed only when they are displayed.
+     *
+     * @see CropVirtualStack
+     *
+     * @param image
+     *            the image to crop
+     * @param refPoint
+     *            the position of the center of the crop within the image
+     * @param dims
+     *            the size of the result image
+     * @param gradientSigma
+     *            the range of the gradient used to compute crop orientation
+     * @param interp
+     *            the method used to interpolate image values
+     * @return a virtual stack containing the result of the crop
+     */
+    public static final CropVirtualStack tangentCropVirtual(ImageStack image, Point3D refPoint, int[] dims, double gradientSigma, Interpolation interp)
+    {
+        AffineTransform3D transfo = computeTangentCropTransform(image, refPoint, dims, gradientSigma);
+        ResamplingKernel3D kernel = createKernel(image, transfo, interp);
+        return new CropVirtualStack(kernel, dims, defaultBitDepth(image.getBitDepth()));
+    }
+    
     public static final AffineTransform3D computeTangentCropTransform(ImageStack image, Point3D refPoint, int[] dims, double gradientSigma)
     {
-        // retrieve box dimensions
-        int sizeX = dims[0];
-        int sizeY = dims[1];
-        int sizeZ = dims[2];
-        
         // evaluate gradient around chosen point
         LocalGradientEstimator gradEst = new LocalGradientEstimator(gradientSigma);
         Vector3D grad = gradEst.evaluate(image, refPoint).normalize();
-        
+        return computeTangentCropTransform(grad, refPoint, dims);
+    }
+    
+    /**
+     * Computes the transform of a crop oriented along the gradient evaluated
+     * by a session, that switches to the dense gradient field when many
+     * positions are evaluated within the same image.
+     *
+     * @see GradientFieldSession#evaluate(Point3D, double)
+     *
+     * @param session
+     *            the session evaluating the gradient of the image to crop
+     * @param refPoint
+     *            the position of the center of the crop within the image
+     * @param dims
+     *            the size of the result image
+     * @param gradientSigma
+     *            the range of the gradient used to compute crop orientation
+     * @return the transform that maps coordinates in the result image into
+     *         coordinates in the source image
+     */
+    public static final AffineTransform3D computeTangentCropTransform(GradientFieldSession session, Point3D refPoint, int[] dims, double gradientSigma)
+    {
+        Vector3D grad = session.evaluate(refPoint, gradientSigma).normalize();
+        return computeTangentCropTransform(grad, refPoint, dims);
+    }
+    
+    /**
+     * Computes the transform of a crop oriented along the gradient evaluated
+     * from a scale-space of the image. The cost of the gradient evaluation
+     * does not depend on the range, at the price of a slight approximation
+     * for the ranges evaluated on the coarser levels.
+     *
+     * @see ScaleSpace#evaluate(Point3D, double)
+     *
+     * @param scaleSpace
+     *            the scale-space of the image to crop
+     * @param refPoint
+     *            the position of the center of the crop within the image
+     * @param dims
+     *            the size of the result image
+     * @param gradientSigma
+     *            the range of the gradient used to compute crop orientation
+     * @return the transform that maps coordinates in the result image into
+     *         coordinates in the source image
+     */
+    public static final AffineTransform3D computeTangentCropTransform(ScaleSpace scaleSpace, Point3D refPoint, int[] dims, double gradientSigma)
+    {
+        Vector3D grad = scaleSpace.evaluate(refPoint, gradientSigma).normalize();
+        return computeTangentCropTransform(grad, refPoint, dims);
+    }
+    
+    /**
+     * Computes the transform of a crop oriented along the frame given by the
+     * structure tensor of the image around the reference point. The z-axis of
+     * the crop is aligned with the normal, and the x- and y-axes with the
+     * tangent directions of the largest and of the smallest variations.
+     *
+     * @see StructureTensorEstimator
+     *
+     * @param estimator
+     *            the estimator of the structure tensor
+     * @param image
+     *            the image to crop
+     * @param refPoint
+     *            the position of the center of the crop within the image
+     * @param dims
+     *            the size of the result image
+     * @return the transform that maps coordinates in the result image into
+     *         coordinates in the source image
+     */
+    public static final AffineTransform3D computeTangentCropTransform(StructureTensorEstimator estimator, ImageStack image, Point3D refPoint, int[] dims)
+    {
+        double[] frame = new double[StructureTensorEstimator.FRAME_SIZE];
+        estimator.evaluate(image, refPoint, frame, null);
+        Vector3D normal = new Vector3D(frame[0], frame[1], frame[2]);
+        Vector3D vt1 = new Vector3D(frame[3], frame[4], frame[5]);
+        Vector3D vt2 = new Vector3D(frame[6], frame[7], frame[8]);
+        return computeFrameTransform(vt1, vt2, normal, refPoint, dims);
+    }
+    
+    /**
+     * Computes the transforms of crops oriented along the local gradient of a
+     * 3D image, for a list of reference points. The gradients are evaluated in
+     * a single batch, that shares the voxels read for neighbor points.
+     *
+     * @see LocalGradientEstimator#evaluate(ImageStack, List)
+     *
+     * @param image
+     *            the image to crop
+     * @param refPoints
+     *            the positions of the centers of the crops within the image
+     * @param dims
+     *            the size of the result images
+     * @param gradientSigma
+     *            the range of the gradient used to compute crop orientation
+     * @return the transforms that map coordinates in the result images into
+     *         coordinates in the source image, in the order of the points
+     */
+    public static final List<AffineTransform3D> computeTangentCropTransforms(ImageStack image, List<Point3D> refPoints, int[] dims, double gradientSigma)
+    {
+        double[] grads = new LocalGradientEstimator(gradientSigma).evaluate(image, refPoints);
+        List<AffineTransform3D> res = new ArrayList<AffineTransform3D>(refPoints.size());
+        for (int i = 0; i < refPoints.size(); i++)
+        {
+            Vector3D grad = new Vector3D(grads[3 * i], grads[3 * i + 1], grads[3 * i + 2]).normalize();
+            res.add(computeTangentCropTransform(grad, refPoints.get(i), dims));
+        }
+        return res;
+    }
+    
+    /**
+     * Computes the transform of a crop oriented along the local gradient of a
+     * voxel source.
+     *
+     * @see #computeTangentCropTransform(ImageStack, Point3D, int[], double)
+     *
+     * @param source
+     *            the image to crop
+     * @param refPoint
+     *            the position of the center of the crop within the image
+     * @param dims
+     *            the size of the result image
+     * @param gradientSigma
+     *            the range of the gradient used to compute crop orientation
+     * @return the transform that maps coordinates in the result image into
+     *         coordinates in the source image
+     */
+    public static final AffineTransform3D computeTangentCropTransform(VoxelSource source, Point3D refPoint, int[] dims, double gradientSigma)
+    {
+        LocalGradientEstimator gradEst = new LocalGradientEstimator(gradientSigma);
+        Vector3D grad = gradEst.evaluate(source, refPoint).normalize();
+        return computeTangentCropTransform(grad, refPoint, dims);
+    }
+    
+    /**
+     * Computes the transform of a crop centered on the reference point, whose
+     * z-axis is aligned with the (normalized) gradient.
+     */
+    private static final AffineTransform3D computeTangentCropTransform(Vector3D grad, Point3D refPoint, int[] dims)
+    {
         // find the basis vector the less orthogonal to the gradient
         Vector3D[] basisVectors = new Vector3D[] {new Vector3D(1, 0, 0), new Vector3D(0, 1, 0), new Vector3D(0, 0, 1)};
         Vector3D[] crossProds = new Vector3D[3];
@@ -160,6 +896,19 @@ public class RotCrop
         // identify two vectors orthogonal to the outwards normal
         Vector3D vt1 = crossProds[indMax];
         Vector3D vt2 = Vector3D.crossProduct(grad, vt1);
+        return computeFrameTransform(vt1, vt2, grad, refPoint, dims);
+    }
+    
+    /**
+     * Computes the transform of a crop centered on the reference point, whose
+     * x-, y- and z-axes are aligned with the specified vectors.
+     */
+    private static final AffineTransform3D computeFrameTransform(Vector3D vt1, Vector3D vt2, Vector3D grad, Point3D refPoint, int[] dims)
+    {
+        // retrieve box dimensions
+        int sizeX = dims[0];
+        int sizeY = dims[1];
+        int sizeZ = dims[2];
         
         // convert eigen vectors to rotation matrix
         // (concatenate column vectors corresponding to eigen vectors, and transpose)
@@ -186,23 +935,126 @@ public class RotCrop
     }
     
     /**
-     * Fills the pixels of the specified image according to the values obtained
-     * from the Function2D instance.
-     * 
-     * @param image
-     *            the stack to fill
-     * @param fun
-     *            the function used to populate stack values
+     * Returns the bit depth of the crop result for an image with the specified
+     * bit depth: the bit depth of the image is kept for 8-bit, 16-bit and
+     * 32-bit images, other images result in 8-bit crops.
      */
-    public static final void fillImage(ImageProcessor image, Function2D fun)
+    private static final int defaultBitDepth(int bitDepth)
     {
-        // retrieve stack size
-        int sizeX = image.getWidth();
-        int sizeY = image.getHeight();
-        
-        // iterate over image pixels
-        for (int y = 0; y < sizeY; y++)
-        {
+        return bitDepth == 16 || bitDepth == 32 ? bitDepth : 8;
+    }
+    
+    /**
+     * Creates a new image processor with the specified size and bit depth.
+     */
+    static final ImageProcessor createProcessor(int sizeX, int sizeY, int bitDepth)
+    {
+        switch (bitDepth)
+        {
+        case 8:
+            return new ByteProcessor(sizeX, sizeY);
+        case 16:
+            return new ShortProcessor(sizeX, sizeY);
+        case 32:
+            return new FloatProcessor(sizeX, sizeY);
+        default:
+            throw new IllegalArgumentException("Bit depth must be 8, 16 or 32, not " + bitDepth);
+        }
+    }
+    
+    /**
+     * Fills the pixels of the specified image, using either the single-threaded
+     * or the multi-threaded version depending on the image size.
+     * 
+     * @param image
+     *            the image to fill
+     * @param kernel
+     *            the kernel used to resample image values
+     */
+    private static final void fill(ImageProcessor image, ResamplingKernel2D kernel)
+    {
+        if ((long) image.getWidth() * image.getHeight() >= PARALLEL_THRESHOLD)
+        {
+            fillImageParallel(image, kernel);
+        }
+        else
+        {
+            fillImage(image, kernel);
+        }
+    }
+    
+    /**
+     * Fills the voxels of the specified stack, using either the single-threaded
+     * or the multi-threaded version depending on the stack size.
+     * 
+     * @param stack
+     *            the stack to fill
+     * @param kernel
+     *            the kernel used to resample stack values
+     */
+    private static final void fill(ImageStack stack, ResamplingKernel3D kernel)
+    {
+        boolean parallel = (long) stack.getWidth() * stack.getHeight() * stack.getSize() >= PARALLEL_THRESHOLD;
+        if (kernel.isObliqueToSlices() && stack.getBitDepth() == kernel.getBitDepth())
+        {
+            if (parallel)
+            {
+                fillStackTiledParallel(stack, kernel);
+            }
+            else
+            {
+                fillStackTiled(stack, kernel);
+            }
+        }
+        else if (parallel)
+        {
+            fillStackParallel(stack, kernel);
+        }
+        else
+        {
+            fillStack(stack, kernel);
+        }
+    }
+    
+    /**
+     * Fills the voxels of the specified stack within the current thread, using
+     * tiled traversal for kernels oblique to the slices of the source image.
+     *
+     * @param stack
+     *            the stack to fill
+     * @param kernel
+     *            the kernel used to resample stack values
+     */
+    private static final void fillSerial(ImageStack stack, ResamplingKernel3D kernel)
+    {
+        if (kernel.isObliqueToSlices())
+        {
+            fillStackTiled(stack, kernel);
+        }
+        else
+        {
+            fillStack(stack, kernel);
+        }
+    }
+    
+    /**
+     * Fills the pixels of the specified image according to the values obtained
+     * from the Function2D instance.
+     * 
+     * @param image
+     *            the stack to fill
+     * @param fun
+     *            the function used to populate stack values
+     */
+    public static final void fillImage(ImageProcessor image, Function2D fun)
+    {
+        // retrieve stack size
+        int sizeX = image.getWidth();
+        int sizeY = image.getHeight();
+        
+        // iterate over image pixels
+        for (int y = 0; y < sizeY; y++)
+        {
             for (int x = 0; x < sizeX; x++)
             {
                 image.setf(x, y, (float) fun.evaluate(x, y));
@@ -239,6 +1091,391 @@ public class RotCrop
         }
     }
     
+    /**
+     * Fills the pixels of the specified image according to the values obtained
+     * from the Function2D instance, by distributing bands of rows over several
+     * threads. The function must support concurrent evaluations. The result is
+     * the same as the one obtained with the <code>fillImage</code> method.
+     * 
+     * @param image
+     *            the image to fill
+     * @param fun
+     *            the function used to populate image values
+     */
+    public static final void fillImageParallel(ImageProcessor image, Function2D fun)
+    {
+        // retrieve image size
+        int sizeX = image.getWidth();
+        int sizeY = image.getHeight();
+        
+        // iterate over bands of rows
+        ParallelLoops.forRange(sizeY, (y0, y1) ->
+        {
+            for (int y = y0; y < y1; y++)
+            {
+                for (int x = 0; x < sizeX; x++)
+                {
+                    image.setf(x, y, (float) fun.evaluate(x, y));
+                }
+            }
+        });
+    }
+    
+    /**
+     * Fills the voxels of the specified stack according to the values obtained
+     * from the Function3D instance, by distributing slices over several
+     * threads. The function must support concurrent evaluations. The result is
+     * the same as the one obtained with the <code>fillStack</code> method.
+     * 
+     * @param stack
+     *            the stack to fill
+     * @param fun
+     *            the function used to populate stack values
+     */
+    public static final void fillStackParallel(ImageStack stack, Function3D fun)
+    {
+        // retrieve stack size
+        int sizeX = stack.getWidth();
+        int sizeY = stack.getHeight();
+        int sizeZ = stack.getSize();
+        
+        // iterate over groups of slices
+        ParallelLoops.forRange(sizeZ, (z0, z1) ->
+        {
+            for (int z = z0; z < z1; z++)
+            {
+                for (int y = 0; y < sizeY; y++)
+                {
+                    for (int x = 0; x < sizeX; x++)
+                    {
+                        stack.setVoxel(x, y, z, fun.evaluate(x, y, z));
+                    }
+                }
+            }
+        });
+    }
+    
+    /**
+     * Fills the pixels of the specified image by resampling rows with the
+     * specified kernel.
+     * 
+     * @param image
+     *            the image to fill
+     * @param kernel
+     *            the kernel used to resample image values
+     */
+    public static final void fillImage(ImageProcessor image, ResamplingKernel2D kernel)
+    {
+        fillRows(image, kernel, 0, image.getHeight());
+    }
+    
+    /**
+     * Fills the pixels of the specified image by resampling rows with the
+     * specified kernel, by distributing bands of rows over several threads.
+     * 
+     * @param image
+     *            the image to fill
+     * @param kernel
+     *            the kernel used to resample image values
+     */
+    public static final void fillImageParallel(ImageProcessor image, ResamplingKernel2D kernel)
+    {
+        ParallelLoops.forRange(image.getHeight(), (y0, y1) -> fillRows(image, kernel, y0, y1));
+    }
+    
+    private static final void fillRows(ImageProcessor image, ResamplingKernel2D kernel, int y0, int y1)
+    {
+        int sizeX = image.getWidth();
+        Object pixels = image.getPixels();
+        
+        // use the loop specific to kernel type if possible
+        if (image.getBitDepth() == kernel.getBitDepth())
+        {
+            for (int y = y0; y < y1; y++)
+            {
+                kernel.fillRow(y, pixels, y * sizeX, sizeX);
+            }
+            return;
+        }
+        
+        // otherwise, convert values after resampling
+        double[] values = new double[sizeX];
+        for (int y = y0; y < y1; y++)
+        {
+            kernel.evaluateRow(y, values);
+            setRow(pixels, y * sizeX, values);
+        }
+    }
+    
+    /**
+     * Fills the voxels of the specified stack by resampling rows with the
+     * specified kernel.
+     * 
+     * @param stack
+     *            the stack to fill
+     * @param kernel
+     *            the kernel used to resample stack values
+     */
+    public static final void fillStack(ImageStack stack, ResamplingKernel3D kernel)
+    {
+        fillSlices(stack, kernel, 0, stack.getSize());
+    }
+    
+    /**
+     * Fills the voxels of the specified stack by resampling rows with the
+     * specified kernel, by distributing slices over several threads.
+     * 
+     * @param stack
+     *            the stack to fill
+     * @param kernel
+     *            the kernel used to resample stack values
+     */
+    public static final void fillStackParallel(ImageStack stack, ResamplingKernel3D kernel)
+    {
+        ParallelLoops.forRange(stack.getSize(), (z0, z1) -> fillSlices(stack, kernel, z0, z1));
+    }
+    
+    /**
+     * Fills the voxels of the specified stack by processing small 3D tiles one
+     * after the other. The size of the tiles is chosen such that the source
+     * voxels used for a tile fit into the cache. This reduces cache misses
+     * when the crop is oblique with respect to the slices of the source image,
+     * as consecutive voxels of a result row are read from different slices.
+     *
+     * @param stack
+     *            the stack to fill
+     * @param kernel
+     *            the kernel used to resample stack values
+     */
+    public static final void fillStackTiled(ImageStack stack, ResamplingKernel3D kernel)
+    {
+        fillStackTiled(stack, kernel, tileSize(kernel));
+    }
+
+    /**
+     * Fills the voxels of the specified stack by processing cubic tiles with
+     * the specified size one after the other.
+     *
+     * @param stack
+     *            the stack to fill
+     * @param kernel
+     *            the kernel used to resample stack values
+     * @param tileSize
+     *            the size of the tiles along each dimension
+     */
+    public static final void fillStackTiled(ImageStack stack, ResamplingKernel3D kernel, int tileSize)
+    {
+        if (stack.getBitDepth() != kernel.getBitDepth())
+        {
+            // conversion of values is performed slice by slice
+            fillStack(stack, kernel);
+            return;
+        }
+        fillTiles(stack, kernel, tileSize, 0, tileCount(stack, tileSize));
+    }
+
+    /**
+     * Fills the voxels of the specified stack by processing small 3D tiles,
+     * distributed over several threads.
+     *
+     * @param stack
+     *            the stack to fill
+     * @param kernel
+     *            the kernel used to resample stack values
+     */
+    public static final void fillStackTiledParallel(ImageStack stack, ResamplingKernel3D kernel)
+    {
+        if (stack.getBitDepth() != kernel.getBitDepth())
+        {
+            fillStackParallel(stack, kernel);
+            return;
+        }
+        int tileSize = tileSize(kernel);
+        ParallelLoops.forRange(tileCount(stack, tileSize), (t0, t1) -> fillTiles(stack, kernel, tileSize, t0, t1));
+    }
+
+    /**
+     * Chooses the size of the tiles such that the source voxels used for
+     * computing a tile, together with the result voxels, fit into
+     * <code>TILE_CACHE_SIZE</code> bytes. The footprint of a tile is estimated
+     * from its size scaled by the transform, plus a margin for the
+     * interpolation neighborhood, doubled to account for partially used cache
+     * lines.
+     *
+     * @param kernel
+     *            the kernel used to resample stack values
+     * @return the size of the tiles along each dimension, as a multiple of 8
+     */
+    static final int tileSize(ResamplingKernel3D kernel)
+    {
+        int bytesPerVoxel = Math.max(kernel.getBitDepth() / 8, 1);
+        double edge = Math.cbrt(TILE_CACHE_SIZE / (2.0 * bytesPerVoxel)) - 2;
+        int size = (int) (edge / Math.max(kernel.scaleFactor(), 1e-3));
+        size = (size / 8) * 8;
+        return Math.max(Math.min(size, 256), 8);
+    }
+
+    private static final int tileCount(ImageStack stack, int tileSize)
+    {
+        int nx = (stack.getWidth() + tileSize - 1) / tileSize;
+        int ny = (stack.getHeight() + tileSize - 1) / tileSize;
+        int nz = (stack.getSize() + tileSize - 1) / tileSize;
+        return nx * ny * nz;
+    }
+
+    /**
+     * Fills the tiles with indices between t0 (inclusive) and t1 (exclusive).
+     * Tiles are indexed in x-y-z order.
+     */
+    private static final void fillTiles(ImageStack stack, ResamplingKernel3D kernel, int tileSize, int t0, int t1)
+    {
+        int sizeX = stack.getWidth();
+        int sizeY = stack.getHeight();
+        int sizeZ = stack.getSize();
+        int nx = (sizeX + tileSize - 1) / tileSize;
+        int ny = (sizeY + tileSize - 1) / tileSize;
+
+        for (int t = t0; t < t1; t++)
+        {
+            // bounds of current tile
+            int x0 = (t % nx) * tileSize;
+            int y0 = ((t / nx) % ny) * tileSize;
+            int z0 = (t / (nx * ny)) * tileSize;
+            int x1 = Math.min(x0 + tileSize, sizeX);
+            int y1 = Math.min(y0 + tileSize, sizeY);
+            int z1 = Math.min(z0 + tileSize, sizeZ);
+
+            for (int z = z0; z < z1; z++)
+            {
+                Object pixels = stack.getPixels(z + 1);
+                for (int y = y0; y < y1; y++)
+                {
+                    kernel.fillRow(x0, y, z, pixels, y * sizeX + x0, x1 - x0);
+                }
+            }
+        }
+    }
+
+    private static final void fillSlices(ImageStack stack, ResamplingKernel3D kernel, int z0, int z1)
+    {
+        int sizeX = stack.getWidth();
+        int sizeY = stack.getHeight();
+        
+        // use the loop specific to kernel type if possible
+        if (stack.getBitDepth() == kernel.getBitDepth())
+        {
+            for (int z = z0; z < z1; z++)
+            {
+                Object pixels = stack.getPixels(z + 1);
+                for (int y = 0; y < sizeY; y++)
+                {
+                    kernel.fillRow(y, z, pixels, y * sizeX, sizeX);
+                }
+            }
+            return;
+        }
+        
+        // otherwise, convert values after resampling
+        double[] values = new double[sizeX];
+        for (int z = z0; z < z1; z++)
+        {
+            Object pixels = stack.getPixels(z + 1);
+            for (int y = 0; y < sizeY; y++)
+            {
+                kernel.evaluateRow(y, z, values);
+                setRow(pixels, y * sizeX, values);
+            }
+        }
+    }
+    
+    /**
+     * Fills a single slice of a resampled stack, stored as an image processor.
+     * Resampling kernels use their row-based loops, other functions are
+     * evaluated voxel by voxel.
+     */
+    static final void fillSlice(ImageProcessor slice, Function3D fun, int z)
+    {
+        int sizeX = slice.getWidth();
+        int sizeY = slice.getHeight();
+        Object pixels = slice.getPixels();
+        
+        // use the loop specific to kernel type if possible
+        ResamplingKernel3D kernel = fun instanceof ResamplingKernel3D ? (ResamplingKernel3D) fun : null;
+        if (kernel != null && slice.getBitDepth() == kernel.getBitDepth())
+        {
+            for (int y = 0; y < sizeY; y++)
+            {
+                kernel.fillRow(y, z, pixels, y * sizeX, sizeX);
+            }
+            return;
+        }
+        
+        // otherwise, convert values after resampling
+        double[] values = new double[sizeX];
+        for (int y = 0; y < sizeY; y++)
+        {
+            if (kernel != null)
+            {
+                kernel.evaluateRow(y, z, values);
+            }
+            else
+            {
+                for (int x = 0; x < sizeX; x++)
+                {
+                    values[x] = fun.evaluate(x, y, z);
+                }
+            }
+            setRow(pixels, y * sizeX, values);
+        }
+    }
+    
+    /**
+     * Copies a row of values into the pixel array of an image or of a slice,
+     * starting at the specified offset. Values are converted in the same way as
+     * within the <code>ImageStack.setVoxel()</code> method.
+     * 
+     * @param pixels
+     *            the pixel array to update
+     * @param offset
+     *            the index of the first element to update
+     * @param values
+     *            the values to copy
+     */
+    private static final void setRow(Object pixels, int offset, double[] values)
+    {
+        int n = values.length;
+        if (pixels instanceof byte[])
+        {
+            byte[] array = (byte[]) pixels;
+            for (int i = 0; i < n; i++)
+            {
+                double value = Math.max(Math.min(values[i], 255.0), 0.0);
+                array[offset + i] = (byte) (value + 0.5);
+            }
+        }
+        else if (pixels instanceof short[])
+        {
+            short[] array = (short[]) pixels;
+            for (int i = 0; i < n; i++)
+            {
+                double value = Math.max(Math.min(values[i], 65535.0), 0.0);
+                array[offset + i] = (short) (value + 0.5);
+            }
+        }
+        else if (pixels instanceof float[])
+        {
+            float[] array = (float[]) pixels;
+            for (int i = 0; i < n; i++)
+            {
+                array[offset + i] = (float) values[i];
+            }
+        }
+        else
+        {
+            throw new IllegalArgumentException("Unsupported type of pixel array: " + pixels.getClass().getName());
+        }
+    }
+    
     /**
      * Computes the box-to-world transform, that will transform coordinates from
      * the box basis into the world (global) basis. The origin in the box basis
@@ -276,38 +1513,143 @@ public class RotCrop
         int sizeX2 = 2 * sizeX + sizeY;
         int sizeY2 = Math.max(sizeY,  sizeZ);
         ImageProcessor res = new ByteProcessor(sizeX2, sizeY2);
+        byte[] resPixels = (byte[]) res.getPixels();
         
         // add XY slice
+        Object slice = stack.getPixels(posZ + 1);
         for (int y = 0; y < sizeY; y++)
         {
-            for (int x = 0; x < sizeX; x++)
-            {
-                res.set(x, y, (int) stack.getVoxel(x, y, posZ));
-            }
+            copyValues(slice, y * sizeX, 1, resPixels, y * sizeX2, sizeX);
         }
         
         // add XZ slice
         for (int z = 0; z < sizeZ; z++)
         {
-            for (int x = 0; x < sizeX; x++)
-            {
-                res.set(x + sizeX, z, (int) stack.getVoxel(x, posY, z));
-            }
+            copyValues(stack.getPixels(z + 1), posY * sizeX, 1, resPixels, z * sizeX2 + sizeX, sizeX);
         }
         
         // add YZ slice
         for (int z = 0; z < sizeZ; z++)
         {
-            for (int y = 0; y < sizeY; y++)
-            {
-                res.set(y + 2 * sizeX, z, (int) stack.getVoxel(posX, y, z));
-            }
+            copyValues(stack.getPixels(z + 1), posX, sizeX, resPixels, z * sizeX2 + 2 * sizeX, sizeY);
         }
         
         return res;
     }
+    
+    /**
+     * Copies a line of values from a pixel array into a byte array. Values are
+     * converted to byte by truncation, as within the
+     * <code>ImageProcessor.set()</code> method.
+     * 
+     * @param pixels
+     *            the source pixel array
+     * @param offset
+     *            the index of the first element to read
+     * @param step
+     *            the difference of index between two consecutive elements to
+     *            read
+     * @param target
+     *            the target byte array
+     * @param targetOffset
+     *            the index of the first element to write
+     * @param count
+     *            the number of elements to copy
+     */
+    private static final void copyValues(Object pixels, int offset, int step, byte[] target, int targetOffset, int count)
+    {
+        if (pixels instanceof byte[])
+        {
+            byte[] array = (byte[]) pixels;
+            for (int i = 0; i < count; i++)
+            {
+                target[targetOffset + i] = array[offset + i * step];
+            }
+        }
+        else if (pixels instanceof short[])
+        {
+            short[] array = (short[]) pixels;
+            for (int i = 0; i < count; i++)
+            {
+                target[targetOffset + i] = (byte) (array[offset + i * step] & 0x00FFFF);
+            }
+        }
+        else if (pixels instanceof float[])
+        {
+            float[] array = (float[]) pixels;
+            for (int i = 0; i < count; i++)
+            {
+                target[targetOffset + i] = (byte) (int) array[offset + i * step];
+            }
+        }
+        else if (pixels instanceof int[])
+        {
+            int[] array = (int[]) pixels;
+            for (int i = 0; i < count; i++)
+            {
+                target[targetOffset + i] = (byte) (array[offset + i * step] & 0x00FFFFFF);
+            }
+        }
+        else
+        {
+            throw new IllegalArgumentException("Unsupported type of pixel array: " + pixels.getClass().getName());
+        }
+    }
 
     public static final ImageProcessor orthoSlices(Function3D fun, int[] stackDims)
+    {
+        ImageProcessor res = createOrthoSlices(stackDims);
+        sampleOrthoSlices(fun, stackDims, res, 1, false);
+        return res;
+    }
+
+    /**
+     * Computes the ortho-slices of a function progressively, from coarse to
+     * fine. The first pass samples one pixel out of
+     * <code>PROGRESSIVE_FIRST_STEP</code> along each direction, and each
+     * subsequent pass halves the sampling step, computing only the pixels that
+     * were not sampled by the previous passes. Pixels not yet sampled are
+     * filled with the value of the closest sample on their upper-left side.
+     * After each pass except the last one, a copy of the current result is
+     * sent to the listener, making it possible to display the partial result.
+     *
+     * @param fun
+     *            the function to sample
+     * @param stackDims
+     *            the dimensions of the volume to sample
+     * @param listener
+     *            the consumer of partial results
+     * @return the ortho-slices computed at full resolution
+     */
+    public static final ImageProcessor orthoSlices(Function3D fun, int[] stackDims, Consumer<ImageProcessor> listener)
+    {
+        ImageProcessor res = createOrthoSlices(stackDims);
+        for (int step = PROGRESSIVE_FIRST_STEP; step >= 1; step /= 2)
+        {
+            sampleOrthoSlices(fun, stackDims, res, step, step < PROGRESSIVE_FIRST_STEP);
+            if (step > 1)
+            {
+                listener.accept(res.duplicate());
+            }
+        }
+        return res;
+    }
+
+    private static final ImageProcessor createOrthoSlices(int[] stackDims)
+    {
+        int sizeX2 = 2 * stackDims[0] + stackDims[1];
+        int sizeY2 = Math.max(stackDims[1], stackDims[2]);
+        return new ByteProcessor(sizeX2, sizeY2);
+    }
+
+    /**
+     * Samples the three ortho-slices of a function with the specified step.
+     * 
+     * @param refine
+     *            if true, the pixels already sampled with twice the step are
+     *            not computed again
+     */
+    private static final void sampleOrthoSlices(Function3D fun, int[] stackDims, ImageProcessor res, int step, boolean refine)
     {
         int sizeX = stackDims[0];
         int sizeY = stackDims[1];
@@ -317,38 +1659,48 @@ public class RotCrop
         int posY = sizeY / 2;
         int posZ = sizeZ / 2;
         
-        int sizeX2 = 2 * sizeX + sizeY;
-        int sizeY2 = Math.max(sizeY,  sizeZ);
-        ImageProcessor res = new ByteProcessor(sizeX2, sizeY2);
-        
         // add XY slice
-        for (int y = 0; y < sizeY; y++)
-        {
-            for (int x = 0; x < sizeX; x++)
-            {
-                res.set(x, y, (int) fun.evaluate(x, y, posZ));
-            }
-        }
+        samplePanel(res, 0, sizeX, sizeY, step, refine, (x, y) -> fun.evaluate(x, y, posZ));
         
         // add XZ slice
-        for (int z = 0; z < sizeZ; z++)
-        {
-            for (int x = 0; x < sizeX; x++)
-            {
-                res.set(x + sizeX, z, (int) fun.evaluate(x, posY, z));
-            }
-        }
+        samplePanel(res, sizeX, sizeX, sizeZ, step, refine, (x, z) -> fun.evaluate(x, posY, z));
         
         // add YZ slice
-        for (int z = 0; z < sizeZ; z++)
+        samplePanel(res, 2 * sizeX, sizeY, sizeZ, step, refine, (y, z) -> fun.evaluate(posX, y, z));
+    }
+
+    /**
+     * Samples a panel of the ortho-slices image with the specified step, and
+     * fills the block of size <code>step</code> on the lower-right side of each
+     * sample with the value of the sample.
+     */
+    private static final void samplePanel(ImageProcessor res, int offsetX, int sizeU, int sizeV, int step, boolean refine, Function2D fun)
+    {
+        int step2 = 2 * step;
+        for (int v = 0; v < sizeV; v += step)
         {
-            for (int y = 0; y < sizeY; y++)
+            for (int u = 0; u < sizeU; u += step)
             {
-                res.set(y + 2 * sizeX, z, (int) fun.evaluate(posX, y, z));
+                if (refine && u % step2 == 0 && v % step2 == 0)
+                {
+                    continue;
+                }
+                int value = (int) fun.evaluate(u, v);
+                if (step == 1)
+                {
+                    res.set(u + offsetX, v, value);
+                    continue;
+                }
+                int u1 = Math.min(u + step, sizeU);
+                int v1 = Math.min(v + step, sizeV);
+                for (int v2 = v; v2 < v1; v2++)
+                {
+                    for (int u2 = u; u2 < u1; u2++)
+                    {
+                        res.set(u2 + offsetX, v2, value);
+                    }
+                }
             }
         }
-        
-        return res;
     }
-
 }
@@ -0,0 +1,343 @@
+/**
+ * 
+ */
+package net.ijt.rotcrop;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import net.ijt.geom3d.Point3D;
+import net.ijt.geom3d.Vector3D;
+
+/**
+ * A Gaussian scale-space of a 3D image, with one level per octave, used for
+ * evaluating gradients with arbitrary ranges at a cost that does not depend on
+ * the range. Level 0 is the source image. Level <code>l</code> is the source
+ * image smoothed with a Gaussian of standard deviation <code>2^l</code>, and
+ * subsampled by a factor <code>2^l</code>: the voxel with index
+ * <code>i</code> within level <code>l</code> corresponds to the voxel with
+ * index <code>2^l * i</code> of the source image.
+ *
+ * The gradient for a given sigma is evaluated on the coarsest level whose
+ * smoothing is below sigma, with the residual range
+ * <code>sqrt(sigma^2 - 4^l) / 2^l</code>, that remains small whatever the
+ * value of sigma. Levels are computed either synchronously with the
+ * <code>build()</code> method, or in the background with the
+ * <code>buildInBackground()</code> method. In the latter case, gradients are
+ * evaluated from the finest computed level until coarser levels are
+ * available. The number of levels is limited such that the levels fit within
+ * a fraction of the maximum heap size.
+ *
+ * <pre><code>
+ * ScaleSpace scaleSpace = new ScaleSpace(image);
+ * scaleSpace.buildInBackground();
+ * ...
+ * Vector3D grad = scaleSpace.evaluate(position, sigma);
+ * </code></pre>
+ *
+ * @see ImagePyramid
+ * @see RecursiveGaussian
+ *
+ * @author dlegland
+ *
+ */
+public class ScaleSpace
+{
+    // ====================================================
+    // Constants
+
+    /** The smallest size of the coarsest level, along each dimension. */
+    public static final int MIN_LEVEL_SIZE = 8;
+
+    /**
+     * The smallest residual range used for evaluating gradients on a level,
+     * in voxels of the level.
+     */
+    public static final double MIN_RESIDUAL_SIGMA = 1.0;
+
+    /**
+     * The largest fraction of the maximum heap size that can be used by the
+     * levels and by the temporary arrays used for their computation.
+     */
+    public static final double MAX_MEMORY_FRACTION = 0.25;
+
+
+    // ====================================================
+    // Static methods
+
+    /**
+     * Returns the standard deviation of the smoothing of a level, in voxels of
+     * the source image.
+     *
+     * @param level
+     *            the level of the scale-space
+     * @return the standard deviation of the smoothing
+     */
+    public static final double levelSigma(int level)
+    {
+        return level == 0 ? 0.0 : 1 << level;
+    }
+
+    /**
+     * Computes the next level of the scale-space, by smoothing a level and
+     * subsampling the result by a factor of two along each dimension. The
+     * image is filtered along the x and y directions slice by slice, and
+     * subsampled before filtering along z, such that the temporary memory
+     * corresponds to a quarter of the number of voxels of the image.
+     *
+     * @param image
+     *            the level to smooth (8-bit, 16-bit or 32-bit)
+     * @param sigma
+     *            the standard deviation of the smoothing, in voxels of the
+     *            image
+     * @return the smoothed and subsampled image, as a 32-bit stack
+     */
+    public static final ImageStack downsample(ImageStack image, double sigma)
+    {
+        int sizeX = image.getWidth();
+        int sizeY = image.getHeight();
+        int sizeZ = image.getSize();
+        int sizeX2 = (sizeX + 1) / 2;
+        int sizeY2 = (sizeY + 1) / 2;
+        int sizeZ2 = (sizeZ + 1) / 2;
+        RecursiveGaussian filter = new RecursiveGaussian(sigma);
+
+        // filter each slice along x and y, and keep the voxels with even indices
+        float[][] slices = new float[sizeZ][];
+        ParallelLoops.forRange(sizeZ, (z0, z1) -> {
+            double[] row = new double[sizeX];
+            double[] column = new double[sizeY];
+            float[] tmp = new float[sizeX2 * sizeY];
+            for (int z = z0; z < z1; z++)
+            {
+                ImageProcessor slice = image.getProcessor(z + 1);
+                for (int y = 0; y < sizeY; y++)
+                {
+                    for (int x = 0; x < sizeX; x++)
+                    {
+                        row[x] = slice.getf(y * sizeX + x);
+                    }
+                    filter.smooth(row);
+                    for (int x = 0; x < sizeX2; x++)
+                    {
+                        tmp[y * sizeX2 + x] = (float) row[2 * x];
+                    }
+                }
+
+                float[] res = new float[sizeX2 * sizeY2];
+                for (int x = 0; x < sizeX2; x++)
+                {
+                    for (int y = 0; y < sizeY; y++)
+                    {
+                        column[y] = tmp[y * sizeX2 + x];
+                    }
+                    filter.smooth(column);
+                    for (int y = 0; y < sizeY2; y++)
+                    {
+                        res[y * sizeX2 + x] = (float) column[2 * y];
+                    }
+                }
+                slices[z] = res;
+            }
+        });
+
+        // filter along z, and keep the slices with even indices
+        ImageStack res = ImageStack.create(sizeX2, sizeY2, sizeZ2, 32);
+        ParallelLoops.forRange(sizeY2, (y0, y1) -> {
+            double[] values = new double[sizeZ];
+            for (int i = y0 * sizeX2; i < y1 * sizeX2; i++)
+            {
+                for (int z = 0; z < sizeZ; z++)
+                {
+                    values[z] = slices[z][i];
+                }
+                filter.smooth(values);
+                for (int z = 0; z < sizeZ2; z++)
+                {
+                    ((float[]) res.getPixels(z + 1))[i] = (float) values[2 * z];
+                }
+            }
+        });
+        return res;
+    }
+
+
+    // ====================================================
+    // Class properties
+
+    /** The levels of the scale-space, or null for the levels not yet computed. */
+    private final AtomicReferenceArray<ImageStack> levels;
+
+    /** Whether the computation of the levels has been started. */
+    private boolean started = false;
+
+
+    // ====================================================
+    // Constructor
+
+    /**
+     * Creates a new scale-space for the specified image. Only the first level
+     * is available until the scale-space is built. Images that are not 8-bit,
+     * 16-bit or 32-bit have a single level.
+     *
+     * @param image
+     *            the source image
+     */
+    public ScaleSpace(ImageStack image)
+    {
+        int nLevels = 1;
+        int bitDepth = image.getBitDepth();
+        if (bitDepth == 8 || bitDepth == 16 || bitDepth == 32)
+        {
+            // the first level requires the largest temporary array, and each
+            // level uses 4 bytes per voxel
+            long voxelCount = (long) image.getWidth() * image.getHeight() * image.getSize();
+            long budget = (long) (Runtime.getRuntime().maxMemory() * MAX_MEMORY_FRACTION) - voxelCount;
+            int minSize = Math.min(Math.min(image.getWidth(), image.getHeight()), image.getSize());
+            while ((minSize >> nLevels) >= MIN_LEVEL_SIZE)
+            {
+                budget -= 4 * (voxelCount >> (3 * nLevels));
+                if (budget < 0)
+                {
+                    break;
+                }
+                nLevels++;
+            }
+        }
+        this.levels = new AtomicReferenceArray<ImageStack>(nLevels);
+        this.levels.set(0, image);
+    }
+
+
+    // ====================================================
+    // Methods
+
+    /**
+     * Computes all the levels of the scale-space, within the current thread.
+     */
+    public void build()
+    {
+        for (int l = 1; l < levels.length(); l++)
+        {
+            if (levels.get(l) == null)
+            {
+                // the previous level is already smoothed with a standard
+                // deviation of one voxel, except for the source image
+                double sigma = l == 1 ? 2.0 : Math.sqrt(3.0);
+                levels.set(l, downsample(levels.get(l - 1), sigma));
+            }
+        }
+    }
+
+    /**
+     * Starts computing the levels of the scale-space within the shared thread
+     * pool, and returns immediately. Subsequent calls have no effect.
+     */
+    public synchronized void buildInBackground()
+    {
+        if (started)
+        {
+            return;
+        }
+        started = true;
+        ParallelLoops.getPool().execute(this::build);
+    }
+
+    /**
+     * @return the number of levels of the scale-space, including the levels
+     *         not yet computed
+     */
+    public int getLevelCount()
+    {
+        return levels.length();
+    }
+
+    /**
+     * Returns the image of a level, or the image of the finest computed level
+     * if the requested level is not yet available.
+     *
+     * @param level
+     *            the requested level
+     * @return the image of the requested level, or of a finer level
+     */
+    public ImageStack getLevel(int level)
+    {
+        return levels.get(availableLevel(level));
+    }
+
+    /**
+     * Returns the coarsest computed level that is not coarser than the
+     * requested level.
+     *
+     * @param level
+     *            the requested level
+     * @return the index of the computed level
+     */
+    public int availableLevel(int level)
+    {
+        level = Math.min(Math.max(level, 0), levels.length() - 1);
+        while (levels.get(level) == null)
+        {
+            level--;
+        }
+        return level;
+    }
+
+    /**
+     * Returns the coarsest level that can be used for evaluating the gradient
+     * with the specified range, such that the residual range is at least
+     * <code>MIN_RESIDUAL_SIGMA</code> voxels of the level.
+     *
+     * @param sigma
+     *            the range of the gradient
+     * @return the level adapted to the range
+     */
+    public int levelFor(double sigma)
+    {
+        int level = 0;
+        while (level + 1 < levels.length() && residualSigma(sigma, level + 1) >= MIN_RESIDUAL_SIGMA)
+        {
+            level++;
+        }
+        return level;
+    }
+
+    private static final double residualSigma(double sigma, int level)
+    {
+        double levelSigma = levelSigma(level);
+        return Math.sqrt(Math.max(sigma * sigma - levelSigma * levelSigma, 0)) / (1 << level);
+    }
+
+    /**
+     * Evaluates the gradient of the source image at a position, from the
+     * level adapted to the range of the gradient. The result is scaled such
+     * that the gradient of a linear ramp is the same as with a local
+     * evaluation on the source image. When the finest level is used, the
+     * result is the same as the local evaluation.
+     *
+     * @see LocalGradientEstimator#evaluate(ImageStack, Point3D)
+     *
+     * @param position
+     *            the position of the gradient evaluation, in the coordinates
+     *            of the source image
+     * @param sigma
+     *            the range of the gradient
+     * @return the gradient at the specified position
+     */
+    public Vector3D evaluate(Point3D position, double sigma)
+    {
+        int level = availableLevel(levelFor(sigma));
+        if (level == 0)
+        {
+            return new LocalGradientEstimator(sigma).evaluate(levels.get(0), position);
+        }
+
+        double s = 1 << level;
+        double residual = residualSigma(sigma, level);
+        Point3D levelPos = new Point3D(position.x() / s, position.y() / s, position.z() / s);
+        Vector3D grad = new LocalGradientEstimator(residual).evaluate(levels.get(level), levelPos);
+        double k = LocalGradientEstimator.rampResponse(sigma) / (s * LocalGradientEstimator.rampResponse(residual));
+        return new Vector3D(grad.x() * k, grad.y() * k, grad.z() * k);
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * 
+ */
+package net.ijt.rotcrop;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import ij.process.ImageProcessor;
+
+/**
+ * Receives the slices of a 3D image computed one after the other, making it
+ * possible to process crops larger than the available memory.
+ *
+ * The <code>begin()</code> method is called once before the first slice.
+ * Slices are then passed in increasing order, from the thread that started
+ * the computation. The processor passed to the <code>accept()</code> method
+ * may be reused for computing the next slices, and must not be referenced
+ * after the method returns. The sink is closed by its owner once the image is
+ * complete, typically within a try-with-resources statement:
+ * <pre><code>
+ * try (SliceSink sink = new TiffSliceWriter(file))
+ * {
+ *     RotCrop.rotatedCrop(image, dims, refPoint, angles, Interpolation.LINEAR, 8, sink);
+ * }
+ * </code></pre>
+ *
+ * @see RawSliceWriter
+ * @see TiffSliceWriter
+ *
+ * @author dlegland
+ *
+ */
+public interface SliceSink extends Closeable
+{
+    /**
+     * Initializes the sink before receiving the slices of an image.
+     *
+     * @param sizeX
+     *            the width of the slices
+     * @param sizeY
+     *            the height of the slices
+     * @param sizeZ
+     *            the number of slices
+     * @param bitDepth
+     *            the bit depth of the slices (8, 16 or 32)
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    public void begin(int sizeX, int sizeY, int sizeZ, int bitDepth) throws IOException;
+
+    /**
+     * Processes the next slice of the image.
+     *
+     * @param z
+     *            the index of the slice, starting from 0
+     * @param slice
+     *            the content of the slice
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    public void accept(int z, ImageProcessor slice) throws IOException;
+}
@@ -0,0 +1,654 @@
+/**
+ * 
+ */
+package net.ijt.rotcrop;
+
+import java.util.List;
+
+import ij.ImageStack;
+import net.ijt.geom3d.Point3D;
+
+/**
+ * Estimates the local orientation of a 3D image from the structure tensor,
+ * obtained as the Gaussian-weighted sum of the outer products of the gradient
+ * within the neighborhood of a position. The result is a full orthonormal
+ * frame, made of the eigenvectors of the tensor, and is less sensitive to
+ * noise than the single gradient vector computed by the
+ * <code>LocalGradientEstimator</code> class.
+ *
+ * The gradients within the neighborhood are computed with the same separable
+ * kernels as the <code>LocalGradientEstimator</code> class, by filtering a
+ * block of voxels read once along the x, y, then z directions. The
+ * eigenvectors are computed with a closed-form solver for 3x3 symmetric
+ * matrices. Each estimator allocates its working arrays once, and does not
+ * allocate memory when evaluating a position; an estimator must therefore not
+ * be used by several threads at the same time. The batch evaluation method
+ * uses one estimator per thread.
+ *
+ * The frame is stored within an array of nine values: the normal, that is
+ * the eigenvector of the largest eigenvalue oriented along the mean gradient,
+ * followed by the two tangent vectors, such that the cross product of the
+ * tangent vectors equals the normal.
+ *
+ * @see LocalGradientEstimator
+ *
+ * @author dlegland
+ *
+ */
+public class StructureTensorEstimator
+{
+    // ====================================================
+    // Constants
+
+    /** The number of values describing a frame. */
+    public static final int FRAME_SIZE = 9;
+
+    /**
+     * The relative tolerance used to detect eigenvectors that cannot be
+     * computed from a single eigenvalue, for example for isotropic tensors.
+     */
+    private static final double EPSILON = 1e-10;
+
+
+    // ====================================================
+    // Class properties
+
+    /** The range of the gradient. */
+    private final double gradientSigma;
+
+    /** The range of the Gaussian weights of the gradient outer products. */
+    private final double integrationSigma;
+
+    /** The smoothing kernel followed by the derivative kernel, with n elements each. */
+    private final double[] kernels;
+
+    /** The 1D Gaussian weights of the integration window, with m elements. */
+    private final double[] weights;
+
+    /** The half-size of the gradient kernels, and of the integration window. */
+    private final int r;
+    private final int radius;
+
+    /** The working arrays, allocated once. */
+    private final double[] block;
+    private final double[] sx;
+    private final double[] dx;
+    private final double[] sxsy;
+    private final double[] sxdy;
+    private final double[] dxsy;
+    private final double[] gx;
+    private final double[] gy;
+    private final double[] gz;
+    private final double[] tensor = new double[6];
+    private final double[] meanGrad = new double[3];
+
+
+    // ====================================================
+    // Constructors
+
+    /**
+     * Creates a new estimator.
+     *
+     * @param gradientSigma
+     *            the range of the gradient
+     * @param integrationSigma
+     *            the range of the Gaussian weights used to sum the gradient
+     *            outer products
+     */
+    public StructureTensorEstimator(double gradientSigma, double integrationSigma)
+    {
+        this.gradientSigma = gradientSigma;
+        this.integrationSigma = integrationSigma;
+        this.kernels = LocalGradientEstimator.cachedKernel(gradientSigma, 3);
+        int n = kernels.length / 2;
+        this.r = (n - 1) / 2;
+
+        // normalized weights of the integration window
+        this.radius = (int) Math.ceil(2 * integrationSigma);
+        int m = 2 * radius + 1;
+        this.weights = new double[m];
+        double sum = 0.0;
+        for (int i = 0; i < m; i++)
+        {
+            double x = (i - radius) / integrationSigma;
+            weights[i] = Math.exp(-x * x * 0.5);
+            sum += weights[i];
+        }
+        for (int i = 0; i < m; i++)
+        {
+            weights[i] /= sum;
+        }
+
+        // the block of voxels contains the integration window extended by the
+        // half-size of the gradient kernels
+        int l = m + 2 * r;
+        this.block = new double[l * l * l];
+        this.sx = new double[l * l * m];
+        this.dx = new double[l * l * m];
+        this.sxsy = new double[l * m * m];
+        this.sxdy = new double[l * m * m];
+        this.dxsy = new double[l * m * m];
+        this.gx = new double[m * m * m];
+        this.gy = new double[m * m * m];
+        this.gz = new double[m * m * m];
+    }
+
+
+    // ====================================================
+    // Methods
+
+    /**
+     * Computes the orientation frame of an image at a position, by computing
+     * the gradients within the neighborhood of the position.
+     *
+     * @param image
+     *            the image containing voxel values
+     * @param position
+     *            the position of the evaluation
+     * @param frame
+     *            the array of nine values used to store the normal and the two
+     *            tangent vectors
+     * @param eigenValues
+     *            the array of three values used to store the eigenvalues of
+     *            the tensor, in decreasing order, or null
+     */
+    public void evaluate(ImageStack image, Point3D position, double[] frame, double[] eigenValues)
+    {
+        int x0 = (int) Math.round(position.x());
+        int y0 = (int) Math.round(position.y());
+        int z0 = (int) Math.round(position.z());
+        computeGradients(image, x0, y0, z0);
+        computeFrame(frame, eigenValues);
+    }
+
+    /**
+     * Computes the orientation frame of an image at a position, by reading the
+     * gradients within the neighborhood of the position from a gradient field.
+     * Gradients outside of the field are replaced by the closest gradient
+     * within the field. The gradient range of the field must be the same as
+     * the one of the estimator.
+     *
+     * @param field
+     *            the gradient field of the image
+     * @param position
+     *            the position of the evaluation
+     * @param frame
+     *            the array of nine values used to store the normal and the two
+     *            tangent vectors
+     * @param eigenValues
+     *            the array of three values used to store the eigenvalues of
+     *            the tensor, in decreasing order, or null
+     */
+    public void evaluate(GradientField field, Point3D position, double[] frame, double[] eigenValues)
+    {
+        int x0 = (int) Math.round(position.x());
+        int y0 = (int) Math.round(position.y());
+        int z0 = (int) Math.round(position.z());
+        readGradients(field, x0, y0, z0);
+        computeFrame(frame, eigenValues);
+    }
+
+    /**
+     * Computes the orientation frames of an image at a list of positions. The
+     * positions are distributed over the threads of the shared pool. When the
+     * neighborhoods of the positions cover a large part of the image, the
+     * gradients are read from the dense gradient field of the image.
+     *
+     * @param image
+     *            the image containing voxel values
+     * @param positions
+     *            the positions of the evaluations
+     * @return an array with 9*N elements, containing the frame of each
+     *         position, in the order of the positions
+     */
+    public double[] evaluate(ImageStack image, List<Point3D> positions)
+    {
+        int count = positions.size();
+        double[] res = new double[FRAME_SIZE * count];
+
+        // compare the cost of computing the gradients of each neighborhood
+        // with the cost of computing the gradients of the whole image
+        int l = weights.length + 2 * r;
+        long voxelCount = (long) image.getWidth() * image.getHeight() * image.getSize();
+        boolean useField = (long) count * 3 * l * l * l > 8 * voxelCount && GradientField.fitsInMemory(image);
+        GradientField field = useField ? GradientField.computeSeparable(image, gradientSigma) : null;
+
+        ParallelLoops.forRange(count, (i0, i1) -> {
+            StructureTensorEstimator estimator = new StructureTensorEstimator(gradientSigma, integrationSigma);
+            double[] frame = new double[FRAME_SIZE];
+            for (int i = i0; i < i1; i++)
+            {
+                if (useField)
+                {
+                    estimator.evaluate(field, positions.get(i), frame, null);
+                }
+                else
+                {
+                    estimator.evaluate(image, positions.get(i), frame, null);
+                }
+                System.arraycopy(frame, 0, res, FRAME_SIZE * i, FRAME_SIZE);
+            }
+        });
+        return res;
+    }
+
+    /**
+     * Computes the gradients within the integration window centered on a
+     * voxel, using separable convolutions of the block of voxels around the
+     * window. Voxels outside of image are replaced by the closest voxel within
+     * image.
+     */
+    private void computeGradients(ImageStack image, int x0, int y0, int z0)
+    {
+        int sizeX = image.getWidth();
+        int sizeY = image.getHeight();
+        int sizeZ = image.getSize();
+        int n = 2 * r + 1;
+        int m = weights.length;
+        int l = m + 2 * r;
+        int offset = radius + r;
+
+        // read the block of voxels
+        for (int k = 0; k < l; k++)
+        {
+            int z = Math.max(Math.min(z0 - offset + k, sizeZ - 1), 0);
+            Object slice = image.getPixels(z + 1);
+            for (int j = 0; j < l; j++)
+            {
+                int y = Math.max(Math.min(y0 - offset + j, sizeY - 1), 0);
+                int blockOffset = (k * l + j) * l;
+                for (int i = 0; i < l; i++)
+                {
+                    int x = Math.max(Math.min(x0 - offset + i, sizeX - 1), 0);
+                    block[blockOffset + i] = value(slice, y * sizeX + x);
+                }
+            }
+        }
+
+        // convolution along x
+        for (int kj = 0; kj < l * l; kj++)
+        {
+            for (int i = 0; i < m; i++)
+            {
+                double s = 0.0;
+                double d = 0.0;
+                int index = kj * l + i;
+                for (int t = 0; t < n; t++)
+                {
+                    double v = block[index + t];
+                    s += v * kernels[t];
+                    d += v * kernels[n + t];
+                }
+                sx[kj * m + i] = s;
+                dx[kj * m + i] = d;
+            }
+        }
+
+        // convolution along y
+        for (int k = 0; k < l; k++)
+        {
+            for (int j = 0; j < m; j++)
+            {
+                for (int i = 0; i < m; i++)
+                {
+                    double ss = 0.0;
+                    double sd = 0.0;
+                    double ds = 0.0;
+                    for (int t = 0; t < n; t++)
+                    {
+                        int index = (k * l + j + t) * m + i;
+                        ss += sx[index] * kernels[t];
+                        sd += sx[index] * kernels[n + t];
+                        ds += dx[index] * kernels[t];
+                    }
+                    int index = (k * m + j) * m + i;
+                    sxsy[index] = ss;
+                    sxdy[index] = sd;
+                    dxsy[index] = ds;
+                }
+            }
+        }
+
+        // convolution along z
+        for (int k = 0; k < m; k++)
+        {
+            for (int ji = 0; ji < m * m; ji++)
+            {
+                double vx = 0.0;
+                double vy = 0.0;
+                double vz = 0.0;
+                for (int t = 0; t < n; t++)
+                {
+                    int index = (k + t) * m * m + ji;
+                    vx += dxsy[index] * kernels[t];
+                    vy += sxdy[index] * kernels[t];
+                    vz += sxsy[index] * kernels[n + t];
+                }
+                gx[k * m * m + ji] = vx;
+                gy[k * m * m + ji] = vy;
+                gz[k * m * m + ji] = vz;
+            }
+        }
+    }
+
+    /**
+     * Reads the gradients within the integration window centered on a voxel
+     * from a gradient field.
+     */
+    private void readGradients(GradientField field, int x0, int y0, int z0)
+    {
+        ImageStack stackX = field.getGradientX();
+        ImageStack stackY = field.getGradientY();
+        ImageStack stackZ = field.getGradientZ();
+        int sizeX = stackX.getWidth();
+        int sizeY = stackX.getHeight();
+        int sizeZ = stackX.getSize();
+        int m = weights.length;
+
+        for (int k = 0; k < m; k++)
+        {
+            int z = Math.max(Math.min(z0 - radius + k, sizeZ - 1), 0);
+            float[] sliceX = (float[]) stackX.getPixels(z + 1);
+            float[] sliceY = (float[]) stackY.getPixels(z + 1);
+            float[] sliceZ = (float[]) stackZ.getPixels(z + 1);
+            for (int j = 0; j < m; j++)
+            {
+                int y = Math.max(Math.min(y0 - radius + j, sizeY - 1), 0);
+                for (int i = 0; i < m; i++)
+                {
+                    int x = Math.max(Math.min(x0 - radius + i, sizeX - 1), 0);
+                    int index = (k * m + j) * m + i;
+                    gx[index] = sliceX[y * sizeX + x];
+                    gy[index] = sliceY[y * sizeX + x];
+                    gz[index] = sliceZ[y * sizeX + x];
+                }
+            }
+        }
+    }
+
+    private static final double value(Object pixels, int index)
+    {
+        if (pixels instanceof byte[])
+        {
+            return ((byte[]) pixels)[index] & 0x00FF;
+        }
+        if (pixels instanceof short[])
+        {
+            return ((short[]) pixels)[index] & 0x00FFFF;
+        }
+        if (pixels instanceof float[])
+        {
+            return ((float[]) pixels)[index];
+        }
+        throw new IllegalArgumentException("Unsupported type of pixel array: " + pixels.getClass().getName());
+    }
+
+    /**
+     * Accumulates the weighted outer products of the gradients within the
+     * window, and computes the frame from the eigenvectors of the tensor.
+     */
+    private void computeFrame(double[] frame, double[] eigenValues)
+    {
+        int m = weights.length;
+        double txx = 0.0;
+        double txy = 0.0;
+        double txz = 0.0;
+        double tyy = 0.0;
+        double tyz = 0.0;
+        double tzz = 0.0;
+        double mx = 0.0;
+        double my = 0.0;
+        double mz = 0.0;
+        for (int k = 0; k < m; k++)
+        {
+            for (int j = 0; j < m; j++)
+            {
+                double wkj = weights[k] * weights[j];
+                int offset = (k * m + j) * m;
+                for (int i = 0; i < m; i++)
+                {
+                    double w = wkj * weights[i];
+                    double vx = gx[offset + i];
+                    double vy = gy[offset + i];
+                    double vz = gz[offset + i];
+                    txx += w * vx * vx;
+                    txy += w * vx * vy;
+                    txz += w * vx * vz;
+                    tyy += w * vy * vy;
+                    tyz += w * vy * vz;
+                    tzz += w * vz * vz;
+                    mx += w * vx;
+                    my += w * vy;
+                    mz += w * vz;
+                }
+            }
+        }
+        tensor[0] = txx;
+        tensor[1] = txy;
+        tensor[2] = txz;
+        tensor[3] = tyy;
+        tensor[4] = tyz;
+        tensor[5] = tzz;
+        meanGrad[0] = mx;
+        meanGrad[1] = my;
+        meanGrad[2] = mz;
+
+        eigenFrame(tensor, meanGrad, frame, eigenValues);
+    }
+
+    /**
+     * Computes the eigenvalues and the eigenvectors of a 3x3 symmetric matrix,
+     * using the closed-form trigonometric solution for the eigenvalues, and
+     * cross products of the rows of the shifted matrices for the
+     * eigenvectors. The eigenvector of the largest eigenvalue is oriented such
+     * that its dot product with the reference vector is positive.
+     *
+     * @param tensor
+     *            the six distinct coefficients of the matrix, in the order
+     *            xx, xy, xz, yy, yz, zz
+     * @param reference
+     *            the vector used to choose the orientation of the normal
+     * @param frame
+     *            the array of nine values used to store the eigenvectors of
+     *            the largest, the middle, and the smallest eigenvalues
+     * @param eigenValues
+     *            the array of three values used to store the eigenvalues in
+     *            decreasing order, or null
+     */
+    static final void eigenFrame(double[] tensor, double[] reference, double[] frame, double[] eigenValues)
+    {
+        double a00 = tensor[0];
+        double a01 = tensor[1];
+        double a02 = tensor[2];
+        double a11 = tensor[3];
+        double a12 = tensor[4];
+        double a22 = tensor[5];
+
+        // eigenvalues
+        double q = (a00 + a11 + a22) / 3.0;
+        double p1 = a01 * a01 + a02 * a02 + a12 * a12;
+        double b00 = a00 - q;
+        double b11 = a11 - q;
+        double b22 = a22 - q;
+        double p2 = b00 * b00 + b11 * b11 + b22 * b22 + 2 * p1;
+        double p = Math.sqrt(p2 / 6.0);
+        double l1;
+        double l2;
+        double l3;
+        if (p <= EPSILON * Math.abs(q) || p == 0)
+        {
+            // isotropic matrix
+            l1 = q;
+            l2 = q;
+            l3 = q;
+        }
+        else
+        {
+            double det = b00 * (b11 * b22 - a12 * a12) - a01 * (a01 * b22 - a12 * a02) + a02 * (a01 * a12 - b11 * a02);
+            double r = det / (2 * p * p * p);
+            double phi = Math.acos(Math.max(Math.min(r, 1.0), -1.0)) / 3.0;
+            l1 = q + 2 * p * Math.cos(phi);
+            l3 = q + 2 * p * Math.cos(phi + 2 * Math.PI / 3);
+            l2 = 3 * q - l1 - l3;
+        }
+        if (eigenValues != null)
+        {
+            eigenValues[0] = l1;
+            eigenValues[1] = l2;
+            eigenValues[2] = l3;
+        }
+
+        // normal, from the largest eigenvalue, or along the reference vector
+        // for isotropic tensors
+        double scale = Math.max(Math.abs(l1), Math.abs(l3));
+        if (!eigenVector(a00, a01, a02, a11, a12, a22, l1, scale, frame, 0))
+        {
+            frame[0] = reference[0];
+            frame[1] = reference[1];
+            frame[2] = reference[2];
+            if (!normalize(frame, 0))
+            {
+                frame[0] = 0;
+                frame[1] = 0;
+                frame[2] = 1;
+            }
+        }
+        if (frame[0] * reference[0] + frame[1] * reference[1] + frame[2] * reference[2] < 0)
+        {
+            frame[0] = -frame[0];
+            frame[1] = -frame[1];
+            frame[2] = -frame[2];
+        }
+
+        // first tangent, from the middle eigenvalue, made orthogonal to the
+        // normal. For degenerate eigenvalues, any orthogonal vector is used.
+        boolean valid = eigenVector(a00, a01, a02, a11, a12, a22, l2, scale, frame, 3);
+        if (valid)
+        {
+            double dot = frame[0] * frame[3] + frame[1] * frame[4] + frame[2] * frame[5];
+            frame[3] -= dot * frame[0];
+            frame[4] -= dot * frame[1];
+            frame[5] -= dot * frame[2];
+            valid = normalize(frame, 3);
+        }
+        if (!valid)
+        {
+            // cross product with the basis vector the less parallel to the normal
+            double ax = Math.abs(frame[0]);
+            double ay = Math.abs(frame[1]);
+            double az = Math.abs(frame[2]);
+            if (ax <= ay && ax <= az)
+            {
+                frame[3] = 0;
+                frame[4] = frame[2];
+                frame[5] = -frame[1];
+            }
+            else if (ay <= az)
+            {
+                frame[3] = -frame[2];
+                frame[4] = 0;
+                frame[5] = frame[0];
+            }
+            else
+            {
+                frame[3] = frame[1];
+                frame[4] = -frame[0];
+                frame[5] = 0;
+            }
+            normalize(frame, 3);
+        }
+
+        // second tangent, such that the cross product of the tangents is the normal
+        frame[6] = frame[1] * frame[5] - frame[2] * frame[4];
+        frame[7] = frame[2] * frame[3] - frame[0] * frame[5];
+        frame[8] = frame[0] * frame[4] - frame[1] * frame[3];
+    }
+
+    /**
+     * Computes the eigenvector associated to an eigenvalue as the largest
+     * cross product of two rows of the shifted matrix, and stores it within
+     * the array at the specified offset.
+     *
+     * @return false if the eigenvector could not be determined
+     */
+    private static final boolean eigenVector(double a00, double a01, double a02, double a11, double a12, double a22,
+            double lambda, double scale, double[] res, int offset)
+    {
+        double r00 = a00 - lambda;
+        double r11 = a11 - lambda;
+        double r22 = a22 - lambda;
+
+        // cross products of the rows (r00, a01, a02), (a01, r11, a12), (a02, a12, r22)
+        double c0x = a01 * a12 - a02 * r11;
+        double c0y = a02 * a01 - r00 * a12;
+        double c0z = r00 * r11 - a01 * a01;
+        double c1x = a01 * r22 - a02 * a12;
+        double c1y = a02 * a02 - r00 * r22;
+        double c1z = r00 * a12 - a01 * a02;
+        double c2x = r11 * r22 - a12 * a12;
+        double c2y = a12 * a02 - a01 * r22;
+        double c2z = a01 * a12 - r11 * a02;
+        double n0 = c0x * c0x + c0y * c0y + c0z * c0z;
+        double n1 = c1x * c1x + c1y * c1y + c1z * c1z;
+        double n2 = c2x * c2x + c2y * c2y + c2z * c2z;
+
+        double norm2;
+        if (n0 >= n1 && n0 >= n2)
+        {
+            res[offset] = c0x;
+            res[offset + 1] = c0y;
+            res[offset + 2] = c0z;
+            norm2 = n0;
+        }
+        else if (n1 >= n2)
+        {
+            res[offset] = c1x;
+            res[offset + 1] = c1y;
+            res[offset + 2] = c1z;
+            norm2 = n1;
+        }
+        else
+        {
+            res[offset] = c2x;
+            res[offset + 1] = c2y;
+            res[offset + 2] = c2z;
+            norm2 = n2;
+        }
+
+        // cross products vanish when the eigenvalue is not simple
+        if (norm2 <= EPSILON * scale * scale * scale * scale || norm2 == 0)
+        {
+            return false;
+        }
+        return normalize(res, offset);
+    }
+
+    private static final boolean normalize(double[] array, int offset)
+    {
+        double norm = Math.sqrt(array[offset] * array[offset] + array[offset + 1] * array[offset + 1] + array[offset + 2] * array[offset + 2]);
+        if (norm == 0)
+        {
+            return false;
+        }
+        array[offset] /= norm;
+        array[offset + 1] /= norm;
+        array[offset + 2] /= norm;
+        return true;
+    }
+
+    /**
+     * @return the range of the gradient
+     */
+    public double getGradientSigma()
+    {
+        return gradientSigma;
+    }
+
+    /**
+     * @return the range of the Gaussian weights of the gradient outer products
+     */
+    public double getIntegrationSigma()
+    {
+        return integrationSigma;
+    }
+}
@@ -0,0 +1,213 @@
+/**
+ * 
+ */
+package net.ijt.rotcrop;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes the slices of an image into an uncompressed multi-page TIFF file,
+ * that can be opened by ImageJ as a stack.
+ *
+ * The file follows the layout used by ImageJ: the header and the first image
+ * file directory (IFD) are written before the pixel data of the first slice,
+ * the pixel data of all slices are contiguous, and the IFDs of the other
+ * slices are written at the end of the file once all the slices have been
+ * received. When the file is larger than 4GB, only the first IFD is written,
+ * and ImageJ uses the description of the first IFD to retrieve the other
+ * slices.
+ *
+ * @see RotCrop#resample(ResamplingKernel3D, int[], int, SliceSink)
+ *
+ * @author dlegland
+ *
+ */
+public class TiffSliceWriter extends FileSliceWriter
+{
+    // ====================================================
+    // Constants
+
+    /** The size of the file header, in bytes. */
+    private static final int HEADER_SIZE = 8;
+
+    /** The number of entries of the first IFD. */
+    private static final int FIRST_IFD_ENTRIES = 11;
+
+    /** The number of entries of the other IFDs (no description). */
+    private static final int IFD_ENTRIES = 10;
+
+    // TIFF field types
+    private static final int ASCII = 2;
+    private static final int SHORT = 3;
+    private static final int LONG = 4;
+
+    /** The largest offset that can be stored within a TIFF file. */
+    private static final long MAX_OFFSET = 0xFFFFFFFFL;
+
+
+    // ====================================================
+    // Class properties
+
+    /** The offset of the pixel data of the first slice. */
+    private long dataOffset;
+
+    /** The length of the image description, including padding. */
+    private int descriptionLength;
+
+    /** The offset of the IFD of the second slice, or 0 if not written. */
+    private long nextIfdOffset;
+
+
+    // ====================================================
+    // Constructor
+
+    /**
+     * Creates a new writer into the specified file. An existing file is
+     * overwritten.
+     *
+     * @param file
+     *            the file to write
+     * @throws IOException
+     *             if the file can not be opened
+     */
+    public TiffSliceWriter(File file) throws IOException
+    {
+        super(file);
+    }
+
+
+    // ====================================================
+    // Implementation of the SliceSink interface
+
+    @Override
+    public void begin(int sizeX, int sizeY, int sizeZ, int bitDepth) throws IOException
+    {
+        super.begin(sizeX, sizeY, sizeZ, bitDepth);
+
+        byte[] description = description(sizeZ);
+        this.descriptionLength = description.length;
+        this.dataOffset = HEADER_SIZE + ifdSize(FIRST_IFD_ENTRIES) + descriptionLength;
+        long dataEnd = dataOffset + sizeZ * sliceSize();
+        long ifdOffset = dataEnd + (dataEnd & 1);
+        long end = ifdOffset + (sizeZ - 1) * (long) ifdSize(IFD_ENTRIES);
+        this.nextIfdOffset = sizeZ > 1 && end <= MAX_OFFSET ? ifdOffset : 0;
+
+        // header, with big-endian byte order
+        out.writeByte('M');
+        out.writeByte('M');
+        out.writeShort(42);
+        out.writeInt(HEADER_SIZE);
+        position = HEADER_SIZE;
+
+        // first IFD, followed by the description
+        writeIfd(FIRST_IFD_ENTRIES, dataOffset, nextIfdOffset);
+        out.write(description);
+        position += description.length;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            if (nextSlice < sizeZ)
+            {
+                throw new IOException("Only " + nextSlice + " slices written out of " + sizeZ);
+            }
+            if (nextIfdOffset != 0)
+            {
+                if ((position & 1) != 0)
+                {
+                    out.writeByte(0);
+                    position++;
+                }
+                // IFDs of the remaining slices
+                int ifdSize = ifdSize(IFD_ENTRIES);
+                for (int z = 1; z < sizeZ; z++)
+                {
+                    long next = z < sizeZ - 1 ? position + ifdSize : 0;
+                    writeIfd(IFD_ENTRIES, dataOffset + z * sliceSize(), next);
+                }
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+
+    // ====================================================
+    // Utility methods
+
+    /**
+     * Writes an IFD at the current position.
+     *
+     * @param nEntries
+     *            the number of entries, that determines whether the
+     *            description is included
+     * @param stripOffset
+     *            the offset of the pixel data of the slice
+     * @param next
+     *            the offset of the next IFD, or 0 for the last one
+     */
+    private void writeIfd(int nEntries, long stripOffset, long next) throws IOException
+    {
+        long ifdStart = position;
+        out.writeShort(nEntries);
+        writeEntry(254, LONG, 1, 0); // NewSubfileType
+        writeEntry(256, LONG, 1, sizeX); // ImageWidth
+        writeEntry(257, LONG, 1, sizeY); // ImageLength
+        writeEntry(258, SHORT, 1, bitDepth); // BitsPerSample
+        writeEntry(262, SHORT, 1, 1); // PhotometricInterpretation: black is zero
+        if (nEntries == FIRST_IFD_ENTRIES)
+        {
+            // ImageDescription, stored just after the IFD
+            writeEntry(270, ASCII, descriptionLength, ifdStart + ifdSize(nEntries));
+        }
+        writeEntry(273, LONG, 1, stripOffset); // StripOffsets
+        writeEntry(277, SHORT, 1, 1); // SamplesPerPixel
+        writeEntry(278, LONG, 1, sizeY); // RowsPerStrip
+        writeEntry(279, LONG, 1, sliceSize()); // StripByteCounts
+        writeEntry(339, SHORT, 1, bitDepth == 32 ? 3 : 1); // SampleFormat
+        out.writeInt((int) next);
+        position += ifdSize(nEntries);
+    }
+
+    private void writeEntry(int tag, int type, int count, long value) throws IOException
+    {
+        out.writeShort(tag);
+        out.writeShort(type);
+        out.writeInt(count);
+        if (type == SHORT)
+        {
+            // values are left-justified within the four bytes of the field
+            out.writeShort((int) value);
+            out.writeShort(0);
+        }
+        else
+        {
+            out.writeInt((int) value);
+        }
+    }
+
+    private static final int ifdSize(int nEntries)
+    {
+        return 2 + 12 * nEntries + 4;
+    }
+
+    /**
+     * Creates the ImageJ description of a stack with the specified number of
+     * slices, as a NUL-terminated string padded to an even length.
+     */
+    private static final byte[] description(int nSlices)
+    {
+        String text = "ImageJ=\nimages=" + nSlices + "\nslices=" + nSlices + "\n";
+        byte[] chars = text.getBytes(StandardCharsets.US_ASCII);
+        byte[] res = new byte[(chars.length + 2) & ~1];
+        System.arraycopy(chars, 0, res, 0, chars.length);
+        return res;
+    }
+}
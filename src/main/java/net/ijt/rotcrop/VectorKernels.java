@@ -0,0 +1,61 @@
+/**
+ * 
+ */
+package net.ijt.rotcrop;
+
+import ij.ImageStack;
+import net.ijt.geom3d.AffineTransform3D;
+
+/**
+ * Creates resampling kernels that interpolate several voxels per iteration
+ * using the SIMD instructions of the processor.
+ *
+ * This version is used on Java 8 to 15 runtimes, that do not provide the
+ * Vector API, and never returns vectorized kernels. The plugin jar is a
+ * multi-release jar: on Java 16 and later, the implementation located in
+ * <code>src/main/java16</code> is used instead, and returns kernels based on
+ * the <code>jdk.incubator.vector</code> module when this module is enabled
+ * (using the <code>--add-modules jdk.incubator.vector</code> option of the
+ * JVM).
+ *
+ * @author dlegland
+ *
+ */
+final class VectorKernels
+{
+    /**
+     * Checks whether vectorized kernels can be used by the current runtime.
+     *
+     * @return false, as the Vector API is not available.
+     */
+    static final boolean isAvailable()
+    {
+        return false;
+    }
+
+    /**
+     * Creates a vectorized resampling kernel for the specified image, or
+     * returns null if no vectorized kernel is available for the runtime, the
+     * image type or the interpolation method.
+     *
+     * @param image
+     *            the image to resample
+     * @param transfo
+     *            the transform that maps coordinates in the result image into
+     *            coordinates in the source image
+     * @param interpolation
+     *            the interpolation method
+     * @return null, as the Vector API is not available.
+     */
+    static final ResamplingKernel3D create(ImageStack image, AffineTransform3D transfo, Interpolation interpolation)
+    {
+        return null;
+    }
+
+    /**
+     * Private constructor to prevent instantiation.
+     */
+    private VectorKernels()
+    {
+    }
+}
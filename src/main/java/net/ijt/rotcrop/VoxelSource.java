@@ -0,0 +1,73 @@
+/**
+ * 
+ */
+package net.ijt.rotcrop;
+
+import net.ijt.geom3d.AffineTransform3D;
+
+/**
+ * A 3D image that can be sampled voxel by voxel, without requiring the whole
+ * image to be loaded as an <code>ImageStack</code>. This makes it possible to
+ * crop images larger than the available memory.
+ *
+ * Implementations must support concurrent calls to the
+ * <code>getVoxel()</code> method.
+ *
+ * @see MappedVoxelSource
+ * @see ChunkedVolume
+ * @see ResamplingKernel3D#create(VoxelSource, net.ijt.geom3d.AffineTransform3D, Interpolation)
+ *
+ * @author dlegland
+ *
+ */
+public interface VoxelSource
+{
+    /**
+     * @return the size of the image in the X direction
+     */
+    public int getWidth();
+
+    /**
+     * @return the size of the image in the Y direction
+     */
+    public int getHeight();
+
+    /**
+     * @return the size of the image in the Z direction
+     */
+    public int getSize();
+
+    /**
+     * @return the bit depth of the image (8, 16 or 32)
+     */
+    public int getBitDepth();
+
+    /**
+     * Returns the value of a voxel. Indices are assumed to be within image
+     * bounds.
+     *
+     * @param x
+     *            the x-index of the voxel, starting from 0
+     * @param y
+     *            the y-index of the voxel, starting from 0
+     * @param z
+     *            the z-index of the voxel, starting from 0
+     * @return the value of the voxel
+     */
+    public double getVoxel(int x, int y, int z);
+
+    /**
+     * Notifies the source that a box is about to be resampled, so that the
+     * data it covers can be loaded in advance. The default implementation does
+     * nothing.
+     *
+     * @param transfo
+     *            the transform that maps coordinates in the box into
+     *            coordinates in the source
+     * @param dims
+     *            the size of the box
+     */
+    public default void prefetch(AffineTransform3D transfo, int[] dims)
+    {
+    }
+}
@@ -10,18 +10,22 @@ import java.awt.GridLayout;
 import java.awt.Point;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
+import java.awt.event.MouseMotionListener;
 
 import javax.swing.BoxLayout;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JSpinner;
 import javax.swing.SpinnerNumberModel;
+import javax.swing.SwingUtilities;
 import javax.swing.border.EmptyBorder;
 
 import ij.IJ;
+import ij.ImageListener;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.gui.GUI;
@@ -32,7 +36,10 @@ import ij.process.ImageProcessor;
 import net.ijt.geom3d.AffineTransform3D;
 import net.ijt.geom3d.Point3D;
 import net.ijt.interp.Function3D;
-import net.ijt.interp.TransformedImage3D;
+import net.ijt.rotcrop.CropCache;
+import net.ijt.rotcrop.ImagePyramid;
+import net.ijt.rotcrop.Interpolation;
+import net.ijt.rotcrop.ResamplingKernel3D;
 import net.ijt.rotcrop.RotCrop;
 
 /**
@@ -72,9 +79,10 @@ public class CropOrientedBox3DPlugin implements PlugIn
         // add mouse listener to the input image window to track box positioning
         Canvas canvas = imagePlus.getWindow().getCanvas();
         canvas.addMouseListener(frame);
+        canvas.addMouseMotionListener(frame);
     }
     
-    public class Frame extends JFrame implements MouseListener
+    public class Frame extends JFrame implements MouseListener, MouseMotionListener, ImageListener
     {
         // ====================================================
         // Static fields
@@ -100,6 +108,9 @@ public class CropOrientedBox3DPlugin implements PlugIn
         double boxRotZ;
         // TODO: create a "Box"/"OrientedBox" inner class?
 
+        /** The method used to interpolate values of the result image. */
+        Interpolation interpolation = Interpolation.LINEAR;
+
 
         // ====================================================
         // GUI Widgets
@@ -114,13 +125,53 @@ public class CropOrientedBox3DPlugin implements PlugIn
         JSpinner boxRotYWidget;
         JSpinner boxRotXWidget;
 
+        JComboBox<Interpolation> interpolationWidget;
+
         JCheckBox autoPreviewCheckBox;
+        JCheckBox virtualStackCheckBox;
         JButton previewButton;
         JButton runButton;
         
         /** The frame used to display the result of rotated crop. */
         ImageWindow previewFrame = null;
         
+        /**
+         * The downsampled versions of the image, built in the background, used
+         * to compute the preview at the resolution of the display.
+         */
+        ImagePyramid pyramid;
+        
+        /**
+         * Whether the source image has changed since the creation of the
+         * pyramid.
+         */
+        volatile boolean pyramidStale = false;
+        
+        /**
+         * The stack and the current slice of the image at the last
+         * notification, used to recognize the notifications of slice changes.
+         */
+        ImageStack lastStack;
+        int lastSlice;
+        
+        /** The level of the pyramid used for the current preview. */
+        int previewLevel = 0;
+        
+        /** Adapts the quality of the preview while the box is dragged. */
+        PreviewQuality quality = new PreviewQuality();
+        
+        /** Whether the box center is currently dragged within the image window. */
+        boolean dragging = false;
+        
+        /**
+         * Whether the spinners of the box center are updated by the mouse, in
+         * which case their listeners do not update the preview.
+         */
+        boolean movingCenter = false;
+        
+        /** Computes the previews without blocking the GUI. */
+        PreviewScheduler<ImagePlus> scheduler = new PreviewScheduler<ImagePlus>("Rotated Crop Preview");
+        
 
         // ====================================================
         // Constructor
@@ -141,6 +192,16 @@ public class CropOrientedBox3DPlugin implements PlugIn
             boxRotY = 0.0;
             boxRotX = 0.0;
 
+            // previews use downsampled images when the display is zoomed out
+            pyramid = new ImagePyramid(imagePlus.getStack());
+            pyramid.buildInBackground();
+            lastStack = imagePlus.getStack();
+            lastSlice = imagePlus.getCurrentSlice();
+            ImagePlus.addImageListener(this);
+
+            // closing the frame releases the listeners and the preview thread
+            setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+
             setupWidgets();
             setupLayout();
 
@@ -150,6 +211,20 @@ public class CropOrientedBox3DPlugin implements PlugIn
             setVisible(true);
         }
 
+        @Override
+        public void dispose()
+        {
+            ImagePlus.removeImageListener(this);
+            ImageWindow window = imagePlus.getWindow();
+            if (window != null)
+            {
+                window.getCanvas().removeMouseListener(this);
+                window.getCanvas().removeMouseMotionListener(this);
+            }
+            scheduler.shutdown();
+            super.dispose();
+        }
+
         private void setupWidgets()
         {
             runButton = new JButton("Run!");
@@ -219,12 +294,22 @@ public class CropOrientedBox3DPlugin implements PlugIn
                 updatePreviewIfNeeded();
             });
             
+            interpolationWidget = new JComboBox<Interpolation>(Interpolation.values());
+            interpolationWidget.setSelectedItem(interpolation);
+            interpolationWidget.addActionListener(evt -> {
+                this.interpolation = (Interpolation) interpolationWidget.getSelectedItem();
+                updatePreviewIfNeeded();
+            });
+            
             autoPreviewCheckBox = new JCheckBox("Auto-Update", false);
             autoPreviewCheckBox.addItemListener(evt -> updatePreviewIfNeeded());
 
             previewButton = new JButton("Preview");
             previewButton.addActionListener(evt -> updatePreview());
             
+            virtualStackCheckBox = new JCheckBox("Virtual Stack", false);
+            virtualStackCheckBox.setToolTipText("Compute slices only when they are displayed");
+            
             runButton = new JButton("Create Result Image");
             runButton.addActionListener(evt -> displayResult());
         }
@@ -267,8 +352,9 @@ public class CropOrientedBox3DPlugin implements PlugIn
             mainPanel.add(rotationPanel);
             
             // also add buttons
+            GuiHelper.addInLine(mainPanel, FlowLayout.CENTER, new JLabel("Interpolation:"), interpolationWidget);
             GuiHelper.addInLine(mainPanel, FlowLayout.CENTER, autoPreviewCheckBox, previewButton);
-            GuiHelper.addInLine(mainPanel, FlowLayout.CENTER, runButton);
+            GuiHelper.addInLine(mainPanel, FlowLayout.CENTER, virtualStackCheckBox, runButton);
             
             // put main panel in the middle of frame
             this.setLayout(new BorderLayout());
@@ -277,34 +363,75 @@ public class CropOrientedBox3DPlugin implements PlugIn
         
         public void updatePreview()
         {
-            // retrieve data
-            ImageStack stack = imagePlus.getStack();
+            // retrieve data, on the EDT
+            if (pyramidStale)
+            {
+                pyramid = new ImagePyramid(imagePlus.getStack());
+                pyramid.buildInBackground();
+                pyramidStale = false;
+            }
+            ImageStack stack = pyramid.getLevel(0);
             int[] dims = new int[] {boxSizeX, boxSizeY, boxSizeZ};
             Point3D cropCenter = new Point3D(boxCenterX, boxCenterY, boxCenterZ);
             double[] angles = new double[] {boxRotX, boxRotY, boxRotZ};
 
-            // compute the transform
-            AffineTransform3D transfo = RotCrop.computeTransform(cropCenter, dims, angles);
+            // choose the level of the pyramid from the magnification of the
+            // preview, expressed relative to the full resolution. While the box
+            // is dragged, the quality is lowered to keep interactive rates.
+            double fullMag = this.previewFrame == null ? 1.0
+                    : this.previewFrame.getCanvas().getMagnification() / (1 << previewLevel);
+            int step = dragging ? quality.getStep() : 0;
+            int level = pyramid.availableLevel(pyramid.levelFor(fullMag) + PreviewQuality.levelOffset(step));
+            Interpolation previewInterp = PreviewQuality.interpolation(step, interpolation);
+            ImageStack levelImage = pyramid.getLevel(level);
 
-            // Create interpolation class, that encapsulates both the image and the
-            // transform
-            Function3D interp = new TransformedImage3D(stack, transfo);
+            // compute the preview in the background, only the result of the
+            // newest request is displayed
+            boolean progressive = !dragging;
+            CropCache.Key key = CropCache.shared().key("rotatedCropPreview", stack, dims,
+                    new double[] {cropCenter.x(), cropCenter.y(), cropCenter.z(), angles[0], angles[1], angles[2], level}, previewInterp, 8);
+            scheduler.submit(request -> {
+                // previews already computed with the same parameters are reused
+                ImageProcessor preview = CropCache.shared().get(key, () -> {
+                    // compute the transform
+                    AffineTransform3D transfo = RotCrop.computeTransform(cropCenter, dims, angles);
 
-            ImageProcessor preview = RotCrop.orthoSlices(interp, dims);
-            ImagePlus previewPlus = new ImagePlus("Rotated Crop Preview", preview);
+                    // Create resampling kernel, that encapsulates both the image and the
+                    // transform.
+                    Function3D interp = ResamplingKernel3D.create(levelImage,
+                            ImagePyramid.levelTransform(transfo, level), previewInterp);
 
+                    // measure the rendering time to choose the quality of the next
+                    // preview. Previews that are not dragged are computed from
+                    // coarse to fine, and each pass is displayed.
+                    Function3D fun = PreviewScheduler.checking(interp, request);
+                    int[] levelDims = ImagePyramid.levelDims(dims, level);
+                    long t0 = System.nanoTime();
+                    ImageProcessor res = progressive
+                            ? RotCrop.orthoSlices(fun, levelDims, partial -> request.publish(new ImagePlus("Rotated Crop Preview", partial)))
+                            : RotCrop.orthoSlices(fun, levelDims);
+                    quality.update(step, System.nanoTime() - t0);
+                    return res;
+                });
+                return new ImagePlus("Rotated Crop Preview", preview);
+            }, previewPlus -> displayPreview(previewPlus, level, fullMag));
+        }
+        
+        private void displayPreview(ImagePlus previewPlus, int level, double fullMag)
+        {
             // retrieve frame for displaying result
             if (this.previewFrame == null)
             {
                 this.previewFrame = new ImageWindow(previewPlus);
             }
-            // update display frame, keeping the previous magnification
-            double mag = this.previewFrame.getCanvas().getMagnification();
+            // update display frame, keeping the previous magnification relative
+            // to the full resolution
+            this.previewLevel = level;
             this.previewFrame.setImage(previewPlus);
-            this.previewFrame.getCanvas().setMagnification(mag);
+            this.previewFrame.getCanvas().setMagnification(fullMag * (1 << level));
             this.previewFrame.setVisible(true);
         }
-
+        
         public void displayResult()
         {
             int[] dims = new int[] {boxSizeX, boxSizeY, boxSizeZ};
@@ -315,9 +442,23 @@ public class CropOrientedBox3DPlugin implements PlugIn
             IJ.log(String.format("  box size: %d x %d x %d", boxSizeX, boxSizeY, boxSizeZ));
             IJ.log(String.format("  refPoint: " + cropCenter));
             IJ.log(String.format("  Euler Angles: %5.2f, %5.2f, %5.2f", boxRotX, boxRotY, boxRotZ));
+            IJ.log("  interpolation: " + interpolation);
             
             // compute the crop
-            ImageStack res = RotCrop.rotatedCrop(imagePlus.getStack(), dims, cropCenter, angles);
+            ImageStack res;
+            if (virtualStackCheckBox.isSelected())
+            {
+                res = RotCrop.rotatedCropVirtual(imagePlus.getStack(), dims, cropCenter, angles, interpolation);
+            }
+            else
+            {
+                // results already computed from the current content of the
+                // image are reused, the listener of the frame invalidates them
+                ImageStack stack = imagePlus.getStack();
+                CropCache.Key key = CropCache.shared().key("rotatedCrop", stack, dims,
+                        new double[] {cropCenter.x(), cropCenter.y(), cropCenter.z(), angles[0], angles[1], angles[2]}, interpolation, imagePlus.getBitDepth());
+                res = CropCache.shared().get(key, () -> RotCrop.rotatedCrop(stack, dims, cropCenter, angles, interpolation));
+            }
             ImagePlus resultPlus = new ImagePlus("Result", res);
             
             // display in a new frame
@@ -327,37 +468,112 @@ public class CropOrientedBox3DPlugin implements PlugIn
 
         private void updatePreviewIfNeeded()
         {
-            if (this.autoPreviewCheckBox.isSelected())
+            if (this.autoPreviewCheckBox.isSelected() && !movingCenter)
             {
                 updatePreview();
             }
         }
 
         @Override
-        public void mouseClicked(MouseEvent e)
+        public void imageOpened(ImagePlus imp)
         {
         }
 
         @Override
-        public void mousePressed(MouseEvent e)
+        public void imageClosed(ImagePlus imp)
         {
-            Point mousePosition = imagePlus.getWindow().getCanvas().getCursorLoc();
-            this.boxCenterX = mousePosition.x;
-            ((SpinnerNumberModel) this.boxCenterXWidget.getModel()).setValue(this.boxCenterX);
-            this.boxCenterY = mousePosition.y;
-            ((SpinnerNumberModel) this.boxCenterYWidget.getModel()).setValue(this.boxCenterY);
-            this.boxCenterZ = imagePlus.getCurrentSlice() - 1;
-            ((SpinnerNumberModel) this.boxCenterZWidget.getModel()).setValue(this.boxCenterZ);
+            // the frame can not be used without the source image
+            if (imp == this.imagePlus)
+            {
+                SwingUtilities.invokeLater(this::dispose);
+            }
+        }
+
+        @Override
+        public void imageUpdated(ImagePlus imp)
+        {
+            if (imp != this.imagePlus)
+            {
+                return;
+            }
             
-            if (this.autoPreviewCheckBox.isSelected())
+            // changing the current slice also notifies the listeners, and keeps
+            // the cached results. Any other notification, such as the redraw
+            // after an edit or the replacement of the stack, discards them.
+            ImageStack stack = imp.getStack();
+            int slice = imp.getCurrentSlice();
+            boolean sliceChanged = stack == lastStack && slice != lastSlice;
+            ImageStack previous = lastStack;
+            lastStack = stack;
+            lastSlice = slice;
+            if (sliceChanged)
             {
-                updatePreview();
+                return;
             }
+            CropCache.shared().invalidate(previous);
+            if (stack != previous)
+            {
+                CropCache.shared().invalidate(stack);
+            }
+            pyramidStale = true;
+        }
+
+        @Override
+        public void mouseClicked(MouseEvent e)
+        {
+        }
+
+        @Override
+        public void mousePressed(MouseEvent e)
+        {
+            this.dragging = true;
+            moveBoxCenter();
+        }
+
+        @Override
+        public void mouseDragged(MouseEvent e)
+        {
+            moveBoxCenter();
         }
 
         @Override
         public void mouseReleased(MouseEvent e)
         {
+            // refine the preview to the full quality
+            this.dragging = false;
+            updatePreviewIfNeeded();
+        }
+
+        @Override
+        public void mouseMoved(MouseEvent e)
+        {
+        }
+
+        /**
+         * Moves the center of the box to the current cursor position within the
+         * image window.
+         */
+        private void moveBoxCenter()
+        {
+            Point mousePosition = imagePlus.getWindow().getCanvas().getCursorLoc();
+            
+            // update the three spinners, then compute a single preview
+            movingCenter = true;
+            try
+            {
+                this.boxCenterX = mousePosition.x;
+                ((SpinnerNumberModel) this.boxCenterXWidget.getModel()).setValue(this.boxCenterX);
+                this.boxCenterY = mousePosition.y;
+                ((SpinnerNumberModel) this.boxCenterYWidget.getModel()).setValue(this.boxCenterY);
+                this.boxCenterZ = imagePlus.getCurrentSlice() - 1;
+                ((SpinnerNumberModel) this.boxCenterZWidget.getModel()).setValue(this.boxCenterZ);
+            }
+            finally
+            {
+                movingCenter = false;
+            }
+            
+            updatePreviewIfNeeded();
         }
 
         @Override
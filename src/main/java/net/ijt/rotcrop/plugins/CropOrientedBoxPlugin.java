@@ -18,6 +18,7 @@ import java.awt.event.MouseListener;
 import javax.swing.BoxLayout;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
@@ -36,6 +37,7 @@ import ij.plugin.PlugIn;
 import ij.process.FloatPolygon;
 import ij.process.ImageProcessor;
 import net.ijt.geom2d.Point2D;
+import net.ijt.rotcrop.Interpolation;
 import net.ijt.rotcrop.RotCrop;
 
 /**
@@ -112,6 +114,9 @@ public class CropOrientedBoxPlugin implements PlugIn
         double boxAngle = 0.0;
         // TODO: create a "Box"/"OrientedBox" inner class?
 
+        /** The method used to interpolate values of the result image. */
+        Interpolation interpolation = Interpolation.LINEAR;
+
 
         // ====================================================
         // GUI Widgets
@@ -122,6 +127,8 @@ public class CropOrientedBoxPlugin implements PlugIn
         JSpinner boxCenterYWidget;
         JSpinner boxAngleWidget;
 
+        JComboBox<Interpolation> interpolationWidget;
+
         JCheckBox autoUpdateCheckBox;
         JButton runButton;
         
@@ -172,6 +179,10 @@ public class CropOrientedBoxPlugin implements PlugIn
             boxAngleWidget = new JSpinner(new SpinnerNumberModel(boxAngle, -180, 180, 1));
             boxAngleWidget.addChangeListener(this);
             
+            interpolationWidget = new JComboBox<Interpolation>(Interpolation.values());
+            interpolationWidget.setSelectedItem(interpolation);
+            interpolationWidget.addItemListener(this);
+            
             autoUpdateCheckBox = new JCheckBox("Auto-Update", false);
             autoUpdateCheckBox.addItemListener(this);
         }
@@ -202,6 +213,7 @@ public class CropOrientedBoxPlugin implements PlugIn
             mainPanel.add(boxPanel);
             
             // also add buttons
+            GuiHelper.addInLine(mainPanel, FlowLayout.CENTER, new JLabel("Interpolation:"), interpolationWidget);
             GuiHelper.addInLine(mainPanel, FlowLayout.CENTER, autoUpdateCheckBox, runButton);
             
             // put main panel in the middle of frame
@@ -214,7 +226,7 @@ public class CropOrientedBoxPlugin implements PlugIn
             int[] dims = new int[] {boxSizeX, boxSizeY};
             Point2D cropCenter = new Point2D(boxCenterX, boxCenterY);
             
-            ImageProcessor res = RotCrop.rotatedCrop(imagePlus.getProcessor(), dims, cropCenter, boxAngle);
+            ImageProcessor res = RotCrop.rotatedCrop(imagePlus.getProcessor(), dims, cropCenter, boxAngle, interpolation);
             ImagePlus resultPlus = new ImagePlus("Result", res);
             
             // retrieve frame for displaying result
@@ -281,6 +293,17 @@ public class CropOrientedBoxPlugin implements PlugIn
                     updateCrop();
                 }
             }
+            else if (evt.getSource() == interpolationWidget)
+            {
+                if (evt.getStateChange() == ItemEvent.SELECTED)
+                {
+                    this.interpolation = (Interpolation) interpolationWidget.getSelectedItem();
+                    if (this.autoUpdateCheckBox.isSelected())
+                    {
+                        updateCrop();
+                    }
+                }
+            }
             else
             {
                 System.err.println("CropOrientedBoxPlugin: unknown widget updated...");
@@ -0,0 +1,152 @@
+/**
+ * 
+ */
+package net.ijt.rotcrop.plugins;
+
+import net.ijt.rotcrop.Interpolation;
+
+/**
+ * Adapts the quality of interactive previews to keep the time needed for
+ * rendering a preview within a target frame time.
+ *
+ * The quality is described by a step: step 0 corresponds to the full quality,
+ * using the requested interpolation at the resolution of the display. Step 1
+ * uses nearest-neighbor interpolation, and each further step samples the
+ * preview from the next coarser level of the image pyramid, dividing the
+ * number of computed pixels by four. After each rendering, the measured time
+ * is used to choose the step of the next one: the quality is lowered when the
+ * target time is exceeded, and raised when the finer step is expected to fit
+ * within the target time.
+ *
+ * @see net.ijt.rotcrop.ImagePyramid
+ *
+ * @author dlegland
+ *
+ */
+public class PreviewQuality
+{
+    // ====================================================
+    // Constants
+
+    /** The default target time for rendering a preview, in milliseconds. */
+    public static final double DEFAULT_TARGET_TIME = 33.0;
+
+    /** The largest step, used to bound the coarsening of the preview. */
+    public static final int MAX_STEP = 8;
+
+    /** The expected ratio of rendering times between two consecutive levels. */
+    private static final double LEVEL_COST_RATIO = 4.0;
+
+    /** The expected ratio of rendering times between interpolation and nearest neighbor. */
+    private static final double INTERPOLATION_COST_RATIO = 3.0;
+
+
+    // ====================================================
+    // Class properties
+
+    /** The target rendering time, in nanoseconds. */
+    private final long targetTime;
+
+    /** The current quality step. */
+    private int step = 0;
+
+
+    // ====================================================
+    // Constructors
+
+    /**
+     * Creates a new controller with the default target time.
+     */
+    public PreviewQuality()
+    {
+        this(DEFAULT_TARGET_TIME);
+    }
+
+    /**
+     * Creates a new controller with the specified target time.
+     *
+     * @param targetTime
+     *            the target time for rendering a preview, in milliseconds
+     */
+    public PreviewQuality(double targetTime)
+    {
+        this.targetTime = (long) (targetTime * 1e6);
+    }
+
+
+    // ====================================================
+    // Methods
+
+    /**
+     * Updates the quality step from the time needed to render a preview with
+     * the specified step. Measures obtained with another step than the current
+     * one, for example from obsolete requests, are ignored.
+     *
+     * @param measuredStep
+     *            the step used for rendering the preview
+     * @param nanos
+     *            the rendering time, in nanoseconds
+     */
+    public synchronized void update(int measuredStep, long nanos)
+    {
+        if (measuredStep != step)
+        {
+            return;
+        }
+        if (nanos > targetTime)
+        {
+            step = Math.min(step + 1, MAX_STEP);
+        }
+        else if (step > 0)
+        {
+            double ratio = step == 1 ? INTERPOLATION_COST_RATIO : LEVEL_COST_RATIO;
+            if (nanos * ratio < targetTime)
+            {
+                step--;
+            }
+        }
+    }
+
+    /**
+     * Resets the quality to the full quality.
+     */
+    public synchronized void reset()
+    {
+        step = 0;
+    }
+
+    /**
+     * @return the current quality step, 0 for the full quality
+     */
+    public synchronized int getStep()
+    {
+        return step;
+    }
+
+    /**
+     * Returns the number of pyramid levels to add to the level chosen from the
+     * display magnification, for the specified step.
+     *
+     * @param step
+     *            the quality step
+     * @return the level offset
+     */
+    public static final int levelOffset(int step)
+    {
+        return Math.max(step - 1, 0);
+    }
+
+    /**
+     * Returns the interpolation to use for the specified step.
+     *
+     * @param step
+     *            the quality step
+     * @param interp
+     *            the interpolation used at full quality
+     * @return the interpolation to use for rendering the preview
+     */
+    public static final Interpolation interpolation(int step, Interpolation interp)
+    {
+        return step == 0 ? interp : Interpolation.NEAREST;
+    }
+}
@@ -0,0 +1,274 @@
+/**
+ * 
+ */
+package net.ijt.rotcrop.plugins;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import javax.swing.SwingUtilities;
+
+import ij.IJ;
+import net.ijt.interp.Function3D;
+
+/**
+ * Computes previews within a single background thread, so that the Swing
+ * event dispatch thread (EDT) is never blocked by the computation.
+ *
+ * Requests follow a "latest wins" policy: when a new request is submitted
+ * while a preview is computed, the current computation is cancelled, and
+ * requests submitted in the meantime are discarded except for the newest one.
+ * Cancellation is cooperative: the renderer checks the cancellation state
+ * regularly, for example by sampling its function through the
+ * <code>checking()</code> method. Only the results of the newest request are
+ * published, on the EDT. Renderers may also publish partial results before
+ * the final one.
+ *
+ * <pre><code>
+ * scheduler.submit(cancel -&gt; computePreview(params, cancel), preview -&gt; display(preview));
+ * </code></pre>
+ *
+ * @param <T>
+ *            the type of the computed previews
+ *
+ * @author dlegland
+ *
+ */
+public class PreviewScheduler<T>
+{
+    // ====================================================
+    // Inner interfaces
+
+    /**
+     * Gives access to the cancellation state of a request.
+     */
+    public interface Cancellation
+    {
+        /**
+         * @return true if a newer request has been submitted, and the result
+         *         of the current computation will not be published
+         */
+        public boolean isCancelled();
+
+        /**
+         * Throws a <code>CancellationException</code> if the request has been
+         * cancelled, to abort the computation.
+         */
+        public default void check()
+        {
+            if (isCancelled())
+            {
+                throw new CancellationException();
+            }
+        }
+    }
+
+    /**
+     * A request being computed, that can publish partial results.
+     *
+     * @param <T>
+     *            the type of the result
+     */
+    public interface Request<T> extends Cancellation
+    {
+        /**
+         * Publishes a partial result on the EDT, if the request has not been
+         * cancelled in the meantime.
+         *
+         * @param partial
+         *            the partial result
+         */
+        public void publish(T partial);
+    }
+
+    /**
+     * Computes the result of a request within the background thread.
+     *
+     * @param <T>
+     *            the type of the result
+     */
+    public interface Renderer<T>
+    {
+        /**
+         * Computes the result. The computation may be aborted by throwing a
+         * <code>CancellationException</code>.
+         *
+         * @param request
+         *            the request, used for checking the cancellation state
+         *            and for publishing partial results
+         * @return the result of the computation
+         */
+        public T render(Request<T> request);
+    }
+
+
+    // ====================================================
+    // Static methods
+
+    /**
+     * Wraps a function such that each evaluation checks the cancellation state
+     * of the request, making it possible to abort the sampling of the function.
+     *
+     * @param fun
+     *            the function to wrap
+     * @param cancel
+     *            the cancellation state of the request
+     * @return the wrapped function
+     */
+    public static final Function3D checking(Function3D fun, Cancellation cancel)
+    {
+        return (x, y, z) -> {
+            cancel.check();
+            return fun.evaluate(x, y, z);
+        };
+    }
+
+
+    // ====================================================
+    // Class properties
+
+    /** The thread used for computing the previews. */
+    private final ExecutorService executor;
+
+    /** The number of the newest request. */
+    private final AtomicLong generation = new AtomicLong();
+
+    /** The newest request not yet started, or null. */
+    private Runnable pending = null;
+
+    /** Whether a task is currently scheduled within the executor. */
+    private boolean running = false;
+
+
+    // ====================================================
+    // Constructor
+
+    /**
+     * Creates a new scheduler, with its own background thread.
+     *
+     * @param name
+     *            the name of the background thread
+     */
+    public PreviewScheduler(String name)
+    {
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+
+    // ====================================================
+    // Methods
+
+    /**
+     * Submits a new request, that cancels the previous ones. The result is
+     * passed to the publisher on the EDT, if no newer request has been
+     * submitted in the meantime.
+     *
+     * @param renderer
+     *            the computation to run within the background thread
+     * @param publisher
+     *            the operation that displays the result, called on the EDT
+     */
+    public void submit(Renderer<T> renderer, Consumer<T> publisher)
+    {
+        long gen = generation.incrementAndGet();
+        Request<T> request = new Request<T>()
+        {
+            @Override
+            public boolean isCancelled()
+            {
+                return generation.get() != gen;
+            }
+
+            @Override
+            public void publish(T partial)
+            {
+                SwingUtilities.invokeLater(() -> {
+                    // a newer request may have been submitted while waiting for the EDT
+                    if (!isCancelled())
+                    {
+                        publisher.accept(partial);
+                    }
+                });
+            }
+        };
+        Runnable task = () -> {
+            if (request.isCancelled())
+            {
+                return;
+            }
+            try
+            {
+                request.publish(renderer.render(request));
+            }
+            catch (CancellationException ex)
+            {
+                // aborted by a newer request, nothing to publish
+            }
+        };
+
+        synchronized (this)
+        {
+            // replace any request that has not started yet
+            pending = task;
+            if (!running)
+            {
+                running = true;
+                executor.execute(this::drain);
+            }
+        }
+    }
+
+    /**
+     * Runs the pending requests until no request remains.
+     */
+    private void drain()
+    {
+        while (true)
+        {
+            Runnable task;
+            synchronized (this)
+            {
+                task = pending;
+                pending = null;
+                if (task == null)
+                {
+                    running = false;
+                    return;
+                }
+            }
+            try
+            {
+                task.run();
+            }
+            catch (RuntimeException ex)
+            {
+                // report the failure, and keep the worker alive for the next requests
+                IJ.handleException(ex);
+            }
+        }
+    }
+
+    /**
+     * Cancels the current request, if any.
+     */
+    public void cancel()
+    {
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Cancels the current request and stops the background thread.
+     */
+    public void shutdown()
+    {
+        cancel();
+        executor.shutdown();
+    }
+}
@@ -10,18 +10,22 @@ import java.awt.GridLayout;
 import java.awt.Point;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
+import java.awt.event.MouseMotionListener;
 
 import javax.swing.BoxLayout;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JSpinner;
 import javax.swing.SpinnerNumberModel;
+import javax.swing.SwingUtilities;
 import javax.swing.border.EmptyBorder;
 
 import ij.IJ;
+import ij.ImageListener;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.gui.GUI;
@@ -32,8 +36,12 @@ import ij.process.ImageProcessor;
 import net.ijt.geom3d.AffineTransform3D;
 import net.ijt.geom3d.Point3D;
 import net.ijt.interp.Function3D;
-import net.ijt.interp.TransformedImage3D;
+import net.ijt.rotcrop.CropCache;
+import net.ijt.rotcrop.ImagePyramid;
+import net.ijt.rotcrop.Interpolation;
+import net.ijt.rotcrop.ResamplingKernel3D;
 import net.ijt.rotcrop.RotCrop;
+import net.ijt.rotcrop.ScaleSpace;
 
 /**
  * Plugin for generating a rotated crop from an image, by estimating the crop
@@ -73,9 +81,10 @@ public class TangentCrop3DPlugin implements PlugIn
         // add mouse listener to the input image window to track box positioning
         Canvas canvas = imagePlus.getWindow().getCanvas();
         canvas.addMouseListener(frame);
+        canvas.addMouseMotionListener(frame);
     }
 
-    public class Frame extends JFrame implements MouseListener
+    public class Frame extends JFrame implements MouseListener, MouseMotionListener, ImageListener
     {
         // ====================================================
         // Static fields
@@ -100,6 +109,9 @@ public class TangentCrop3DPlugin implements PlugIn
         double gradientRange;
         // TODO: create a "Box"/"OrientedBox" inner class?
 
+        /** The method used to interpolate values of the result image. */
+        Interpolation interpolation = Interpolation.LINEAR;
+
 
         // ====================================================
         // GUI Widgets
@@ -112,13 +124,59 @@ public class TangentCrop3DPlugin implements PlugIn
         JSpinner boxCenterZWidget;
         JSpinner gradientRangeWidget;
 
+        JComboBox<Interpolation> interpolationWidget;
+
         JCheckBox autoPreviewCheckBox;
+        JCheckBox virtualStackCheckBox;
         JButton previewButton;
         JButton runButton;
         
         /** The frame used to display the result of rotated crop. */
         ImageWindow previewFrame = null;
         
+        /**
+         * The downsampled versions of the image, built in the background, used
+         * to compute the preview at the resolution of the display.
+         */
+        ImagePyramid pyramid;
+        
+        /**
+         * The Gaussian scale-space of the image, built in the background, used
+         * to evaluate the gradient of the preview while the box is dragged.
+         */
+        ScaleSpace scaleSpace;
+        
+        /**
+         * Whether the source image has changed since the creation of the
+         * pyramid and of the scale-space.
+         */
+        volatile boolean pyramidStale = false;
+        
+        /**
+         * The stack and the current slice of the image at the last
+         * notification, used to recognize the notifications of slice changes.
+         */
+        ImageStack lastStack;
+        int lastSlice;
+        
+        /** The level of the pyramid used for the current preview. */
+        int previewLevel = 0;
+        
+        /** Adapts the quality of the preview while the box is dragged. */
+        PreviewQuality quality = new PreviewQuality();
+        
+        /** Whether the box center is currently dragged within the image window. */
+        boolean dragging = false;
+        
+        /**
+         * Whether the spinners of the box center are updated by the mouse, in
+         * which case their listeners do not update the preview.
+         */
+        boolean movingCenter = false;
+        
+        /** Computes the previews without blocking the GUI. */
+        PreviewScheduler<ImagePlus> scheduler = new PreviewScheduler<ImagePlus>("Tangent Crop Preview");
+        
 
         // ====================================================
         // Constructor
@@ -137,6 +195,18 @@ public class TangentCrop3DPlugin implements PlugIn
             boxCenterZ = refPoint.z();
             gradientRange = 3.0;
 
+            // previews use downsampled images when the display is zoomed out
+            pyramid = new ImagePyramid(imagePlus.getStack());
+            pyramid.buildInBackground();
+            scaleSpace = new ScaleSpace(imagePlus.getStack());
+            scaleSpace.buildInBackground();
+            lastStack = imagePlus.getStack();
+            lastSlice = imagePlus.getCurrentSlice();
+            ImagePlus.addImageListener(this);
+
+            // closing the frame releases the listeners and the preview thread
+            setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+
             setupWidgets();
             setupLayout();
 
@@ -146,6 +216,20 @@ public class TangentCrop3DPlugin implements PlugIn
             setVisible(true);
         }
 
+        @Override
+        public void dispose()
+        {
+            ImagePlus.removeImageListener(this);
+            ImageWindow window = imagePlus.getWindow();
+            if (window != null)
+            {
+                window.getCanvas().removeMouseListener(this);
+                window.getCanvas().removeMouseMotionListener(this);
+            }
+            scheduler.shutdown();
+            super.dispose();
+        }
+
         private void setupWidgets()
         {
             sizeXWidget = new JSpinner(new SpinnerNumberModel(boxSizeX, 0, 10000, 1));
@@ -197,12 +281,22 @@ public class TangentCrop3DPlugin implements PlugIn
                 updatePreviewIfNeeded();
             });
             
+            interpolationWidget = new JComboBox<Interpolation>(Interpolation.values());
+            interpolationWidget.setSelectedItem(interpolation);
+            interpolationWidget.addActionListener(evt -> {
+                this.interpolation = (Interpolation) interpolationWidget.getSelectedItem();
+                updatePreviewIfNeeded();
+            });
+            
             autoPreviewCheckBox = new JCheckBox("Auto-Update", false);
             autoPreviewCheckBox.addItemListener(evt -> updatePreviewIfNeeded());
             
             previewButton = new JButton("Preview");
             previewButton.addActionListener(evt -> updatePreview());
             
+            virtualStackCheckBox = new JCheckBox("Virtual Stack", false);
+            virtualStackCheckBox.setToolTipText("Compute slices only when they are displayed");
+            
             runButton = new JButton("Create Result Image");
             runButton.addActionListener(evt -> displayResult());
         }
@@ -241,8 +335,9 @@ public class TangentCrop3DPlugin implements PlugIn
             mainPanel.add(gradientPanel);
             
             // also add buttons
+            GuiHelper.addInLine(mainPanel, FlowLayout.CENTER, new JLabel("Interpolation:"), interpolationWidget);
             GuiHelper.addInLine(mainPanel, FlowLayout.CENTER, autoPreviewCheckBox, previewButton);
-            GuiHelper.addInLine(mainPanel, FlowLayout.CENTER, runButton);
+            GuiHelper.addInLine(mainPanel, FlowLayout.CENTER, virtualStackCheckBox, runButton);
             
             // put main panel in the middle of frame
             this.setLayout(new BorderLayout());
@@ -251,30 +346,84 @@ public class TangentCrop3DPlugin implements PlugIn
         
         public void updatePreview()
         {
-            // retrieve data
-            ImageStack stack = imagePlus.getStack();
+            // retrieve data, on the EDT
+            if (pyramidStale)
+            {
+                pyramid = new ImagePyramid(imagePlus.getStack());
+                pyramid.buildInBackground();
+                scaleSpace = new ScaleSpace(imagePlus.getStack());
+                scaleSpace.buildInBackground();
+                pyramidStale = false;
+            }
+            ImageStack stack = pyramid.getLevel(0);
+            ScaleSpace scaleSpace = this.scaleSpace;
             int[] dims = new int[] {boxSizeX, boxSizeY, boxSizeZ};
             Point3D cropCenter = new Point3D(boxCenterX, boxCenterY, boxCenterZ);
-            
-            // compute the transform
-            AffineTransform3D transfo = RotCrop.computeTangentCropTransform(stack, cropCenter, dims, gradientRange);
-            
-            // Create interpolation class, that encapsulates both the image and the
-            // transform
-            Function3D interp = new TransformedImage3D(stack, transfo);
+            double sigma = gradientRange;
+
+            // choose the level of the pyramid from the magnification of the
+            // preview, expressed relative to the full resolution. While the box
+            // is dragged, the quality is lowered to keep interactive rates.
+            double fullMag = this.previewFrame == null ? 1.0
+                    : this.previewFrame.getCanvas().getMagnification() / (1 << previewLevel);
+            int step = dragging ? quality.getStep() : 0;
+            int level = pyramid.availableLevel(pyramid.levelFor(fullMag) + PreviewQuality.levelOffset(step));
+            Interpolation previewInterp = PreviewQuality.interpolation(step, interpolation);
+            ImageStack levelImage = pyramid.getLevel(level);
 
-            ImageProcessor preview = RotCrop.orthoSlices(interp, dims);
-            ImagePlus previewPlus = new ImagePlus("Tangent Crop Preview", preview);
+            // the approximate gradient of the scale-space is used only while
+            // dragging, such that the final preview has the orientation of the
+            // result
+            boolean exactGradient = step == 0;
 
+            // compute the preview in the background, only the result of the
+            // newest request is displayed
+            boolean progressive = !dragging;
+            CropCache.Key key = CropCache.shared().key("tangentCropPreview", stack, dims,
+                    new double[] {cropCenter.x(), cropCenter.y(), cropCenter.z(), sigma, level, exactGradient ? 1 : 0}, previewInterp, 8);
+            scheduler.submit(request -> {
+                // previews already computed with the same parameters are reused
+                ImageProcessor preview = CropCache.shared().get(key, () -> {
+                    // compute the transform, using the scale-space while
+                    // dragging such that moving the box remains interactive
+                    AffineTransform3D transfo = exactGradient
+                            ? RotCrop.computeTangentCropTransform(stack, cropCenter, dims, sigma)
+                            : RotCrop.computeTangentCropTransform(scaleSpace, cropCenter, dims, sigma);
+                    request.check();
+
+                    // Create resampling kernel, that encapsulates both the image and the
+                    // transform.
+                    Function3D interp = ResamplingKernel3D.create(levelImage,
+                            ImagePyramid.levelTransform(transfo, level), previewInterp);
+
+                    // measure the rendering time to choose the quality of the next
+                    // preview. Previews that are not dragged are computed from
+                    // coarse to fine, and each pass is displayed.
+                    Function3D fun = PreviewScheduler.checking(interp, request);
+                    int[] levelDims = ImagePyramid.levelDims(dims, level);
+                    long t0 = System.nanoTime();
+                    ImageProcessor res = progressive
+                            ? RotCrop.orthoSlices(fun, levelDims, partial -> request.publish(new ImagePlus("Tangent Crop Preview", partial)))
+                            : RotCrop.orthoSlices(fun, levelDims);
+                    quality.update(step, System.nanoTime() - t0);
+                    return res;
+                });
+                return new ImagePlus("Tangent Crop Preview", preview);
+            }, previewPlus -> displayPreview(previewPlus, level, fullMag));
+        }
+        
+        private void displayPreview(ImagePlus previewPlus, int level, double fullMag)
+        {
             // retrieve frame for displaying result
             if (this.previewFrame == null)
             {
                 this.previewFrame = new ImageWindow(previewPlus);
             }
-            // update display frame, keeping the previous magnification
-            double mag = this.previewFrame.getCanvas().getMagnification();
+            // update display frame, keeping the previous magnification relative
+            // to the full resolution
+            this.previewLevel = level;
             this.previewFrame.setImage(previewPlus);
-            this.previewFrame.getCanvas().setMagnification(mag);
+            this.previewFrame.getCanvas().setMagnification(fullMag * (1 << level));
             this.previewFrame.setVisible(true);
         }
         
@@ -287,9 +436,23 @@ public class TangentCrop3DPlugin implements PlugIn
             IJ.log(String.format("  box size: %d x %d x %d", boxSizeX, boxSizeY, boxSizeZ));
             IJ.log(String.format("  refPoint: " + cropCenter));
             IJ.log(String.format("  sigma: %5.2f", gradientRange));
+            IJ.log("  interpolation: " + interpolation);
             
             // compute the crop
-            ImageStack res = RotCrop.tangentCrop(imagePlus.getStack(), cropCenter, dims, gradientRange);
+            ImageStack res;
+            if (virtualStackCheckBox.isSelected())
+            {
+                res = RotCrop.tangentCropVirtual(imagePlus.getStack(), cropCenter, dims, gradientRange, interpolation);
+            }
+            else
+            {
+                // results already computed from the current content of the
+                // image are reused, the listener of the frame invalidates them
+                ImageStack stack = imagePlus.getStack();
+                CropCache.Key key = CropCache.shared().key("tangentCrop", stack, dims,
+                        new double[] {cropCenter.x(), cropCenter.y(), cropCenter.z(), gradientRange}, interpolation, imagePlus.getBitDepth());
+                res = CropCache.shared().get(key, () -> RotCrop.tangentCrop(stack, cropCenter, dims, gradientRange, interpolation));
+            }
             ImagePlus resultPlus = new ImagePlus("Result", res);
             
             // display in a new frame
@@ -299,37 +462,112 @@ public class TangentCrop3DPlugin implements PlugIn
 
         private void updatePreviewIfNeeded()
         {
-            if (this.autoPreviewCheckBox.isSelected())
+            if (this.autoPreviewCheckBox.isSelected() && !movingCenter)
             {
                 updatePreview();
             }
         }
 
         @Override
-        public void mouseClicked(MouseEvent e)
+        public void imageOpened(ImagePlus imp)
         {
         }
 
         @Override
-        public void mousePressed(MouseEvent e)
+        public void imageClosed(ImagePlus imp)
         {
-            Point mousePosition = imagePlus.getWindow().getCanvas().getCursorLoc();
-            this.boxCenterX = mousePosition.x;
-            ((SpinnerNumberModel) this.boxCenterXWidget.getModel()).setValue(this.boxCenterX);
-            this.boxCenterY = mousePosition.y;
-            ((SpinnerNumberModel) this.boxCenterYWidget.getModel()).setValue(this.boxCenterY);
-            this.boxCenterZ = imagePlus.getCurrentSlice() - 1;
-            ((SpinnerNumberModel) this.boxCenterZWidget.getModel()).setValue(this.boxCenterZ);
+            // the frame can not be used without the source image
+            if (imp == this.imagePlus)
+            {
+                SwingUtilities.invokeLater(this::dispose);
+            }
+        }
+
+        @Override
+        public void imageUpdated(ImagePlus imp)
+        {
+            if (imp != this.imagePlus)
+            {
+                return;
+            }
             
-            if (this.autoPreviewCheckBox.isSelected())
+            // changing the current slice also notifies the listeners, and keeps
+            // the cached results. Any other notification, such as the redraw
+            // after an edit or the replacement of the stack, discards them.
+            ImageStack stack = imp.getStack();
+            int slice = imp.getCurrentSlice();
+            boolean sliceChanged = stack == lastStack && slice != lastSlice;
+            ImageStack previous = lastStack;
+            lastStack = stack;
+            lastSlice = slice;
+            if (sliceChanged)
             {
-                updatePreview();
+                return;
+            }
+            CropCache.shared().invalidate(previous);
+            if (stack != previous)
+            {
+                CropCache.shared().invalidate(stack);
             }
+            pyramidStale = true;
+        }
+
+        @Override
+        public void mouseClicked(MouseEvent e)
+        {
+        }
+
+        @Override
+        public void mousePressed(MouseEvent e)
+        {
+            this.dragging = true;
+            moveBoxCenter();
+        }
+
+        @Override
+        public void mouseDragged(MouseEvent e)
+        {
+            moveBoxCenter();
         }
 
         @Override
         public void mouseReleased(MouseEvent e)
         {
+            // refine the preview to the full quality
+            this.dragging = false;
+            updatePreviewIfNeeded();
+        }
+
+        @Override
+        public void mouseMoved(MouseEvent e)
+        {
+        }
+
+        /**
+         * Moves the center of the box to the current cursor position within the
+         * image window.
+         */
+        private void moveBoxCenter()
+        {
+            Point mousePosition = imagePlus.getWindow().getCanvas().getCursorLoc();
+            
+            // update the three spinners, then compute a single preview
+            movingCenter = true;
+            try
+            {
+                this.boxCenterX = mousePosition.x;
+                ((SpinnerNumberModel) this.boxCenterXWidget.getModel()).setValue(this.boxCenterX);
+                this.boxCenterY = mousePosition.y;
+                ((SpinnerNumberModel) this.boxCenterYWidget.getModel()).setValue(this.boxCenterY);
+                this.boxCenterZ = imagePlus.getCurrentSlice() - 1;
+                ((SpinnerNumberModel) this.boxCenterZWidget.getModel()).setValue(this.boxCenterZ);
+            }
+            finally
+            {
+                movingCenter = false;
+            }
+            
+            updatePreviewIfNeeded();
         }
 
         @Override
@@ -18,6 +18,7 @@ import java.awt.event.MouseListener;
 import javax.swing.BoxLayout;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
@@ -36,6 +37,7 @@ import ij.plugin.PlugIn;
 import ij.process.FloatPolygon;
 import ij.process.ImageProcessor;
 import net.ijt.geom2d.Point2D;
+import net.ijt.rotcrop.Interpolation;
 import net.ijt.rotcrop.RotCrop;
 
 /**
@@ -114,6 +116,9 @@ public class TangentCropPlugin implements PlugIn
         double gradientRange;
         // TODO: create a "Box"/"OrientedBox" inner class?
 
+        /** The method used to interpolate values of the result image. */
+        Interpolation interpolation = Interpolation.LINEAR;
+
 
         // ====================================================
         // GUI Widgets
@@ -124,6 +129,8 @@ public class TangentCropPlugin implements PlugIn
         JSpinner boxCenterYWidget;
         JSpinner gradientRangeWidget;
 
+        JComboBox<Interpolation> interpolationWidget;
+
         JCheckBox autoUpdateCheckBox;
         JButton runButton;
         
@@ -175,6 +182,10 @@ public class TangentCropPlugin implements PlugIn
             gradientRangeWidget = new JSpinner(new SpinnerNumberModel(gradientRange, 0, 1000, 1));
             gradientRangeWidget.addChangeListener(this);
             
+            interpolationWidget = new JComboBox<Interpolation>(Interpolation.values());
+            interpolationWidget.setSelectedItem(interpolation);
+            interpolationWidget.addItemListener(this);
+            
             autoUpdateCheckBox = new JCheckBox("Auto-Update", false);
             autoUpdateCheckBox.addItemListener(this);
         }
@@ -205,6 +216,7 @@ public class TangentCropPlugin implements PlugIn
             mainPanel.add(boxPanel);
             
             // also add buttons
+            GuiHelper.addInLine(mainPanel, FlowLayout.CENTER, new JLabel("Interpolation:"), interpolationWidget);
             GuiHelper.addInLine(mainPanel, FlowLayout.CENTER, autoUpdateCheckBox, runButton);
             
             // put main panel in the middle of frame
@@ -217,7 +229,7 @@ public class TangentCropPlugin implements PlugIn
             int[] dims = new int[] {boxSizeX, boxSizeY};
             Point2D cropCenter = new Point2D(boxCenterX, boxCenterY);
 
-            ImageProcessor res = RotCrop.tangentCrop(imagePlus.getProcessor(), cropCenter, dims, gradientRange);
+            ImageProcessor res = RotCrop.tangentCrop(imagePlus.getProcessor(), cropCenter, dims, gradientRange, interpolation);
             ImagePlus resultPlus = new ImagePlus("Result", res);
             
             // retrieve frame for displaying result
@@ -284,6 +296,17 @@ public class TangentCropPlugin implements PlugIn
                     updateCrop();
                 }
             }
+            else if (evt.getSource() == interpolationWidget)
+            {
+                if (evt.getStateChange() == ItemEvent.SELECTED)
+                {
+                    this.interpolation = (Interpolation) interpolationWidget.getSelectedItem();
+                    if (this.autoUpdateCheckBox.isSelected())
+                    {
+                        updateCrop();
+                    }
+                }
+            }
             else
             {
                 System.err.println("TangentCropBoxPlugin: unknown widget updated...");
@@ -0,0 +1,104 @@
+/**
+ * 
+ */
+package net.ijt.rotcrop;
+
+import ij.ImageStack;
+import net.ijt.geom3d.AffineTransform3D;
+
+/**
+ * Creates resampling kernels that interpolate several voxels per iteration
+ * using the SIMD instructions of the processor.
+ *
+ * This version is packaged in the multi-release part of the plugin jar, and is
+ * used on Java 16 and later runtimes, when enabled with the
+ * <code>RotCrop.setVectorKernelsEnabled()</code> method. Vectorized kernels
+ * are returned when the <code>jdk.incubator.vector</code> module is enabled
+ * (using the <code>--add-modules jdk.incubator.vector</code> option of the
+ * JVM), and when the processor can process at least eight single-precision
+ * values per instruction. Classes of the Vector API are only referenced from the
+ * <code>VectorTrilinear</code> class, that is loaded after the availability of
+ * the module has been checked.
+ *
+ * @see VectorTrilinear
+ *
+ * @author dlegland
+ *
+ */
+final class VectorKernels
+{
+    /** The name of the module providing the Vector API. */
+    private static final String MODULE_NAME = "jdk.incubator.vector";
+
+    /** Whether the vectorized kernels can be used by the current runtime. */
+    private static final boolean AVAILABLE = checkAvailable();
+
+    private static final boolean checkAvailable()
+    {
+        if (!ModuleLayer.boot().findModule(MODULE_NAME).isPresent())
+        {
+            return false;
+        }
+        try
+        {
+            return VectorTrilinear.LANES >= 8;
+        }
+        catch (LinkageError ex)
+        {
+            // the preferred vector shape is not supported by the platform
+            return false;
+        }
+    }
+
+    /**
+     * Checks whether vectorized kernels can be used by the current runtime.
+     *
+     * @return true if the Vector API is enabled and supported by the processor.
+     */
+    static final boolean isAvailable()
+    {
+        return AVAILABLE;
+    }
+
+    /**
+     * Creates a vectorized resampling kernel for the specified image, or
+     * returns null if no vectorized kernel is available for the runtime, the
+     * image type or the interpolation method. Only linear interpolation of
+     * 8-bit, 16-bit and 32-bit images is vectorized.
+     *
+     * @param image
+     *            the image to resample
+     * @param transfo
+     *            the transform that maps coordinates in the result image into
+     *            coordinates in the source image
+     * @param interpolation
+     *            the interpolation method
+     * @return a new vectorized resampling kernel, or null
+     */
+    static final ResamplingKernel3D create(ImageStack image, AffineTransform3D transfo, Interpolation interpolation)
+    {
+        if (!AVAILABLE || interpolation != Interpolation.LINEAR)
+        {
+            return null;
+        }
+
+        switch (image.getBitDepth())
+        {
+        case 8:
+            return new VectorTrilinear.ByteKernel(image, transfo);
+        case 16:
+            return new VectorTrilinear.ShortKernel(image, transfo);
+        case 32:
+            return new VectorTrilinear.FloatKernel(image, transfo);
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * Private constructor to prevent instantiation.
+     */
+    private VectorKernels()
+    {
+    }
+}
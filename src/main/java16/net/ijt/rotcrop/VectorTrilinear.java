@@ -0,0 +1,402 @@
+/**
+ * 
+ */
+package net.ijt.rotcrop;
+
+import ij.ImageStack;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorSpecies;
+import net.ijt.geom3d.AffineTransform3D;
+
+/**
+ * Trilinear resampling kernels based on the Vector API, that process as many
+ * result voxels per iteration as the number of single-precision lanes of the
+ * processor (typically 8 or 16).
+ *
+ * The indices of the neighbors and the interpolation weights of the voxels of
+ * a row are computed in double precision, in the same way as the scalar
+ * implementation, such that the same neighbors are used and the weights only
+ * differ by their conversion to single precision. The values of the eight
+ * neighbors are then blended with single-precision fused multiply-add. For
+ * 8-bit and 16-bit images, the values that are too close to the midpoint
+ * between two integers for the rounding to be the same as with double
+ * precision are recomputed by the scalar implementation, such that results
+ * are the same as the scalar kernels.
+ *
+ * For 32-bit images, neighbor values are read with gather operations when all
+ * the lanes of the block use the same pair of slices. For 8-bit and 16-bit
+ * images, or when the lanes cross several slices, neighbor values are read
+ * lane by lane. The voxels at the end of the row that do not fill a block are
+ * processed by the scalar implementation.
+ *
+ * @see VectorKernels
+ *
+ * @author dlegland
+ *
+ */
+final class VectorTrilinear
+{
+    // ====================================================
+    // Constants
+
+    /** The species used for interpolated values. */
+    static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+
+    /** The number of voxels processed per iteration. */
+    static final int LANES = FLOATS.length();
+
+    /**
+     * The largest difference between an interpolated value computed in single
+     * precision and the value computed in double precision, relative to the
+     * largest value of the image type. Each of the about twenty rounding steps
+     * contributes a relative error of at most 2^-24.
+     */
+    static final float RELATIVE_ERROR = 2e-6f;
+
+
+    // ====================================================
+    // Static methods shared by the kernels
+
+    /**
+     * Blends the values of the eight neighbors of each lane.
+     */
+    private static final FloatVector trilinear(
+            FloatVector v000, FloatVector v100, FloatVector v010, FloatVector v110,
+            FloatVector v001, FloatVector v101, FloatVector v011, FloatVector v111,
+            FloatVector wx, FloatVector wy, FloatVector wz)
+    {
+        FloatVector v00 = v100.sub(v000).fma(wx, v000);
+        FloatVector v10 = v110.sub(v010).fma(wx, v010);
+        FloatVector v01 = v101.sub(v001).fma(wx, v001);
+        FloatVector v11 = v111.sub(v011).fma(wx, v011);
+        FloatVector v0 = v10.sub(v00).fma(wy, v00);
+        FloatVector v1 = v11.sub(v01).fma(wy, v01);
+        return v1.sub(v0).fma(wz, v0);
+    }
+
+    /**
+     * Checks whether an interpolated value computed in single precision may
+     * be rounded to a different integer than the value computed in double
+     * precision, given the largest value of the image type.
+     */
+    private static final boolean isAmbiguous(float value, float maxValue)
+    {
+        float fraction = value - (int) value;
+        return Math.abs(fraction - 0.5f) <= maxValue * RELATIVE_ERROR;
+    }
+
+
+    // ====================================================
+    // Inner class for storing the coordinates within a row
+
+    /**
+     * The indices of the neighbors and the interpolation weights of a chunk of
+     * consecutive voxels of a row. The number of voxels of a chunk is a
+     * multiple of the number of lanes. Each thread uses its own instance,
+     * making it possible to share kernels between threads.
+     */
+    private static final class Chunk
+    {
+        /** The maximum number of voxels within a chunk. */
+        static final int SIZE = Math.max(256, LANES);
+
+        /** The indices of the lower neighbors. */
+        final int[] i = new int[SIZE], j = new int[SIZE], k = new int[SIZE];
+
+        /** The offsets of the lower neighbors within slices. */
+        final int[] offsets = new int[SIZE];
+
+        /** The source coordinates of the voxels. */
+        final double[] xs = new double[SIZE], ys = new double[SIZE], zs = new double[SIZE];
+
+        /** The interpolation weights of the upper neighbors. */
+        final float[] wx = new float[SIZE], wy = new float[SIZE], wz = new float[SIZE];
+
+        /** The values of the neighbors, when read voxel by voxel. */
+        final float[][] corners = new float[8][SIZE];
+
+        /** The interpolated values. */
+        final float[] values = new float[SIZE];
+
+        /** The source coordinates of the voxel that follows the chunk. */
+        double x, y, z;
+
+        /**
+         * Computes indices and weights of the voxels of the chunk, starting
+         * from the current source coordinates, and updates the coordinates.
+         * Coordinates are incremented in the same way as within the
+         * <code>fillLinear</code> method of the scalar kernels.
+         */
+        void split(ResamplingKernel3D kernel, int count)
+        {
+            for (int n = 0; n < count; n++)
+            {
+                // coordinates are positive within the part of the row
+                int i0 = (int) x;
+                int j0 = (int) y;
+                int k0 = (int) z;
+                i[n] = i0;
+                j[n] = j0;
+                k[n] = k0;
+                offsets[n] = j0 * kernel.sizeX + i0;
+                xs[n] = x;
+                ys[n] = y;
+                zs[n] = z;
+                wx[n] = (float) (x - i0);
+                wy[n] = (float) (y - j0);
+                wz[n] = (float) (z - k0);
+                x += kernel.m00;
+                y += kernel.m10;
+                z += kernel.m20;
+            }
+        }
+
+        /**
+         * Blends the neighbor values stored in the corners array, for the
+         * block of lanes starting at the specified position.
+         */
+        FloatVector blendLanes(int x)
+        {
+            return trilinear(
+                    FloatVector.fromArray(FLOATS, corners[0], x), FloatVector.fromArray(FLOATS, corners[1], x),
+                    FloatVector.fromArray(FLOATS, corners[2], x), FloatVector.fromArray(FLOATS, corners[3], x),
+                    FloatVector.fromArray(FLOATS, corners[4], x), FloatVector.fromArray(FLOATS, corners[5], x),
+                    FloatVector.fromArray(FLOATS, corners[6], x), FloatVector.fromArray(FLOATS, corners[7], x),
+                    FloatVector.fromArray(FLOATS, wx, x), FloatVector.fromArray(FLOATS, wy, x),
+                    FloatVector.fromArray(FLOATS, wz, x));
+        }
+
+        /**
+         * Blends in double precision the neighbor values stored in the corners
+         * array for the voxel at the specified position, giving the same
+         * result as the scalar implementation.
+         */
+        double blendExact(int n)
+        {
+            return ResamplingKernel3D.blend(
+                    corners[0][n], corners[1][n], corners[2][n], corners[3][n],
+                    corners[4][n], corners[5][n], corners[6][n], corners[7][n],
+                    xs[n] - i[n], ys[n] - j[n], zs[n] - k[n]);
+        }
+
+        /**
+         * Blends the neighbor values stored in the corners array for all the
+         * voxels of the chunk, and stores the result into the values array.
+         */
+        void blend(int count)
+        {
+            for (int x = 0; x < count; x += LANES)
+            {
+                blendLanes(x).intoArray(values, x);
+            }
+        }
+    }
+
+
+    /** The buffers used by each thread. */
+    private static final ThreadLocal<Chunk> CHUNKS = ThreadLocal.withInitial(Chunk::new);
+
+
+    // ====================================================
+    // Implementations for each image type
+
+    /**
+     * Vectorized trilinear resampling kernel for 8-bit images.
+     */
+    static final class ByteKernel extends ResamplingKernel3D.ByteKernel
+    {
+        ByteKernel(ImageStack image, AffineTransform3D transfo)
+        {
+            super(image, transfo, Interpolation.LINEAR);
+        }
+
+        @Override
+        void fillLinear(byte[] target, int offset, int count, double xs, double ys, double zs)
+        {
+            Chunk chunk = CHUNKS.get();
+            chunk.x = xs;
+            chunk.y = ys;
+            chunk.z = zs;
+            int n = count - count % LANES;
+            for (int x0 = 0; x0 < n; x0 += Chunk.SIZE)
+            {
+                int size = Math.min(Chunk.SIZE, n - x0);
+                chunk.split(this, size);
+                readCorners(chunk, size);
+                chunk.blend(size);
+                for (int x = 0; x < size; x++)
+                {
+                    // interpolated values are within [0, 255]: round without clamping
+                    float value = chunk.values[x];
+                    target[offset + x0 + x] = isAmbiguous(value, 255f) ? (byte) (chunk.blendExact(x) + 0.5) : (byte) (value + 0.5f);
+                }
+            }
+
+            // process the remaining voxels
+            super.fillLinear(target, offset + n, count - n, chunk.x, chunk.y, chunk.z);
+        }
+
+        private void readCorners(Chunk chunk, int count)
+        {
+            float[][] corners = chunk.corners;
+            for (int x = 0; x < count; x++)
+            {
+                byte[] slice0 = slices[chunk.k[x]];
+                byte[] slice1 = slices[chunk.k[x] + 1];
+                int i = chunk.offsets[x];
+                corners[0][x] = slice0[i] & 0x00FF;
+                corners[1][x] = slice0[i + 1] & 0x00FF;
+                corners[2][x] = slice0[i + sizeX] & 0x00FF;
+                corners[3][x] = slice0[i + sizeX + 1] & 0x00FF;
+                corners[4][x] = slice1[i] & 0x00FF;
+                corners[5][x] = slice1[i + 1] & 0x00FF;
+                corners[6][x] = slice1[i + sizeX] & 0x00FF;
+                corners[7][x] = slice1[i + sizeX + 1] & 0x00FF;
+            }
+        }
+    }
+
+    /**
+     * Vectorized trilinear resampling kernel for 16-bit images.
+     */
+    static final class ShortKernel extends ResamplingKernel3D.ShortKernel
+    {
+        ShortKernel(ImageStack image, AffineTransform3D transfo)
+        {
+            super(image, transfo, Interpolation.LINEAR);
+        }
+
+        @Override
+        void fillLinear(short[] target, int offset, int count, double xs, double ys, double zs)
+        {
+            Chunk chunk = CHUNKS.get();
+            chunk.x = xs;
+            chunk.y = ys;
+            chunk.z = zs;
+            int n = count - count % LANES;
+            for (int x0 = 0; x0 < n; x0 += Chunk.SIZE)
+            {
+                int size = Math.min(Chunk.SIZE, n - x0);
+                chunk.split(this, size);
+                readCorners(chunk, size);
+                chunk.blend(size);
+                for (int x = 0; x < size; x++)
+                {
+                    // interpolated values are within [0, 65535]: round without clamping
+                    float value = chunk.values[x];
+                    target[offset + x0 + x] = isAmbiguous(value, 65535f) ? (short) (chunk.blendExact(x) + 0.5) : (short) (value + 0.5f);
+                }
+            }
+
+            // process the remaining voxels
+            super.fillLinear(target, offset + n, count - n, chunk.x, chunk.y, chunk.z);
+        }
+
+        private void readCorners(Chunk chunk, int count)
+        {
+            float[][] corners = chunk.corners;
+            for (int x = 0; x < count; x++)
+            {
+                short[] slice0 = slices[chunk.k[x]];
+                short[] slice1 = slices[chunk.k[x] + 1];
+                int i = chunk.offsets[x];
+                corners[0][x] = slice0[i] & 0x00FFFF;
+                corners[1][x] = slice0[i + 1] & 0x00FFFF;
+                corners[2][x] = slice0[i + sizeX] & 0x00FFFF;
+                corners[3][x] = slice0[i + sizeX + 1] & 0x00FFFF;
+                corners[4][x] = slice1[i] & 0x00FFFF;
+                corners[5][x] = slice1[i + 1] & 0x00FFFF;
+                corners[6][x] = slice1[i + sizeX] & 0x00FFFF;
+                corners[7][x] = slice1[i + sizeX + 1] & 0x00FFFF;
+            }
+        }
+    }
+
+    /**
+     * Vectorized trilinear resampling kernel for 32-bit images.
+     */
+    static final class FloatKernel extends ResamplingKernel3D.FloatKernel
+    {
+        FloatKernel(ImageStack image, AffineTransform3D transfo)
+        {
+            super(image, transfo, Interpolation.LINEAR);
+        }
+
+        @Override
+        void fillLinear(float[] target, int offset, int count, double xs, double ys, double zs)
+        {
+            Chunk chunk = CHUNKS.get();
+            chunk.x = xs;
+            chunk.y = ys;
+            chunk.z = zs;
+            int n = count - count % LANES;
+            for (int x0 = 0; x0 < n; x0 += Chunk.SIZE)
+            {
+                int size = Math.min(Chunk.SIZE, n - x0);
+                chunk.split(this, size);
+                for (int x = 0; x < size; x += LANES)
+                {
+                    int k = chunk.k[x];
+                    FloatVector values = k == chunk.k[x + LANES - 1] ? gather(chunk, x, k) : readLanes(chunk, x);
+                    values.intoArray(target, offset + x0 + x);
+                }
+            }
+
+            // process the remaining voxels
+            super.fillLinear(target, offset + n, count - n, chunk.x, chunk.y, chunk.z);
+        }
+
+        /**
+         * Interpolates a block of lanes that use the same pair of slices, by
+         * gathering neighbor values.
+         */
+        private FloatVector gather(Chunk chunk, int x, int k)
+        {
+            float[] slice0 = slices[k];
+            float[] slice1 = slices[k + 1];
+            int[] offsets = chunk.offsets;
+            return trilinear(
+                    FloatVector.fromArray(FLOATS, slice0, 0, offsets, x),
+                    FloatVector.fromArray(FLOATS, slice0, 1, offsets, x),
+                    FloatVector.fromArray(FLOATS, slice0, sizeX, offsets, x),
+                    FloatVector.fromArray(FLOATS, slice0, sizeX + 1, offsets, x),
+                    FloatVector.fromArray(FLOATS, slice1, 0, offsets, x),
+                    FloatVector.fromArray(FLOATS, slice1, 1, offsets, x),
+                    FloatVector.fromArray(FLOATS, slice1, sizeX, offsets, x),
+                    FloatVector.fromArray(FLOATS, slice1, sizeX + 1, offsets, x),
+                    FloatVector.fromArray(FLOATS, chunk.wx, x), FloatVector.fromArray(FLOATS, chunk.wy, x),
+                    FloatVector.fromArray(FLOATS, chunk.wz, x));
+        }
+
+        /**
+         * Interpolates a block of lanes that cross several slices, by reading
+         * neighbor values lane by lane.
+         */
+        private FloatVector readLanes(Chunk chunk, int x0)
+        {
+            float[][] corners = chunk.corners;
+            for (int x = x0; x < x0 + LANES; x++)
+            {
+                float[] slice0 = slices[chunk.k[x]];
+                float[] slice1 = slices[chunk.k[x] + 1];
+                int i = chunk.offsets[x];
+                corners[0][x] = slice0[i];
+                corners[1][x] = slice0[i + 1];
+                corners[2][x] = slice0[i + sizeX];
+                corners[3][x] = slice0[i + sizeX + 1];
+                corners[4][x] = slice1[i];
+                corners[5][x] = slice1[i + 1];
+                corners[6][x] = slice1[i + sizeX];
+                corners[7][x] = slice1[i + sizeX + 1];
+            }
+            return chunk.blendLanes(x0);
+        }
+    }
+
+    /**
+     * Private constructor to prevent instantiation.
+     */
+    private VectorTrilinear()
+    {
+    }
+}
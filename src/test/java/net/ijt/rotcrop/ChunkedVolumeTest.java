@@ -0,0 +1,128 @@
+/**
+ * 
+ */
+package net.ijt.rotcrop;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+import ij.ImageStack;
+import net.ijt.geom3d.Point3D;
+
+/**
+ * @author dlegland
+ *
+ */
+public class ChunkedVolumeTest
+{
+    /**
+     * Test method for {@link net.ijt.rotcrop.ChunkedVolume#getVoxel(int, int, int)}.
+     */
+    @Test
+    public final void testGetVoxel_sameAsStack() throws IOException
+    {
+        ImageStack image = createFloatStack(30, 25, 20);
+        File dir = Files.createTempDirectory("rotcrop").toFile();
+        try
+        {
+            // use a chunk size that does not divide image size
+            ChunkedVolume.write(image, dir, 8, true);
+            ChunkedVolume volume = ChunkedVolume.open(dir);
+            assertEquals(30, volume.getWidth());
+            assertEquals(25, volume.getHeight());
+            assertEquals(20, volume.getSize());
+            assertEquals(32, volume.getBitDepth());
+
+            for (int z = 0; z < 20; z++)
+            {
+                for (int y = 0; y < 25; y++)
+                {
+                    for (int x = 0; x < 30; x++)
+                    {
+                        assertEquals(image.getVoxel(x, y, z), volume.getVoxel(x, y, z), 0.0);
+                    }
+                }
+            }
+        }
+        finally
+        {
+            delete(dir);
+        }
+    }
+
+    /**
+     * Checks that crops are the same as for the stack, and that repeated crops
+     * within the same region do not read chunks again.
+     */
+    @Test
+    public final void testRotatedCrop_cachedChunks() throws IOException
+    {
+        ImageStack image = createFloatStack(40, 35, 30);
+        File dir = Files.createTempDirectory("rotcrop").toFile();
+        try
+        {
+            ChunkedVolume.write(image, dir, 8, false);
+            ChunkedVolume volume = ChunkedVolume.open(dir, 1000);
+
+            int[] dims = new int[] {10, 8, 6};
+            Point3D center = new Point3D(20.0, 17.0, 15.0);
+            double[] angles = new double[] {30.0, 20.0, 10.0};
+            ImageStack exp = RotCrop.rotatedCrop(image, dims, center, angles, Interpolation.LINEAR);
+            ImageStack res = RotCrop.rotatedCrop(volume, dims, center, angles, Interpolation.LINEAR);
+            for (int z = 0; z < dims[2]; z++)
+            {
+                assertArrayEquals((float[]) exp.getPixels(z + 1), (float[]) res.getPixels(z + 1), 1e-4f);
+            }
+
+            // only the chunks around the crop have been read
+            long count = volume.getReadCount();
+            assertTrue(count > 0);
+            assertTrue(count < 5 * 5 * 4);
+
+            // a second crop in the same region is read from the cache
+            RotCrop.rotatedCrop(volume, dims, new Point3D(20.5, 17.0, 15.5), angles, Interpolation.LINEAR);
+            assertEquals(count, volume.getReadCount());
+        }
+        finally
+        {
+            delete(dir);
+        }
+    }
+
+    /**
+     * Creates a 32-bit stack whose values vary along each direction.
+     */
+    private static final ImageStack createFloatStack(int sizeX, int sizeY, int sizeZ)
+    {
+        ImageStack stack = ImageStack.create(sizeX, sizeY, sizeZ, 32);
+        for (int z = 0; z < sizeZ; z++)
+        {
+            for (int y = 0; y < sizeY; y++)
+            {
+                for (int x = 0; x < sizeX; x++)
+                {
+                    stack.setVoxel(x, y, z, x + 2.5 * y + 3.25 * z);
+                }
+            }
+        }
+        return stack;
+    }
+
+    private static final void delete(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null)
+        {
+            for (File child : children)
+            {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * 
+ */
+package net.ijt.rotcrop;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import ij.ImageStack;
+import net.ijt.geom3d.Point3D;
+
+/**
+ * @author dlegland
+ *
+ */
+public class CropCacheTest
+{
+    /**
+     * Test method for {@link net.ijt.rotcrop.CropCache#get(net.ijt.rotcrop.CropCache.Key, java.util.function.Supplier)}.
+     */
+    @Test
+    public final void testGet_returnsCopyOfCachedResult()
+    {
+        CropCache cache = new CropCache(1 << 20);
+        ImageStack source = ImageStack.create(10, 10, 10, 8);
+        int[] dims = new int[] {5, 4, 3};
+        int[] count = new int[1];
+
+        CropCache.Key key = cache.key("test", source, dims, new double[] {1.0, 2.0}, Interpolation.LINEAR, 8);
+        ImageStack res1 = cache.get(key, () -> {
+            count[0]++;
+            ImageStack res = ImageStack.create(5, 4, 3, 8);
+            res.setVoxel(1, 2, 1, 42);
+            return res;
+        });
+        
+        // same parameters give an equal key
+        key = cache.key("test", source, dims, new double[] {1.0, 2.0}, Interpolation.LINEAR, 8);
+        ImageStack res2 = cache.get(key, () -> {
+            count[0]++;
+            return ImageStack.create(5, 4, 3, 8);
+        });
+
+        assertEquals(1, count[0]);
+        assertEquals(1, cache.getHitCount());
+        assertNotSame(res1, res2);
+        assertEquals(42.0, res2.getVoxel(1, 2, 1), 0.0);
+        
+        // modifying a result does not modify the cached result
+        res2.setVoxel(1, 2, 1, 0);
+        ImageStack res3 = cache.get(key, () -> null);
+        assertEquals(42.0, res3.getVoxel(1, 2, 1), 0.0);
+        assertEquals(60, cache.getUsedBytes());
+    }
+
+    /**
+     * Test method for {@link net.ijt.rotcrop.CropCache#invalidate(Object)}.
+     */
+    @Test
+    public final void testInvalidate()
+    {
+        CropCache cache = new CropCache(1 << 20);
+        ImageStack source = ImageStack.create(10, 10, 10, 8);
+        int[] dims = new int[] {5, 4, 3};
+        double[] params = new double[] {1.0, 2.0};
+
+        CropCache.Key key = cache.key("test", source, dims, params, Interpolation.LINEAR, 8);
+        cache.get(key, () -> ImageStack.create(5, 4, 3, 8));
+        assertEquals(1, cache.getEntryCount());
+        
+        cache.invalidate(source);
+        assertEquals(0, cache.getEntryCount());
+        assertEquals(0, cache.getUsedBytes());
+        
+        // the new key differs from the keys created before the modification
+        CropCache.Key key2 = cache.key("test", source, dims, params, Interpolation.LINEAR, 8);
+        assertFalse(key.equals(key2));
+        
+        // results computed with an obsolete key are not cached
+        cache.get(key, () -> ImageStack.create(5, 4, 3, 8));
+        assertEquals(0, cache.getEntryCount());
+    }
+
+    /**
+     * Test method for {@link net.ijt.rotcrop.CropCache#get(net.ijt.rotcrop.CropCache.Key, java.util.function.Supplier)}.
+     */
+    @Test
+    public final void testGet_evictsLeastRecentlyUsed()
+    {
+        // room for two results of 60 bytes
+        CropCache cache = new CropCache(150);
+        ImageStack source = ImageStack.create(10, 10, 10, 8);
+        int[] dims = new int[] {5, 4, 3};
+        
+        CropCache.Key key1 = cache.key("test", source, dims, new double[] {1.0}, Interpolation.LINEAR, 8);
+        CropCache.Key key2 = cache.key("test", source, dims, new double[] {2.0}, Interpolation.LINEAR, 8);
+        CropCache.Key key3 = cache.key("test", source, dims, new double[] {3.0}, Interpolation.LINEAR, 8);
+        cache.get(key1, () -> ImageStack.create(5, 4, 3, 8));
+        cache.get(key2, () -> ImageStack.create(5, 4, 3, 8));
+        // access the first result, such that the second one is the least recently used
+        cache.get(key1, () -> null);
+        cache.get(key3, () -> ImageStack.create(5, 4, 3, 8));
+        
+        assertEquals(2, cache.getEntryCount());
+        assertEquals(120, cache.getUsedBytes());
+        assertNotNull(cache.get(key1, () -> null));
+        assertNull(cache.get(key2, () -> null));
+    }
+
+    /**
+     * Test method for {@link net.ijt.rotcrop.RotCrop#rotatedCrop(ij.ImageStack, int[], net.ijt.geom3d.Point3D, double[], Interpolation, int)}.
+     */
+    @Test
+    public final void testRotatedCrop_notCachedAfterSourceChange()
+    {
+        ImageStack image = ImageStack.create(20, 20, 20, 8);
+        image.setVoxel(10, 10, 10, 100);
+        int[] dims = new int[] {5, 5, 5};
+        Point3D center = new Point3D(10.0, 10.0, 10.0);
+        double[] angles = new double[] {0.0, 0.0, 0.0};
+        
+        ImageStack res1 = RotCrop.rotatedCrop(image, dims, center, angles, Interpolation.NEAREST, 8);
+        assertEquals(100.0, res1.getVoxel(2, 2, 2), 0.0);
+        
+        // modify source without notifying the cache
+        image.setVoxel(10, 10, 10, 50);
+        ImageStack res2 = RotCrop.rotatedCrop(image, dims, center, angles, Interpolation.NEAREST, 8);
+        assertEquals(50.0, res2.getVoxel(2, 2, 2), 0.0);
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * 
+ */
+package net.ijt.rotcrop;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import ij.ImageStack;
+import net.ijt.geom3d.AffineTransform3D;
+import net.ijt.geom3d.Point3D;
+import net.ijt.interp.Function3D;
+import net.ijt.interp.TransformedImage3D;
+
+/**
+ * @author dlegland
+ *
+ */
+public class CropVirtualStackTest
+{
+    /**
+     * Test method for {@link net.ijt.rotcrop.CropVirtualStack#getProcessor(int)}.
+     */
+    @Test
+    public final void testGetProcessor_sameAsResample()
+    {
+        ImageStack image = TestImages.createRampStack(30, 25, 20);
+        int[] dims = new int[] {16, 12, 10};
+        AffineTransform3D transfo = RotCrop.computeTransform(new Point3D(15.0, 12.0, 10.0), dims, new double[] {30.0, 20.0, 10.0});
+        ResamplingKernel3D kernel = ResamplingKernel3D.create(image, transfo);
+        ImageStack exp = RotCrop.resample(kernel, dims);
+
+        CropVirtualStack stack = new CropVirtualStack(kernel, dims, 8, 3);
+        assertEquals(10, stack.getSize());
+        assertEquals(0, stack.getCachedSliceCount());
+        for (int z = 0; z < dims[2]; z++)
+        {
+            assertArrayEquals((byte[]) exp.getPixels(z + 1), (byte[]) stack.getPixels(z + 1));
+        }
+        // only the last slices are kept
+        assertEquals(3, stack.getCachedSliceCount());
+    }
+
+    /**
+     * Checks that functions other than resampling kernels are evaluated voxel
+     * by voxel, with the same result as the fillStack() method.
+     */
+    @Test
+    public final void testGetProcessor_genericFunction()
+    {
+        ImageStack image = TestImages.createRampStack(30, 25, 20);
+        int[] dims = new int[] {16, 12, 10};
+        AffineTransform3D transfo = RotCrop.computeTransform(new Point3D(15.0, 12.0, 10.0), dims, new double[] {30.0, 20.0, 10.0});
+        Function3D interp = new TransformedImage3D(image, transfo);
+        ImageStack exp = ImageStack.create(dims[0], dims[1], dims[2], 8);
+        RotCrop.fillStack(exp, interp);
+
+        CropVirtualStack stack = new CropVirtualStack(interp, dims, 8);
+        for (int z = 0; z < dims[2]; z++)
+        {
+            assertArrayEquals((byte[]) exp.getPixels(z + 1), (byte[]) stack.getPixels(z + 1));
+        }
+    }
+}
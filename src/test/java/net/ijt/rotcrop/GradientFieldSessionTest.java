@@ -0,0 +1,123 @@
+/**
+ * 
+ */
+package net.ijt.rotcrop;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import ij.ImageStack;
+import net.ijt.geom3d.Point3D;
+import net.ijt.geom3d.Vector3D;
+
+/**
+ * @author dlegland
+ *
+ */
+public class GradientFieldSessionTest
+{
+    /**
+     * Test method for {@link net.ijt.rotcrop.GradientFieldSession#evaluate(net.ijt.geom3d.Point3D, double)}.
+     */
+    @Test
+    public final void testEvaluate_switchesToField()
+    {
+        ImageStack image = createTestImage(12, 12, 12);
+        double sigma = 1.0;
+        long threshold = GradientField.queryThreshold(image, sigma);
+        GradientFieldSession session = new GradientFieldSession(image);
+
+        LocalGradientEstimator gradEst = new LocalGradientEstimator(sigma);
+        Point3D pos = new Point3D(6, 5, 4);
+        Vector3D exp = gradEst.evaluate(image, pos);
+        for (long i = 0; i < threshold; i++)
+        {
+            Vector3D grad = session.evaluate(pos, sigma);
+            assertEquals(exp.x(), grad.x(), 1e-10);
+            assertEquals(exp.y(), grad.y(), 1e-10);
+            assertEquals(exp.z(), grad.z(), 1e-10);
+        }
+        assertEquals(0, session.cachedFieldCount());
+
+        Vector3D grad = session.evaluate(pos, sigma);
+        assertEquals(1, session.cachedFieldCount());
+        assertEquals(exp.x(), grad.x(), 1e-4 * (exp.norm() + 1.0));
+        assertEquals(exp.y(), grad.y(), 1e-4 * (exp.norm() + 1.0));
+        assertEquals(exp.z(), grad.z(), 1e-4 * (exp.norm() + 1.0));
+    }
+
+    /**
+     * Test method for {@link net.ijt.rotcrop.GradientFieldSession#evaluate(net.ijt.geom3d.Point3D, double)}.
+     */
+    @Test
+    public final void testEvaluate_keepsMostRecentFields()
+    {
+        ImageStack image = createTestImage(12, 12, 12);
+        GradientFieldSession session = new GradientFieldSession(image);
+        Point3D pos = new Point3D(6, 5, 4);
+
+        double[] sigmas = new double[] {1.0, 1.5, 2.0};
+        for (double sigma : sigmas)
+        {
+            for (long i = 0; i <= GradientField.queryThreshold(image, sigma); i++)
+            {
+                session.evaluate(pos, sigma);
+            }
+        }
+        assertEquals(GradientFieldSession.MAX_CACHED_FIELDS, session.cachedFieldCount());
+    }
+
+    /**
+     * Test method for {@link net.ijt.rotcrop.GradientFieldSession#invalidate()}.
+     */
+    @Test
+    public final void testInvalidate_usesModifiedImage()
+    {
+        ImageStack image = createTestImage(12, 12, 12);
+        double sigma = 1.0;
+        GradientFieldSession session = new GradientFieldSession(image);
+        Point3D pos = new Point3D(6, 5, 4);
+        for (long i = 0; i <= GradientField.queryThreshold(image, sigma); i++)
+        {
+            session.evaluate(pos, sigma);
+        }
+        assertEquals(1, session.cachedFieldCount());
+
+        // modify the image in place, and notify the session
+        for (int z = 0; z < 12; z++)
+        {
+            for (int y = 0; y < 12; y++)
+            {
+                for (int x = 0; x < 12; x++)
+                {
+                    image.setVoxel(x, y, z, 10 * x);
+                }
+            }
+        }
+        session.invalidate();
+        assertEquals(0, session.cachedFieldCount());
+
+        Vector3D exp = new LocalGradientEstimator(sigma).evaluate(image, pos);
+        Vector3D grad = session.evaluate(pos, sigma);
+        assertEquals(exp.x(), grad.x(), 1e-10);
+        assertEquals(exp.y(), grad.y(), 1e-10);
+        assertEquals(exp.z(), grad.z(), 1e-10);
+    }
+
+    private static final ImageStack createTestImage(int sizeX, int sizeY, int sizeZ)
+    {
+        ImageStack image = ImageStack.create(sizeX, sizeY, sizeZ, 8);
+        for (int z = 0; z < sizeZ; z++)
+        {
+            for (int y = 0; y < sizeY; y++)
+            {
+                for (int x = 0; x < sizeX; x++)
+                {
+                    image.setVoxel(x, y, z, (x * x + 3 * y + 5 * z * y) % 256);
+                }
+            }
+        }
+        return image;
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * 
+ */
+package net.ijt.rotcrop;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import ij.ImageStack;
+import net.ijt.geom3d.Point3D;
+import net.ijt.geom3d.Vector3D;
+
+/**
+ * @author dlegland
+ *
+ */
+public class GradientFieldTest
+{
+    /**
+     * Test method for {@link net.ijt.rotcrop.GradientField#compute(ij.ImageStack, double)}.
+     */
+    @Test
+    public final void testCompute_sameAsLocalEstimator()
+    {
+        ImageStack image = createTestImage(30, 25, 20);
+        double sigma = 2.0;
+        GradientField field = GradientField.compute(image, sigma);
+        LocalGradientEstimator gradEst = new LocalGradientEstimator(sigma);
+
+        // check positions within image and close to the borders
+        Point3D[] positions = new Point3D[] {new Point3D(15, 12, 10), new Point3D(1, 23, 18), new Point3D(29, 0, 0)};
+        for (Point3D pos : positions)
+        {
+            Vector3D exp = gradEst.evaluate(image, pos);
+            Vector3D grad = field.evaluate(pos);
+            double tol = 1e-4 * (exp.norm() + 1.0);
+            assertEquals(exp.x(), grad.x(), tol);
+            assertEquals(exp.y(), grad.y(), tol);
+            assertEquals(exp.z(), grad.z(), tol);
+        }
+    }
+
+    /**
+     * Test method for {@link net.ijt.rotcrop.GradientField#evaluate(net.ijt.geom3d.Point3D)}.
+     */
+    @Test
+    public final void testEvaluate_interpolatesBetweenVoxels()
+    {
+        ImageStack image = createTestImage(20, 20, 20);
+        GradientField field = GradientField.compute(image, 1.5);
+
+        Vector3D g0 = field.evaluate(new Point3D(10, 10, 10));
+        Vector3D g1 = field.evaluate(new Point3D(11, 10, 10));
+        Vector3D grad = field.evaluate(new Point3D(10.25, 10, 10));
+        assertEquals(0.75 * g0.x() + 0.25 * g1.x(), grad.x(), 1e-6);
+        assertEquals(0.75 * g0.y() + 0.25 * g1.y(), grad.y(), 1e-6);
+        assertEquals(0.75 * g0.z() + 0.25 * g1.z(), grad.z(), 1e-6);
+    }
+
+    /**
+     * Test method for {@link net.ijt.rotcrop.GradientField#computeRecursive(ij.ImageStack, double)}.
+     */
+    @Test
+    public final void testComputeRecursive_rampSameAsLocalEstimator()
+    {
+        // linear ramp, using a 32-bit image to avoid overflows
+        ImageStack image = ImageStack.create(60, 60, 60, 32);
+        for (int z = 0; z < 60; z++)
+        {
+            for (int y = 0; y < 60; y++)
+            {
+                for (int x = 0; x < 60; x++)
+                {
+                    image.setVoxel(x, y, z, 2.0 * x - 1.0 * y + 0.5 * z);
+                }
+            }
+        }
+        
+        double sigma = 4.0;
+        GradientField field = GradientField.computeRecursive(image, sigma);
+        Vector3D exp = new LocalGradientEstimator(sigma).evaluate(image, new Point3D(30, 30, 30));
+        Vector3D grad = field.evaluate(new Point3D(30, 30, 30));
+        assertEquals(exp.x(), grad.x(), 1e-3 * exp.norm());
+        assertEquals(exp.y(), grad.y(), 1e-3 * exp.norm());
+        assertEquals(exp.z(), grad.z(), 1e-3 * exp.norm());
+    }
+
+    /**
+     * Test method for {@link net.ijt.rotcrop.GradientField#computeRecursive(ij.ImageStack, double)}.
+     */
+    @Test
+    public final void testComputeRecursive_sameDirectionAsLocalEstimator()
+    {
+        // a ball, whose gradient is oriented along the radius
+        ImageStack image = ImageStack.create(50, 50, 50, 8);
+        for (int z = 0; z < 50; z++)
+        {
+            for (int y = 0; y < 50; y++)
+            {
+                for (int x = 0; x < 50; x++)
+                {
+                    double d = Math.hypot(Math.hypot(x - 25, y - 25), z - 25);
+                    image.setVoxel(x, y, z, d < 15 ? 200 : 0);
+                }
+            }
+        }
+        
+        double sigma = 4.0;
+        GradientField field = GradientField.computeRecursive(image, sigma);
+        LocalGradientEstimator gradEst = new LocalGradientEstimator(sigma);
+        Point3D[] positions = new Point3D[] {new Point3D(40, 25, 25), new Point3D(25, 14, 30), new Point3D(32, 32, 18)};
+        for (Point3D pos : positions)
+        {
+            Vector3D exp = gradEst.evaluate(image, pos).normalize();
+            Vector3D grad = field.evaluate(pos).normalize();
+            assertTrue(exp.x() * grad.x() + exp.y() * grad.y() + exp.z() * grad.z() > 0.99);
+        }
+    }
+
+    private static final ImageStack createTestImage(int sizeX, int sizeY, int sizeZ)
+    {
+        ImageStack image = ImageStack.create(sizeX, sizeY, sizeZ, 8);
+        for (int z = 0; z < sizeZ; z++)
+        {
+            for (int y = 0; y < sizeY; y++)
+            {
+                for (int x = 0; x < sizeX; x++)
+                {
+                    image.setVoxel(x, y, z, (x * x + 3 * y + 5 * z * y) % 256);
+                }
+            }
+        }
+        return image;
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * 
+ */
+package net.ijt.rotcrop;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import ij.ImageStack;
+import net.ijt.geom3d.AffineTransform3D;
+import net.ijt.geom3d.Point3D;
+
+/**
+ * @author dlegland
+ *
+ */
+public class ImagePyramidTest
+{
+    /**
+     * Test method for {@link net.ijt.rotcrop.ImagePyramid#downsample(ij.ImageStack)}.
+     */
+    @Test
+    public final void testDownsample_oddSize()
+    {
+        ImageStack image = ImageStack.create(5, 4, 3, 8);
+        for (int z = 0; z < 3; z++)
+        {
+            for (int y = 0; y < 4; y++)
+            {
+                for (int x = 0; x < 5; x++)
+                {
+                    image.setVoxel(x, y, z, 10 * x);
+                }
+            }
+        }
+
+        ImageStack res = ImagePyramid.downsample(image);
+        assertEquals(3, res.getWidth());
+        assertEquals(2, res.getHeight());
+        assertEquals(2, res.getSize());
+        assertEquals(8, res.getBitDepth());
+        assertEquals(5.0, res.getVoxel(0, 0, 0), 1e-10);
+        assertEquals(25.0, res.getVoxel(1, 1, 1), 1e-10);
+        // last voxel is replicated
+        assertEquals(40.0, res.getVoxel(2, 1, 1), 1e-10);
+    }
+
+    /**
+     * Checks that a crop resampled from a coarse level with the level
+     * transform matches the full resolution crop, for a linear image.
+     */
+    @Test
+    public final void testLevelTransform_linearImage()
+    {
+        ImageStack image = ImageStack.create(64, 64, 64, 32);
+        for (int z = 0; z < 64; z++)
+        {
+            for (int y = 0; y < 64; y++)
+            {
+                for (int x = 0; x < 64; x++)
+                {
+                    image.setVoxel(x, y, z, x + 2 * y + 3 * z);
+                }
+            }
+        }
+        ImagePyramid pyramid = new ImagePyramid(image);
+        assertEquals(3, pyramid.getLevelCount());
+        assertEquals(0, pyramid.availableLevel(2));
+        pyramid.build();
+        assertEquals(2, pyramid.availableLevel(2));
+        assertEquals(2, pyramid.levelFor(0.25));
+        assertEquals(1, pyramid.levelFor(0.4));
+        assertEquals(0, pyramid.levelFor(1.0));
+
+        int[] dims = new int[] {20, 16, 12};
+        AffineTransform3D transfo = RotCrop.computeTransform(new Point3D(32.0, 32.0, 32.0), dims, new double[] {30.0, 20.0, 10.0});
+        ResamplingKernel3D full = ResamplingKernel3D.create(image, transfo);
+        for (int level = 1; level <= 2; level++)
+        {
+            int[] levelDims = ImagePyramid.levelDims(dims, level);
+            ResamplingKernel3D kernel = ResamplingKernel3D.create(pyramid.getLevel(level), ImagePyramid.levelTransform(transfo, level));
+            double s = 1 << level;
+            double t = (s - 1) * 0.5;
+            for (int z = 0; z < levelDims[2]; z++)
+            {
+                for (int y = 0; y < levelDims[1]; y++)
+                {
+                    for (int x = 0; x < levelDims[0]; x++)
+                    {
+                        double exp = full.evaluate(s * x + t, s * y + t, s * z + t);
+                        assertEquals(exp, kernel.evaluate(x, y, z), 1e-3);
+                    }
+                }
+            }
+        }
+    }
+}
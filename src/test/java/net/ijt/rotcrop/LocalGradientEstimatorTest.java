@@ -5,12 +5,19 @@ package net.ijt.rotcrop;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
 import org.junit.Test;
 
+import ij.ImageStack;
 import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
 import net.ijt.geom2d.Point2D;
 import net.ijt.geom2d.Vector2D;
+import net.ijt.geom3d.Point3D;
+import net.ijt.geom3d.Vector3D;
 
 /**
  * @author dlegland
@@ -46,6 +53,219 @@ public class LocalGradientEstimatorTest
         System.out.println("grad: " + grad.x() + ", " + grad.y());
     }
 
+    /**
+     * Test method for {@link net.ijt.rotcrop.LocalGradientEstimator#evaluate(ij.ImageStack, net.ijt.geom3d.Point3D)}.
+     */
+    @Test
+    public final void testEvaluate_3D_sameAsFullKernel()
+    {
+        ImageStack image = ImageStack.create(30, 25, 20, 8);
+        for (int z = 0; z < 20; z++)
+        {
+            for (int y = 0; y < 25; y++)
+            {
+                for (int x = 0; x < 30; x++)
+                {
+                    image.setVoxel(x, y, z, (x * x + 3 * y + 5 * z * y) % 256);
+                }
+            }
+        }
+        
+        double sigma = 2.5;
+        LocalGradientEstimator gradEst = new LocalGradientEstimator(sigma);
+        double[][][] kernel = LocalGradientEstimator.createKernel3D(sigma);
+        
+        // check positions within image and close to the borders
+        Point3D[] positions = new Point3D[] {new Point3D(15, 12, 10), new Point3D(1, 23, 18.6), new Point3D(29, 0, 0)};
+        for (Point3D pos : positions)
+        {
+            Vector3D exp = evaluateFullKernel(image, pos, kernel);
+            Vector3D grad = gradEst.evaluate(image, pos);
+            assertEquals(exp.x(), grad.x(), 1e-8);
+            assertEquals(exp.y(), grad.y(), 1e-8);
+            assertEquals(exp.z(), grad.z(), 1e-8);
+        }
+    }
+
+    /**
+     * Test method for {@link net.ijt.rotcrop.LocalGradientEstimator#evaluate(ij.ImageStack, net.ijt.geom3d.Point3D)}.
+     */
+    @Test
+    public final void testEvaluate_3D_constantImageNearBorder()
+    {
+        ImageStack image = ImageStack.create(10, 10, 10, 8);
+        for (int z = 0; z < 10; z++)
+        {
+            for (int y = 0; y < 10; y++)
+            {
+                for (int x = 0; x < 10; x++)
+                {
+                    image.setVoxel(x, y, z, 100);
+                }
+            }
+        }
+        
+        // voxels outside of image replicate the border, resulting in a null gradient
+        LocalGradientEstimator gradEst = new LocalGradientEstimator(2.0);
+        Vector3D grad = gradEst.evaluate(image, new Point3D(9, 8, 0));
+        assertEquals(0.0, grad.x(), 1e-10);
+        assertEquals(0.0, grad.y(), 1e-10);
+        assertEquals(0.0, grad.z(), 1e-10);
+    }
+
+    /**
+     * Test method for {@link net.ijt.rotcrop.LocalGradientEstimator#cachedKernel(double, int)}.
+     */
+    @Test
+    public final void testCachedKernel_sharedAndLazy()
+    {
+        double[] kernel = LocalGradientEstimator.cachedKernel(1.25, 3);
+        assertSame(kernel, LocalGradientEstimator.cachedKernel(1.25, 3));
+        
+        // smoothing kernel followed by derivative kernel
+        int n = 2 * (int) Math.ceil(2 * 1.25) + 1;
+        assertEquals(2 * n, kernel.length);
+        
+        // flat 2D kernel has the same values as the nested one
+        double[][] kernel2d = LocalGradientEstimator.createKernel2D(1.25);
+        double[] flat = LocalGradientEstimator.cachedKernel(1.25, 2);
+        assertEquals(n * n, flat.length);
+        assertEquals(kernel2d[1][3], flat[1 * n + 3], 0.0);
+        
+        assertTrue(LocalGradientEstimator.cachedKernelCount() <= LocalGradientEstimator.MAX_CACHED_KERNELS);
+    }
+
+    /**
+     * Test method for {@link net.ijt.rotcrop.LocalGradientEstimator#evaluate(ij.ImageStack, java.util.List)}.
+     */
+    @Test
+    public final void testEvaluate_3D_batchSameAsSingle()
+    {
+        ImageStack image = ImageStack.create(40, 35, 30, 8);
+        for (int z = 0; z < 30; z++)
+        {
+            for (int y = 0; y < 35; y++)
+            {
+                for (int x = 0; x < 40; x++)
+                {
+                    image.setVoxel(x, y, z, (x * x + 3 * y + 5 * z * y) % 256);
+                }
+            }
+        }
+        
+        // clustered positions, scattered positions, and positions outside of image
+        List<Point3D> positions = new ArrayList<Point3D>();
+        Random random = new Random(42);
+        for (int i = 0; i < 150; i++)
+        {
+            positions.add(new Point3D(10 + random.nextDouble() * 5, 20 + random.nextDouble() * 5, 12 + random.nextDouble() * 4));
+        }
+        for (int i = 0; i < 50; i++)
+        {
+            positions.add(new Point3D(random.nextDouble() * 40, random.nextDouble() * 35, random.nextDouble() * 30));
+        }
+        positions.add(new Point3D(-3.2, 10, 5));
+        positions.add(new Point3D(41.0, 36.0, 33.0));
+        
+        LocalGradientEstimator gradEst = new LocalGradientEstimator(1.5);
+        double[] grads = gradEst.evaluate(image, positions);
+        assertEquals(3 * positions.size(), grads.length);
+        for (int i = 0; i < positions.size(); i++)
+        {
+            Vector3D exp = gradEst.evaluate(image, positions.get(i));
+            assertEquals(exp.x(), grads[3 * i], 1e-10);
+            assertEquals(exp.y(), grads[3 * i + 1], 1e-10);
+            assertEquals(exp.z(), grads[3 * i + 2], 1e-10);
+        }
+    }
+
+    /**
+     * Test method for {@link net.ijt.rotcrop.LocalGradientEstimator#evaluate(ij.ImageStack, java.util.List)},
+     * with a range large enough for the windows of the groups to be split.
+     */
+    @Test
+    public final void testEvaluate_3D_batchLargeRangeSameAsSingle()
+    {
+        ImageStack image = ImageStack.create(40, 35, 30, 8);
+        for (int z = 0; z < 30; z++)
+        {
+            for (int y = 0; y < 35; y++)
+            {
+                for (int x = 0; x < 40; x++)
+                {
+                    image.setVoxel(x, y, z, (x * x + 3 * y + 5 * z * y) % 256);
+                }
+            }
+        }
+        
+        // positions whose neighborhoods overlap, but whose shared window
+        // exceeds the maximum size
+        List<Point3D> positions = new ArrayList<Point3D>();
+        Random random = new Random(42);
+        for (int i = 0; i < 12; i++)
+        {
+            positions.add(new Point3D(random.nextDouble() * 40, random.nextDouble() * 40, random.nextDouble() * 40));
+        }
+        
+        LocalGradientEstimator gradEst = new LocalGradientEstimator(20.0);
+        double[] grads = gradEst.evaluate(image, positions);
+        for (int i = 0; i < positions.size(); i++)
+        {
+            Vector3D exp = gradEst.evaluate(image, positions.get(i));
+            assertEquals(exp.x(), grads[3 * i], 1e-10);
+            assertEquals(exp.y(), grads[3 * i + 1], 1e-10);
+            assertEquals(exp.z(), grads[3 * i + 2], 1e-10);
+        }
+    }
+
+    /**
+     * Test method for {@link net.ijt.rotcrop.LocalGradientEstimator#mortonCode(int, int, int)}.
+     */
+    @Test
+    public final void testMortonCode()
+    {
+        assertEquals(0L, LocalGradientEstimator.mortonCode(0, 0, 0));
+        assertEquals(1L, LocalGradientEstimator.mortonCode(1, 0, 0));
+        assertEquals(2L, LocalGradientEstimator.mortonCode(0, 1, 0));
+        assertEquals(4L, LocalGradientEstimator.mortonCode(0, 0, 1));
+        assertEquals(7L, LocalGradientEstimator.mortonCode(1, 1, 1));
+        assertEquals(8L, LocalGradientEstimator.mortonCode(2, 0, 0));
+        assertEquals((1L << 63) - 1, LocalGradientEstimator.mortonCode(0x1FFFFF, 0x1FFFFF, 0x1FFFFF));
+    }
+
+    /**
+     * Computes the gradient with the non-separable kernel, replicating the
+     * border voxels.
+     */
+    private static final Vector3D evaluateFullKernel(ImageStack image, Point3D pos, double[][][] kernel)
+    {
+        int n = kernel.length;
+        int r = (n - 1) / 2;
+        int x0 = (int) Math.round(pos.x());
+        int y0 = (int) Math.round(pos.y());
+        int z0 = (int) Math.round(pos.z());
+        double gx = 0.0;
+        double gy = 0.0;
+        double gz = 0.0;
+        for (int k = 0; k < n; k++)
+        {
+            int z = Math.max(Math.min(k + z0 - r, image.getSize() - 1), 0);
+            for (int j = 0; j < n; j++)
+            {
+                int y = Math.max(Math.min(j + y0 - r, image.getHeight() - 1), 0);
+                for (int i = 0; i < n; i++)
+                {
+                    int x = Math.max(Math.min(i + x0 - r, image.getWidth() - 1), 0);
+                    double value = image.getVoxel(x, y, z);
+                    gx += value * kernel[k][j][i];
+                    gy += value * kernel[i][k][j];
+                    gz += value * kernel[i][j][k];
+                }
+            }
+        }
+        return new Vector3D(gx, gy, gz);
+    }
+
     /**
      * Test method for {@link net.ijt.rotcrop.LocalGradientEstimator#createKernel2D(double)}.
      */
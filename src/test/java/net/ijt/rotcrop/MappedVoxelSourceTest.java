@@ -0,0 +1,121 @@
+/**
+ * 
+ */
+package net.ijt.rotcrop;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+
+import org.junit.Test;
+
+import ij.ImageStack;
+import ij.process.ShortProcessor;
+import net.ijt.geom3d.Point3D;
+import net.ijt.geom3d.Vector3D;
+
+/**
+ * @author dlegland
+ *
+ */
+public class MappedVoxelSourceTest
+{
+    /**
+     * Test method for {@link net.ijt.rotcrop.MappedVoxelSource#openTiff(java.io.File)}.
+     */
+    @Test
+    public final void testOpenTiff_sameCropAsStack() throws IOException
+    {
+        ImageStack image = createShortStack(30, 25, 40);
+        File file = File.createTempFile("rotcrop", ".tif");
+        file.deleteOnExit();
+        try (TiffSliceWriter writer = new TiffSliceWriter(file))
+        {
+            writeStack(image, writer);
+        }
+
+        try (MappedVoxelSource source = MappedVoxelSource.openTiff(file))
+        {
+            assertEquals(30, source.getWidth());
+            assertEquals(25, source.getHeight());
+            assertEquals(40, source.getSize());
+            assertEquals(16, source.getBitDepth());
+
+            int[] dims = new int[] {10, 8, 6};
+            Point3D center = new Point3D(15.0, 12.0, 10.0);
+            double[] angles = new double[] {30.0, 20.0, 10.0};
+            ImageStack exp = RotCrop.rotatedCrop(image, dims, center, angles, Interpolation.LINEAR);
+            ImageStack res = RotCrop.rotatedCrop(source, dims, center, angles, Interpolation.LINEAR);
+            for (int z = 0; z < dims[2]; z++)
+            {
+                assertArrayEquals((short[]) exp.getPixels(z + 1), (short[]) res.getPixels(z + 1));
+            }
+
+            // only the slices around the crop are mapped
+            int count = source.getMappedSliceCount();
+            assertTrue(count > 0);
+            assertTrue(count < 20);
+        }
+    }
+
+    /**
+     * Test method for {@link net.ijt.rotcrop.MappedVoxelSource#openRaw(java.io.File, int, int, int, int, long, java.nio.ByteOrder)}.
+     */
+    @Test
+    public final void testOpenRaw_sameGradientAsStack() throws IOException
+    {
+        ImageStack image = createShortStack(30, 25, 20);
+        File file = File.createTempFile("rotcrop", ".raw");
+        file.deleteOnExit();
+        try (RawSliceWriter writer = new RawSliceWriter(file))
+        {
+            writeStack(image, writer);
+        }
+
+        try (MappedVoxelSource source = MappedVoxelSource.openRaw(file, 30, 25, 20, 16, 0, ByteOrder.BIG_ENDIAN))
+        {
+            LocalGradientEstimator estimator = new LocalGradientEstimator(2.0);
+            // use a position close to the border to check padding
+            for (Point3D pos : new Point3D[] {new Point3D(15.0, 12.0, 10.0), new Point3D(28.0, 1.0, 19.0)})
+            {
+                Vector3D exp = estimator.evaluate(image, pos);
+                Vector3D res = estimator.evaluate(source, pos);
+                assertEquals(exp.x(), res.x(), 1e-10);
+                assertEquals(exp.y(), res.y(), 1e-10);
+                assertEquals(exp.z(), res.z(), 1e-10);
+            }
+        }
+    }
+
+    private static final void writeStack(ImageStack image, SliceSink sink) throws IOException
+    {
+        int sizeX = image.getWidth();
+        int sizeY = image.getHeight();
+        sink.begin(sizeX, sizeY, image.getSize(), 16);
+        for (int z = 0; z < image.getSize(); z++)
+        {
+            sink.accept(z, new ShortProcessor(sizeX, sizeY, (short[]) image.getPixels(z + 1), null));
+        }
+    }
+
+    /**
+     * Creates a 16-bit stack whose values vary along each direction.
+     */
+    private static final ImageStack createShortStack(int sizeX, int sizeY, int sizeZ)
+    {
+        ImageStack stack = ImageStack.create(sizeX, sizeY, sizeZ, 16);
+        for (int z = 0; z < sizeZ; z++)
+        {
+            for (int y = 0; y < sizeY; y++)
+            {
+                for (int x = 0; x < sizeX; x++)
+                {
+                    stack.setVoxel(x, y, z, 1000 + x * 7 + y * 13 + z * 29);
+                }
+            }
+        }
+        return stack;
+    }
+}
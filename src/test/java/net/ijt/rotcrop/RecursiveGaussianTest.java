@@ -0,0 +1,84 @@
+/**
+ * 
+ */
+package net.ijt.rotcrop;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * @author dlegland
+ *
+ */
+public class RecursiveGaussianTest
+{
+    /**
+     * Test method for {@link net.ijt.rotcrop.RecursiveGaussian#smooth(double[])}.
+     */
+    @Test
+    public final void testSmooth_impulseResponse()
+    {
+        for (double sigma : new double[] {1.0, 3.0, 12.0})
+        {
+            RecursiveGaussian filter = new RecursiveGaussian(sigma);
+            int n = 401;
+            double[] values = new double[n];
+            values[200] = 1.0;
+            filter.smooth(values);
+            
+            // the response has unit sum, is centered, and has a variance close to sigma^2
+            double sum = 0.0;
+            double mean = 0.0;
+            double var = 0.0;
+            for (int i = 0; i < n; i++)
+            {
+                sum += values[i];
+                mean += (i - 200) * values[i];
+                var += (i - 200) * (i - 200) * values[i];
+            }
+            assertEquals(1.0, sum, 1e-6);
+            assertEquals(0.0, mean, 1e-6);
+            assertEquals(sigma * sigma, var, 0.01 * sigma * sigma);
+        }
+    }
+
+    /**
+     * Test method for {@link net.ijt.rotcrop.RecursiveGaussian#smooth(double[])}.
+     */
+    @Test
+    public final void testSmooth_constantSignal()
+    {
+        RecursiveGaussian filter = new RecursiveGaussian(8.0);
+        double[] values = new double[30];
+        Arrays.fill(values, 5.0);
+        filter.smooth(values);
+        for (double v : values)
+        {
+            assertEquals(5.0, v, 1e-8);
+        }
+    }
+
+    /**
+     * Test method for {@link net.ijt.rotcrop.RecursiveGaussian#derive(double[])}.
+     */
+    @Test
+    public final void testDerive_ramp()
+    {
+        RecursiveGaussian filter = new RecursiveGaussian(5.0);
+        double[] values = new double[200];
+        for (int i = 0; i < values.length; i++)
+        {
+            values[i] = 3.0 * i + 10.0;
+        }
+        filter.derive(values);
+        
+        // far from the ends of the signal, the derivative is the slope
+        for (int i = 50; i < 150; i++)
+        {
+            assertEquals(3.0, values[i], 1e-3);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/**
+ * 
+ */
+package net.ijt.rotcrop;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import ij.ImageStack;
+import net.ijt.geom3d.AffineTransform3D;
+import net.ijt.geom3d.Point3D;
+
+/**
+ * @author dlegland
+ *
+ */
+public class ResamplingKernel3DTest
+{
+    /**
+     * Test method for {@link net.ijt.rotcrop.ResamplingKernel3D#evaluateRow(int, int, double[])}.
+     */
+    @Test
+    public final void testEvaluateRow_sameAsEvaluate()
+    {
+        ImageStack image = TestImages.createRampStack(30, 25, 20);
+        int[] dims = new int[] {16, 12, 10};
+        AffineTransform3D transfo = RotCrop.computeTransform(new Point3D(15.0, 12.0, 10.0), dims, new double[] {30.0, 20.0, 10.0});
+        ResamplingKernel3D kernel = ResamplingKernel3D.create(image, transfo);
+
+        double[] values = new double[dims[0]];
+        for (int z = 0; z < dims[2]; z++)
+        {
+            for (int y = 0; y < dims[1]; y++)
+            {
+                kernel.evaluateRow(y, z, values);
+                for (int x = 0; x < dims[0]; x++)
+                {
+                    assertEquals(kernel.evaluate(x, y, z), values[x], 1e-6);
+                }
+            }
+        }
+    }
+
+    /**
+     * Test method for {@link net.ijt.rotcrop.ResamplingKernel3D#evaluate(double, double, double)}.
+     */
+    @Test
+    public final void testEvaluate_translation()
+    {
+        ImageStack image = TestImages.createRampStack(30, 25, 20);
+        AffineTransform3D transfo = AffineTransform3D.createTranslation(5.0, 4.0, 3.0);
+        ResamplingKernel3D kernel = ResamplingKernel3D.create(image, transfo);
+
+        // integer positions
+        assertEquals(image.getVoxel(5, 4, 3), kernel.evaluate(0, 0, 0), 1e-10);
+        assertEquals(image.getVoxel(10, 8, 6), kernel.evaluate(5, 4, 3), 1e-10);
+
+        // mid-point between two voxels
+        double exp = (image.getVoxel(10, 8, 6) + image.getVoxel(11, 8, 6)) * 0.5;
+        assertEquals(exp, kernel.evaluate(5.5, 4, 3), 1e-10);
+
+        // outside of image
+        assertEquals(0.0, kernel.evaluate(-6, 0, 0), 1e-10);
+        assertEquals(0.0, kernel.evaluate(0, 0, 20), 1e-10);
+    }
+
+    /**
+     * Checks that the code paths specific to each image type give the same
+     * result.
+     */
+    @Test
+    public final void testEvaluateRow_allTypes()
+    {
+        ImageStack image8 = TestImages.createRampStack(30, 25, 20);
+        int[] dims = new int[] {16, 12, 10};
+        AffineTransform3D transfo = RotCrop.computeTransform(new Point3D(15.0, 12.0, 10.0), dims, new double[] {30.0, 20.0, 10.0});
+
+        ResamplingKernel3D kernel8 = ResamplingKernel3D.create(image8, transfo);
+        ResamplingKernel3D kernel16 = ResamplingKernel3D.create(convertStack(image8, 16), transfo);
+        ResamplingKernel3D kernel32 = ResamplingKernel3D.create(convertStack(image8, 32), transfo);
+
+        double[] values8 = new double[dims[0]];
+        double[] values16 = new double[dims[0]];
+        double[] values32 = new double[dims[0]];
+        for (int z = 0; z < dims[2]; z++)
+        {
+            for (int y = 0; y < dims[1]; y++)
+            {
+                kernel8.evaluateRow(y, z, values8);
+                kernel16.evaluateRow(y, z, values16);
+                kernel32.evaluateRow(y, z, values32);
+                assertArrayEquals(values8, values16, 1e-10);
+                assertArrayEquals(values8, values32, 1e-10);
+            }
+        }
+    }
+
+    /**
+     * Checks that the rows computed with analytical clipping are the same as
+     * the rows computed voxel-by-voxel, for each interpolation method and each
+     * padding strategy, and for a box partially outside of image.
+     */
+    @Test
+    public final void testFillRow_sameAsEvaluateRow_allPaddings()
+    {
+        ImageStack image = convertStack(TestImages.createRampStack(30, 25, 20), 32);
+        int[] dims = new int[] {24, 20, 16};
+        AffineTransform3D transfo = RotCrop.computeTransform(new Point3D(4.0, 20.0, 15.0), dims, new double[] {30.0, 20.0, 10.0});
+
+        float[] pixels = new float[dims[0]];
+        double[] values = new double[dims[0]];
+        for (Interpolation interp : Interpolation.values())
+        {
+            ResamplingKernel3D kernel = ResamplingKernel3D.create(image, transfo, interp);
+            for (Padding padding : Padding.values())
+            {
+                kernel.setPadding(padding);
+                kernel.setBackgroundValue(-1.0);
+                for (int z = 0; z < dims[2]; z++)
+                {
+                    for (int y = 0; y < dims[1]; y++)
+                    {
+                        kernel.fillRow(y, z, pixels, 0, dims[0]);
+                        kernel.evaluateRow(y, z, values);
+                        for (int x = 0; x < dims[0]; x++)
+                        {
+                            assertEquals(values[x], pixels[x], 1e-4);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Test method for {@link net.ijt.rotcrop.ResamplingKernel3D#create(ImageStack, AffineTransform3D, Interpolation)}.
+     */
+    @Test
+    public final void testEvaluate_interpolations()
+    {
+        ImageStack image = TestImages.createRampStack(30, 25, 20);
+        AffineTransform3D transfo = AffineTransform3D.createTranslation(5.0, 4.0, 3.0);
+
+        ResamplingKernel3D kernel = ResamplingKernel3D.create(image, transfo, Interpolation.NEAREST);
+        assertEquals(image.getVoxel(10, 8, 6), kernel.evaluate(5.4, 4, 3), 1e-10);
+        assertEquals(image.getVoxel(11, 8, 6), kernel.evaluate(5.6, 4, 3), 1e-10);
+        assertEquals(image.getVoxel(29, 8, 6), kernel.evaluate(24.4, 4, 3), 1e-10);
+        assertEquals(0.0, kernel.evaluate(24.6, 4, 3), 1e-10);
+
+        // cubic convolution reproduces the linear variations of the ramp
+        kernel = ResamplingKernel3D.create(image, transfo, Interpolation.CUBIC);
+        assertEquals(image.getVoxel(10, 8, 6), kernel.evaluate(5, 4, 3), 1e-10);
+        assertEquals(10.5 + 2 * 8 + 3 * 6, kernel.evaluate(5.5, 4, 3), 1e-10);
+        assertEquals(10 + 2 * 8.25 + 3 * 6.75, kernel.evaluate(5, 4.25, 3.75), 1e-10);
+    }
+
+    /**
+     * Test method for {@link net.ijt.rotcrop.ResamplingKernel3D#setPadding(Padding)}.
+     */
+    @Test
+    public final void testEvaluate_paddings()
+    {
+        ImageStack image = TestImages.createRampStack(30, 25, 20);
+        AffineTransform3D transfo = AffineTransform3D.createTranslation(5.0, 4.0, 3.0);
+        ResamplingKernel3D kernel = ResamplingKernel3D.create(image, transfo);
+
+        // source position (-2, 4, 3)
+        kernel.setBackgroundValue(7.0);
+        assertEquals(7.0, kernel.evaluate(-7, 0, 0), 1e-10);
+        kernel.setPadding(Padding.REPLICATE);
+        assertEquals(image.getVoxel(0, 4, 3), kernel.evaluate(-7, 0, 0), 1e-10);
+        kernel.setPadding(Padding.MIRROR);
+        assertEquals(image.getVoxel(2, 4, 3), kernel.evaluate(-7, 0, 0), 1e-10);
+
+        // source position (31, 4, 3)
+        assertEquals(image.getVoxel(27, 4, 3), kernel.evaluate(26, 0, 0), 1e-10);
+        kernel.setPadding(Padding.REPLICATE);
+        assertEquals(image.getVoxel(29, 4, 3), kernel.evaluate(26, 0, 0), 1e-10);
+    }
+
+    private static final ImageStack convertStack(ImageStack stack, int bitDepth)
+    {
+        int sizeX = stack.getWidth();
+        int sizeY = stack.getHeight();
+        int sizeZ = stack.getSize();
+        ImageStack res = ImageStack.create(sizeX, sizeY, sizeZ, bitDepth);
+        for (int z = 0; z < sizeZ; z++)
+        {
+            for (int y = 0; y < sizeY; y++)
+            {
+                for (int x = 0; x < sizeX; x++)
+                {
+                    res.setVoxel(x, y, z, stack.getVoxel(x, y, z));
+                }
+            }
+        }
+        return res;
+    }
+}
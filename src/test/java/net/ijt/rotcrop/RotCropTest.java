@@ -3,13 +3,21 @@
  */
 package net.ijt.rotcrop;
 
+import static org.junit.Assert.*;
+
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 
 import org.junit.Test;
 
+import ij.ImageStack;
+import ij.process.ImageProcessor;
 import net.ijt.geom3d.AffineTransform3D;
 import net.ijt.geom3d.Point3D;
+import net.ijt.interp.Function3D;
+import net.ijt.interp.TransformedImage3D;
 
 /**
  * @author dlegland
@@ -47,6 +55,286 @@ public class RotCropTest
         
     }
     
+    /**
+     * Test method for {@link net.ijt.rotcrop.RotCrop#fillStackParallel(ij.ImageStack, net.ijt.interp.Function3D)}.
+     */
+    @Test
+    public final void testFillStackParallel_sameAsSerial()
+    {
+        ImageStack image = TestImages.createRampStack(30, 25, 20);
+        int[] dims = new int[] {16, 12, 10};
+        AffineTransform3D transfo = RotCrop.computeTransform(new Point3D(15.0, 12.0, 10.0), dims, new double[] {30.0, 20.0, 10.0});
+        Function3D interp = new TransformedImage3D(image, transfo);
+        
+        ImageStack res1 = ImageStack.create(dims[0], dims[1], dims[2], 8);
+        RotCrop.fillStack(res1, interp);
+        ImageStack res2 = ImageStack.create(dims[0], dims[1], dims[2], 8);
+        RotCrop.fillStackParallel(res2, interp);
+        
+        for (int z = 0; z < dims[2]; z++)
+        {
+            assertArrayEquals((byte[]) res1.getPixels(z + 1), (byte[]) res2.getPixels(z + 1));
+        }
+    }
+    
+    /**
+     * Test method for {@link net.ijt.rotcrop.RotCrop#fillStackTiled(ij.ImageStack, net.ijt.rotcrop.ResamplingKernel3D, int)}.
+     */
+    @Test
+    public final void testFillStackTiled_sameAsFillStack()
+    {
+        ImageStack image = TestImages.createRampStack(30, 25, 20);
+        int[] dims = new int[] {20, 18, 12};
+        AffineTransform3D transfo = RotCrop.computeTransform(new Point3D(15.0, 12.0, 10.0), dims, new double[] {45.0, 30.0, 0.0});
+        ResamplingKernel3D kernel = ResamplingKernel3D.create(image, transfo);
+        assertTrue(kernel.isObliqueToSlices());
+
+        ImageStack res1 = ImageStack.create(dims[0], dims[1], dims[2], 8);
+        RotCrop.fillStack(res1, kernel);
+        // use a tile size that does not divide the result size
+        ImageStack res2 = ImageStack.create(dims[0], dims[1], dims[2], 8);
+        RotCrop.fillStackTiled(res2, kernel, 8);
+        ImageStack res3 = ImageStack.create(dims[0], dims[1], dims[2], 8);
+        RotCrop.fillStackTiledParallel(res3, kernel);
+
+        for (int z = 0; z < dims[2]; z++)
+        {
+            assertArrayEquals((byte[]) res1.getPixels(z + 1), (byte[]) res2.getPixels(z + 1));
+            assertArrayEquals((byte[]) res1.getPixels(z + 1), (byte[]) res3.getPixels(z + 1));
+        }
+    }
+
+    /**
+     * Checks that the kernels chosen by RotCrop when the vectorized kernels
+     * are enabled (and supported by the runtime) give the same result as the
+     * scalar kernels, for crops within and across slices.
+     */
+    @Test
+    public final void testCreateKernel_sameAsScalarKernel()
+    {
+        boolean enabled = RotCrop.isVectorKernelsEnabled();
+        RotCrop.setVectorKernelsEnabled(true);
+        try
+        {
+            checkCreateKernel_sameAsScalarKernel();
+        }
+        finally
+        {
+            RotCrop.setVectorKernelsEnabled(enabled);
+        }
+    }
+
+    private static final void checkCreateKernel_sameAsScalarKernel()
+    {
+        ImageStack image8 = TestImages.createRampStack(30, 25, 20);
+        int[] dims = new int[] {21, 12, 10};
+        for (int bitDepth : new int[] {8, 16, 32})
+        {
+            ImageStack image = ImageStack.create(30, 25, 20, bitDepth);
+            for (int z = 0; z < 20; z++)
+            {
+                for (int y = 0; y < 25; y++)
+                {
+                    for (int x = 0; x < 30; x++)
+                    {
+                        image.setVoxel(x, y, z, image8.getVoxel(x, y, z));
+                    }
+                }
+            }
+            // single-precision blending only changes 32-bit results
+            double tol = bitDepth == 32 ? 1e-4 : 0.0;
+
+            for (double[] angles : new double[][] {{30.0, 0.0, 0.0}, {30.0, 20.0, 10.0}})
+            {
+                AffineTransform3D transfo = RotCrop.computeTransform(new Point3D(15.0, 12.0, 10.0), dims, angles);
+                ImageStack res1 = RotCrop.resample(ResamplingKernel3D.create(image, transfo), dims);
+                ImageStack res2 = RotCrop.resample(RotCrop.createKernel(image, transfo, Interpolation.LINEAR), dims);
+
+                for (int z = 0; z < dims[2]; z++)
+                {
+                    for (int y = 0; y < dims[1]; y++)
+                    {
+                        for (int x = 0; x < dims[0]; x++)
+                        {
+                            assertEquals(res1.getVoxel(x, y, z), res2.getVoxel(x, y, z), tol);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Test method for {@link net.ijt.rotcrop.RotCrop#rotatedCrops(ij.ImageStack, java.util.List, net.ijt.rotcrop.RotCrop.CropConsumer)}.
+     */
+    @Test
+    public final void testRotatedCrops_sameAsRotatedCrop()
+    {
+        ImageStack image = TestImages.createRampStack(30, 25, 20);
+        int[] dims = new int[] {10, 8, 6};
+        ArrayList<CropRequest> requests = new ArrayList<CropRequest>();
+        for (int i = 0; i < 20; i++)
+        {
+            Point3D center = new Point3D(10.0 + i * 0.5, 12.0, 8.0 + i * 0.25);
+            requests.add(CropRequest.rotated(center, new double[] {i * 10.0, 20.0, i * 5.0}, dims));
+        }
+
+        ImageStack[] results = new ImageStack[requests.size()];
+        RotCrop.rotatedCrops(image, requests, (index, request, crop) -> {
+            synchronized (results)
+            {
+                assertNull(results[index]);
+                results[index] = crop;
+            }
+        });
+
+        for (int i = 0; i < 20; i++)
+        {
+            Point3D center = new Point3D(10.0 + i * 0.5, 12.0, 8.0 + i * 0.25);
+            ImageStack exp = RotCrop.rotatedCrop(image, dims, center, new double[] {i * 10.0, 20.0, i * 5.0});
+            assertNotNull(results[i]);
+            for (int z = 0; z < dims[2]; z++)
+            {
+                assertArrayEquals((byte[]) exp.getPixels(z + 1), (byte[]) results[i].getPixels(z + 1));
+            }
+        }
+    }
+
+    /**
+     * Test method for {@link net.ijt.rotcrop.RotCrop#computeTangentCropTransforms(ij.ImageStack, java.util.List, int[], double)}.
+     */
+    @Test
+    public final void testComputeTangentCropTransforms_sameAsSingle()
+    {
+        ImageStack image = TestImages.createRampStack(30, 25, 20);
+        int[] dims = new int[] {10, 8, 6};
+        ArrayList<Point3D> points = new ArrayList<Point3D>();
+        for (int i = 0; i < 20; i++)
+        {
+            points.add(new Point3D(10 + i / 2, 12, 8 + i / 4));
+        }
+
+        List<AffineTransform3D> transfos = RotCrop.computeTangentCropTransforms(image, points, dims, 2.0);
+        assertEquals(points.size(), transfos.size());
+        Point3D corner = new Point3D(9, 7, 5);
+        for (int i = 0; i < points.size(); i++)
+        {
+            AffineTransform3D exp = RotCrop.computeTangentCropTransform(image, points.get(i), dims, 2.0);
+            Point3D p1 = exp.transform(corner);
+            Point3D p2 = transfos.get(i).transform(corner);
+            assertEquals(p1.x(), p2.x(), 1e-4);
+            assertEquals(p1.y(), p2.y(), 1e-4);
+            assertEquals(p1.z(), p2.z(), 1e-4);
+        }
+    }
+
+    /**
+     * Test method for {@link net.ijt.rotcrop.RotCrop#resample(net.ijt.rotcrop.ResamplingKernel3D, int[], int, net.ijt.rotcrop.SliceSink)}.
+     */
+    @Test
+    public final void testResample_sliceSink_sameAsResample() throws IOException
+    {
+        ImageStack image = TestImages.createRampStack(30, 25, 20);
+        // use a number of slices that is not a multiple of the number of threads
+        int[] dims = new int[] {16, 12, 13};
+        AffineTransform3D transfo = RotCrop.computeTransform(new Point3D(15.0, 12.0, 10.0), dims, new double[] {30.0, 20.0, 10.0});
+        ResamplingKernel3D kernel = ResamplingKernel3D.create(image, transfo);
+        ImageStack exp = RotCrop.resample(kernel, dims);
+
+        ArrayList<byte[]> slices = new ArrayList<byte[]>();
+        RotCrop.resample(kernel, dims, 8, new SliceSink()
+        {
+            @Override
+            public void begin(int sizeX, int sizeY, int sizeZ, int bitDepth)
+            {
+                assertEquals(16, sizeX);
+                assertEquals(12, sizeY);
+                assertEquals(13, sizeZ);
+                assertEquals(8, bitDepth);
+            }
+
+            @Override
+            public void accept(int z, ImageProcessor slice)
+            {
+                assertEquals(slices.size(), z);
+                // processors are reused, so keep a copy of the pixels
+                slices.add(((byte[]) slice.getPixels()).clone());
+            }
+
+            @Override
+            public void close()
+            {
+            }
+        });
+
+        assertEquals(dims[2], slices.size());
+        for (int z = 0; z < dims[2]; z++)
+        {
+            assertArrayEquals((byte[]) exp.getPixels(z + 1), slices.get(z));
+        }
+    }
+
+    /**
+     * Test method for {@link net.ijt.rotcrop.RotCrop#rotatedCrop(ij.ImageStack, int[], net.ijt.geom3d.Point3D, double[])}.
+     */
+    @Test
+    public final void testRotatedCrop_keepBitDepth()
+    {
+        ImageStack image = ImageStack.create(30, 25, 20, 16);
+        for (int z = 0; z < 20; z++)
+        {
+            for (int y = 0; y < 25; y++)
+            {
+                for (int x = 0; x < 30; x++)
+                {
+                    image.setVoxel(x, y, z, 1000 + x);
+                }
+            }
+        }
+
+        int[] dims = new int[] {10, 10, 10};
+        ImageStack res = RotCrop.rotatedCrop(image, dims, new Point3D(15.0, 12.0, 10.0), new double[] {0.0, 0.0, 0.0});
+
+        assertEquals(16, res.getBitDepth());
+        assertEquals(1010.0, res.getVoxel(0, 0, 0), 1e-10);
+        assertEquals(1019.0, res.getVoxel(9, 5, 5), 1e-10);
+
+        // force 32-bit result
+        res = RotCrop.rotatedCrop(image, dims, new Point3D(15.0, 12.0, 10.0), new double[] {0.0, 0.0, 0.0}, 32);
+        assertEquals(32, res.getBitDepth());
+        assertEquals(1010.0, res.getVoxel(0, 0, 0), 1e-10);
+    }
+
+    /**
+     * Test method for {@link net.ijt.rotcrop.RotCrop#orthoSlices(net.ijt.interp.Function3D, int[], java.util.function.Consumer)}.
+     */
+    @Test
+    public final void testOrthoSlices_progressive_sameAsOrthoSlices()
+    {
+        ImageStack image = TestImages.createRampStack(40, 30, 20);
+        AffineTransform3D transfo = RotCrop.computeTransform(new Point3D(20.0, 15.0, 10.0), new int[] {21, 19, 13}, new double[] {10.0, 20.0, 30.0});
+        Function3D fun = new TransformedImage3D(image, transfo);
+        int[] dims = new int[] {21, 19, 13};
+
+        ImageProcessor exp = RotCrop.orthoSlices(fun, dims);
+        ArrayList<ImageProcessor> partials = new ArrayList<ImageProcessor>();
+        ImageProcessor res = RotCrop.orthoSlices(fun, dims, partials::add);
+
+        assertArrayEquals((byte[]) exp.getPixels(), (byte[]) res.getPixels());
+        
+        // one partial result for each step larger than 1
+        assertEquals(3, partials.size());
+        ImageProcessor first = partials.get(0);
+        for (int y = 0; y < 8; y++)
+        {
+            for (int x = 0; x < 8; x++)
+            {
+                assertEquals(exp.get(0, 0), first.get(x, y));
+                assertEquals(exp.get(8, 8), first.get(x + 8, y + 8));
+            }
+        }
+    }
+    
     private static final void print(String pattern, Object... args)
     {
         System.out.println(String.format(Locale.ENGLISH, pattern, args));
@@ -0,0 +1,74 @@
+/**
+ * 
+ */
+package net.ijt.rotcrop;
+
+import java.util.Locale;
+
+import ij.ImageStack;
+import net.ijt.geom3d.AffineTransform3D;
+import net.ijt.geom3d.Point3D;
+
+/**
+ * Compares the running time of the plain slice-by-slice traversal with the
+ * tiled traversal, for crops aligned with the slices of the source image and
+ * for oblique crops.
+ *
+ * @author dlegland
+ *
+ */
+public class RotCrop_Benchmark_Tiling
+{
+    public static final void main(String... args)
+    {
+        // synthetic 8-bit source image, larger than the caches
+        int size = 400;
+        ImageStack image = ImageStack.create(size, size, size, 8);
+        for (int z = 0; z < size; z++)
+        {
+            byte[] pixels = (byte[]) image.getPixels(z + 1);
+            for (int i = 0; i < pixels.length; i++)
+            {
+                pixels[i] = (byte) (i * 7 + z * 13);
+            }
+        }
+
+        int[] dims = new int[] { 256, 256, 256 };
+        Point3D refPoint = new Point3D(size / 2, size / 2, size / 2);
+        double[][] anglesList = new double[][] {
+            { 0.0, 0.0, 0.0 },
+            { 45.0, 0.0, 0.0 },
+            { 0.0, 45.0, 0.0 },
+            { 45.0, 30.0, 20.0 } };
+
+        int nRuns = 5;
+        for (double[] angles : anglesList)
+        {
+            AffineTransform3D transfo = RotCrop.computeTransform(refPoint, dims, angles);
+            ResamplingKernel3D kernel = ResamplingKernel3D.create(image, transfo);
+            ImageStack res = ImageStack.create(dims[0], dims[1], dims[2], 8);
+
+            // warm up
+            RotCrop.fillStack(res, kernel);
+            RotCrop.fillStackTiled(res, kernel);
+
+            long plain = Long.MAX_VALUE;
+            long tiled = Long.MAX_VALUE;
+            for (int i = 0; i < nRuns; i++)
+            {
+                long t0 = System.nanoTime();
+                RotCrop.fillStack(res, kernel);
+                long t1 = System.nanoTime();
+                RotCrop.fillStackTiled(res, kernel);
+                long t2 = System.nanoTime();
+                plain = Math.min(plain, t1 - t0);
+                tiled = Math.min(tiled, t2 - t1);
+            }
+
+            System.out.println(String.format(Locale.ENGLISH,
+                    "angles (%5.1f, %5.1f, %5.1f), tile %3d: plain %7.1f ms, tiled %7.1f ms",
+                    angles[0], angles[1], angles[2], RotCrop.tileSize(kernel),
+                    plain * 1e-6, tiled * 1e-6));
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * 
+ */
+package net.ijt.rotcrop;
+
+import java.util.Locale;
+
+import ij.ImageStack;
+import net.ijt.geom3d.AffineTransform3D;
+import net.ijt.geom3d.Point3D;
+
+/**
+ * Compares the running time of the scalar resampling kernels with the kernels
+ * chosen by RotCrop when the vectorized kernels are enabled. Kernels are
+ * vectorized when running on Java 16 or later with the
+ * <code>--add-modules jdk.incubator.vector</code> option, and when the
+ * classes are loaded from the multi-release jar.
+ *
+ * @author dlegland
+ *
+ */
+public class RotCrop_Benchmark_Vector
+{
+    public static final void main(String... args)
+    {
+        System.out.println("Vectorized kernels available: " + VectorKernels.isAvailable());
+        RotCrop.setVectorKernelsEnabled(true);
+
+        int size = 300;
+        int[] dims = new int[] { 256, 256, 128 };
+        Point3D refPoint = new Point3D(size / 2, size / 2, size / 2);
+        double[][] anglesList = new double[][] {
+            { 30.0, 0.0, 0.0 },
+            { 30.0, 20.0, 10.0 } };
+
+        int nRuns = 10;
+        for (int bitDepth : new int[] { 8, 16, 32 })
+        {
+            // synthetic source image
+            ImageStack image = ImageStack.create(size, size, size, bitDepth);
+            for (int z = 0; z < size; z++)
+            {
+                for (int y = 0; y < size; y++)
+                {
+                    for (int x = 0; x < size; x++)
+                    {
+                        image.setVoxel(x, y, z, (x * 7 + y * 3 + z * 13) % 256);
+                    }
+                }
+            }
+
+            for (double[] angles : anglesList)
+            {
+                AffineTransform3D transfo = RotCrop.computeTransform(refPoint, dims, angles);
+                ResamplingKernel3D scalar = ResamplingKernel3D.create(image, transfo);
+                ResamplingKernel3D chosen = RotCrop.createKernel(image, transfo, Interpolation.LINEAR);
+                ImageStack res = ImageStack.create(dims[0], dims[1], dims[2], bitDepth);
+
+                long time1 = Long.MAX_VALUE;
+                long time2 = Long.MAX_VALUE;
+                for (int i = 0; i < nRuns; i++)
+                {
+                    long t0 = System.nanoTime();
+                    RotCrop.fillStack(res, scalar);
+                    long t1 = System.nanoTime();
+                    RotCrop.fillStack(res, chosen);
+                    long t2 = System.nanoTime();
+                    time1 = Math.min(time1, t1 - t0);
+                    time2 = Math.min(time2, t2 - t1);
+                }
+
+                System.out.println(String.format(Locale.ENGLISH,
+                        "%2d-bit, angles (%5.1f, %5.1f, %5.1f): scalar %7.1f ms, %s %7.1f ms",
+                        bitDepth, angles[0], angles[1], angles[2], time1 * 1e-6,
+                        chosen.getClass().getSimpleName(), time2 * 1e-6));
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * 
+ */
+package net.ijt.rotcrop;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import ij.ImageStack;
+import net.ijt.geom3d.Point3D;
+import net.ijt.geom3d.Vector3D;
+
+/**
+ * @author dlegland
+ *
+ */
+public class ScaleSpaceTest
+{
+    /**
+     * Test method for {@link net.ijt.rotcrop.ScaleSpace#build()}.
+     */
+    @Test
+    public final void testBuild_levelSizes()
+    {
+        ImageStack image = ImageStack.create(70, 64, 33, 8);
+        ScaleSpace scaleSpace = new ScaleSpace(image);
+        assertEquals(3, scaleSpace.getLevelCount());
+        assertEquals(0, scaleSpace.availableLevel(2));
+        
+        scaleSpace.build();
+        assertEquals(2, scaleSpace.availableLevel(2));
+        ImageStack level2 = scaleSpace.getLevel(2);
+        assertEquals(18, level2.getWidth());
+        assertEquals(16, level2.getHeight());
+        assertEquals(9, level2.getSize());
+        assertEquals(32, level2.getBitDepth());
+    }
+
+    /**
+     * Test method for {@link net.ijt.rotcrop.ScaleSpace#levelFor(double)}.
+     */
+    @Test
+    public final void testLevelFor()
+    {
+        ImageStack image = ImageStack.create(128, 128, 128, 8);
+        ScaleSpace scaleSpace = new ScaleSpace(image);
+        assertEquals(0, scaleSpace.levelFor(2.0));
+        assertEquals(1, scaleSpace.levelFor(3.0));
+        assertEquals(3, scaleSpace.levelFor(12.0));
+        assertEquals(scaleSpace.getLevelCount() - 1, scaleSpace.levelFor(1000.0));
+    }
+
+    /**
+     * Test method for {@link net.ijt.rotcrop.ScaleSpace#evaluate(net.ijt.geom3d.Point3D, double)}.
+     */
+    @Test
+    public final void testEvaluate_ramp()
+    {
+        ImageStack image = createRampImage();
+        ScaleSpace scaleSpace = new ScaleSpace(image);
+        scaleSpace.build();
+        
+        // far from the borders, the gradient of a ramp is the same as with a
+        // local evaluation on the source image
+        double sigma = 6.0;
+        Point3D pos = new Point3D(40, 40, 40);
+        Vector3D exp = new LocalGradientEstimator(sigma).evaluate(image, pos);
+        Vector3D grad = scaleSpace.evaluate(pos, sigma);
+        assertEquals(exp.x(), grad.x(), 1e-3 * exp.norm());
+        assertEquals(exp.y(), grad.y(), 1e-3 * exp.norm());
+        assertEquals(exp.z(), grad.z(), 1e-3 * exp.norm());
+    }
+
+    /**
+     * Test method for {@link net.ijt.rotcrop.ScaleSpace#evaluate(net.ijt.geom3d.Point3D, double)}.
+     */
+    @Test
+    public final void testEvaluate_sameDirectionAsLocalEstimator()
+    {
+        // a ball, whose gradient is oriented along the radius
+        ImageStack image = ImageStack.create(64, 64, 64, 8);
+        for (int z = 0; z < 64; z++)
+        {
+            for (int y = 0; y < 64; y++)
+            {
+                for (int x = 0; x < 64; x++)
+                {
+                    double d = Math.hypot(Math.hypot(x - 32, y - 32), z - 32);
+                    image.setVoxel(x, y, z, d < 18 ? 200 : 0);
+                }
+            }
+        }
+        ScaleSpace scaleSpace = new ScaleSpace(image);
+        scaleSpace.build();
+        
+        double sigma = 5.0;
+        assertTrue(scaleSpace.levelFor(sigma) > 0);
+        LocalGradientEstimator gradEst = new LocalGradientEstimator(sigma);
+        Point3D[] positions = new Point3D[] {new Point3D(50, 32, 32), new Point3D(32, 15, 38), new Point3D(42, 42, 22)};
+        for (Point3D pos : positions)
+        {
+            Vector3D exp = gradEst.evaluate(image, pos).normalize();
+            Vector3D grad = scaleSpace.evaluate(pos, sigma).normalize();
+            assertTrue(exp.x() * grad.x() + exp.y() * grad.y() + exp.z() * grad.z() > 0.99);
+        }
+    }
+
+    private static final ImageStack createRampImage()
+    {
+        ImageStack image = ImageStack.create(80, 80, 80, 32);
+        for (int z = 0; z < 80; z++)
+        {
+            for (int y = 0; y < 80; y++)
+            {
+                for (int x = 0; x < 80; x++)
+                {
+                    image.setVoxel(x, y, z, 2.0 * x - 1.0 * y + 0.5 * z);
+                }
+            }
+        }
+        return image;
+    }
+}
@@ -0,0 +1,181 @@
+/**
+ * 
+ */
+package net.ijt.rotcrop;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.ImageStack;
+import net.ijt.geom3d.Point3D;
+
+/**
+ * @author dlegland
+ *
+ */
+public class StructureTensorEstimatorTest
+{
+    /**
+     * Test method for {@link net.ijt.rotcrop.StructureTensorEstimator#eigenFrame(double[], double[], double[], double[])}.
+     */
+    @Test
+    public final void testEigenFrame_rotatedDiagonalMatrix()
+    {
+        // orthonormal basis, and matrix with eigenvalues 5, 2 and 0.5
+        double[][] vectors = new double[][] {
+            normalize(new double[] {1, 2, 2}),
+            normalize(new double[] {2, 1, -2}),
+            normalize(new double[] {2, -2, 1}) };
+        double[] values = new double[] {5.0, 2.0, 0.5};
+        double[] tensor = new double[6];
+        int[][] inds = new int[][] {{0, 0}, {0, 1}, {0, 2}, {1, 1}, {1, 2}, {2, 2}};
+        for (int c = 0; c < 6; c++)
+        {
+            for (int e = 0; e < 3; e++)
+            {
+                tensor[c] += values[e] * vectors[e][inds[c][0]] * vectors[e][inds[c][1]];
+            }
+        }
+
+        double[] frame = new double[9];
+        double[] eigenValues = new double[3];
+        StructureTensorEstimator.eigenFrame(tensor, new double[] {-1, 0, 0}, frame, eigenValues);
+
+        assertArrayEquals(values, eigenValues, 1e-10);
+        // normal is oriented along the reference vector
+        for (int d = 0; d < 3; d++)
+        {
+            assertEquals(-vectors[0][d], frame[d], 1e-8);
+        }
+        // tangent vectors are eigenvectors, up to the sign
+        assertEquals(1.0, Math.abs(dot(frame, 3, vectors[1])), 1e-8);
+        assertEquals(1.0, Math.abs(dot(frame, 6, vectors[2])), 1e-8);
+        checkOrthonormal(frame);
+    }
+
+    /**
+     * Test method for {@link net.ijt.rotcrop.StructureTensorEstimator#eigenFrame(double[], double[], double[], double[])}.
+     */
+    @Test
+    public final void testEigenFrame_degenerateMatrices()
+    {
+        double[] frame = new double[9];
+        
+        // planar structure: a single non-null eigenvalue
+        StructureTensorEstimator.eigenFrame(new double[] {0, 0, 0, 4, 0, 0}, new double[] {0, 1, 0}, frame, null);
+        assertEquals(1.0, frame[1], 1e-10);
+        checkOrthonormal(frame);
+        
+        // isotropic and null matrices
+        StructureTensorEstimator.eigenFrame(new double[] {2, 0, 0, 2, 0, 2}, new double[] {0, 0, 3}, frame, null);
+        assertEquals(1.0, frame[2], 1e-10);
+        checkOrthonormal(frame);
+        StructureTensorEstimator.eigenFrame(new double[6], new double[3], frame, null);
+        checkOrthonormal(frame);
+    }
+
+    /**
+     * Test method for {@link net.ijt.rotcrop.StructureTensorEstimator#evaluate(ij.ImageStack, net.ijt.geom3d.Point3D, double[], double[])}.
+     */
+    @Test
+    public final void testEvaluate_noisyPlane()
+    {
+        // step along an oblique plane, with additive noise
+        double[] normal = normalize(new double[] {1, 2, 2});
+        ImageStack image = ImageStack.create(40, 40, 40, 8);
+        Random random = new Random(7);
+        for (int z = 0; z < 40; z++)
+        {
+            for (int y = 0; y < 40; y++)
+            {
+                for (int x = 0; x < 40; x++)
+                {
+                    double d = (x - 20) * normal[0] + (y - 20) * normal[1] + (z - 20) * normal[2];
+                    image.setVoxel(x, y, z, (d > 0 ? 150 : 50) + random.nextInt(60));
+                }
+            }
+        }
+
+        StructureTensorEstimator estimator = new StructureTensorEstimator(1.5, 3.0);
+        double[] frame = new double[StructureTensorEstimator.FRAME_SIZE];
+        estimator.evaluate(image, new Point3D(20, 20, 20), frame, null);
+        assertTrue(dot(frame, 0, normal) > 0.99);
+        checkOrthonormal(frame);
+    }
+
+    /**
+     * Test method for {@link net.ijt.rotcrop.StructureTensorEstimator#evaluate(ij.ImageStack, java.util.List)}.
+     */
+    @Test
+    public final void testEvaluate_batchSameAsSingle()
+    {
+        ImageStack image = ImageStack.create(24, 22, 20, 8);
+        for (int z = 0; z < 20; z++)
+        {
+            for (int y = 0; y < 22; y++)
+            {
+                for (int x = 0; x < 24; x++)
+                {
+                    image.setVoxel(x, y, z, (x * x + 3 * y + 5 * z * y) % 256);
+                }
+            }
+        }
+        List<Point3D> positions = new ArrayList<Point3D>();
+        for (int i = 0; i < 8; i++)
+        {
+            positions.add(new Point3D(4 + 2 * i, 10, 3 + i));
+        }
+
+        // few positions use local gradients, many positions use the gradient field
+        StructureTensorEstimator estimator = new StructureTensorEstimator(1.0, 1.5);
+        double[] exp = new double[StructureTensorEstimator.FRAME_SIZE];
+        double[] frames = estimator.evaluate(image, positions);
+        List<Point3D> manyPositions = new ArrayList<Point3D>();
+        for (int i = 0; i < 200; i++)
+        {
+            manyPositions.add(positions.get(i % positions.size()));
+        }
+        double[] frames2 = estimator.evaluate(image, manyPositions);
+        for (int i = 0; i < positions.size(); i++)
+        {
+            estimator.evaluate(image, positions.get(i), exp, null);
+            for (int d = 0; d < 9; d++)
+            {
+                assertEquals(exp[d], frames[9 * i + d], 1e-10);
+                assertEquals(exp[d], frames2[9 * i + d], 1e-3);
+            }
+        }
+    }
+
+    private static final void checkOrthonormal(double[] frame)
+    {
+        for (int i = 0; i < 3; i++)
+        {
+            for (int j = 0; j < 3; j++)
+            {
+                double dot = frame[3 * i] * frame[3 * j] + frame[3 * i + 1] * frame[3 * j + 1] + frame[3 * i + 2] * frame[3 * j + 2];
+                assertEquals(i == j ? 1.0 : 0.0, dot, 1e-8);
+            }
+        }
+        // the cross product of the tangents is the normal
+        assertEquals(frame[0], frame[4] * frame[8] - frame[5] * frame[7], 1e-8);
+        assertEquals(frame[1], frame[5] * frame[6] - frame[3] * frame[8], 1e-8);
+        assertEquals(frame[2], frame[3] * frame[7] - frame[4] * frame[6], 1e-8);
+    }
+
+    private static final double dot(double[] frame, int offset, double[] v)
+    {
+        return frame[offset] * v[0] + frame[offset + 1] * v[1] + frame[offset + 2] * v[2];
+    }
+
+    private static final double[] normalize(double[] v)
+    {
+        double norm = Math.sqrt(v[0] * v[0] + v[1] * v[1] + v[2] * v[2]);
+        return new double[] {v[0] / norm, v[1] / norm, v[2] / norm};
+    }
+}
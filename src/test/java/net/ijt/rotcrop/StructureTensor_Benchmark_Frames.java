@@ -0,0 +1,63 @@
+/**
+ * 
+ */
+package net.ijt.rotcrop;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import ij.ImageStack;
+import net.ijt.geom3d.Point3D;
+
+/**
+ * Measures the throughput of the structure tensor estimator for computing the
+ * orientation frames of points sampled on the surface of a ball, using either
+ * local gradients or the gradient field of the image.
+ *
+ * @author dlegland
+ *
+ */
+public class StructureTensor_Benchmark_Frames
+{
+    public static final void main(String... args)
+    {
+        // synthetic image of a ball
+        int size = 200;
+        double radius = 80.0;
+        ImageStack image = ImageStack.create(size, size, size, 8);
+        for (int z = 0; z < size; z++)
+        {
+            for (int y = 0; y < size; y++)
+            {
+                for (int x = 0; x < size; x++)
+                {
+                    double d = Math.hypot(Math.hypot(x - size / 2, y - size / 2), z - size / 2);
+                    image.setVoxel(x, y, z, d < radius ? 200 : 50);
+                }
+            }
+        }
+
+        StructureTensorEstimator estimator = new StructureTensorEstimator(1.5, 3.0);
+        for (int nPoints : new int[] { 1000, 10000, 100000, 1000000 })
+        {
+            // points on the sphere, using a Fibonacci lattice
+            List<Point3D> points = new ArrayList<Point3D>(nPoints);
+            double golden = Math.PI * (3 - Math.sqrt(5));
+            for (int i = 0; i < nPoints; i++)
+            {
+                double z = 1 - 2 * (i + 0.5) / nPoints;
+                double r = Math.sqrt(1 - z * z);
+                double theta = golden * i;
+                points.add(new Point3D(size / 2 + radius * r * Math.cos(theta), size / 2 + radius * r * Math.sin(theta), size / 2 + radius * z));
+            }
+
+            long t0 = System.nanoTime();
+            estimator.evaluate(image, points);
+            long t1 = System.nanoTime();
+
+            System.out.println(String.format(Locale.ENGLISH, "%8d points: %8.1f ms, %10.0f points/s",
+                    nPoints, (t1 - t0) * 1e-6, nPoints / ((t1 - t0) * 1e-9)));
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/**
+ * 
+ */
+package net.ijt.rotcrop;
+
+import ij.ImageStack;
+
+/**
+ * Synthetic images shared by the tests of the package.
+ * 
+ * @author dlegland
+ *
+ */
+public class TestImages
+{
+    /**
+     * Creates an 8-bit stack whose values increase linearly along each
+     * dimension, modulo 256.
+     * 
+     * @param sizeX
+     *            the size of the stack in the X direction
+     * @param sizeY
+     *            the size of the stack in the Y direction
+     * @param sizeZ
+     *            the number of slices
+     * @return a new 8-bit stack
+     */
+    public static final ImageStack createRampStack(int sizeX, int sizeY, int sizeZ)
+    {
+        ImageStack stack = ImageStack.create(sizeX, sizeY, sizeZ, 8);
+        for (int z = 0; z < sizeZ; z++)
+        {
+            for (int y = 0; y < sizeY; y++)
+            {
+                for (int x = 0; x < sizeX; x++)
+                {
+                    stack.setVoxel(x, y, z, (x + 2 * y + 3 * z) % 256);
+                }
+            }
+        }
+        return stack;
+    }
+
+    /**
+     * Private constructor to prevent instantiation.
+     */
+    private TestImages()
+    {
+    }
+}
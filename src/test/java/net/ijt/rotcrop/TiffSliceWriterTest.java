@@ -0,0 +1,83 @@
+/**
+ * 
+ */
+package net.ijt.rotcrop;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Test;
+
+import ij.process.ShortProcessor;
+
+/**
+ * @author dlegland
+ *
+ */
+public class TiffSliceWriterTest
+{
+    /**
+     * Writes a small 16-bit stack, and checks the header, the pixel data, and
+     * the chaining of the IFDs.
+     */
+    @Test
+    public final void testWrite_ShortSlices() throws IOException
+    {
+        File file = File.createTempFile("rotcrop", ".tif");
+        file.deleteOnExit();
+
+        int sizeX = 5, sizeY = 4, sizeZ = 3;
+        try (TiffSliceWriter writer = new TiffSliceWriter(file))
+        {
+            writer.begin(sizeX, sizeY, sizeZ, 16);
+            ShortProcessor slice = new ShortProcessor(sizeX, sizeY);
+            short[] pixels = (short[]) slice.getPixels();
+            for (int z = 0; z < sizeZ; z++)
+            {
+                for (int i = 0; i < pixels.length; i++)
+                {
+                    pixels[i] = (short) (1000 * z + i);
+                }
+                writer.accept(z, slice);
+            }
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"))
+        {
+            assertEquals(0x4D4D, raf.readUnsignedShort());
+            assertEquals(42, raf.readUnsignedShort());
+
+            // follow the IFDs, and check the first and last value of each strip
+            long ifdOffset = raf.readInt() & 0xFFFFFFFFL;
+            int nIfds = 0;
+            while (ifdOffset != 0)
+            {
+                raf.seek(ifdOffset);
+                int nEntries = raf.readUnsignedShort();
+                long stripOffset = -1;
+                for (int i = 0; i < nEntries; i++)
+                {
+                    int tag = raf.readUnsignedShort();
+                    raf.readUnsignedShort();
+                    raf.readInt();
+                    int value = raf.readInt();
+                    if (tag == 273)
+                    {
+                        stripOffset = value;
+                    }
+                }
+                ifdOffset = raf.readInt() & 0xFFFFFFFFL;
+
+                raf.seek(stripOffset);
+                assertEquals(1000 * nIfds, raf.readShort());
+                raf.seek(stripOffset + 2 * (sizeX * sizeY - 1));
+                assertEquals(1000 * nIfds + sizeX * sizeY - 1, raf.readShort());
+                nIfds++;
+            }
+            assertEquals(sizeZ, nIfds);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * 
+ */
+package net.ijt.rotcrop.plugins;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import net.ijt.rotcrop.Interpolation;
+
+/**
+ * @author dlegland
+ *
+ */
+public class PreviewQualityTest
+{
+    /**
+     * Test method for {@link net.ijt.rotcrop.plugins.PreviewQuality#update(int, long)}.
+     */
+    @Test
+    public final void testUpdate_slowRenderingLowersQuality()
+    {
+        PreviewQuality quality = new PreviewQuality(30.0);
+        
+        quality.update(0, 100_000_000L);
+        assertEquals(1, quality.getStep());
+        quality.update(1, 50_000_000L);
+        assertEquals(2, quality.getStep());
+        
+        // measures from previous steps are ignored
+        quality.update(1, 50_000_000L);
+        assertEquals(2, quality.getStep());
+        
+        assertEquals(1, PreviewQuality.levelOffset(quality.getStep()));
+        assertEquals(Interpolation.NEAREST, PreviewQuality.interpolation(quality.getStep(), Interpolation.LINEAR));
+    }
+
+    /**
+     * Test method for {@link net.ijt.rotcrop.plugins.PreviewQuality#update(int, long)}.
+     */
+    @Test
+    public final void testUpdate_fastRenderingRaisesQuality()
+    {
+        PreviewQuality quality = new PreviewQuality(30.0);
+        quality.update(0, 100_000_000L);
+        quality.update(1, 100_000_000L);
+        quality.update(2, 100_000_000L);
+        assertEquals(3, quality.getStep());
+        
+        // 10 ms at the coarser level would take about 40 ms at the finer one
+        quality.update(3, 10_000_000L);
+        assertEquals(3, quality.getStep());
+        
+        quality.update(3, 5_000_000L);
+        assertEquals(2, quality.getStep());
+        quality.update(2, 5_000_000L);
+        assertEquals(1, quality.getStep());
+        quality.update(1, 5_000_000L);
+        assertEquals(0, quality.getStep());
+        assertEquals(Interpolation.LINEAR, PreviewQuality.interpolation(quality.getStep(), Interpolation.LINEAR));
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ * 
+ */
+package net.ijt.rotcrop.plugins;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.SwingUtilities;
+
+import org.junit.Test;
+
+import net.ijt.interp.Function3D;
+
+/**
+ * @author dlegland
+ *
+ */
+public class PreviewSchedulerTest
+{
+    /**
+     * Test method for {@link net.ijt.rotcrop.plugins.PreviewScheduler#submit(PreviewScheduler.Renderer, java.util.function.Consumer)}.
+     *
+     * @throws Exception
+     *             if the test is interrupted
+     */
+    @Test
+    public final void testSubmit_onlyLatestPublished() throws Exception
+    {
+        PreviewScheduler<Integer> scheduler = new PreviewScheduler<Integer>("test");
+        List<Integer> published = new CopyOnWriteArrayList<Integer>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        // the first request blocks the worker until the other ones are submitted
+        scheduler.submit(cancel -> {
+            started.countDown();
+            awaitQuietly(release);
+            return 0;
+        }, published::add);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i <= 5; i++)
+        {
+            int value = i;
+            scheduler.submit(cancel -> value, published::add);
+        }
+        release.countDown();
+
+        // the newest request is the last one run by the worker
+        waitForPublication(published, 5);
+        assertEquals(1, published.size());
+        assertEquals(5, published.get(0).intValue());
+        scheduler.shutdown();
+    }
+
+    /**
+     * Test method for {@link net.ijt.rotcrop.plugins.PreviewScheduler#checking(Function3D, PreviewScheduler.Cancellation)}.
+     *
+     * @throws Exception
+     *             if the test is interrupted
+     */
+    @Test
+    public final void testChecking_abortsCancelledRequest() throws Exception
+    {
+        PreviewScheduler<Integer> scheduler = new PreviewScheduler<Integer>("test");
+        List<Integer> published = new CopyOnWriteArrayList<Integer>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        int[] evaluatedRows = new int[1];
+
+        scheduler.submit(cancel -> {
+            Function3D fun = PreviewScheduler.checking((x, y, z) -> 1.0, cancel);
+            for (int y = 0; y < 100; y++)
+            {
+                if (y == 1)
+                {
+                    started.countDown();
+                    awaitQuietly(release);
+                }
+                for (int x = 0; x < 10; x++)
+                {
+                    fun.evaluate(x, y, 0);
+                }
+                evaluatedRows[0]++;
+            }
+            return -1;
+        }, published::add);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        scheduler.submit(cancel -> 1, published::add);
+        release.countDown();
+
+        waitForPublication(published, 1);
+        assertEquals(1, evaluatedRows[0]);
+        assertEquals(1, published.size());
+        assertEquals(1, published.get(0).intValue());
+        scheduler.shutdown();
+    }
+
+    private static final void awaitQuietly(CountDownLatch latch)
+    {
+        try
+        {
+            latch.await(5, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits until the specified value has been published, then until the events
+     * posted to the EDT have been processed.
+     */
+    private static final void waitForPublication(List<Integer> published, int value) throws Exception
+    {
+        long end = System.currentTimeMillis() + 5000;
+        while (!published.contains(value) && System.currentTimeMillis() < end)
+        {
+            Thread.sleep(10);
+        }
+        SwingUtilities.invokeAndWait(() -> {});
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ * 
+ */
+package net.ijt.rotcrop;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.ImageStack;
+import net.ijt.geom3d.AffineTransform3D;
+import net.ijt.geom3d.MatrixAffineTransform3D;
+import net.ijt.geom3d.Point3D;
+
+/**
+ * Compares the vectorized kernels with the scalar kernels. This test is
+ * compiled together with the classes of the "src/main/java16" directory, and
+ * requires the <code>jdk.incubator.vector</code> module.
+ *
+ * @author dlegland
+ *
+ */
+public class VectorTrilinearTest
+{
+    /**
+     * Test method for {@link net.ijt.rotcrop.VectorTrilinear.ByteKernel}.
+     */
+    @Test
+    public final void testByteKernel_sameAsScalarKernel()
+    {
+        ImageStack image = createRandomStack(40, 35, 30, 8, 256);
+        for (AffineTransform3D transfo : createTransforms())
+        {
+            checkSameAsScalar(image, new VectorTrilinear.ByteKernel(image, transfo), transfo, 0.0);
+        }
+    }
+
+    /**
+     * Test method for {@link net.ijt.rotcrop.VectorTrilinear.ShortKernel}.
+     */
+    @Test
+    public final void testShortKernel_sameAsScalarKernel()
+    {
+        ImageStack image = createRandomStack(40, 35, 30, 16, 65536);
+        for (AffineTransform3D transfo : createTransforms())
+        {
+            checkSameAsScalar(image, new VectorTrilinear.ShortKernel(image, transfo), transfo, 0.0);
+        }
+    }
+
+    /**
+     * Test method for {@link net.ijt.rotcrop.VectorTrilinear.FloatKernel}.
+     */
+    @Test
+    public final void testFloatKernel_sameAsScalarKernel()
+    {
+        ImageStack image = createRandomStack(40, 35, 30, 32, 1000);
+        for (AffineTransform3D transfo : createTransforms())
+        {
+            checkSameAsScalar(image, new VectorTrilinear.FloatKernel(image, transfo), transfo, 1000 * VectorTrilinear.RELATIVE_ERROR);
+        }
+    }
+
+    /**
+     * Test method for {@link net.ijt.rotcrop.VectorKernels#create(ij.ImageStack, net.ijt.geom3d.AffineTransform3D, net.ijt.rotcrop.Interpolation)}.
+     */
+    @Test
+    public final void testCreate_vectorizedWhenAvailable()
+    {
+        ImageStack image = createRandomStack(20, 20, 20, 8, 256);
+        AffineTransform3D transfo = createTransforms()[0];
+
+        ResamplingKernel3D kernel = VectorKernels.create(image, transfo, Interpolation.LINEAR);
+        assertEquals(VectorKernels.isAvailable(), kernel instanceof VectorTrilinear.ByteKernel);
+        assertNull(VectorKernels.create(image, transfo, Interpolation.CUBIC));
+    }
+
+    private static final void checkSameAsScalar(ImageStack image, ResamplingKernel3D kernel, AffineTransform3D transfo, double tol)
+    {
+        int[] dims = new int[] {45, 23, 12};
+        ImageStack exp = RotCrop.resample(ResamplingKernel3D.create(image, transfo), dims);
+        ImageStack res = RotCrop.resample(kernel, dims);
+        for (int z = 0; z < dims[2]; z++)
+        {
+            for (int y = 0; y < dims[1]; y++)
+            {
+                for (int x = 0; x < dims[0]; x++)
+                {
+                    assertEquals(exp.getVoxel(x, y, z), res.getVoxel(x, y, z), tol);
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates transforms for crops within a slice, across slices, and with a
+     * scaling.
+     */
+    private static final AffineTransform3D[] createTransforms()
+    {
+        int[] dims = new int[] {45, 23, 12};
+        Point3D center = new Point3D(20.3, 17.1, 14.7);
+        AffineTransform3D scaling = new MatrixAffineTransform3D(0.37, 0, 0, 0,  0, 0.37, 0, 0,  0, 0, 0.37, 0);
+        return new AffineTransform3D[] {
+            RotCrop.computeTransform(center, dims, new double[] {30.0, 0.0, 0.0}),
+            RotCrop.computeTransform(center, dims, new double[] {30.0, 20.0, 10.0}),
+            RotCrop.computeTransform(center, dims, new double[] {-17.0, 41.0, 73.0}).concatenate(scaling)};
+    }
+
+    private static final ImageStack createRandomStack(int sizeX, int sizeY, int sizeZ, int bitDepth, int maxValue)
+    {
+        Random random = new Random(42);
+        ImageStack image = ImageStack.create(sizeX, sizeY, sizeZ, bitDepth);
+        for (int z = 0; z < sizeZ; z++)
+        {
+            for (int y = 0; y < sizeY; y++)
+            {
+                for (int x = 0; x < sizeX; x++)
+                {
+                    image.setVoxel(x, y, z, random.nextInt(maxValue));
+                }
+            }
+        }
+        return image;
+    }
+}